@@ -1,5 +1,7 @@
 package org.lwjgl.engine;
 
+import org.lwjgl.engine.graph.GLState;
+
 public class GameEngine implements Runnable {
 
     public static final int TARGET_FPS = 75;
@@ -115,13 +117,19 @@ public class GameEngine implements Runnable {
     }
 
     protected void render() {
-        if ( window.getWindowOptions().showFps && timer.getLastLoopTime() - lastFps > 1 ) {
+        boolean updateTitle = window.getWindowOptions().showFps && timer.getLastLoopTime() - lastFps > 1;
+        // The metrics of this frame are only formatted if the title shows them
+        Metrics.setSampling(updateTitle);
+        fps++;
+        gameLogic.render(window);
+        if (updateTitle) {
             lastFps = timer.getLastLoopTime();
-            window.setWindowTitle(windowTitle + " - " + fps + " FPS");
+            window.setWindowTitle(windowTitle + " - " + fps + " FPS - "
+                    + GLState.getElidedCalls() / Math.max(fps, 1) + " GL calls elided per frame"
+                    + Metrics.format(" - "));
+            GLState.resetCounters();
             fps = 0;
         }
-        fps++;
-        gameLogic.render(window);
         window.update();
     }
 }
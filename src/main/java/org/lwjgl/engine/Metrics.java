@@ -0,0 +1,56 @@
+package org.lwjgl.engine;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Values measured by the engine while rendering, like the time of the passes. They are shown next to the frame
+ * rate when showFps is enabled.
+ */
+public class Metrics {
+
+    private static final Map<String, String> values = new LinkedHashMap<>();
+
+    private static boolean sampling = true;
+
+    private Metrics() {
+    }
+
+    /**
+     * Sets the formatted value of a metric. Metrics are listed in the order they are first set.
+     */
+    public static void set(String name, String value) {
+        values.put(name, value);
+    }
+
+    /**
+     * @return If the values set during the current frame will be shown. Metrics that are measured every frame are
+     * only formatted when it is true, so the other frames do not build strings.
+     */
+    public static boolean isSampling() {
+        return sampling;
+    }
+
+    public static void setSampling(boolean sampling) {
+        Metrics.sampling = sampling;
+    }
+
+    public static void remove(String name) {
+        values.remove(name);
+    }
+
+    public static String get(String name) {
+        return values.get(name);
+    }
+
+    /**
+     * @return All the metrics as "name value" pairs, each one preceded by the separator
+     */
+    public static String format(String separator) {
+        StringBuilder result = new StringBuilder();
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            result.append(separator).append(entry.getKey()).append(' ').append(entry.getValue());
+        }
+        return result.toString();
+    }
+}
@@ -2,30 +2,64 @@ package org.lwjgl.engine;
 
 import org.lwjgl.engine.graph.InstancedMesh;
 import org.lwjgl.engine.graph.Mesh;
+import org.lwjgl.engine.graph.batch.StaticBatch;
+import org.lwjgl.engine.graph.batch.StaticBatcher;
 import org.lwjgl.engine.graph.lights.SceneLight;
+import org.lwjgl.engine.graph.shadow.ShadowProxy;
 import org.lwjgl.engine.items.GameItem;
 import org.lwjgl.engine.items.SkyBox;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class Scene {
 
+    /**
+     * Meshes with at least this number of indices get a simplified shadow proxy when they are added
+     */
+    private static final int SHADOW_PROXY_MIN_INDICES = 3 * 512;
+
+    /**
+     * Cells along each axis of the grid used to simplify the meshes
+     */
+    private static final int SHADOW_PROXY_GRID_SIZE = 16;
+
     private Map<Mesh, List<GameItem>> meshMap;
 
     private final Map<InstancedMesh, List<GameItem>> instancedMeshMap;
 
+    private final List<StaticBatch> staticBatches;
+
+    /**
+     * Meshes that have been merged into static batches. They are not rendered but still own their resources.
+     */
+    private final Set<Mesh> batchedMeshes;
+
     private SkyBox skyBox;
 
     private SceneLight sceneLight;
 
     private boolean renderShadows;
 
+    /**
+     * Whether the opaque geometry is drawn to the depth buffer first, so the scene pass only shades visible fragments
+     */
+    private boolean depthPrePass;
+
+    /**
+     * Incremented each time the set of meshes or items changes, so renderers can rebuild cached data.
+     */
+    private int version;
+
     public Scene() {
         meshMap = new HashMap();
         instancedMeshMap = new HashMap();
+        staticBatches = new ArrayList<>();
+        batchedMeshes = new HashSet<>();
         renderShadows = true;
     }
 
@@ -37,6 +71,14 @@ public class Scene {
         return instancedMeshMap;
     }
 
+    public List<StaticBatch> getStaticBatches() {
+        return staticBatches;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
     public boolean isRenderShadows() {
         return renderShadows;
     }
@@ -44,9 +86,18 @@ public class Scene {
     public void setGameItems(GameItem[] gameItems) {
         // Create a map of meshes to speed up rendering
         int numGameItems = gameItems != null ? gameItems.length : 0;
+        List<GameItem> staticItems = new ArrayList<>();
         for (int i = 0; i < numGameItems; i++) {
             GameItem gameItem = gameItems[i];
             Mesh[] meshes = gameItem.getMeshes();
+            if (gameItem.isStatic() && !hasInstancedMesh(meshes)) {
+                // Static items are merged into batches instead of being rendered one by one
+                staticItems.add(gameItem);
+                for (Mesh mesh : meshes) {
+                    batchedMeshes.add(mesh);
+                }
+                continue;
+            }
             for (Mesh mesh : meshes) {
                 boolean instancedMesh = mesh instanceof InstancedMesh;
                 List<GameItem> list = instancedMesh ? instancedMeshMap.get(mesh) : meshMap.get(mesh);
@@ -61,6 +112,29 @@ public class Scene {
                 list.add(gameItem);
             }
         }
+        if (!staticItems.isEmpty()) {
+            staticBatches.addAll(new StaticBatcher().batch(staticItems));
+        }
+        createShadowProxies(meshMap.keySet());
+        createShadowProxies(instancedMeshMap.keySet());
+        version++;
+    }
+
+    private static void createShadowProxies(Set<? extends Mesh> meshes) {
+        for (Mesh mesh : meshes) {
+            if (mesh.getShadowProxy() == null && mesh.getVertexCount() >= SHADOW_PROXY_MIN_INDICES) {
+                mesh.setShadowProxy(ShadowProxy.simplify(mesh, SHADOW_PROXY_GRID_SIZE), false);
+            }
+        }
+    }
+
+    private static boolean hasInstancedMesh(Mesh[] meshes) {
+        for (Mesh mesh : meshes) {
+            if (mesh instanceof InstancedMesh) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public void cleanup() {
@@ -70,6 +144,15 @@ public class Scene {
         for (Mesh mesh : instancedMeshMap.keySet()) {
             mesh.cleanUp();
         }
+        for (Mesh mesh : batchedMeshes) {
+            if (!meshMap.containsKey(mesh)) {
+                mesh.cleanUp();
+            }
+        }
+        for (StaticBatch staticBatch : staticBatches) {
+            // Batches share the textures of the source meshes
+            staticBatch.deleteBuffers();
+        }
     }
 
     public SkyBox getSkyBox() {
@@ -80,6 +163,14 @@ public class Scene {
         this.renderShadows = renderShadows;
     }
 
+    public boolean isDepthPrePass() {
+        return depthPrePass;
+    }
+
+    public void setDepthPrePass(boolean depthPrePass) {
+        this.depthPrePass = depthPrePass;
+    }
+
     public void setSkyBox(SkyBox skyBox) {
         this.skyBox = skyBox;
     }
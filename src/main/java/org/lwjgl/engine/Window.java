@@ -1,6 +1,7 @@
 package org.lwjgl.engine;
 
 import org.joml.Matrix4f;
+import org.lwjgl.engine.graph.GLState;
 import org.lwjgl.glfw.GLFWErrorCallback;
 import org.lwjgl.glfw.GLFWVidMode;
 import org.lwjgl.opengl.GL;
@@ -130,18 +131,18 @@ public class Window {
 
         // Set the clear color
         glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
-        glEnable(GL_DEPTH_TEST);
-        glEnable(GL_STENCIL_TEST);
+        GLState.enable(GL_DEPTH_TEST);
+        GLState.enable(GL_STENCIL_TEST);
         if (opts.showTriangles) {
             glPolygonMode(GL_FRONT_AND_BACK, GL_LINE);
         }
 
-        // Support for transparencies
-        glEnable(GL_BLEND);
+        // Support for transparencies. Blending is only enabled by the passes that need it
+        GLState.disable(GL_BLEND);
         glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
 
         if (opts.cullFace) {
-            glEnable(GL_CULL_FACE);
+            GLState.enable(GL_CULL_FACE);
             glCullFace(GL_BACK);
         }
 
@@ -151,12 +152,17 @@ public class Window {
         }
     }
 
+    /**
+     * Restores the state changed by NanoVG. The cached GL state is no longer valid after NanoVG has rendered.
+     */
     public void restoreState() {
-        glEnable(GL_DEPTH_TEST);
-        glEnable(GL_STENCIL_TEST);
+        GLState.invalidate();
+        GLState.enable(GL_DEPTH_TEST);
+        GLState.enable(GL_STENCIL_TEST);
+        GLState.disable(GL_BLEND);
         glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
         if (opts.cullFace) {
-            glEnable(GL_CULL_FACE);
+            GLState.enable(GL_CULL_FACE);
             glCullFace(GL_BACK);
         }
     }
@@ -248,5 +254,78 @@ public class Window {
         public boolean antialiasing;
 
         public boolean frustumCulling;
+
+        public boolean multiDrawIndirect;
+
+        public boolean gpuCulling;
+
+        public boolean shaderCache;
+
+        /**
+         * Renders the static shadow casters to a cached layer that is only refreshed when the light, the static
+         * casters or the cascade bounds change
+         */
+        public boolean shadowCache;
+
+        /**
+         * Number of shadow updates between the refreshes of each cascade, starting at the near one. The far
+         * cascades take turns, so their refreshes are spread over the frames. Null refreshes all of them together.
+         */
+        public int[] shadowCascadeIntervals;
+
+        /**
+         * Width and height in texels of each shadow cascade, 0 uses the default size
+         */
+        public int shadowMapSize;
+
+        /**
+         * Precision of the shadow maps, 16 or 24 bits
+         */
+        public int shadowDepthBits;
+
+        /**
+         * Draws simplified proxies of the casters in the far cascades, and merged boxes instead of batches made of
+         * boxes in all of them
+         */
+        public boolean shadowProxies;
+
+        /**
+         * Filters the cascades into exponential variance shadow maps each time they are rendered, so the scene
+         * resolves soft shadows with one fetch instead of a PCF kernel
+         */
+        public boolean filteredShadows;
+
+        /**
+         * Assigns the point and spot lights to the clusters of the view frustum on worker threads, so each
+         * fragment only evaluates the lights of its cluster
+         */
+        public boolean clusteredLighting;
+
+        /**
+         * Cube faces of the point light shadows rendered per frame at most, 0 disables them. The faces are cached,
+         * so only the ones of moving lights or changed casters use the budget. Needs clustered lighting.
+         */
+        public int pointShadowFaceBudget;
+
+        /**
+         * Bakes the sun visibility and the ambient occlusion of the static batches on the CPU, so they are drawn
+         * without the shadow cascades
+         */
+        public boolean bakedLighting;
+
+        /**
+         * Renders the scene at a lower resolution when the GPU time is above the target frame time
+         */
+        public boolean dynamicResolution;
+
+        /**
+         * Lowers the quality of the shadows when the GPU time is above the target frame time
+         */
+        public boolean qualityGovernor;
+
+        /**
+         * Target GPU time of a frame in milliseconds
+         */
+        public float targetFrameTime;
     }
 }
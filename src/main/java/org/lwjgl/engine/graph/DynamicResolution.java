@@ -0,0 +1,93 @@
+package org.lwjgl.engine.graph;
+
+/**
+ * Feedback controller of the scene resolution scale. The scale is lowered when the GPU frame time is above the
+ * target and raised when there is headroom. Between both thresholds the scale is kept, and after each change the
+ * controller waits for the timer results of the new scale, so it does not oscillate.
+ */
+public class DynamicResolution {
+
+    public static final float MIN_SCALE = 0.5f;
+
+    public static final float MAX_SCALE = 1.0f;
+
+    /**
+     * Scales are multiples of this step, so small variations of the frame time do not change them
+     */
+    private static final float SCALE_STEP = 0.05f;
+
+    /**
+     * The scale is lowered above this fraction of the target
+     */
+    private static final float DOWNSCALE_THRESHOLD = 1.05f;
+
+    /**
+     * The scale is raised below this fraction of the target
+     */
+    private static final float UPSCALE_THRESHOLD = 0.8f;
+
+    /**
+     * Largest increase of the scale in one change. Decreases are not limited, dropped frames are worse
+     */
+    private static final float MAX_UPSCALE_STEP = 0.1f;
+
+    /**
+     * Frames to wait after a change, timer results arrive a few frames late and the average needs to settle
+     */
+    private static final int COOLDOWN_FRAMES = 30;
+
+    private final float targetFrameTime;
+
+    private float scale;
+
+    private int cooldown;
+
+    /**
+     * @param targetFrameTime Target GPU time of the scene in milliseconds
+     */
+    public DynamicResolution(float targetFrameTime) {
+        this.targetFrameTime = targetFrameTime;
+        scale = MAX_SCALE;
+    }
+
+    /**
+     * Updates the scale with the GPU time of the last frames.
+     *
+     * @param frameTime Smoothed GPU frame time in milliseconds
+     * @return If the scale has changed
+     */
+    public boolean update(float frameTime) {
+        if (cooldown > 0) {
+            cooldown--;
+            return false;
+        }
+        if (frameTime <= 0.0f) {
+            return false;
+        }
+
+        float ratio = targetFrameTime / frameTime;
+        float newScale = scale;
+        if (ratio < 1.0f / DOWNSCALE_THRESHOLD) {
+            // The cost is roughly proportional to the number of pixels, that is to the square of the scale
+            newScale = scale * (float) Math.sqrt(ratio);
+        } else if (ratio > 1.0f / UPSCALE_THRESHOLD) {
+            newScale = Math.min(scale * (float) Math.sqrt(ratio), scale + MAX_UPSCALE_STEP);
+        }
+        newScale = Math.round(newScale / SCALE_STEP) * SCALE_STEP;
+        newScale = Math.max(MIN_SCALE, Math.min(MAX_SCALE, newScale));
+        if (Math.abs(newScale - scale) < SCALE_STEP / 2) {
+            return false;
+        }
+        scale = newScale;
+        cooldown = COOLDOWN_FRAMES;
+        return true;
+    }
+
+    public float getScale() {
+        return scale;
+    }
+
+    public int getScaledSize(int size) {
+        return Math.max(1, Math.round(size * scale));
+    }
+}
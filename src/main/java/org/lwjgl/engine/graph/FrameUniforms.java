@@ -0,0 +1,166 @@
+package org.lwjgl.engine.graph;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.lwjgl.engine.graph.lights.DirectionalLight;
+import org.lwjgl.engine.graph.shadow.ShadowCascade;
+import org.lwjgl.engine.graph.shadow.ShadowRenderer;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.lwjgl.opengl.GL11.glGetInteger;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.GL_UNIFORM_BUFFER;
+import static org.lwjgl.opengl.GL31.GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT;
+import static org.lwjgl.opengl.GL32.*;
+
+/**
+ * Per frame data shared by all the programs through the std140 uniform block "FrameData": camera matrices,
+ * cascade matrices and split distances, and the directional light. The block is written once per frame into a
+ * ring of buffer regions, so a region is never written while the GPU may still read it.
+ */
+public class FrameUniforms {
+
+    public static final String BLOCK_NAME = "FrameData";
+
+    public static final int BINDING = 0;
+
+    private static final int RING_SIZE = 3;
+
+    private static final int MATRIX_SIZE_BYTES = 16 * 4;
+
+    private static final int VEC4_SIZE_BYTES = 4 * 4;
+
+    private static final int VIEW_MATRIX_OFFSET = 0;
+
+    private static final int PROJECTION_MATRIX_OFFSET = VIEW_MATRIX_OFFSET + MATRIX_SIZE_BYTES;
+
+    private static final int LIGHT_VIEW_MATRIX_OFFSET = PROJECTION_MATRIX_OFFSET + MATRIX_SIZE_BYTES;
+
+    private static final int ORTHO_PROJECTION_MATRIX_OFFSET = LIGHT_VIEW_MATRIX_OFFSET + MATRIX_SIZE_BYTES * ShadowRenderer.NUM_CASCADES;
+
+    // Elements of a float array have a stride of a vec4 in std140
+    private static final int CASCADE_FAR_PLANES_OFFSET = ORTHO_PROJECTION_MATRIX_OFFSET + MATRIX_SIZE_BYTES * ShadowRenderer.NUM_CASCADES;
+
+    private static final int DIRECTIONAL_LIGHT_OFFSET = CASCADE_FAR_PLANES_OFFSET + VEC4_SIZE_BYTES * ShadowRenderer.NUM_CASCADES;
+
+    private static final int BLOCK_SIZE_BYTES = DIRECTIONAL_LIGHT_OFFSET + 2 * VEC4_SIZE_BYTES;
+
+    private final int bufferId;
+
+    private final int slotSize;
+
+    private final long[] fences;
+
+    private final ByteBuffer data;
+
+    private final Vector3f viewLightDirection;
+
+    private int slot;
+
+    public FrameUniforms() {
+        int alignment = Math.max(glGetInteger(GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT), 1);
+        slotSize = (BLOCK_SIZE_BYTES + alignment - 1) / alignment * alignment;
+        fences = new long[RING_SIZE];
+        data = MemoryUtil.memAlloc(BLOCK_SIZE_BYTES);
+        viewLightDirection = new Vector3f();
+
+        bufferId = glGenBuffers();
+        glBindBuffer(GL_UNIFORM_BUFFER, bufferId);
+        glBufferData(GL_UNIFORM_BUFFER, (long) slotSize * RING_SIZE, GL_DYNAMIC_DRAW);
+        glBindBuffer(GL_UNIFORM_BUFFER, 0);
+    }
+
+    /**
+     * Links the "FrameData" block of a program to the binding point of the ring.
+     *
+     * @param shaderProgram The program
+     * @throws Exception If the program does not declare the block
+     */
+    public static void bindBlock(ShaderProgram shaderProgram) throws Exception {
+        shaderProgram.bindUniformBlock(BLOCK_NAME, BINDING);
+    }
+
+    /**
+     * Writes the data of this frame into the next region of the ring and binds that region.
+     */
+    public void update(Matrix4f viewMatrix, Matrix4f projectionMatrix, List<ShadowCascade> shadowCascades,
+                       DirectionalLight directionalLight) {
+        slot = (slot + 1) % RING_SIZE;
+        waitForSlot(slot);
+
+        viewMatrix.get(VIEW_MATRIX_OFFSET, data);
+        projectionMatrix.get(PROJECTION_MATRIX_OFFSET, data);
+        for (int i = 0; i < ShadowRenderer.NUM_CASCADES; i++) {
+            ShadowCascade shadowCascade = shadowCascades.get(i);
+            shadowCascade.getLightViewMatrix().get(LIGHT_VIEW_MATRIX_OFFSET + i * MATRIX_SIZE_BYTES, data);
+            shadowCascade.getOrthoProjMatrix().get(ORTHO_PROJECTION_MATRIX_OFFSET + i * MATRIX_SIZE_BYTES, data);
+            data.putFloat(CASCADE_FAR_PLANES_OFFSET + i * VEC4_SIZE_BYTES, shadowCascade.getZFar());
+        }
+
+        // struct DirectionalLight { vec3 colour; vec3 direction; float intensity; }, direction in view coordinates
+        if (directionalLight == null) {
+            for (int i = 0; i < 2 * VEC4_SIZE_BYTES; i += 4) {
+                data.putFloat(DIRECTIONAL_LIGHT_OFFSET + i, 0.0f);
+            }
+            upload();
+            return;
+        }
+        viewMatrix.transformDirection(directionalLight.getDirection(), viewLightDirection);
+        Vector3f colour = directionalLight.getColor();
+        data.putFloat(DIRECTIONAL_LIGHT_OFFSET, colour.x);
+        data.putFloat(DIRECTIONAL_LIGHT_OFFSET + 4, colour.y);
+        data.putFloat(DIRECTIONAL_LIGHT_OFFSET + 8, colour.z);
+        data.putFloat(DIRECTIONAL_LIGHT_OFFSET + 16, viewLightDirection.x);
+        data.putFloat(DIRECTIONAL_LIGHT_OFFSET + 20, viewLightDirection.y);
+        data.putFloat(DIRECTIONAL_LIGHT_OFFSET + 24, viewLightDirection.z);
+        data.putFloat(DIRECTIONAL_LIGHT_OFFSET + 28, directionalLight.getIntensity());
+        upload();
+    }
+
+    private void upload() {
+        long offset = (long) slot * slotSize;
+        glBindBuffer(GL_UNIFORM_BUFFER, bufferId);
+        ByteBuffer mapped = glMapBufferRange(GL_UNIFORM_BUFFER, offset, BLOCK_SIZE_BYTES,
+                GL_MAP_WRITE_BIT | GL_MAP_INVALIDATE_RANGE_BIT | GL_MAP_UNSYNCHRONIZED_BIT);
+        if (mapped != null) {
+            MemoryUtil.memCopy(data, mapped);
+            glUnmapBuffer(GL_UNIFORM_BUFFER);
+        } else {
+            glBufferSubData(GL_UNIFORM_BUFFER, offset, data);
+        }
+        glBindBuffer(GL_UNIFORM_BUFFER, 0);
+        glBindBufferRange(GL_UNIFORM_BUFFER, BINDING, bufferId, offset, BLOCK_SIZE_BYTES);
+    }
+
+    /**
+     * Marks the end of the commands that read the current region.
+     */
+    public void endFrame() {
+        fences[slot] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+    }
+
+    private void waitForSlot(int slot) {
+        long fence = fences[slot];
+        if (fence != 0) {
+            // Usually signaled long ago, the ring is deeper than the frames the driver queues
+            glClientWaitSync(fence, GL_SYNC_FLUSH_COMMANDS_BIT, GL_TIMEOUT_IGNORED);
+            glDeleteSync(fence);
+            fences[slot] = 0;
+        }
+    }
+
+    public void cleanup() {
+        for (int i = 0; i < RING_SIZE; i++) {
+            if (fences[i] != 0) {
+                glDeleteSync(fences[i]);
+                fences[i] = 0;
+            }
+        }
+        glDeleteBuffers(bufferId);
+        MemoryUtil.memFree(data);
+    }
+}
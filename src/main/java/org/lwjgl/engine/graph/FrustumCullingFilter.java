@@ -4,6 +4,7 @@ import org.joml.FrustumIntersection;
 import org.joml.Matrix4f;
 import org.joml.Vector3f;
 import org.joml.Vector4f;
+import org.lwjgl.engine.graph.batch.StaticBatch;
 import org.lwjgl.engine.items.GameItem;
 
 import java.util.List;
@@ -47,6 +48,14 @@ public class FrustumCullingFilter {
         }
     }
 
+    public void filterBatches(List<StaticBatch> staticBatches) {
+        Vector3f center;
+        for (StaticBatch staticBatch : staticBatches) {
+            center = staticBatch.getCenter();
+            staticBatch.setInsideFrustum(insideFrustum(center.x, center.y, center.z, staticBatch.getBoundingRadius()));
+        }
+    }
+
     public boolean insideFrustum(float x0, float y0, float z0, float boundingRadius) {
         return frustumInt.testSphere(x0, y0, z0, boundingRadius);
     }
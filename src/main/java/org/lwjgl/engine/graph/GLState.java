@@ -0,0 +1,336 @@
+package org.lwjgl.engine.graph;
+
+import java.util.Arrays;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL13.GL_TEXTURE0;
+import static org.lwjgl.opengl.GL13.glActiveTexture;
+import static org.lwjgl.opengl.GL15.GL_ARRAY_BUFFER;
+import static org.lwjgl.opengl.GL15.glBindBuffer;
+import static org.lwjgl.opengl.GL15.glDeleteBuffers;
+import static org.lwjgl.opengl.GL20.glUseProgram;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL40.GL_DRAW_INDIRECT_BUFFER;
+
+/**
+ * Shadow copy of the GL state changed by the engine. Binds and toggles that would leave the state unchanged are
+ * not sent to the driver. All the state changes of the engine must go through this class, otherwise the copy gets
+ * out of sync. Code that changes the state behind its back (like NanoVG) must be followed by {@link #invalidate()}.
+ */
+public class GLState {
+
+    private static final int UNKNOWN = -1;
+
+    private static final int MAX_TEXTURE_UNITS = 16;
+
+    private static final int[] CAPABILITIES = {GL_DEPTH_TEST, GL_STENCIL_TEST, GL_BLEND, GL_CULL_FACE};
+
+    private static int program = UNKNOWN;
+
+    private static int vertexArray = UNKNOWN;
+
+    private static int arrayBuffer = UNKNOWN;
+
+    private static int drawIndirectBuffer = UNKNOWN;
+
+    /**
+     * Draw framebuffer. The read framebuffer is tracked apart, since blits bind it alone.
+     */
+    private static int framebuffer = UNKNOWN;
+
+    private static int readFramebuffer = UNKNOWN;
+
+    private static int activeTexture = UNKNOWN;
+
+    private static final int[] textures2D = new int[MAX_TEXTURE_UNITS];
+
+    private static final int[] texturesArray = new int[MAX_TEXTURE_UNITS];
+
+    private static final int[] capabilities = new int[CAPABILITIES.length];
+
+    private static int depthMask = UNKNOWN;
+
+    private static int depthFunc = UNKNOWN;
+
+    private static int colorMask = UNKNOWN;
+
+    private static final int[] viewport = new int[4];
+
+    private static long issuedCalls;
+
+    private static long elidedCalls;
+
+    static {
+        invalidate();
+    }
+
+    private GLState() {
+    }
+
+    /**
+     * Forgets the cached state, so the next change of each value is sent to the driver.
+     */
+    public static void invalidate() {
+        program = UNKNOWN;
+        vertexArray = UNKNOWN;
+        arrayBuffer = UNKNOWN;
+        drawIndirectBuffer = UNKNOWN;
+        framebuffer = UNKNOWN;
+        readFramebuffer = UNKNOWN;
+        activeTexture = UNKNOWN;
+        Arrays.fill(textures2D, UNKNOWN);
+        Arrays.fill(texturesArray, UNKNOWN);
+        Arrays.fill(capabilities, UNKNOWN);
+        depthMask = UNKNOWN;
+        depthFunc = UNKNOWN;
+        colorMask = UNKNOWN;
+        Arrays.fill(viewport, UNKNOWN);
+    }
+
+    public static void useProgram(int programId) {
+        if (program == programId) {
+            elidedCalls++;
+            return;
+        }
+        program = programId;
+        issuedCalls++;
+        glUseProgram(programId);
+    }
+
+    public static void bindVertexArray(int vaoId) {
+        if (vertexArray == vaoId) {
+            elidedCalls++;
+            return;
+        }
+        vertexArray = vaoId;
+        issuedCalls++;
+        glBindVertexArray(vaoId);
+    }
+
+    /**
+     * Binds a buffer. Only array and draw indirect bindings are cached, the element array binding is part of
+     * the VAO state and other targets are only used while loading.
+     */
+    public static void bindBuffer(int target, int bufferId) {
+        if (target == GL_ARRAY_BUFFER) {
+            if (arrayBuffer == bufferId) {
+                elidedCalls++;
+                return;
+            }
+            arrayBuffer = bufferId;
+        } else if (target == GL_DRAW_INDIRECT_BUFFER) {
+            if (drawIndirectBuffer == bufferId) {
+                elidedCalls++;
+                return;
+            }
+            drawIndirectBuffer = bufferId;
+        }
+        issuedCalls++;
+        glBindBuffer(target, bufferId);
+    }
+
+    /**
+     * Binds a framebuffer to both the draw and the read targets.
+     */
+    public static void bindFramebuffer(int framebufferId) {
+        if (framebuffer == framebufferId && readFramebuffer == framebufferId) {
+            elidedCalls++;
+            return;
+        }
+        framebuffer = framebufferId;
+        readFramebuffer = framebufferId;
+        issuedCalls++;
+        glBindFramebuffer(GL_FRAMEBUFFER, framebufferId);
+    }
+
+    /**
+     * Binds a framebuffer to the read target only, as the source of a blit.
+     */
+    public static void bindReadFramebuffer(int framebufferId) {
+        if (readFramebuffer == framebufferId) {
+            elidedCalls++;
+            return;
+        }
+        readFramebuffer = framebufferId;
+        issuedCalls++;
+        glBindFramebuffer(GL_READ_FRAMEBUFFER, framebufferId);
+    }
+
+    /**
+     * @param textureUnit Texture unit, starting at GL_TEXTURE0
+     */
+    public static void activeTexture(int textureUnit) {
+        if (activeTexture == textureUnit) {
+            elidedCalls++;
+            return;
+        }
+        activeTexture = textureUnit;
+        issuedCalls++;
+        glActiveTexture(textureUnit);
+    }
+
+    /**
+     * Binds a texture to the active texture unit. 2D and 2D array bindings are cached.
+     */
+    public static void bindTexture(int target, int textureId) {
+        int[] bindings = target == GL_TEXTURE_2D ? textures2D : target == GL_TEXTURE_2D_ARRAY ? texturesArray : null;
+        int unit = activeTexture - GL_TEXTURE0;
+        if (bindings != null && unit >= 0 && unit < MAX_TEXTURE_UNITS) {
+            if (bindings[unit] == textureId) {
+                elidedCalls++;
+                return;
+            }
+            bindings[unit] = textureId;
+        }
+        issuedCalls++;
+        glBindTexture(target, textureId);
+    }
+
+    /**
+     * Binds a texture to a texture unit.
+     */
+    public static void bindTexture(int textureUnit, int target, int textureId) {
+        activeTexture(textureUnit);
+        bindTexture(target, textureId);
+    }
+
+    public static void enable(int capability) {
+        setCapability(capability, true);
+    }
+
+    public static void disable(int capability) {
+        setCapability(capability, false);
+    }
+
+    private static void setCapability(int capability, boolean enabled) {
+        int value = enabled ? 1 : 0;
+        int index = indexOfCapability(capability);
+        if (index >= 0) {
+            if (capabilities[index] == value) {
+                elidedCalls++;
+                return;
+            }
+            capabilities[index] = value;
+        }
+        issuedCalls++;
+        if (enabled) {
+            glEnable(capability);
+        } else {
+            glDisable(capability);
+        }
+    }
+
+    private static int indexOfCapability(int capability) {
+        for (int i = 0; i < CAPABILITIES.length; i++) {
+            if (CAPABILITIES[i] == capability) {
+                return i;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    public static void depthMask(boolean flag) {
+        int value = flag ? 1 : 0;
+        if (depthMask == value) {
+            elidedCalls++;
+            return;
+        }
+        depthMask = value;
+        issuedCalls++;
+        glDepthMask(flag);
+    }
+
+    public static void depthFunc(int func) {
+        if (depthFunc == func) {
+            elidedCalls++;
+            return;
+        }
+        depthFunc = func;
+        issuedCalls++;
+        glDepthFunc(func);
+    }
+
+    /**
+     * Enables or disables the writes to all the colour channels.
+     */
+    public static void colorMask(boolean flag) {
+        int value = flag ? 1 : 0;
+        if (colorMask == value) {
+            elidedCalls++;
+            return;
+        }
+        colorMask = value;
+        issuedCalls++;
+        glColorMask(flag, flag, flag, flag);
+    }
+
+    public static void viewport(int x, int y, int width, int height) {
+        if (viewport[0] == x && viewport[1] == y && viewport[2] == width && viewport[3] == height) {
+            elidedCalls++;
+            return;
+        }
+        viewport[0] = x;
+        viewport[1] = y;
+        viewport[2] = width;
+        viewport[3] = height;
+        issuedCalls++;
+        glViewport(x, y, width, height);
+    }
+
+    /**
+     * Deletes a texture. GL unbinds deleted textures, so they are also removed from the cached bindings.
+     */
+    public static void deleteTexture(int textureId) {
+        for (int i = 0; i < MAX_TEXTURE_UNITS; i++) {
+            if (textures2D[i] == textureId) {
+                textures2D[i] = 0;
+            }
+            if (texturesArray[i] == textureId) {
+                texturesArray[i] = 0;
+            }
+        }
+        glDeleteTextures(textureId);
+    }
+
+    /**
+     * Deletes a buffer. GL unbinds deleted buffers, so they are also removed from the cached bindings.
+     */
+    public static void deleteBuffer(int bufferId) {
+        if (arrayBuffer == bufferId) {
+            arrayBuffer = 0;
+        }
+        if (drawIndirectBuffer == bufferId) {
+            drawIndirectBuffer = 0;
+        }
+        glDeleteBuffers(bufferId);
+    }
+
+    /**
+     * Deletes a vertex array. GL unbinds deleted vertex arrays, so it is also removed from the cached binding.
+     */
+    public static void deleteVertexArray(int vaoId) {
+        if (vertexArray == vaoId) {
+            vertexArray = 0;
+        }
+        glDeleteVertexArrays(vaoId);
+    }
+
+    /**
+     * @return Number of state changes sent to the driver since the last reset
+     */
+    public static long getIssuedCalls() {
+        return issuedCalls;
+    }
+
+    /**
+     * @return Number of redundant state changes skipped since the last reset
+     */
+    public static long getElidedCalls() {
+        return elidedCalls;
+    }
+
+    public static void resetCounters() {
+        issuedCalls = 0;
+        elidedCalls = 0;
+    }
+}
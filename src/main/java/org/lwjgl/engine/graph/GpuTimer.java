@@ -0,0 +1,114 @@
+package org.lwjgl.engine.graph;
+
+import org.lwjgl.opengl.GLCapabilities;
+
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL33.GL_TIMESTAMP;
+import static org.lwjgl.opengl.GL33.glGetQueryObjectui64;
+import static org.lwjgl.opengl.GL33.glQueryCounter;
+
+/**
+ * Measures the GPU time of a section of the frame with timestamp queries. Results are read a few frames later,
+ * when they are available, so the CPU never waits for the GPU. Timers may be nested or overlap.
+ */
+public class GpuTimer {
+
+    private static final int RING_SIZE = 4;
+
+    /**
+     * Weight of a new sample in the average
+     */
+    private static final float SMOOTHING = 0.1f;
+
+    private final int[] beginQueries;
+
+    private final int[] endQueries;
+
+    private final boolean[] pending;
+
+    private int current;
+
+    private float timeMs;
+
+    private float lastSampleMs;
+
+    private boolean hasSamples;
+
+    private int numSamples;
+
+    public GpuTimer() {
+        beginQueries = new int[RING_SIZE];
+        endQueries = new int[RING_SIZE];
+        glGenQueries(beginQueries);
+        glGenQueries(endQueries);
+        pending = new boolean[RING_SIZE];
+    }
+
+    public static boolean isSupported(GLCapabilities caps) {
+        return caps.OpenGL33 || caps.GL_ARB_timer_query;
+    }
+
+    public void begin() {
+        collect();
+        if (pending[current]) {
+            // The GPU is more than a ring behind, wait for the oldest result instead of losing it
+            readSample(current);
+        }
+        glQueryCounter(beginQueries[current], GL_TIMESTAMP);
+    }
+
+    public void end() {
+        glQueryCounter(endQueries[current], GL_TIMESTAMP);
+        pending[current] = true;
+        current = (current + 1) % RING_SIZE;
+    }
+
+    private void collect() {
+        for (int i = 0; i < RING_SIZE; i++) {
+            int index = (current + i) % RING_SIZE;
+            if (pending[index] && glGetQueryObjecti(endQueries[index], GL_QUERY_RESULT_AVAILABLE) != 0) {
+                readSample(index);
+            }
+        }
+    }
+
+    private void readSample(int index) {
+        long timeNs = glGetQueryObjectui64(endQueries[index], GL_QUERY_RESULT)
+                - glGetQueryObjectui64(beginQueries[index], GL_QUERY_RESULT);
+        pending[index] = false;
+        lastSampleMs = timeNs / 1_000_000.0f;
+        timeMs = hasSamples ? timeMs + (lastSampleMs - timeMs) * SMOOTHING : lastSampleMs;
+        hasSamples = true;
+        numSamples++;
+    }
+
+    /**
+     * @return Smoothed GPU time of the section in milliseconds
+     */
+    public float getTimeMs() {
+        return timeMs;
+    }
+
+    /**
+     * @return GPU time of the most recent frame whose result is available, in milliseconds
+     */
+    public float getLastSampleMs() {
+        return lastSampleMs;
+    }
+
+    public boolean hasSamples() {
+        return hasSamples;
+    }
+
+    /**
+     * @return Number of results read so far, to tell if the last sample is a new one
+     */
+    public int getNumSamples() {
+        return numSamples;
+    }
+
+    public void cleanup() {
+        glDeleteQueries(beginQueries);
+        glDeleteQueries(endQueries);
+    }
+}
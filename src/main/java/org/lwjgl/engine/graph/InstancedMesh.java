@@ -11,10 +11,8 @@ import static org.lwjgl.opengl.GL11.GL_FLOAT;
 import static org.lwjgl.opengl.GL11.GL_TRIANGLES;
 import static org.lwjgl.opengl.GL11.GL_UNSIGNED_INT;
 import static org.lwjgl.opengl.GL15.*;
-import static org.lwjgl.opengl.GL20.glDisableVertexAttribArray;
 import static org.lwjgl.opengl.GL20.glEnableVertexAttribArray;
 import static org.lwjgl.opengl.GL20.glVertexAttribPointer;
-import static org.lwjgl.opengl.GL30.glBindVertexArray;
 import static org.lwjgl.opengl.GL31.glDrawElementsInstanced;
 import static org.lwjgl.opengl.GL33.glVertexAttribDivisor;
 
@@ -43,18 +41,19 @@ public class InstancedMesh extends Mesh{
 
         this.numInstances = numInstances;
 
-        glBindVertexArray(vaoId);
+        GLState.bindVertexArray(vaoId);
 
         // Model View Matrix
         instanceDataVBO = glGenBuffers();
         vboIdList.add(instanceDataVBO);
         instanceDataBuffer = MemoryUtil.memAllocFloat(numInstances * INSTANCE_SIZE_FLOATS);
-        glBindBuffer(GL_ARRAY_BUFFER, instanceDataVBO);
+        GLState.bindBuffer(GL_ARRAY_BUFFER, instanceDataVBO);
         int start = 5;
         int strideStart = 0;
         for (int i = 0; i < 4; i++) {
             glVertexAttribPointer(start, 4, GL_FLOAT, false, INSTANCE_SIZE_BYTES, strideStart);
             glVertexAttribDivisor(start, 1);
+            glEnableVertexAttribArray(start);
             start++;
             strideStart += VECTOR4F_SIZE_BYTES;
         }
@@ -62,16 +61,17 @@ public class InstancedMesh extends Mesh{
         // Texture offsets
         glVertexAttribPointer(start, 2, GL_FLOAT, false, INSTANCE_SIZE_BYTES, strideStart);
         glVertexAttribDivisor(start, 1);
+        glEnableVertexAttribArray(start);
         strideStart += FLOAT_SIZE_BYTES * 2;
         start++;
 
         // Selected
         glVertexAttribPointer(start, 1, GL_FLOAT, false, INSTANCE_SIZE_BYTES, strideStart);
         glVertexAttribDivisor(start, 1);
-        start++;
+        glEnableVertexAttribArray(start);
 
-        glBindBuffer(GL_ARRAY_BUFFER, 0);
-        glBindVertexArray(0);
+        GLState.bindBuffer(GL_ARRAY_BUFFER, 0);
+        GLState.bindVertexArray(0);
     }
 
     @Override
@@ -83,28 +83,6 @@ public class InstancedMesh extends Mesh{
         }
     }
 
-    @Override
-    protected void initRender() {
-        super.initRender();
-
-        int start = 5;
-        int numElements = 4 * 2 + 2;
-        for (int i = 0; i < numElements; i++) {
-            glEnableVertexAttribArray(start + i);
-        }
-    }
-
-    @Override
-    protected void endRender() {
-        int start = 5;
-        int numElements = 4 * 2 + 2;
-        for (int i = 0; i < numElements; i++) {
-            glDisableVertexAttribArray(start + i);
-        }
-
-        super.endRender();
-    }
-
     public void renderListInstanced( List<GameItem> gameItems, Transformation transformation, Matrix4f viewMatrix) {
         renderListInstanced(gameItems, false, transformation, viewMatrix);
     }
@@ -152,12 +130,10 @@ public class InstancedMesh extends Mesh{
             i++;
         }
 
-        glBindBuffer(GL_ARRAY_BUFFER, instanceDataVBO);
+        GLState.bindBuffer(GL_ARRAY_BUFFER, instanceDataVBO);
         glBufferData(GL_ARRAY_BUFFER, instanceDataBuffer, GL_DYNAMIC_READ);
 
         glDrawElementsInstanced(
                 GL_TRIANGLES, getVertexCount(), GL_UNSIGNED_INT, 0, gameItems.size());
-
-        glBindBuffer(GL_ARRAY_BUFFER, 0);
     }
 }
@@ -16,6 +16,8 @@ public class Material {
 
     private Texture texture;
 
+    private boolean transparent;
+
     public Material() {
         this.ambientColour = DEFAULT_COLOUR;
         this.diffuseColour = DEFAULT_COLOUR;
@@ -88,5 +90,16 @@ public class Material {
         this.texture = texture;
     }
 
+    /**
+     * @return True if the material is drawn in the transparent pass, sorted back to front with blending enabled
+     */
+    public boolean isTransparent() {
+        return transparent;
+    }
+
+    public void setTransparent(boolean transparent) {
+        this.transparent = transparent;
+    }
+
 }
 
@@ -12,7 +12,6 @@ import java.util.function.Consumer;
 
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL13.GL_TEXTURE0;
-import static org.lwjgl.opengl.GL13.glActiveTexture;
 import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL30.*;
@@ -25,10 +24,28 @@ public class Mesh {
 
     private final int vertexCount;
 
+    private final float[] positions;
+
+    private final float[] textCoords;
+
+    private final float[] normals;
+
+    private final int[] indices;
+
     private Material material;
 
     private float boundingRadius;
 
+    /**
+     * Simplified geometry drawn by the shadow pass instead of the mesh. It is null if the mesh has none.
+     */
+    private Mesh shadowProxy;
+
+    /**
+     * If the proxy has the same shape as the mesh, so it can be drawn in every cascade, not only in the far ones
+     */
+    private boolean shadowProxyExact;
+
     public Mesh(float[] positions, float[] textCoords, float[] normals, int[] indices) {
         FloatBuffer posBuffer = null;
         FloatBuffer textCoordsBuffer = null;
@@ -36,37 +53,44 @@ public class Mesh {
         IntBuffer indicesBuffer = null;
         try {
             vertexCount = indices.length;
+            this.positions = positions;
+            this.textCoords = textCoords;
+            this.normals = normals;
+            this.indices = indices;
             vboIdList = new ArrayList();
 
             vaoId = glGenVertexArrays();
-            glBindVertexArray(vaoId);
+            GLState.bindVertexArray(vaoId);
 
             // Position VBO
             int vboId = glGenBuffers();
             vboIdList.add(vboId);
             posBuffer = MemoryUtil.memAllocFloat(positions.length);
             posBuffer.put(positions).flip();
-            glBindBuffer(GL_ARRAY_BUFFER, vboId);
+            GLState.bindBuffer(GL_ARRAY_BUFFER, vboId);
             glBufferData(GL_ARRAY_BUFFER, posBuffer, GL_STATIC_DRAW);
             glVertexAttribPointer(0, 3, GL_FLOAT, false, 0, 0);
+            glEnableVertexAttribArray(0);
 
             // Texture coordinates VBO
             vboId = glGenBuffers();
             vboIdList.add(vboId);
             textCoordsBuffer = MemoryUtil.memAllocFloat(textCoords.length);
             textCoordsBuffer.put(textCoords).flip();
-            glBindBuffer(GL_ARRAY_BUFFER, vboId);
+            GLState.bindBuffer(GL_ARRAY_BUFFER, vboId);
             glBufferData(GL_ARRAY_BUFFER, textCoordsBuffer, GL_STATIC_DRAW);
             glVertexAttribPointer(1, 2, GL_FLOAT, false, 0, 0);
+            glEnableVertexAttribArray(1);
 
             // Vertex normals VBO
             vboId = glGenBuffers();
             vboIdList.add(vboId);
             vecNormalsBuffer = MemoryUtil.memAllocFloat(normals.length);
             vecNormalsBuffer.put(normals).flip();
-            glBindBuffer(GL_ARRAY_BUFFER, vboId);
+            GLState.bindBuffer(GL_ARRAY_BUFFER, vboId);
             glBufferData(GL_ARRAY_BUFFER, vecNormalsBuffer, GL_STATIC_DRAW);
             glVertexAttribPointer(2, 3, GL_FLOAT, false, 0, 0);
+            glEnableVertexAttribArray(2);
 
             // Index VBO
             vboId = glGenBuffers();
@@ -76,8 +100,8 @@ public class Mesh {
             glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, vboId);
             glBufferData(GL_ELEMENT_ARRAY_BUFFER, indicesBuffer, GL_STATIC_DRAW);
 
-            glBindBuffer(GL_ARRAY_BUFFER, 0);
-            glBindVertexArray(0);
+            GLState.bindBuffer(GL_ARRAY_BUFFER, 0);
+            GLState.bindVertexArray(0);
         } finally {
             if (posBuffer != null) {
                 MemoryUtil.memFree(posBuffer);
@@ -110,6 +134,25 @@ public class Mesh {
         return vertexCount;
     }
 
+    /**
+     * Source data is kept on the CPU so that geometry can be rebuilt at load time (static batching, etc.).
+     */
+    public float[] getPositions() {
+        return positions;
+    }
+
+    public float[] getTextCoords() {
+        return textCoords;
+    }
+
+    public float[] getNormals() {
+        return normals;
+    }
+
+    public int[] getIndices() {
+        return indices;
+    }
+
     public float getBoundingRadius() {
         return boundingRadius;
     }
@@ -118,29 +161,32 @@ public class Mesh {
         this.boundingRadius = boundingRadius;
     }
 
+    public Mesh getShadowProxy() {
+        return shadowProxy;
+    }
+
+    public boolean isShadowProxyExact() {
+        return shadowProxyExact;
+    }
+
+    public void setShadowProxy(Mesh shadowProxy, boolean exact) {
+        this.shadowProxy = shadowProxy;
+        this.shadowProxyExact = exact;
+    }
+
     protected void initRender() {
         Texture texture = material.getTexture();
         if (texture != null) {
-            // Activate firs texture bank
-            glActiveTexture(GL_TEXTURE0);
-            // Bind the texture
-            glBindTexture(GL_TEXTURE_2D, texture.getId());
+            // Bind the texture to the first texture bank
+            GLState.bindTexture(GL_TEXTURE0, GL_TEXTURE_2D, texture.getId());
         }
 
-        // Draw the mesh
-        glBindVertexArray(getVaoId());
-        glEnableVertexAttribArray(0);
-        glEnableVertexAttribArray(1);
-        glEnableVertexAttribArray(2);
+        // Draw the mesh. The attributes are enabled in the VAO when it is created
+        GLState.bindVertexArray(getVaoId());
     }
 
     protected void endRender(){
-        // Restore state
-        glDisableVertexAttribArray(0);
-        glDisableVertexAttribArray(1);
-        glDisableVertexAttribArray(2);
-        glBindVertexArray(0);
-        glBindTexture(GL_TEXTURE_2D, 0);
+        // Bindings are left for the next draw, the state cache skips them if they do not change
     }
 
     public void render(){
@@ -165,12 +211,9 @@ public class Mesh {
     }
 
     public void cleanUp() {
-        glDisableVertexAttribArray(0);
-
         // Delete the VBOs
-        glBindBuffer(GL_ARRAY_BUFFER, 0);
         for (int vboId : vboIdList) {
-            glDeleteBuffers(vboId);
+            GLState.deleteBuffer(vboId);
         }
 
         // Delete the texture
@@ -179,22 +222,25 @@ public class Mesh {
             texture.cleanup();
         }
 
+        if (shadowProxy != null) {
+            shadowProxy.deleteBuffers();
+        }
+
         // Delete the VAO
-        glBindVertexArray(0);
-        glDeleteVertexArrays(vaoId);
+        GLState.deleteVertexArray(vaoId);
     }
 
     public void deleteBuffers() {
-        glDisableVertexAttribArray(0);
-
         // Delete the VBOs
-        glBindBuffer(GL_ARRAY_BUFFER, 0);
         for (int vboId : vboIdList) {
-            glDeleteBuffers(vboId);
+            GLState.deleteBuffer(vboId);
+        }
+
+        if (shadowProxy != null) {
+            shadowProxy.deleteBuffers();
         }
 
         // Delete the VAO
-        glBindVertexArray(0);
-        glDeleteVertexArrays(vaoId);
+        GLState.deleteVertexArray(vaoId);
     }
 }
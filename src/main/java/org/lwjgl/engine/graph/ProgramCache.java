@@ -0,0 +1,147 @@
+package org.lwjgl.engine.graph;
+
+import org.lwjgl.opengl.GLCapabilities;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL41.GL_NUM_PROGRAM_BINARY_FORMATS;
+
+/**
+ * On disk cache of linked program binaries. Binaries are stored under a hash of the preprocessed sources and of
+ * the driver vendor, renderer and version, so they are not reused after the sources or the driver change. A binary
+ * the driver rejects anyway is deleted and the program is compiled again.
+ */
+public class ProgramCache {
+
+    private static final String FILE_EXTENSION = ".bin";
+
+    private static final int HEADER_SIZE_BYTES = 4;
+
+    private final Path folder;
+
+    private final String driverId;
+
+    private int hits;
+
+    private int misses;
+
+    public ProgramCache(Path folder) throws IOException {
+        this.folder = folder;
+        Files.createDirectories(folder);
+        driverId = glGetString(GL_VENDOR) + "\n" + glGetString(GL_RENDERER) + "\n" + glGetString(GL_VERSION);
+    }
+
+    public static boolean isSupported(GLCapabilities caps) {
+        return (caps.OpenGL41 || caps.GL_ARB_get_program_binary) && glGetInteger(GL_NUM_PROGRAM_BINARY_FORMATS) > 0;
+    }
+
+    /**
+     * @param sources Preprocessed sources of all the shaders of the program
+     * @return Key of the program for the current driver
+     */
+    public String getKey(String... sources) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(driverId.getBytes(StandardCharsets.UTF_8));
+            for (String source : sources) {
+                digest.update((byte) 0);
+                digest.update(source.getBytes(StandardCharsets.UTF_8));
+            }
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest()) {
+                key.append(String.format("%02x", b));
+            }
+            return key.toString();
+        } catch (Exception excp) {
+            throw new RuntimeException("Could not hash shader sources", excp);
+        }
+    }
+
+    /**
+     * Loads the cached binary of a program.
+     *
+     * @return If the program is ready to be used. Otherwise it must be compiled and linked
+     */
+    public boolean load(ShaderProgram shaderProgram, String key) {
+        Path file = folder.resolve(key + FILE_EXTENSION);
+        if (!Files.isReadable(file)) {
+            misses++;
+            return false;
+        }
+        ByteBuffer data = null;
+        try {
+            byte[] bytes = Files.readAllBytes(file);
+            if (bytes.length > HEADER_SIZE_BYTES) {
+                int format = ByteBuffer.wrap(bytes).getInt();
+                data = MemoryUtil.memAlloc(bytes.length - HEADER_SIZE_BYTES);
+                data.put(bytes, HEADER_SIZE_BYTES, bytes.length - HEADER_SIZE_BYTES).flip();
+                if (shaderProgram.loadBinary(format, data)) {
+                    hits++;
+                    return true;
+                }
+            }
+            Files.deleteIfExists(file);
+        } catch (IOException excp) {
+            System.err.println("Could not read program binary " + file + ": " + excp.getMessage());
+        } finally {
+            if (data != null) {
+                MemoryUtil.memFree(data);
+            }
+        }
+        misses++;
+        return false;
+    }
+
+    /**
+     * Stores the binary of a linked program. The program must have been made retrievable before linking.
+     */
+    public void store(ShaderProgram shaderProgram, String key) {
+        ByteBuffer binary;
+        int format;
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            IntBuffer formatBuffer = stack.mallocInt(1);
+            binary = shaderProgram.getBinary(formatBuffer);
+            format = formatBuffer.get(0);
+        }
+        if (binary == null) {
+            return;
+        }
+        try {
+            byte[] bytes = new byte[HEADER_SIZE_BYTES + binary.remaining()];
+            ByteBuffer.wrap(bytes).putInt(format).put(binary);
+            // Written under a temporary name, so a crash never leaves a truncated binary
+            Path file = folder.resolve(key + FILE_EXTENSION);
+            Path tmpFile = folder.resolve(key + ".tmp");
+            Files.write(tmpFile, bytes);
+            Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException excp) {
+            System.err.println("Could not store program binary: " + excp.getMessage());
+        } finally {
+            MemoryUtil.memFree(binary);
+        }
+    }
+
+    /**
+     * @return Number of programs loaded from the cache
+     */
+    public int getHits() {
+        return hits;
+    }
+
+    /**
+     * @return Number of programs that had to be compiled
+     */
+    public int getMisses() {
+        return misses;
+    }
+}
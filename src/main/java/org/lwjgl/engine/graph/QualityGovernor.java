@@ -0,0 +1,163 @@
+package org.lwjgl.engine.graph;
+
+import org.lwjgl.engine.Metrics;
+
+import java.util.Arrays;
+
+/**
+ * Chooses the quality tier of the expensive render features from the 95th percentile of the GPU frame times. The
+ * tier is lowered when the percentile is above the budget and raised when there is headroom. Tiers are ordered so
+ * the features that are least visible are given up first.
+ */
+public class QualityGovernor {
+
+    /**
+     * Settings of a quality tier
+     */
+    public static class Tier {
+
+        public final String name;
+
+        /**
+         * The update intervals of the far cascades are multiplied by it
+         */
+        public final int cascadeIntervalScale;
+
+        /**
+         * The shadow map size of the options is divided by it
+         */
+        public final int shadowMapDivisor;
+
+        public final int numCascades;
+
+        /**
+         * Radius in texels of the PCF kernel of the shadow lookups, 0 takes a single sample
+         */
+        public final int shadowFilterRadius;
+
+        public Tier(String name, int cascadeIntervalScale, int shadowMapDivisor, int numCascades,
+                    int shadowFilterRadius) {
+            this.name = name;
+            this.cascadeIntervalScale = cascadeIntervalScale;
+            this.shadowMapDivisor = shadowMapDivisor;
+            this.numCascades = numCascades;
+            this.shadowFilterRadius = shadowFilterRadius;
+        }
+    }
+
+    public static final Tier[] TIERS = {
+        new Tier("ultra", 1, 1, 3, 1),
+        new Tier("very high", 2, 1, 3, 1),
+        new Tier("high", 2, 1, 3, 0),
+        new Tier("medium", 2, 2, 3, 0),
+        new Tier("low", 2, 2, 2, 0),
+        new Tier("very low", 4, 4, 2, 0),
+    };
+
+    /**
+     * Number of frame times the percentile is computed from. The window is restarted after each change.
+     */
+    private static final int WINDOW_SIZE = 120;
+
+    private static final float PERCENTILE = 0.95f;
+
+    /**
+     * The tier is raised when the percentile is below this fraction of the budget
+     */
+    private static final float UPGRADE_THRESHOLD = 0.7f;
+
+    /**
+     * Frames to wait before trying to raise the tier again after a raise had to be undone. It doubles each time
+     * the same raise fails, so a tier that is just over the budget is not retried continuously.
+     */
+    private static final int INITIAL_UPGRADE_HOLD = 600;
+
+    private static final int MAX_UPGRADE_HOLD = 9600;
+
+    private final float budget;
+
+    private final float[] samples;
+
+    private final float[] sortedSamples;
+
+    private int numSamples;
+
+    private int nextSample;
+
+    private int tier;
+
+    private boolean lastChangeWasUpgrade;
+
+    private int upgradeHold;
+
+    private int upgradeHoldFrames;
+
+    /**
+     * @param budget Budget of the GPU frame time in milliseconds
+     */
+    public QualityGovernor(float budget) {
+        this.budget = budget;
+        samples = new float[WINDOW_SIZE];
+        sortedSamples = new float[WINDOW_SIZE];
+        upgradeHold = INITIAL_UPGRADE_HOLD;
+        Metrics.set("quality", TIERS[tier].name);
+    }
+
+    /**
+     * Adds the GPU time of a frame and changes the tier if needed.
+     *
+     * @param frameTime GPU time of a frame in milliseconds
+     * @return If the tier has changed
+     */
+    public boolean update(float frameTime) {
+        samples[nextSample] = frameTime;
+        nextSample = (nextSample + 1) % WINDOW_SIZE;
+        numSamples = Math.min(numSamples + 1, WINDOW_SIZE);
+        if (upgradeHoldFrames > 0) {
+            upgradeHoldFrames--;
+        }
+        if (numSamples < WINDOW_SIZE) {
+            return false;
+        }
+
+        float p95 = percentile();
+        if (p95 > budget && tier < TIERS.length - 1) {
+            if (lastChangeWasUpgrade) {
+                // The tier that was just raised does not fit, keep it for longer before trying again
+                upgradeHoldFrames = upgradeHold;
+                upgradeHold = Math.min(upgradeHold * 2, MAX_UPGRADE_HOLD);
+            }
+            setTier(tier + 1, p95, false);
+            return true;
+        }
+        if (p95 < budget * UPGRADE_THRESHOLD && tier > 0 && upgradeHoldFrames == 0) {
+            setTier(tier - 1, p95, true);
+            return true;
+        }
+        if (lastChangeWasUpgrade) {
+            // A whole window fits in the budget, the raise was successful
+            lastChangeWasUpgrade = false;
+            upgradeHold = INITIAL_UPGRADE_HOLD;
+        }
+        return false;
+    }
+
+    private float percentile() {
+        System.arraycopy(samples, 0, sortedSamples, 0, WINDOW_SIZE);
+        Arrays.sort(sortedSamples);
+        return sortedSamples[Math.min((int) (PERCENTILE * WINDOW_SIZE), WINDOW_SIZE - 1)];
+    }
+
+    private void setTier(int newTier, float p95, boolean upgrade) {
+        Metrics.set("quality", String.format("%s (p95 %.2f ms, budget %.2f ms)", TIERS[newTier].name, p95, budget));
+        tier = newTier;
+        lastChangeWasUpgrade = upgrade;
+        // The frames of the previous tier say nothing about the new one
+        numSamples = 0;
+        nextSample = 0;
+    }
+
+    public Tier getTier() {
+        return TIERS[tier];
+    }
+}
@@ -2,24 +2,47 @@ package org.lwjgl.engine.graph;
 
 import org.joml.Matrix4f;
 import org.joml.Vector3f;
-import org.joml.Vector4f;
 import org.lwjgl.engine.*;
+import org.lwjgl.engine.graph.bake.LightBaker;
+import org.lwjgl.engine.graph.batch.StaticBatch;
+import org.lwjgl.engine.graph.framegraph.FrameGraph;
+import org.lwjgl.engine.graph.framegraph.FrameResource;
+import org.lwjgl.engine.graph.framegraph.RenderPass;
+import org.lwjgl.engine.graph.indirect.DrawCommandList;
+import org.lwjgl.engine.graph.indirect.GeometryArena;
+import org.lwjgl.engine.graph.indirect.GpuCuller;
+import org.lwjgl.engine.graph.indirect.MaterialGroup;
+import org.lwjgl.engine.graph.queue.RenderEntry;
+import org.lwjgl.engine.graph.queue.RenderQueue;
 import org.lwjgl.engine.graph.lights.DirectionalLight;
+import org.lwjgl.engine.graph.lights.LightClusters;
 import org.lwjgl.engine.graph.lights.SceneLight;
 import org.lwjgl.engine.graph.shadow.ShadowCascade;
+import org.lwjgl.engine.graph.shadow.DepthShader;
+import org.lwjgl.engine.graph.shadow.PointShadowRenderer;
 import org.lwjgl.engine.graph.shadow.ShadowRenderer;
+import org.lwjgl.engine.graph.uniform.IntUniform;
+import org.lwjgl.engine.graph.uniform.Vector2fUniform;
 import org.lwjgl.engine.items.GameItem;
 import org.lwjgl.engine.items.SkyBox;
 
+import org.lwjgl.opengl.GL;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL13.GL_TEXTURE0;
 import static org.lwjgl.opengl.GL13.GL_TEXTURE2;
-import static org.lwjgl.opengl.GL13.glActiveTexture;
-import static org.lwjgl.opengl.GL30.GL_FRAMEBUFFER;
-import static org.lwjgl.opengl.GL30.glBindFramebuffer;
+import static org.lwjgl.opengl.GL13.GL_TEXTURE3;
+import static org.lwjgl.opengl.GL13.GL_TEXTURE6;
+import static org.lwjgl.opengl.GL30.GL_DEPTH24_STENCIL8;
+import static org.lwjgl.opengl.GL30.glGenVertexArrays;
 
 public class Renderer {
 
@@ -32,14 +55,40 @@ public class Renderer {
 
     private static final float Z_FAR = 1000.f;
 
+    private static final Path SHADER_CACHE_FOLDER = Paths.get(System.getProperty("user.home"), ".lwjgl-engine", "shader-cache");
+
     private final Transformation transformation;
 
     private final ShadowRenderer shadowRenderer;
 
-    private ShaderProgram sceneShaderProgram;
+    private final ShaderPreprocessor shaderPreprocessor;
+
+    /**
+     * Cache of linked program binaries. It is null if disabled or not supported by the driver.
+     */
+    private ProgramCache programCache;
+
+    /**
+     * Variants of the scene shader, keyed by the features of {@link SceneShader}
+     */
+    private ShaderVariants<SceneShader> sceneShaders;
+
+    /**
+     * Scene shader variant bound while the render queue is drawn
+     */
+    private SceneShader sceneShader;
 
     private ShaderProgram hudShaderProgram;
 
+    /**
+     * Depth shader variants that project with the camera, used by the depth pre-pass
+     */
+    private ShaderVariants<DepthShader> depthPrePassShaders;
+
+    private DepthShader depthPrePassShader;
+
+    private ShaderVariants<ShaderProgram> skyBoxShaders;
+
     private ShaderProgram skyBoxShaderProgram;
 
     private final float specularPower;
@@ -48,94 +97,478 @@ public class Renderer {
 
     private final List<GameItem> filteredItems;
 
+    private final Matrix4f identityMatrix;
+
+    /**
+     * Shared geometry storage used to draw with multi draw indirect. It is null if that path is not available.
+     */
+    private GeometryArena geometryArena;
+
+    private final DrawCommandList drawCommandList;
+
+    /**
+     * Culls the arena items on the GPU. It is null if GPU culling is disabled or not available.
+     */
+    private GpuCuller gpuCuller;
+
+    private final Matrix4f projViewMatrix;
+
+    private FrameUniforms frameUniforms;
+
+    /**
+     * GPU time of the depth pre-pass and of the opaque scene pass. They are null if timer queries are not supported.
+     */
+    private GpuTimer depthPrePassTimer;
+
+    private GpuTimer opaquePassTimer;
+
+    /**
+     * Resolution controller of the dynamic resolution. It is null if it is disabled or timer queries are not
+     * supported.
+     */
+    private DynamicResolution dynamicResolution;
+
+    /**
+     * GPU time of the whole frame. It is null if neither the dynamic resolution nor the quality governor use it.
+     */
+    private GpuTimer frameTimer;
+
+    /**
+     * Passes of the frame and their render targets. The scene is rendered to the transient scene textures when
+     * the resolution is scaled, and straight to the window otherwise.
+     */
+    private final FrameGraph frameGraph;
+
+    private final FrameResource backBuffer;
+
+    private final FrameResource shadowMaps;
+
+    private final FrameResource pointShadowMaps;
+
+    private final FrameResource sceneColour;
+
+    private final FrameResource sceneDepth;
+
+    private ShaderVariants<ShaderProgram> upscaleShaders;
+
+    private ShaderProgram upscaleShaderProgram;
+
+    private IntUniform sceneTextureUniform;
+
+    private Vector2fUniform texScaleUniform;
+
+    /**
+     * Lowers the quality of the shadows and the antialiasing when the GPU frame time is above the target. It is
+     * null if it is disabled or timer queries are not supported.
+     */
+    private QualityGovernor qualityGovernor;
+
+    /**
+     * Number of frame timer results already given to the quality governor
+     */
+    private int numGovernedSamples;
+
+    private int shadowFilterRadius;
+
+    /**
+     * If the shadow maps are prefiltered exponential variance maps instead of depth maps
+     */
+    private boolean filteredShadows;
+
+    /**
+     * Bins the point and spot lights for the scene shader. It is null if clustered lighting is disabled.
+     */
+    private LightClusters lightClusters;
+
+    /**
+     * Renders the cached cube faces of the shadow casting point lights. It is null if point light shadows are
+     * disabled.
+     */
+    private PointShadowRenderer pointShadowRenderer;
+
+    /**
+     * Bakes the sun visibility and the ambient occlusion of the static batches on the CPU. It is null if baked
+     * lighting is disabled.
+     */
+    private LightBaker lightBaker;
+
+    /**
+     * If the shadow cascades are used this frame. Once the static batches are baked they are only needed for the
+     * dynamic items.
+     */
+    private boolean realtimeShadows;
+
+    /**
+     * The full screen triangle of the upscale is generated in the vertex shader, but a VAO must be bound to draw
+     */
+    private int emptyVaoId;
+
+    private final List<MaterialGroup> materialGroups;
+
+    private int materialGroupsVersion;
+
+    private final RenderQueue renderQueue;
+
+    private int renderQueueVersion;
+
+    private int numTransparentEntries;
+
+    private final Vector3f cameraPosition;
+
+    private final Comparator<GameItem> backToFrontComparator;
+
     public Renderer() {
         transformation = new Transformation();
         specularPower = 10f;
         shadowRenderer = new ShadowRenderer();
+        shaderPreprocessor = new ShaderPreprocessor();
+        shaderPreprocessor.define("NUM_CASCADES", ShadowRenderer.NUM_CASCADES);
+        shaderPreprocessor.define("CLUSTERS_X", LightClusters.CLUSTERS_X);
+        shaderPreprocessor.define("CLUSTERS_Y", LightClusters.CLUSTERS_Y);
+        shaderPreprocessor.define("CLUSTERS_Z", LightClusters.CLUSTERS_Z);
         frustumFilter = new FrustumCullingFilter();
         filteredItems = new ArrayList<>();
+        identityMatrix = new Matrix4f();
+        drawCommandList = new DrawCommandList(256, 1024);
+        materialGroups = new ArrayList<>();
+        materialGroupsVersion = -1;
+        renderQueue = new RenderQueue(Z_FAR);
+        renderQueueVersion = -1;
+        cameraPosition = new Vector3f();
+        backToFrontComparator = (GameItem a, GameItem b) -> Float.compare(
+                b.getPosition().distanceSquared(cameraPosition), a.getPosition().distanceSquared(cameraPosition));
+        projViewMatrix = new Matrix4f();
+        shadowFilterRadius = 1;
+        frameGraph = new FrameGraph();
+        backBuffer = frameGraph.importResource("back buffer");
+        shadowMaps = frameGraph.importResource("shadow maps");
+        pointShadowMaps = frameGraph.importResource("point shadow maps");
+        sceneColour = frameGraph.createTexture("scene colour", GL_RGBA8);
+        sceneDepth = frameGraph.createTexture("scene depth", GL_DEPTH24_STENCIL8);
     }
 
     public void init(Window window) throws Exception {
-        shadowRenderer.init(window);
-        setupSkyBoxShader();
+        if (window.getOptions().multiDrawIndirect && GeometryArena.isSupported(GL.getCapabilities())) {
+            geometryArena = new GeometryArena(64 * 1024, 192 * 1024);
+            if (window.getOptions().gpuCulling && GpuCuller.isSupported(GL.getCapabilities())) {
+                gpuCuller = new GpuCuller(1 + shadowRenderer.getNumCascades());
+            }
+        }
+        frameUniforms = new FrameUniforms();
+        if (GpuTimer.isSupported(GL.getCapabilities())) {
+            depthPrePassTimer = new GpuTimer();
+            opaquePassTimer = new GpuTimer();
+            if (window.getOptions().dynamicResolution || window.getOptions().qualityGovernor) {
+                frameTimer = new GpuTimer();
+            }
+            if (window.getOptions().dynamicResolution) {
+                dynamicResolution = new DynamicResolution(window.getOptions().targetFrameTime);
+            }
+            if (window.getOptions().qualityGovernor) {
+                qualityGovernor = new QualityGovernor(window.getOptions().targetFrameTime);
+            }
+        }
+
+        ShaderProgram.enableParallelCompile(GL.getCapabilities());
+        if (window.getOptions().shaderCache && ProgramCache.isSupported(GL.getCapabilities())) {
+            programCache = new ProgramCache(SHADER_CACHE_FOLDER);
+        }
+        // Programs are prepared together, so a driver that compiles in parallel can build all of them at once
+        filteredShadows = window.getOptions().filteredShadows;
+        if (window.getOptions().clusteredLighting) {
+            lightClusters = new LightClusters();
+            if (window.getOptions().pointShadowFaceBudget > 0) {
+                pointShadowRenderer = new PointShadowRenderer(window.getOptions().pointShadowFaceBudget);
+            }
+        }
+        if (window.getOptions().bakedLighting) {
+            lightBaker = new LightBaker();
+        }
         setupSceneShader();
+        setupDepthPrePassShader();
+        shadowRenderer.init(window, shaderPreprocessor, programCache);
+        if (gpuCuller != null) {
+            gpuCuller.init(shaderPreprocessor, programCache);
+        }
+        if (pointShadowRenderer != null) {
+            pointShadowRenderer.init(shaderPreprocessor, programCache);
+        }
+        setupSkyBoxShader();
+        if (dynamicResolution != null) {
+            setupUpscaleShader();
+        }
+        if (qualityGovernor != null) {
+            applyQualityTier(qualityGovernor.getTier());
+        }
     }
 
     public void render(Window window, Camera camera, Scene scene, boolean sceneChanged) {
         clear();
 
+        // Update projection matrix once per render cycle
+        window.updateProjectionMatrix();
+
         if (window.getOptions().frustumCulling) {
             frustumFilter.updateFrustum(window.getProjectionMatrix(), camera.getViewMatrix());
-            frustumFilter.filter(scene.getGameMeshes());
-            frustumFilter.filter(scene.getGameInstancedMeshes());
+            if (gpuCuller == null) {
+                frustumFilter.filter(scene.getGameMeshes());
+                frustumFilter.filter(scene.getGameInstancedMeshes());
+            }
+            frustumFilter.filterBatches(scene.getStaticBatches());
         }
 
-        // Render depth map before view ports has been set up
-        if (scene.isRenderShadows() && sceneChanged) {
-            shadowRenderer.render(window, scene, camera, transformation, this);
+        if (geometryArena != null) {
+            updateMaterialGroups(scene);
+        }
+        SceneLight sceneLight = scene.getSceneLight();
+        DirectionalLight directionalLight = sceneLight != null ? sceneLight.getDirectionalLight() : null;
+        if (lightBaker != null && lightBaker.update(scene, directionalLight)) {
+            // The entries of the baked batches switch to the baked variant of the scene shader
+            renderQueueVersion = -1;
+        }
+        updateRenderQueue(scene);
+        if (gpuCuller != null && window.getOptions().frustumCulling) {
+            filterQueueItems();
+        }
+        sortRenderQueue(camera);
+
+        // The baked batches do not receive the cascades, so they are skipped if there are no dynamic items
+        boolean wasRealtimeShadows = realtimeShadows;
+        realtimeShadows = scene.isRenderShadows() && (lightBaker == null || !lightBaker.isBaked()
+                || !scene.getGameMeshes().isEmpty() || !scene.getGameInstancedMeshes().isEmpty());
+        // Cascades skipped or invalidated by a quality change are updated even if the scene has not changed
+        boolean renderShadows = realtimeShadows
+                && (sceneChanged || !wasRealtimeShadows || shadowRenderer.isUpdatePending());
+        if (renderShadows) {
+            shadowRenderer.update(window, camera.getViewMatrix(), scene, sceneChanged || !wasRealtimeShadows);
         }
 
-        glViewport(0, 0, window.getWidth(), window.getHeight());
+        frameUniforms.update(camera.getViewMatrix(), window.getProjectionMatrix(), shadowRenderer.getShadowCascades(),
+                sceneLight != null ? sceneLight.getDirectionalLight() : null);
 
-        // Update projection matrix once per render cycle
-        window.updateProjectionMatrix();
+        if (gpuCuller != null) {
+            cullOnGpu(window, camera);
+        }
+
+        if (frameTimer != null) {
+            frameTimer.begin();
+        }
+
+        // The scene uses the top left part of the scene textures, so changing the scale does not reallocate them
+        final int sceneWidth = dynamicResolution != null ? dynamicResolution.getScaledSize(window.getWidth()) : window.getWidth();
+        final int sceneHeight = dynamicResolution != null ? dynamicResolution.getScaledSize(window.getHeight()) : window.getHeight();
+
+        if (pointShadowRenderer != null) {
+            // Slots are assigned before the lights are binned, which records the shadow layers of each light
+            pointShadowRenderer.update(scene, camera.getPosition());
+        }
+        if (lightClusters != null) {
+            // The lights are binned on the worker threads while the shadows are rendered
+            lightClusters.begin(sceneLight, camera.getViewMatrix(), window.getProjectionMatrix(), sceneWidth,
+                    sceneHeight, pointShadowRenderer);
+        }
+
+        frameGraph.reset();
+        if (renderShadows) {
+            frameGraph.addPass("shadows", (RenderPass pass) ->
+                    shadowRenderer.render(window, scene, camera, transformation, this)
+            ).writes(shadowMaps);
+        }
+        if (pointShadowRenderer != null) {
+            frameGraph.addPass("point shadows", (RenderPass pass) ->
+                    pointShadowRenderer.render(scene, transformation)
+            ).writes(pointShadowMaps);
+        }
+        RenderPass scenePass = frameGraph.addPass("scene", (RenderPass pass) ->
+                renderScenePasses(window, camera, scene, sceneWidth, sceneHeight)
+        );
+        if (realtimeShadows) {
+            scenePass.reads(shadowMaps);
+        }
+        if (pointShadowRenderer != null) {
+            scenePass.reads(pointShadowMaps);
+        }
+        if (dynamicResolution != null) {
+            sceneColour.setSize(window.getWidth(), window.getHeight());
+            sceneDepth.setSize(window.getWidth(), window.getHeight());
+            scenePass.writes(sceneColour).writes(sceneDepth);
+            frameGraph.addPass("upscale", (RenderPass pass) -> upscaleScene(window, sceneWidth, sceneHeight))
+                    .reads(sceneColour).writes(backBuffer);
+        } else {
+            scenePass.writes(backBuffer);
+        }
+        frameGraph.addPass("cross hair", (RenderPass pass) -> renderCrossHair(window)).writes(backBuffer);
+        frameGraph.execute();
+        if (Metrics.isSampling()) {
+            Metrics.set("targets", String.format("%d (%.1f MB)", frameGraph.getTexturePool().getNumTextures(),
+                    frameGraph.getTexturePool().getAllocatedBytes() / (1024.0f * 1024.0f)));
+        }
+
+        if (frameTimer != null) {
+            frameTimer.end();
+            if (Metrics.isSampling()) {
+                Metrics.set("gpu", String.format("%.2f ms", frameTimer.getTimeMs()));
+            }
+            if (dynamicResolution != null) {
+                dynamicResolution.update(frameTimer.getTimeMs());
+                if (Metrics.isSampling()) {
+                    Metrics.set("scale", Math.round(dynamicResolution.getScale() * 100) + "%");
+                }
+            }
+            if (qualityGovernor != null) {
+                updateQuality();
+            }
+        }
+
+        frameUniforms.endFrame();
+    }
+
+    /**
+     * Gives the new frame time results to the quality governor and applies its tier if it changes. The governor
+     * uses every frame, while the dynamic resolution follows the average, so the resolution reacts first to short
+     * changes of the load and the tier only to sustained ones.
+     */
+    private void updateQuality() {
+        if (frameTimer.getNumSamples() == numGovernedSamples) {
+            return;
+        }
+        numGovernedSamples = frameTimer.getNumSamples();
+        if (qualityGovernor.update(frameTimer.getLastSampleMs())) {
+            applyQualityTier(qualityGovernor.getTier());
+        }
+    }
+
+    private void applyQualityTier(QualityGovernor.Tier tier) {
+        shadowRenderer.setCascadeIntervalScale(tier.cascadeIntervalScale);
+        shadowRenderer.setShadowMapSize(shadowRenderer.getMaxShadowMapSize() / tier.shadowMapDivisor);
+        shadowRenderer.setNumCascades(tier.numCascades);
+        shadowFilterRadius = tier.shadowFilterRadius;
+        shadowRenderer.setFilterRadius(shadowFilterRadius);
+    }
+
+    /**
+     * Renders the depth pre-pass, the opaque geometry, the sky box and the transparent geometry. The frame graph
+     * has bound the scene textures if they are used.
+     */
+    private void renderScenePasses(Window window, Camera camera, Scene scene, int sceneWidth, int sceneHeight) {
+        if (lightClusters != null) {
+            lightClusters.finish();
+            if (Metrics.isSampling()) {
+                Metrics.set("lights", lightClusters.getNumLights() + " (" + lightClusters.getMaxClusterLights()
+                        + " per cluster)");
+            }
+        }
+        if (dynamicResolution != null) {
+            GLState.viewport(0, 0, sceneWidth, sceneHeight);
+            clear();
+        } else {
+            GLState.bindFramebuffer(0);
+            GLState.viewport(0, 0, sceneWidth, sceneHeight);
+        }
 
-        renderScene(window, camera, scene);
+        // Commands are written by the GPU culler if it is enabled
+        if (geometryArena != null && gpuCuller == null) {
+            recordIndirectCommands();
+        }
+
+        if (scene.isDepthPrePass()) {
+            if (depthPrePassTimer != null) {
+                depthPrePassTimer.begin();
+            }
+            renderDepthPrePass(camera);
+            if (depthPrePassTimer != null) {
+                depthPrePassTimer.end();
+            }
+        }
+        if (opaquePassTimer != null) {
+            opaquePassTimer.begin();
+        }
+        renderScene(window, camera, scene, RenderQueue.PASS_OPAQUE);
+        if (opaquePassTimer != null) {
+            opaquePassTimer.end();
+            updateMetrics(scene);
+        }
         renderSkyBox(window, camera, scene);
+        if (numTransparentEntries > 0) {
+            // Drawn after the sky box, which relies on the depth of the opaque geometry only
+            renderScene(window, camera, scene, RenderQueue.PASS_TRANSPARENT);
+        }
+    }
+
+    private void setupUpscaleShader() throws Exception {
+        upscaleShaders = new ShaderVariants<>(shaderPreprocessor, programCache, "upscale_vertex.vs", "upscale_fragment.fs",
+                new String[0], (ShaderProgram shaderProgram, int features) -> shaderProgram);
+        upscaleShaderProgram = upscaleShaders.get(0);
+        sceneTextureUniform = upscaleShaderProgram.createIntUniform("sceneTexture");
+        texScaleUniform = upscaleShaderProgram.createVector2fUniform("texScale");
+        emptyVaoId = glGenVertexArrays();
+    }
 
-        renderCrossHair(window);
+    /**
+     * Stretches the scaled scene over the window. The HUD is drawn afterwards at the native resolution.
+     */
+    private void upscaleScene(Window window, int sceneWidth, int sceneHeight) {
+        GLState.bindFramebuffer(0);
+        GLState.viewport(0, 0, window.getWidth(), window.getHeight());
+        GLState.disable(GL_DEPTH_TEST);
+        GLState.disable(GL_BLEND);
+
+        upscaleShaderProgram.bind();
+        sceneTextureUniform.set(0);
+        texScaleUniform.set((float) sceneWidth / sceneColour.getWidth(), (float) sceneHeight / sceneColour.getHeight());
+        GLState.bindTexture(GL_TEXTURE0, GL_TEXTURE_2D, sceneColour.getTextureId());
+        GLState.bindVertexArray(emptyVaoId);
+        glDrawArrays(GL_TRIANGLES, 0, 3);
+        upscaleShaderProgram.unbind();
+
+        GLState.enable(GL_DEPTH_TEST);
     }
 
     private void setupSkyBoxShader() throws Exception {
-        skyBoxShaderProgram = new ShaderProgram();
-        skyBoxShaderProgram.createVertexShader(Utils.loadResource("/shaders/sb_vertex.vs"));
-        skyBoxShaderProgram.createFragmentShader(Utils.loadResource("/shaders/sb_fragment.fs"));
-        skyBoxShaderProgram.link();
+        skyBoxShaders = new ShaderVariants<>(shaderPreprocessor, programCache, "sb_vertex.vs", "sb_fragment.fs",
+                new String[0], (ShaderProgram shaderProgram, int features) -> {
+                    // Create uniforms for projection matrix
+                    FrameUniforms.bindBlock(shaderProgram);
+                    shaderProgram.createUniform("modelMatrix");
+                    shaderProgram.createUniform("texture_sampler");
+                    shaderProgram.createUniform("ambientLight");
+                    shaderProgram.createUniform("colour");
+                    shaderProgram.createUniform("hasTexture");
+                    return shaderProgram;
+                });
+        skyBoxShaderProgram = skyBoxShaders.get(0);
+    }
 
-        // Create uniforms for projection matrix
-        skyBoxShaderProgram.createUniform("projectionMatrix");
-        skyBoxShaderProgram.createUniform("modelViewMatrix");
-        skyBoxShaderProgram.createUniform("texture_sampler");
-        skyBoxShaderProgram.createUniform("ambientLight");
-        skyBoxShaderProgram.createUniform("colour");
-        skyBoxShaderProgram.createUniform("hasTexture");
+    private void setupDepthPrePassShader() throws Exception {
+        depthPrePassShaders = new ShaderVariants<>(shaderPreprocessor, programCache, "depth_vertex.vs", "depth_fragment.fs",
+                DepthShader.FEATURE_DEFINES, (ShaderProgram shaderProgram, int features) -> new DepthShader(shaderProgram));
+        depthPrePassShaders.prepare(DepthShader.CAMERA);
+        depthPrePassShaders.prepare(DepthShader.CAMERA | DepthShader.INSTANCED);
     }
 
     private void setupSceneShader() throws Exception {
-        // Create shader
-        sceneShaderProgram = new ShaderProgram();
-        sceneShaderProgram.createVertexShader(Utils.loadResource("/shaders/scene_vertex.vs"));
-        sceneShaderProgram.createFragmentShader(Utils.loadResource("/shaders/scene_fragment.fs"));
-        sceneShaderProgram.link();
-
-        // Create uniforms for view and projection matrices
-        sceneShaderProgram.createUniform("viewMatrix");
-        sceneShaderProgram.createUniform("projectionMatrix");
-        sceneShaderProgram.createUniform("texture_sampler");
-        sceneShaderProgram.createUniform("normalMap");
-        // Create uniform for material
-        sceneShaderProgram.createMaterialUniform("material");
-        // Create lighting related uniforms
-        sceneShaderProgram.createUniform("specularPower");
-        sceneShaderProgram.createUniform("ambientLight");
-        sceneShaderProgram.createDirectionalLightUniform("directionalLight");
-
-        // Create uniforms for shadow mapping
-        for (int i = 0; i < ShadowRenderer.NUM_CASCADES; i++) {
-            sceneShaderProgram.createUniform("shadowMap_" + i);
-        }
-        sceneShaderProgram.createUniform("orthoProjectionMatrix", ShadowRenderer.NUM_CASCADES);
-        sceneShaderProgram.createUniform("modelNonInstancedMatrix");
-        sceneShaderProgram.createUniform("lightViewMatrix", ShadowRenderer.NUM_CASCADES);
-        sceneShaderProgram.createUniform("cascadeFarPlanes", ShadowRenderer.NUM_CASCADES);
-        sceneShaderProgram.createUniform("renderShadow");
-
-        sceneShaderProgram.createUniform("isInstanced");
-        sceneShaderProgram.createUniform("numCols");
-        sceneShaderProgram.createUniform("numRows");
-
-        sceneShaderProgram.createUniform("selectedNonInstanced");
+        sceneShaders = new ShaderVariants<>(shaderPreprocessor, programCache, "scene_vertex.vs", "scene_fragment.fs",
+                SceneShader.FEATURE_DEFINES, (ShaderProgram shaderProgram, int features) -> new SceneShader(shaderProgram));
+        // All the combinations are started now and waited for the first time a draw group needs them
+        for (int features = 0; features < 1 << SceneShader.FEATURE_DEFINES.length; features++) {
+            // Only the variants of the shadow filtering, lighting and baking modes in use are needed
+            if ((features & SceneShader.BAKED) != 0) {
+                // Baked batches are never instanced and are drawn without the cascades
+                if (lightBaker == null
+                        || (features & (SceneShader.INSTANCED | SceneShader.SHADOWS | SceneShader.EVSM)) != 0) {
+                    continue;
+                }
+            } else if ((features & SceneShader.EVSM) != 0 && (features & SceneShader.SHADOWS) == 0
+                    || (features & SceneShader.EVSM) != 0 != filteredShadows) {
+                continue;
+            }
+            if ((features & SceneShader.CLUSTERED) != 0 && lightClusters == null
+                    || (features & SceneShader.POINT_SHADOWS) != 0
+                    && ((features & SceneShader.CLUSTERED) == 0 || pointShadowRenderer == null)) {
+                continue;
+            }
+            sceneShaders.prepare(features);
+        }
     }
 
     public void clear() {
@@ -149,127 +582,460 @@ public class Renderer {
 
             skyBoxShaderProgram.setUniform("texture_sampler", 0);
 
-            Matrix4f projectionMatrix = window.getProjectionMatrix();
-            skyBoxShaderProgram.setUniform("projectionMatrix", projectionMatrix);
-            Matrix4f viewMatrix = camera.getViewMatrix();
-            float m30 = viewMatrix.m30();
-            viewMatrix.m30(0);
-            float m31 = viewMatrix.m31();
-            viewMatrix.m31(0);
-            float m32 = viewMatrix.m32();
-            viewMatrix.m32(0);
-
+            // The translation of the view matrix is removed in the shader
             Mesh mesh = skyBox.getMesh();
-            Matrix4f modelViewMatrix = transformation.buildModelViewMatrix(skyBox, viewMatrix);
-            skyBoxShaderProgram.setUniform("modelViewMatrix", modelViewMatrix);
+            Matrix4f modelMatrix = transformation.buildModelMatrix(skyBox);
+            skyBoxShaderProgram.setUniform("modelMatrix", modelMatrix);
             skyBoxShaderProgram.setUniform("ambientLight", scene.getSceneLight().getSkyBoxLight());
             skyBoxShaderProgram.setUniform("colour", mesh.getMaterial().getAmbientColour());
             skyBoxShaderProgram.setUniform("hasTexture", mesh.getMaterial().isTextured() ? 1 : 0);
 
             mesh.render();
 
-            viewMatrix.m30(m30);
-            viewMatrix.m31(m31);
-            viewMatrix.m32(m32);
             skyBoxShaderProgram.unbind();
         }
     }
 
-    public void renderScene(Window window, Camera camera, Scene scene) {
-        sceneShaderProgram.bind();
-
+    public void renderScene(Window window, Camera camera, Scene scene, int pass) {
         Matrix4f viewMatrix = camera.getViewMatrix();
-        Matrix4f projectionMatrix = window.getProjectionMatrix();
-        sceneShaderProgram.setUniform("viewMatrix", viewMatrix);
-        sceneShaderProgram.setUniform("projectionMatrix", projectionMatrix);
+        // Shadows are enabled for the whole scene, the rest of the features depend on the draw group
+        int sceneFeatures = realtimeShadows ? SceneShader.SHADOWS : 0;
+        if (realtimeShadows && filteredShadows) {
+            sceneFeatures |= SceneShader.EVSM;
+        }
+        if (lightClusters != null && lightClusters.getNumLights() > 0) {
+            sceneFeatures |= SceneShader.CLUSTERED;
+            if (pointShadowRenderer != null) {
+                sceneFeatures |= SceneShader.POINT_SHADOWS;
+            }
+        }
 
-        List<ShadowCascade> shadowCascades = shadowRenderer.getShadowCascades();
-        for (int i = 0; i < ShadowRenderer.NUM_CASCADES; i++) {
-            ShadowCascade shadowCascade = shadowCascades.get(i);
-            sceneShaderProgram.setUniform("orthoProjectionMatrix", shadowCascade.getOrthoProjMatrix(), i);
-            sceneShaderProgram.setUniform("cascadeFarPlanes", ShadowRenderer.CASCADE_SPLITS[i], i);
-            sceneShaderProgram.setUniform("lightViewMatrix", shadowCascade.getLightViewMatrix(), i);
+        if (pass == RenderQueue.PASS_TRANSPARENT) {
+            GLState.enable(GL_BLEND);
+            GLState.depthMask(false);
+            renderQueue(viewMatrix, scene.getSceneLight(), sceneFeatures, pass);
+            GLState.depthMask(true);
+            GLState.disable(GL_BLEND);
+        } else if (scene.isDepthPrePass()) {
+            // Only the fragments that won the pre-pass are shaded
+            GLState.disable(GL_BLEND);
+            GLState.depthFunc(GL_EQUAL);
+            GLState.depthMask(false);
+            renderQueue(viewMatrix, scene.getSceneLight(), sceneFeatures, pass);
+            GLState.depthMask(true);
+            GLState.depthFunc(GL_LESS);
+        } else {
+            GLState.disable(GL_BLEND);
+            renderQueue(viewMatrix, scene.getSceneLight(), sceneFeatures, pass);
         }
 
-        SceneLight sceneLight = scene.getSceneLight();
-        renderLights(viewMatrix, sceneLight);
+        GLState.useProgram(0);
+    }
 
-        sceneShaderProgram.setUniform("texture_sampler", 0);
-        int start = 2;
-        for (int i = 0; i < ShadowRenderer.NUM_CASCADES; i++) {
-            sceneShaderProgram.setUniform("shadowMap_" + i, start + i);
+    /**
+     * Rebuilds the entries of the render queue when the scene changes. Entries of meshes that are still in the
+     * scene are kept.
+     */
+    private void updateRenderQueue(Scene scene) {
+        if (renderQueueVersion == scene.getVersion()) {
+            return;
         }
-        sceneShaderProgram.setUniform("renderShadow", scene.isRenderShadows() ? 1 : 0);
+        renderQueueVersion = scene.getVersion();
+
+        renderQueue.beginUpdate();
+        if (geometryArena != null) {
+            for (MaterialGroup group : materialGroups) {
+                if (!group.getMaterial().isTransparent()) {
+                    setupEntry(renderQueue.add(group.getMaterial(), group), SceneShader.INSTANCED);
+                    continue;
+                }
+                // Transparent items have to be sorted, so they are drawn with their own VAO instead of the arena
+                List<Mesh> meshes = group.getMeshes();
+                for (int i = 0; i < meshes.size(); i++) {
+                    addToRenderQueue(meshes.get(i), group.getItemLists().get(i));
+                }
+            }
+        } else {
+            for (Map.Entry<Mesh, List<GameItem>> mapEntry : scene.getGameMeshes().entrySet()) {
+                addToRenderQueue(mapEntry.getKey(), mapEntry.getValue());
+            }
+            for (Map.Entry<InstancedMesh, List<GameItem>> mapEntry : scene.getGameInstancedMeshes().entrySet()) {
+                addToRenderQueue(mapEntry.getKey(), mapEntry.getValue());
+            }
+        }
+        for (StaticBatch staticBatch : scene.getStaticBatches()) {
+            setupEntry(renderQueue.add(staticBatch, RenderEntry.Type.STATIC_BATCH, staticBatch, null),
+                    staticBatch.isBaked() ? SceneShader.BAKED : 0);
+        }
+        renderQueue.endUpdate();
 
-        renderNonInstancedMeshes(scene);
+        numTransparentEntries = 0;
+        for (RenderEntry entry : renderQueue.getEntries()) {
+            if (entry.getPass() == RenderQueue.PASS_TRANSPARENT) {
+                numTransparentEntries++;
+            }
+        }
+    }
 
-        renderInstancedMeshes(scene, viewMatrix);
+    private void addToRenderQueue(Mesh mesh, List<GameItem> gameItems) {
+        if (mesh instanceof InstancedMesh) {
+            setupEntry(renderQueue.add(mesh, RenderEntry.Type.INSTANCED_MESH, mesh, gameItems), SceneShader.INSTANCED);
+        } else {
+            setupEntry(renderQueue.add(mesh, RenderEntry.Type.MESH, mesh, gameItems), 0);
+        }
+    }
 
-        sceneShaderProgram.unbind();
+    /**
+     * Sets the pass of an entry and the features of the cheapest scene shader variant that can draw it.
+     */
+    private void setupEntry(RenderEntry entry, int features) {
+        if (entry.getMaterial().isTextured()) {
+            features |= SceneShader.TEXTURED;
+        }
+        entry.setShader(features);
+        entry.setPass(entry.getMaterial().isTransparent() ? RenderQueue.PASS_TRANSPARENT : RenderQueue.PASS_OPAQUE);
+    }
+
+    /**
+     * Updates the frustum flags of the items of the queue entries drawn from the CPU. The GPU culler only culls
+     * the items of the arena, but the sort depths, the transparent pass and the instanced draws read the flags.
+     */
+    private void filterQueueItems() {
+        List<RenderEntry> entries = renderQueue.getEntries();
+        int numEntries = entries.size();
+        for (int i = 0; i < numEntries; i++) {
+            RenderEntry entry = entries.get(i);
+            if (entry.getType() == RenderEntry.Type.MESH || entry.getType() == RenderEntry.Type.INSTANCED_MESH) {
+                frustumFilter.filter(entry.getGameItems(), entry.getMesh().getBoundingRadius());
+            }
+        }
     }
 
-    private void renderNonInstancedMeshes(Scene scene) {
-        sceneShaderProgram.setUniform("isInstanced", 0);
+    /**
+     * Updates the depth of the queue entries for the current camera and sorts the queue if any key changed.
+     */
+    private void sortRenderQueue(Camera camera) {
+        cameraPosition.set(camera.getPosition());
+        List<RenderEntry> entries = renderQueue.getEntries();
+        int numEntries = entries.size();
+        for (int i = 0; i < numEntries; i++) {
+            RenderEntry entry = entries.get(i);
+            switch (entry.getType()) {
+                case MESH:
+                case INSTANCED_MESH:
+                    // Opaque groups are ordered by their nearest item, transparent ones by their farthest item
+                    boolean transparent = entry.getPass() == RenderQueue.PASS_TRANSPARENT;
+                    float depth = transparent ? 0.0f : Float.MAX_VALUE;
+                    for (GameItem gameItem : entry.getGameItems()) {
+                        if (!gameItem.isInsideFrustum()) {
+                            continue;
+                        }
+                        float distance = gameItem.getPosition().distance(cameraPosition);
+                        depth = transparent ? Math.max(depth, distance) : Math.min(depth, distance);
+                    }
+                    entry.setDepth(depth);
+                    break;
+                case STATIC_BATCH:
+                    entry.setDepth(((StaticBatch) entry.getMesh()).getCenter().distance(cameraPosition));
+                    break;
+                default:
+                    // Drawn with a single call before the rest of the opaque geometry
+                    break;
+            }
+            renderQueue.updateKey(entry);
+        }
+        renderQueue.sort();
+    }
 
-        // Render each mesh with the associated game Items
-        Map<Mesh, List<GameItem>> mapMeshes = scene.getGameMeshes();
-        for (Mesh mesh : mapMeshes.keySet()) {
-            sceneShaderProgram.setUniform("material", mesh.getMaterial());
+    /**
+     * Copies the items of a transparent entry that are inside the frustum, sorted back to front.
+     */
+    private void sortBackToFront(List<GameItem> gameItems) {
+        filteredItems.clear();
+        for (GameItem gameItem : gameItems) {
+            if (gameItem.isInsideFrustum()) {
+                filteredItems.add(gameItem);
+            }
+        }
+        filteredItems.sort(backToFrontComparator);
+    }
 
-            Texture text = mesh.getMaterial().getTexture();
-            if (text != null) {
-                sceneShaderProgram.setUniform("numCols", text.getNumCols());
-                sceneShaderProgram.setUniform("numRows", text.getNumRows());
+    /**
+     * Draws the opaque entries of the render queue to the depth buffer only, front to back, with the camera
+     * variants of the depth shader.
+     */
+    private void renderDepthPrePass(Camera camera) {
+        Matrix4f viewMatrix = camera.getViewMatrix();
+        GLState.colorMask(false);
+        GLState.disable(GL_BLEND);
+
+        int currentFeatures = -1;
+        int numEntries = renderQueue.size();
+        for (int i = 0; i < numEntries; i++) {
+            RenderEntry entry = renderQueue.get(i);
+            if (entry.getPass() != RenderQueue.PASS_OPAQUE) {
+                continue;
+            }
+            RenderEntry.Type type = entry.getType();
+            if (type == RenderEntry.Type.STATIC_BATCH && !((StaticBatch) entry.getMesh()).isInsideFrustum()
+                    || type == RenderEntry.Type.INDIRECT && entry.getMaterialGroup().getNumCommands() == 0) {
+                continue;
             }
 
-            shadowRenderer.bindTextures(GL_TEXTURE2);
+            int features = DepthShader.CAMERA | (entry.getShader() & SceneShader.INSTANCED);
+            if (features != currentFeatures) {
+                currentFeatures = features;
+                depthPrePassShader = depthPrePassShaders.get(features);
+                depthPrePassShader.getShaderProgram().bind();
+            }
 
-            mesh.renderList(mapMeshes.get(mesh), (GameItem gameItem) -> {
-                        sceneShaderProgram.setUniform("selectedNonInstanced", gameItem.isSelected() ? 1.0f : 0.0f);
-                        Matrix4f modelMatrix = transformation.buildModelMatrix(gameItem);
-                        sceneShaderProgram.setUniform("modelNonInstancedMatrix", modelMatrix);
+            switch (type) {
+                case MESH:
+                    entry.getMesh().renderList(entry.getGameItems(), (GameItem gameItem) ->
+                            depthPrePassShader.getModelNonInstancedMatrixUniform().set(transformation.buildModelMatrix(gameItem))
+                    );
+                    break;
+                case INSTANCED_MESH:
+                    filteredItems.clear();
+                    for (GameItem gameItem : entry.getGameItems()) {
+                        if (gameItem.isInsideFrustum()) {
+                            filteredItems.add(gameItem);
+                        }
                     }
-            );
+                    ((InstancedMesh) entry.getMesh()).renderListInstanced(filteredItems, transformation, viewMatrix);
+                    break;
+                case STATIC_BATCH:
+                    depthPrePassShader.getModelNonInstancedMatrixUniform().set(identityMatrix);
+                    entry.getMesh().render();
+                    break;
+                case INDIRECT:
+                    geometryArena.bind();
+                    MaterialGroup group = entry.getMaterialGroup();
+                    geometryArena.multiDraw(group.getFirstCommand(), group.getNumCommands());
+                    break;
+            }
         }
+
+        GLState.colorMask(true);
     }
 
-    private void renderInstancedMeshes(Scene scene, Matrix4f viewMatrix) {
-        sceneShaderProgram.setUniform("isInstanced", 1);
+    private void updateMetrics(Scene scene) {
+        if (!Metrics.isSampling()) {
+            return;
+        }
+        if (scene.isDepthPrePass()) {
+            Metrics.set("pre-pass", String.format("%.2f ms", depthPrePassTimer.getTimeMs()));
+        } else {
+            Metrics.remove("pre-pass");
+        }
+        Metrics.set("opaque", String.format("%.2f ms", opaquePassTimer.getTimeMs()));
+    }
 
-        // Render each mesh with the associated game Items
-        Map<InstancedMesh, List<GameItem>> mapMeshes = scene.getGameInstancedMeshes();
-        for (InstancedMesh mesh : mapMeshes.keySet()) {
-            Texture text = mesh.getMaterial().getTexture();
-            if (text != null) {
-                sceneShaderProgram.setUniform("numCols", text.getNumCols());
-                sceneShaderProgram.setUniform("numRows", text.getNumRows());
-            }
+    /**
+     * Draws the entries of one pass of the render queue in key order. Shader variant and material uniforms are
+     * only set when they differ from the previous entry.
+     */
+    private void renderQueue(Matrix4f viewMatrix, SceneLight sceneLight, int sceneFeatures, int pass) {
+        // The shadow maps and the light clusters are the same for the whole pass
+        shadowRenderer.bindTextures(GL_TEXTURE2);
+        if (lightClusters != null) {
+            lightClusters.bindTextures(GL_TEXTURE3);
+        }
+        if (pointShadowRenderer != null) {
+            pointShadowRenderer.bindTextures(GL_TEXTURE6);
+        }
 
-            sceneShaderProgram.setUniform("material", mesh.getMaterial());
+        int currentFeatures = -1;
+        Material currentMaterial = null;
+        int numEntries = renderQueue.size();
+        for (int i = 0; i < numEntries; i++) {
+            RenderEntry entry = renderQueue.get(i);
+            if (entry.getPass() != pass) {
+                continue;
+            }
+            RenderEntry.Type type = entry.getType();
+            if (type == RenderEntry.Type.STATIC_BATCH && !((StaticBatch) entry.getMesh()).isInsideFrustum()
+                    || type == RenderEntry.Type.INDIRECT && entry.getMaterialGroup().getNumCommands() == 0) {
+                continue;
+            }
 
-            filteredItems.clear();
-            for (GameItem gameItem : mapMeshes.get(mesh)) {
-                if (gameItem.isInsideFrustum()) {
-                    filteredItems.add(gameItem);
+            int features = entry.getShader() | sceneFeatures;
+            if ((features & SceneShader.BAKED) != 0) {
+                // The baked sun visibility replaces the cascades
+                features &= ~(SceneShader.SHADOWS | SceneShader.EVSM);
+            }
+            if (features != currentFeatures) {
+                currentFeatures = features;
+                sceneShader = sceneShaders.get(features);
+                bindSceneShader(sceneShader, sceneLight);
+                currentMaterial = null;
+            }
+            Material material = entry.getMaterial();
+            if (material != currentMaterial) {
+                currentMaterial = material;
+                sceneShader.getMaterialUniform().set(material);
+                Texture text = material.getTexture();
+                if (text != null) {
+                    sceneShader.getNumColsUniform().set(text.getNumCols());
+                    sceneShader.getNumRowsUniform().set(text.getNumRows());
                 }
             }
-            shadowRenderer.bindTextures(GL_TEXTURE2);
 
-            mesh.renderListInstanced(filteredItems, transformation, viewMatrix);
+            switch (type) {
+                case MESH:
+                    List<GameItem> gameItems = entry.getGameItems();
+                    if (pass == RenderQueue.PASS_TRANSPARENT) {
+                        sortBackToFront(gameItems);
+                        gameItems = filteredItems;
+                    }
+                    entry.getMesh().renderList(gameItems, (GameItem gameItem) -> {
+                                sceneShader.getSelectedNonInstancedUniform().set(gameItem.isSelected() ? 1.0f : 0.0f);
+                                Matrix4f modelMatrix = transformation.buildModelMatrix(gameItem);
+                                sceneShader.getModelNonInstancedMatrixUniform().set(modelMatrix);
+                            }
+                    );
+                    break;
+                case INSTANCED_MESH:
+                    if (pass == RenderQueue.PASS_TRANSPARENT) {
+                        sortBackToFront(entry.getGameItems());
+                    } else {
+                        filteredItems.clear();
+                        for (GameItem gameItem : entry.getGameItems()) {
+                            if (gameItem.isInsideFrustum()) {
+                                filteredItems.add(gameItem);
+                            }
+                        }
+                    }
+                    ((InstancedMesh) entry.getMesh()).renderListInstanced(filteredItems, transformation, viewMatrix);
+                    break;
+                case STATIC_BATCH:
+                    // Vertices of the batches are already in world space
+                    sceneShader.getModelNonInstancedMatrixUniform().set(identityMatrix);
+                    ((StaticBatch) entry.getMesh()).renderBatch((Boolean selected) ->
+                            sceneShader.getSelectedNonInstancedUniform().set(selected ? 1.0f : 0.0f)
+                    );
+                    break;
+                case INDIRECT:
+                    geometryArena.bind();
+                    Texture text = material.getTexture();
+                    if (text != null) {
+                        GLState.bindTexture(GL_TEXTURE0, GL_TEXTURE_2D, text.getId());
+                    }
+                    MaterialGroup group = entry.getMaterialGroup();
+                    geometryArena.multiDraw(group.getFirstCommand(), group.getNumCommands());
+                    break;
+            }
         }
     }
 
-    private void renderLights(Matrix4f viewMatrix, SceneLight sceneLight) {
+    public GeometryArena getGeometryArena() {
+        return geometryArena;
+    }
 
-        sceneShaderProgram.setUniform("ambientLight", sceneLight.getAmbientLight());
-        sceneShaderProgram.setUniform("specularPower", specularPower);
+    public GpuCuller getGpuCuller() {
+        return gpuCuller;
+    }
 
-        // Get a copy of the directional light object and transform its position to view coordinates
-        DirectionalLight currDirLight = new DirectionalLight(sceneLight.getDirectionalLight());
-        Vector4f dir = new Vector4f(currDirLight.getDirection(), 0);
-        dir.mul(viewMatrix);
-        currDirLight.setDirection(new Vector3f(dir.x, dir.y, dir.z));
-        sceneShaderProgram.setUniform("directionalLight", currDirLight);
+    /**
+     * Culls the arena items against the camera frustum (view 0) and against each shadow cascade (views 1..n).
+     */
+    private void cullOnGpu(Window window, Camera camera) {
+        if (window.getOptions().frustumCulling) {
+            projViewMatrix.set(window.getProjectionMatrix()).mul(camera.getViewMatrix());
+            gpuCuller.setViewFrustum(0, projViewMatrix, true);
+        } else {
+            gpuCuller.setViewUnculled(0);
+        }
+        // Cascades disabled by the quality tier are not culled, their commands are not drawn
+        int numCascades = shadowRenderer.getNumCascades();
+        gpuCuller.setNumActiveViews(1 + numCascades);
+        List<ShadowCascade> shadowCascades = shadowRenderer.getShadowCascades();
+        for (int i = 0; i < numCascades; i++) {
+            ShadowCascade shadowCascade = shadowCascades.get(i);
+            projViewMatrix.set(shadowCascade.getOrthoProjMatrix()).mul(shadowCascade.getLightViewMatrix());
+            gpuCuller.setViewFrustum(i + 1, projViewMatrix, false);
+        }
+        gpuCuller.cull(geometryArena);
+    }
+
+    /**
+     * Groups the meshes of the scene by material and stores their geometry in the arena.
+     * Groups are only rebuilt when the scene changes.
+     */
+    private void updateMaterialGroups(Scene scene) {
+        if (materialGroupsVersion == scene.getVersion()) {
+            return;
+        }
+        materialGroupsVersion = scene.getVersion();
+
+        Map<Material, MaterialGroup> groups = new LinkedHashMap<>();
+        addToMaterialGroups(groups, scene.getGameMeshes());
+        addToMaterialGroups(groups, scene.getGameInstancedMeshes());
+        materialGroups.clear();
+        materialGroups.addAll(groups.values());
+
+        if (gpuCuller != null) {
+            // With GPU culling there is one command per mesh, in group order
+            List<Mesh> meshes = new ArrayList<>();
+            List<List<GameItem>> itemLists = new ArrayList<>();
+            for (MaterialGroup group : materialGroups) {
+                group.setCommands(meshes.size(), group.getMeshes().size());
+                meshes.addAll(group.getMeshes());
+                itemLists.addAll(group.getItemLists());
+            }
+            gpuCuller.setup(meshes, itemLists, geometryArena);
+        }
+    }
+
+    private void addToMaterialGroups(Map<Material, MaterialGroup> groups, Map<? extends Mesh, List<GameItem>> mapMeshes) {
+        for (Map.Entry<? extends Mesh, List<GameItem>> entry : mapMeshes.entrySet()) {
+            Mesh mesh = entry.getKey();
+            geometryArena.allocate(mesh);
+            MaterialGroup group = groups.computeIfAbsent(mesh.getMaterial(), MaterialGroup::new);
+            group.add(mesh, entry.getValue());
+        }
+    }
+
+    /**
+     * Writes one draw command per arena mesh, culling the items against the camera frustum on the CPU.
+     */
+    private void recordIndirectCommands() {
+        drawCommandList.clear();
+        for (MaterialGroup group : materialGroups) {
+            int firstCommand = drawCommandList.getNumCommands();
+            Texture text = group.getMaterial().getTexture();
+            List<Mesh> meshes = group.getMeshes();
+            int numMeshes = meshes.size();
+            for (int i = 0; i < numMeshes; i++) {
+                GeometryArena.Allocation allocation = geometryArena.getAllocation(meshes.get(i));
+                drawCommandList.addCommand(allocation, group.getItemLists().get(i), text, transformation, true);
+            }
+            group.setCommands(firstCommand, drawCommandList.getNumCommands() - firstCommand);
+        }
+        geometryArena.upload(drawCommandList);
+    }
+
+    /**
+     * Binds a scene shader variant and sets the uniforms that are the same for the whole pass.
+     */
+    private void bindSceneShader(SceneShader shader, SceneLight sceneLight) {
+        shader.getShaderProgram().bind();
+
+        shader.getTextureSamplerUniform().set(0);
+        shader.getShadowMapUniform().set(2);
+        shader.getShadowFilterRadiusUniform().set(shadowFilterRadius);
+        if (lightClusters != null) {
+            shader.getLightDataUniform().set(3);
+            shader.getClusterDataUniform().set(4);
+            shader.getLightIndicesUniform().set(5);
+            shader.getClusterTileSizeUniform().set(lightClusters.getTileWidth(), lightClusters.getTileHeight());
+            shader.getClusterSliceParamsUniform().set(lightClusters.getSliceScale(), lightClusters.getSliceBias());
+        }
+        if (pointShadowRenderer != null) {
+            shader.getPointShadowMapUniform().set(6);
+        }
+        shader.getAmbientLightUniform().set(sceneLight.getAmbientLight());
+        shader.getSpecularPowerUniform().set(specularPower);
     }
 
     private void renderCrossHair(Window window) {
@@ -340,11 +1106,45 @@ public class Renderer {
         if (shadowRenderer != null) {
             shadowRenderer.cleanup();
         }
-        if (skyBoxShaderProgram != null) {
-            skyBoxShaderProgram.cleanup();
+        if (skyBoxShaders != null) {
+            skyBoxShaders.cleanup();
+        }
+        if (sceneShaders != null) {
+            sceneShaders.cleanup();
+        }
+        if (lightClusters != null) {
+            lightClusters.cleanup();
+        }
+        if (lightBaker != null) {
+            lightBaker.cleanup();
+        }
+        if (pointShadowRenderer != null) {
+            pointShadowRenderer.cleanup();
+        }
+        if (frameUniforms != null) {
+            frameUniforms.cleanup();
+        }
+        if (depthPrePassShaders != null) {
+            depthPrePassShaders.cleanup();
+        }
+        if (depthPrePassTimer != null) {
+            depthPrePassTimer.cleanup();
+            opaquePassTimer.cleanup();
+        }
+        if (frameTimer != null) {
+            frameTimer.cleanup();
+        }
+        if (upscaleShaders != null) {
+            upscaleShaders.cleanup();
+            GLState.deleteVertexArray(emptyVaoId);
+        }
+        frameGraph.cleanup();
+        if (gpuCuller != null) {
+            gpuCuller.cleanup();
         }
-        if (sceneShaderProgram != null) {
-            sceneShaderProgram.cleanup();
+        if (geometryArena != null) {
+            geometryArena.cleanup();
         }
+        drawCommandList.cleanup();
     }
 }
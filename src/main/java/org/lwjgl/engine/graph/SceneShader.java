@@ -0,0 +1,187 @@
+package org.lwjgl.engine.graph;
+
+import org.lwjgl.engine.graph.uniform.FloatUniform;
+import org.lwjgl.engine.graph.uniform.IntUniform;
+import org.lwjgl.engine.graph.uniform.MaterialUniform;
+import org.lwjgl.engine.graph.uniform.Matrix4fUniform;
+import org.lwjgl.engine.graph.uniform.Vector2fUniform;
+import org.lwjgl.engine.graph.uniform.Vector3fUniform;
+
+/**
+ * A variant of the scene shader with its uniform handles.
+ */
+public class SceneShader {
+
+    /**
+     * Model matrices come from the instance attributes instead of a uniform
+     */
+    public static final int INSTANCED = 1;
+
+    /**
+     * Colours are sampled from the material texture instead of the material colours
+     */
+    public static final int TEXTURED = 1 << 1;
+
+    /**
+     * Light is attenuated with the shadow cascades
+     */
+    public static final int SHADOWS = 1 << 2;
+
+    /**
+     * The shadow map holds prefiltered exponential variance moments, resolved with one fetch instead of PCF
+     */
+    public static final int EVSM = 1 << 3;
+
+    /**
+     * Point and spot lights are evaluated from the light list of the cluster of each fragment
+     */
+    public static final int CLUSTERED = 1 << 4;
+
+    /**
+     * The clustered point and spot lights are attenuated with their cube face shadow maps
+     */
+    public static final int POINT_SHADOWS = 1 << 5;
+
+    /**
+     * Sun visibility and ambient occlusion come from the baked vertex attributes of the static batches. The
+     * variant is used without the shadow cascades.
+     */
+    public static final int BAKED = 1 << 6;
+
+    public static final String[] FEATURE_DEFINES = {"INSTANCED", "TEXTURED", "SHADOWS", "EVSM", "CLUSTERED",
+            "POINT_SHADOWS", "BAKED"};
+
+    private final ShaderProgram shaderProgram;
+
+    private final IntUniform textureSamplerUniform;
+
+    private final MaterialUniform materialUniform;
+
+    private final FloatUniform specularPowerUniform;
+
+    private final Vector3fUniform ambientLightUniform;
+
+    private final IntUniform shadowMapUniform;
+
+    private final IntUniform shadowFilterRadiusUniform;
+
+    private final IntUniform lightDataUniform;
+
+    private final IntUniform clusterDataUniform;
+
+    private final IntUniform lightIndicesUniform;
+
+    private final Vector2fUniform clusterTileSizeUniform;
+
+    private final Vector2fUniform clusterSliceParamsUniform;
+
+    private final IntUniform pointShadowMapUniform;
+
+    private final Matrix4fUniform modelNonInstancedMatrixUniform;
+
+    private final IntUniform numColsUniform;
+
+    private final IntUniform numRowsUniform;
+
+    private final FloatUniform selectedNonInstancedUniform;
+
+    public SceneShader(ShaderProgram shaderProgram) throws Exception {
+        this.shaderProgram = shaderProgram;
+
+        // Camera, cascade and directional light data come from the per frame uniform block
+        FrameUniforms.bindBlock(shaderProgram);
+        textureSamplerUniform = shaderProgram.createIntUniform("texture_sampler");
+        shaderProgram.createUniform("normalMap");
+        // Create uniform for material
+        materialUniform = shaderProgram.createMaterialUniform("material");
+        // Create lighting related uniforms
+        specularPowerUniform = shaderProgram.createFloatUniform("specularPower");
+        ambientLightUniform = shaderProgram.createVector3fUniform("ambientLight");
+
+        // Create uniforms for shadow mapping
+        shadowMapUniform = shaderProgram.createIntUniform("shadowMap");
+        shadowFilterRadiusUniform = shaderProgram.createIntUniform("shadowFilterRadius");
+        modelNonInstancedMatrixUniform = shaderProgram.createMatrix4fUniform("modelNonInstancedMatrix");
+
+        // Create uniforms for clustered lighting
+        lightDataUniform = shaderProgram.createIntUniform("lightData");
+        clusterDataUniform = shaderProgram.createIntUniform("clusterData");
+        lightIndicesUniform = shaderProgram.createIntUniform("lightIndices");
+        clusterTileSizeUniform = shaderProgram.createVector2fUniform("clusterTileSize");
+        clusterSliceParamsUniform = shaderProgram.createVector2fUniform("clusterSliceParams");
+        pointShadowMapUniform = shaderProgram.createIntUniform("pointShadowMap");
+
+        numColsUniform = shaderProgram.createIntUniform("numCols");
+        numRowsUniform = shaderProgram.createIntUniform("numRows");
+
+        selectedNonInstancedUniform = shaderProgram.createFloatUniform("selectedNonInstanced");
+    }
+
+    public ShaderProgram getShaderProgram() {
+        return shaderProgram;
+    }
+
+    public IntUniform getTextureSamplerUniform() {
+        return textureSamplerUniform;
+    }
+
+    public MaterialUniform getMaterialUniform() {
+        return materialUniform;
+    }
+
+    public FloatUniform getSpecularPowerUniform() {
+        return specularPowerUniform;
+    }
+
+    public Vector3fUniform getAmbientLightUniform() {
+        return ambientLightUniform;
+    }
+
+    public IntUniform getShadowMapUniform() {
+        return shadowMapUniform;
+    }
+
+    public IntUniform getShadowFilterRadiusUniform() {
+        return shadowFilterRadiusUniform;
+    }
+
+    public IntUniform getLightDataUniform() {
+        return lightDataUniform;
+    }
+
+    public IntUniform getClusterDataUniform() {
+        return clusterDataUniform;
+    }
+
+    public IntUniform getLightIndicesUniform() {
+        return lightIndicesUniform;
+    }
+
+    public Vector2fUniform getClusterTileSizeUniform() {
+        return clusterTileSizeUniform;
+    }
+
+    public Vector2fUniform getClusterSliceParamsUniform() {
+        return clusterSliceParamsUniform;
+    }
+
+    public IntUniform getPointShadowMapUniform() {
+        return pointShadowMapUniform;
+    }
+
+    public Matrix4fUniform getModelNonInstancedMatrixUniform() {
+        return modelNonInstancedMatrixUniform;
+    }
+
+    public IntUniform getNumColsUniform() {
+        return numColsUniform;
+    }
+
+    public IntUniform getNumRowsUniform() {
+        return numRowsUniform;
+    }
+
+    public FloatUniform getSelectedNonInstancedUniform() {
+        return selectedNonInstancedUniform;
+    }
+}
@@ -0,0 +1,116 @@
+package org.lwjgl.engine.graph;
+
+import org.lwjgl.engine.Utils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Expands the shader sources before they are compiled. Lines of the form {@code #include "file"} are replaced by
+ * the content of that file, which is read from the shaders folder and included only once per shader. The engine
+ * constants and the defines of each variant are injected after the {@code #version} line, so the shaders and the
+ * engine share a single definition of values like the number of cascades.
+ */
+public class ShaderPreprocessor {
+
+    private static final String SHADERS_FOLDER = "/shaders/";
+
+    private static final String VERSION_DIRECTIVE = "#version";
+
+    private static final String INCLUDE_DIRECTIVE = "#include";
+
+    private final Map<String, String> constants;
+
+    private final Map<String, String> sources;
+
+    public ShaderPreprocessor() {
+        constants = new LinkedHashMap<>();
+        sources = new LinkedHashMap<>();
+    }
+
+    /**
+     * Adds a constant that is defined in all the shaders processed from now on.
+     */
+    public void define(String name, Object value) {
+        constants.put(name, String.valueOf(value));
+    }
+
+    public Map<String, String> getConstants() {
+        return constants;
+    }
+
+    /**
+     * Loads a shader and expands it.
+     *
+     * @param fileName File name, relative to the shaders folder
+     * @param defines Names defined only for this shader, like the features of a variant
+     * @return Source ready to be compiled
+     * @throws Exception If the shader or one of its includes can not be read
+     */
+    public String process(String fileName, List<String> defines) throws Exception {
+        StringBuilder result = new StringBuilder();
+        List<String> included = new ArrayList<>();
+        included.add(fileName);
+
+        String[] lines = load(fileName).split("\r?\n", -1);
+        int first = 0;
+        if (lines.length > 0 && lines[0].trim().startsWith(VERSION_DIRECTIVE)) {
+            result.append(lines[0]).append('\n');
+            first = 1;
+        }
+        for (Map.Entry<String, String> constant : constants.entrySet()) {
+            result.append("#define ").append(constant.getKey()).append(' ').append(constant.getValue()).append('\n');
+        }
+        for (String define : defines) {
+            result.append("#define ").append(define).append('\n');
+        }
+        // Keep the line numbers of the compiler messages in sync with the file
+        result.append("#line ").append(first + 1).append(" 0\n");
+        expand(lines, first, 0, included, result);
+        return result.toString();
+    }
+
+    /**
+     * Appends the lines of a file, replacing its include directives. Each file is tagged with its own source
+     * string number in the line directives, numbered in order of inclusion.
+     */
+    private void expand(String[] lines, int first, int sourceNumber, List<String> included, StringBuilder result)
+            throws Exception {
+        for (int i = first; i < lines.length; i++) {
+            String line = lines[i];
+            String trimmed = line.trim();
+            if (!trimmed.startsWith(INCLUDE_DIRECTIVE)) {
+                result.append(line).append('\n');
+                continue;
+            }
+            int start = trimmed.indexOf('"');
+            int end = trimmed.lastIndexOf('"');
+            if (start < 0 || end <= start) {
+                throw new Exception("Malformed include in " + included.get(sourceNumber) + ":" + (i + 1) + ": " + trimmed);
+            }
+            String includeName = trimmed.substring(start + 1, end);
+            if (!included.contains(includeName)) {
+                included.add(includeName);
+                int includeNumber = included.size() - 1;
+                result.append("#line 1 ").append(includeNumber).append('\n');
+                expand(load(includeName).split("\r?\n", -1), 0, includeNumber, included, result);
+            }
+            result.append("#line ").append(i + 2).append(' ').append(sourceNumber).append('\n');
+        }
+    }
+
+    private String load(String fileName) throws Exception {
+        String source = sources.get(fileName);
+        if (source == null) {
+            String resource = SHADERS_FOLDER + fileName;
+            if (!Utils.existsResourceFile(resource)) {
+                throw new Exception("Could not find shader file: " + resource);
+            }
+            source = Utils.loadResource(resource);
+            sources.put(fileName, source);
+        }
+        return source;
+    }
+}
@@ -4,38 +4,95 @@ import org.joml.Matrix4f;
 import org.joml.Vector3f;
 import org.joml.Vector4f;
 import org.lwjgl.engine.graph.lights.DirectionalLight;
+import org.lwjgl.engine.graph.uniform.DirectionalLightUniform;
+import org.lwjgl.engine.graph.uniform.FloatUniform;
+import org.lwjgl.engine.graph.uniform.IntUniform;
+import org.lwjgl.engine.graph.uniform.MaterialUniform;
+import org.lwjgl.engine.graph.uniform.Matrix4fUniform;
+import org.lwjgl.engine.graph.uniform.Vector2fUniform;
+import org.lwjgl.engine.graph.uniform.Vector3fUniform;
+import org.lwjgl.engine.graph.uniform.Vector4fArrayUniform;
+import org.lwjgl.engine.graph.uniform.Vector4fUniform;
+import org.lwjgl.opengl.GLCapabilities;
 import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
 
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
+import static org.lwjgl.opengl.ARBParallelShaderCompile.glMaxShaderCompilerThreadsARB;
+import static org.lwjgl.opengl.GL11.GL_TRUE;
 import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL31.GL_INVALID_INDEX;
+import static org.lwjgl.opengl.GL31.glGetUniformBlockIndex;
+import static org.lwjgl.opengl.GL31.glUniformBlockBinding;
+import static org.lwjgl.opengl.GL41.*;
+import static org.lwjgl.opengl.GL43.GL_COMPUTE_SHADER;
+import static org.lwjgl.opengl.KHRParallelShaderCompile.GL_COMPLETION_STATUS_KHR;
+import static org.lwjgl.opengl.KHRParallelShaderCompile.glMaxShaderCompilerThreadsKHR;
 
 public class ShaderProgram {
 
+    /**
+     * Whether the driver compiles and links in background threads (KHR/ARB_parallel_shader_compile)
+     */
+    private static boolean parallelCompile;
+
     private final int programId;
 
     private int vertexShaderId;
 
     private int fragmentShaderId;
 
+    private int computeShaderId;
+
     private final Map<String, Integer> uniforms;
 
+    private final float[] matrixData;
+
+    private boolean optionalUniforms;
+
+    /**
+     * Lets the driver compile and link in as many background threads as it wants, if it supports it. Programs
+     * can then be linked with {@link #startLink()} and checked later, when they are first needed.
+     */
+    public static void enableParallelCompile(GLCapabilities caps) {
+        if (caps.GL_KHR_parallel_shader_compile) {
+            glMaxShaderCompilerThreadsKHR(0xFFFFFFFF);
+            parallelCompile = true;
+        } else if (caps.GL_ARB_parallel_shader_compile) {
+            glMaxShaderCompilerThreadsARB(0xFFFFFFFF);
+            parallelCompile = true;
+        }
+    }
+
     public ShaderProgram() throws Exception {
         programId = glCreateProgram();
         if (programId == 0) {
             throw new Exception("Could not create Shader");
         }
         uniforms = new HashMap<>();
+        matrixData = new float[16];
     }
 
-    public void createUniform(String uniformName) throws Exception {
+    public int createUniform(String uniformName) throws Exception {
         int uniformLocation = glGetUniformLocation(programId, uniformName);
-        if (uniformLocation < 0) {
+        if (uniformLocation < 0 && !optionalUniforms) {
             throw new Exception("Could not find uniform:" + uniformName);
         }
         uniforms.put(uniformName, uniformLocation);
+        return uniformLocation;
+    }
+
+    /**
+     * Lets uniforms that are not active in the program be created. They get the location -1, which GL ignores.
+     * Used by shader variants, whose unused uniforms are removed by the compiler.
+     */
+    public void setOptionalUniforms(boolean optionalUniforms) {
+        this.optionalUniforms = optionalUniforms;
     }
 
     public void createUniform(String uniformName, int size) throws Exception {
@@ -44,27 +101,68 @@ public class ShaderProgram {
         }
     }
 
-    public void createDirectionalLightUniform(String uniformName) throws Exception {
-        createUniform(uniformName + ".colour");
-        createUniform(uniformName + ".direction");
-        createUniform(uniformName + ".intensity");
+    public DirectionalLightUniform createDirectionalLightUniform(String uniformName) throws Exception {
+        return new DirectionalLightUniform(
+                createVector3fUniform(uniformName + ".colour"),
+                createVector3fUniform(uniformName + ".direction"),
+                createFloatUniform(uniformName + ".intensity"));
     }
 
-    public void createMaterialUniform(String uniformName) throws Exception {
-        createUniform(uniformName + ".ambient");
-        createUniform(uniformName + ".diffuse");
-        createUniform(uniformName + ".specular");
-        createUniform(uniformName + ".hasTexture");
-        createUniform(uniformName + ".reflectance");
+    public MaterialUniform createMaterialUniform(String uniformName) throws Exception {
+        return new MaterialUniform(
+                createVector4fUniform(uniformName + ".ambient"),
+                createVector4fUniform(uniformName + ".diffuse"),
+                createVector4fUniform(uniformName + ".specular"),
+                createFloatUniform(uniformName + ".reflectance"));
     }
 
-    public void setUniform(String uniformName, Matrix4f value) {
-        try (MemoryStack stack = MemoryStack.stackPush()) {
-            // Dump the matrix into a float buffer
-            FloatBuffer fb = stack.mallocFloat(16);
-            value.get(fb);
-            glUniformMatrix4fv(uniforms.get(uniformName), false, fb);
+    public IntUniform createIntUniform(String uniformName) throws Exception {
+        return new IntUniform(createUniform(uniformName));
+    }
+
+    public FloatUniform createFloatUniform(String uniformName) throws Exception {
+        return new FloatUniform(createUniform(uniformName));
+    }
+
+    public FloatUniform[] createFloatUniform(String uniformName, int size) throws Exception {
+        FloatUniform[] handles = new FloatUniform[size];
+        for (int i = 0; i < size; i++) {
+            handles[i] = createFloatUniform(uniformName + "[" + i + "]");
         }
+        return handles;
+    }
+
+    public Vector2fUniform createVector2fUniform(String uniformName) throws Exception {
+        return new Vector2fUniform(createUniform(uniformName));
+    }
+
+    public Vector3fUniform createVector3fUniform(String uniformName) throws Exception {
+        return new Vector3fUniform(createUniform(uniformName));
+    }
+
+    public Vector4fUniform createVector4fUniform(String uniformName) throws Exception {
+        return new Vector4fUniform(createUniform(uniformName));
+    }
+
+    public Vector4fArrayUniform createVector4fArrayUniform(String uniformName, int size) throws Exception {
+        return new Vector4fArrayUniform(createUniform(uniformName + "[0]"), size);
+    }
+
+    public Matrix4fUniform createMatrix4fUniform(String uniformName) throws Exception {
+        return new Matrix4fUniform(createUniform(uniformName));
+    }
+
+    public Matrix4fUniform[] createMatrix4fUniform(String uniformName, int size) throws Exception {
+        Matrix4fUniform[] handles = new Matrix4fUniform[size];
+        for (int i = 0; i < size; i++) {
+            handles[i] = createMatrix4fUniform(uniformName + "[" + i + "]");
+        }
+        return handles;
+    }
+
+    public void setUniform(String uniformName, Matrix4f value) {
+        value.get(matrixData);
+        glUniformMatrix4fv(uniforms.get(uniformName), false, matrixData);
     }
 
     public void setUniform(String uniformName, Matrix4f[] matrices) {
@@ -86,6 +184,10 @@ public class ShaderProgram {
         setUniform(uniformName + "[" + index  + "]", value);
     }
 
+    public void setUniform(String uniformName, Vector4f value, int index) {
+        setUniform(uniformName + "[" + index  + "]", value);
+    }
+
     public void setUniform(String uniformName, int value) {
         glUniform1i(uniforms.get(uniformName), value);
     }
@@ -112,10 +214,24 @@ public class ShaderProgram {
         setUniform(uniformName + ".ambient", material.getAmbientColour());
         setUniform(uniformName + ".diffuse", material.getDiffuseColour());
         setUniform(uniformName + ".specular", material.getSpecularColour());
-        setUniform(uniformName + ".hasTexture", material.isTextured() ? 1 : 0);
         setUniform(uniformName + ".reflectance", material.getReflectance());
     }
 
+    /**
+     * Links a uniform block of the program to a binding point.
+     *
+     * @param blockName Name of the block
+     * @param binding Binding point of the buffer that backs the block
+     * @throws Exception If the program does not declare the block
+     */
+    public void bindUniformBlock(String blockName, int binding) throws Exception {
+        int blockIndex = glGetUniformBlockIndex(programId, blockName);
+        if (blockIndex == GL_INVALID_INDEX) {
+            throw new Exception("Could not find uniform block:" + blockName);
+        }
+        glUniformBlockBinding(programId, blockIndex, binding);
+    }
+
     public void createVertexShader(String shaderCode) throws Exception {
         vertexShaderId = createShader(shaderCode, GL_VERTEX_SHADER);
     }
@@ -124,26 +240,62 @@ public class ShaderProgram {
         fragmentShaderId = createShader(shaderCode, GL_FRAGMENT_SHADER);
     }
 
+    public void createComputeShader(String shaderCode) throws Exception {
+        computeShaderId = createShader(shaderCode, GL_COMPUTE_SHADER);
+    }
+
     protected int createShader(String shaderCode, int shaderType) throws Exception {
         int shaderId = glCreateShader(shaderType);
         if (shaderId == 0) {
             throw new Exception("Error creating shader. Type: " + shaderType);
         }
 
+        // The compile status is checked when the program is linked, so the driver does not have to wait here
         glShaderSource(shaderId, shaderCode);
         glCompileShader(shaderId);
 
-        if (glGetShaderi(shaderId, GL_COMPILE_STATUS) == 0) {
-            throw new Exception("Error compiling Shader code: " + glGetShaderInfoLog(shaderId, 1024));
-        }
-
         glAttachShader(programId, shaderId);
 
         return shaderId;
     }
 
     public void link() throws Exception {
+        startLink();
+        finishLink();
+    }
+
+    /**
+     * Asks the driver to keep the linked binary, so it can be read with {@link #getBinary(IntBuffer)}. Must be
+     * called before linking.
+     */
+    public void setBinaryRetrievable() {
+        glProgramParameteri(programId, GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL_TRUE);
+    }
+
+    /**
+     * Links the program without waiting for the result. {@link #finishLink()} must be called before using it.
+     */
+    public void startLink() {
         glLinkProgram(programId);
+    }
+
+    /**
+     * @return If the compilation and link started by {@link #startLink()} have finished. Always true if the
+     * driver does not compile in parallel
+     */
+    public boolean isLinkComplete() {
+        return !parallelCompile || glGetProgrami(programId, GL_COMPLETION_STATUS_KHR) != 0;
+    }
+
+    /**
+     * Waits for the link started by {@link #startLink()} and checks the result.
+     *
+     * @throws Exception If a shader does not compile or the program does not link
+     */
+    public void finishLink() throws Exception {
+        checkCompileStatus(vertexShaderId);
+        checkCompileStatus(fragmentShaderId);
+        checkCompileStatus(computeShaderId);
         if (glGetProgrami(programId, GL_LINK_STATUS) == 0) {
             throw new Exception("Error linking Shader code: " + glGetProgramInfoLog(programId, 1024));
         }
@@ -154,6 +306,9 @@ public class ShaderProgram {
         if (fragmentShaderId != 0) {
             glDetachShader(programId, fragmentShaderId);
         }
+        if (computeShaderId != 0) {
+            glDetachShader(programId, computeShaderId);
+        }
 
         glValidateProgram(programId);
         if (glGetProgrami(programId, GL_VALIDATE_STATUS) == 0) {
@@ -161,12 +316,48 @@ public class ShaderProgram {
         }
     }
 
+    private static void checkCompileStatus(int shaderId) throws Exception {
+        if (shaderId != 0 && glGetShaderi(shaderId, GL_COMPILE_STATUS) == 0) {
+            throw new Exception("Error compiling Shader code: " + glGetShaderInfoLog(shaderId, 1024));
+        }
+    }
+
+    /**
+     * Reads the binary of a linked program.
+     *
+     * @param format Receives the driver specific format of the binary
+     * @return The binary, or null if the driver does not provide one. It must be freed with MemoryUtil.memFree
+     */
+    public ByteBuffer getBinary(IntBuffer format) {
+        int length = glGetProgrami(programId, GL_PROGRAM_BINARY_LENGTH);
+        if (length <= 0) {
+            return null;
+        }
+        ByteBuffer binary = MemoryUtil.memAlloc(length);
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            IntBuffer writtenLength = stack.mallocInt(1);
+            glGetProgramBinary(programId, writtenLength, format, binary);
+            binary.limit(writtenLength.get(0));
+        }
+        return binary;
+    }
+
+    /**
+     * Loads a binary read with {@link #getBinary(IntBuffer)} instead of compiling and linking the shaders.
+     *
+     * @return If the driver accepted the binary. Binaries are rejected after driver updates
+     */
+    public boolean loadBinary(int format, ByteBuffer binary) {
+        glProgramBinary(programId, format, binary);
+        return glGetProgrami(programId, GL_LINK_STATUS) != 0;
+    }
+
     public void bind() {
-        glUseProgram(programId);
+        GLState.useProgram(programId);
     }
 
     public void unbind() {
-        glUseProgram(0);
+        GLState.useProgram(0);
     }
 
     public void cleanup() {
@@ -0,0 +1,214 @@
+package org.lwjgl.engine.graph;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Specialized versions of a vertex and fragment shader pair, or of a compute shader. Each bit of the feature mask enables one define, so
+ * the shaders can drop the code of the features a draw does not need instead of branching at runtime. Variants
+ * are compiled the first time they are requested, or in advance with {@link #prepare(int)}. Linked programs are
+ * stored in the program cache, if there is one, and loaded from it on the next runs.
+ *
+ * @param <T> Program of a variant together with its uniform handles
+ */
+public class ShaderVariants<T> {
+
+    public interface Factory<T> {
+
+        /**
+         * Creates the uniform handles of a variant that has just been linked.
+         */
+        T create(ShaderProgram shaderProgram, int features) throws Exception;
+    }
+
+    private final ShaderPreprocessor shaderPreprocessor;
+
+    private final ProgramCache programCache;
+
+    private final String vertexShaderFile;
+
+    private final String fragmentShaderFile;
+
+    /**
+     * It is null for vertex and fragment shader pairs
+     */
+    private final String computeShaderFile;
+
+    private final String[] featureDefines;
+
+    private final Factory<T> factory;
+
+    private final Map<Integer, T> variants;
+
+    /**
+     * Programs being compiled and linked by the driver, with the cache key to store them under
+     */
+    private final Map<Integer, ShaderProgram> pendingPrograms;
+
+    private final Map<Integer, String> pendingKeys;
+
+    /**
+     * Pending programs that were loaded from the cache, so they are already linked
+     */
+    private final Set<Integer> cachedPrograms;
+
+    private final List<ShaderProgram> shaderPrograms;
+
+    /**
+     * @param programCache Cache of program binaries. It may be null
+     * @param featureDefines Name defined by each bit of the feature mask, starting at the lowest bit
+     */
+    public ShaderVariants(ShaderPreprocessor shaderPreprocessor, ProgramCache programCache, String vertexShaderFile,
+                          String fragmentShaderFile, String[] featureDefines, Factory<T> factory) {
+        this(shaderPreprocessor, programCache, vertexShaderFile, fragmentShaderFile, null, featureDefines, factory);
+    }
+
+    /**
+     * Variants of a compute shader.
+     *
+     * @param programCache Cache of program binaries. It may be null
+     * @param featureDefines Name defined by each bit of the feature mask, starting at the lowest bit
+     */
+    public ShaderVariants(ShaderPreprocessor shaderPreprocessor, ProgramCache programCache, String computeShaderFile,
+                          String[] featureDefines, Factory<T> factory) {
+        this(shaderPreprocessor, programCache, null, null, computeShaderFile, featureDefines, factory);
+    }
+
+    private ShaderVariants(ShaderPreprocessor shaderPreprocessor, ProgramCache programCache, String vertexShaderFile,
+                           String fragmentShaderFile, String computeShaderFile, String[] featureDefines,
+                           Factory<T> factory) {
+        this.shaderPreprocessor = shaderPreprocessor;
+        this.programCache = programCache;
+        this.vertexShaderFile = vertexShaderFile;
+        this.fragmentShaderFile = fragmentShaderFile;
+        this.computeShaderFile = computeShaderFile;
+        this.featureDefines = featureDefines;
+        this.factory = factory;
+        variants = new HashMap<>();
+        pendingPrograms = new HashMap<>();
+        pendingKeys = new HashMap<>();
+        cachedPrograms = new HashSet<>();
+        shaderPrograms = new ArrayList<>();
+    }
+
+    /**
+     * Returns the variant for a feature mask, compiling it if it does not exist yet. A variant that was prepared
+     * is waited for here.
+     *
+     * @param features Feature mask
+     * @return The variant
+     */
+    public T get(int features) {
+        T variant = variants.get(features);
+        if (variant == null) {
+            try {
+                prepare(features);
+                variant = finish(features);
+            } catch (Exception excp) {
+                throw new RuntimeException("Could not create variant " + describe(features) + " of "
+                        + (computeShaderFile != null ? computeShaderFile
+                        : vertexShaderFile + ", " + fragmentShaderFile), excp);
+            }
+        }
+        return variant;
+    }
+
+    /**
+     * Starts building a variant in advance, without waiting for the driver. With parallel shader compilation
+     * the variants prepared together are compiled at the same time.
+     */
+    public void prepare(int features) throws Exception {
+        if (variants.containsKey(features) || pendingPrograms.containsKey(features)) {
+            return;
+        }
+        List<String> defines = new ArrayList<>();
+        for (int i = 0; i < featureDefines.length; i++) {
+            if ((features & (1 << i)) != 0) {
+                defines.add(featureDefines[i]);
+            }
+        }
+        String[] shaderCode;
+        if (computeShaderFile != null) {
+            shaderCode = new String[]{shaderPreprocessor.process(computeShaderFile, defines)};
+        } else {
+            shaderCode = new String[]{shaderPreprocessor.process(vertexShaderFile, defines),
+                    shaderPreprocessor.process(fragmentShaderFile, defines)};
+        }
+
+        ShaderProgram shaderProgram = new ShaderProgram();
+        shaderPrograms.add(shaderProgram);
+        pendingPrograms.put(features, shaderProgram);
+        // Uniforms of the disabled features are removed by the compiler
+        shaderProgram.setOptionalUniforms(true);
+        if (programCache != null) {
+            String key = programCache.getKey(shaderCode);
+            if (programCache.load(shaderProgram, key)) {
+                cachedPrograms.add(features);
+                return;
+            }
+            pendingKeys.put(features, key);
+            shaderProgram.setBinaryRetrievable();
+        }
+        if (computeShaderFile != null) {
+            shaderProgram.createComputeShader(shaderCode[0]);
+        } else {
+            shaderProgram.createVertexShader(shaderCode[0]);
+            shaderProgram.createFragmentShader(shaderCode[1]);
+        }
+        shaderProgram.startLink();
+    }
+
+    private T finish(int features) throws Exception {
+        ShaderProgram shaderProgram = pendingPrograms.remove(features);
+        String key = pendingKeys.remove(features);
+        if (!cachedPrograms.remove(features)) {
+            shaderProgram.finishLink();
+            if (key != null) {
+                programCache.store(shaderProgram, key);
+            }
+        }
+        T variant = factory.create(shaderProgram, features);
+        variants.put(features, variant);
+        return variant;
+    }
+
+    /**
+     * @return If the variant can be used without waiting for the driver
+     */
+    public boolean isReady(int features) {
+        ShaderProgram shaderProgram = pendingPrograms.get(features);
+        return variants.containsKey(features) || shaderProgram != null && shaderProgram.isLinkComplete();
+    }
+
+    private String describe(int features) {
+        StringBuilder result = new StringBuilder("[");
+        for (int i = 0; i < featureDefines.length; i++) {
+            if ((features & (1 << i)) != 0) {
+                if (result.length() > 1) {
+                    result.append(", ");
+                }
+                result.append(featureDefines[i]);
+            }
+        }
+        return result.append(']').toString();
+    }
+
+    public int getNumVariants() {
+        return variants.size();
+    }
+
+    public void cleanup() {
+        for (ShaderProgram shaderProgram : shaderPrograms) {
+            shaderProgram.cleanup();
+        }
+        shaderPrograms.clear();
+        variants.clear();
+        pendingPrograms.clear();
+        pendingKeys.clear();
+        cachedPrograms.clear();
+    }
+}
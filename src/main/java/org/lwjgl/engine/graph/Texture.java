@@ -33,7 +33,7 @@ public class Texture {
         this.id = glGenTextures();
         this.width = width;
         this.height = height;
-        glBindTexture(GL_TEXTURE_2D, this.id);
+        GLState.bindTexture(GL_TEXTURE_2D, this.id);
         glTexImage2D(GL_TEXTURE_2D, 0, GL_DEPTH_COMPONENT, this.width, this.height, 0, pixelFormat, GL_FLOAT, (ByteBuffer) null);
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
@@ -68,7 +68,7 @@ public class Texture {
             // Create a new OpenGL texture
             this.id = glGenTextures();
             // Bind the texture
-            glBindTexture(GL_TEXTURE_2D, this.id);
+            GLState.bindTexture(GL_TEXTURE_2D, this.id);
 
             // Tell OpenGL how to unpack the RGBA bytes. Each component is 1 byte size
             glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
@@ -105,7 +105,7 @@ public class Texture {
     }
 
     public void bind() {
-        glBindTexture(GL_TEXTURE_2D, id);
+        GLState.bindTexture(GL_TEXTURE_2D, id);
     }
 
     public int getId() {
@@ -113,6 +113,6 @@ public class Texture {
     }
 
     public void cleanup() {
-        glDeleteTextures(id);
+        GLState.deleteTexture(id);
     }
 }
\ No newline at end of file
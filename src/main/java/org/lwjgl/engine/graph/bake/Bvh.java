@@ -0,0 +1,252 @@
+package org.lwjgl.engine.graph.bake;
+
+import org.lwjgl.engine.graph.Mesh;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Bounding volume hierarchy over the triangles of a set of meshes, used to trace shadow rays on the CPU. Each node
+ * is split at the middle of the centroids of its triangles along their widest axis. Once built it is only read,
+ * so any number of threads can trace rays at the same time.
+ */
+public class Bvh {
+
+    private static final int MAX_LEAF_TRIANGLES = 4;
+
+    /**
+     * Nodes deeper than this are leaves whatever their number of triangles, which bounds the traversal stack
+     */
+    public static final int MAX_DEPTH = 64;
+
+    private static final float EPSILON = 1e-7f;
+
+    private static final float MIN_DIRECTION = 1e-20f;
+
+    /**
+     * Vertices of the triangles in leaf order, nine floats per triangle
+     */
+    private final float[] triangles;
+
+    /**
+     * Minimum and then maximum corner of each node
+     */
+    private float[] nodeBounds;
+
+    /**
+     * For each node, the index of its first child or of its first triangle, and its number of triangles, which is
+     * 0 for inner nodes. The second child follows the first one.
+     */
+    private int[] nodeData;
+
+    private int numNodes;
+
+    /**
+     * @param meshes Meshes whose vertices are already in world space, like the static batches
+     */
+    public Bvh(List<? extends Mesh> meshes) {
+        int numTriangles = 0;
+        for (Mesh mesh : meshes) {
+            numTriangles += mesh.getIndices().length / 3;
+        }
+        float[] source = new float[numTriangles * 9];
+        float[] centroids = new float[numTriangles * 3];
+        int triangle = 0;
+        for (Mesh mesh : meshes) {
+            float[] positions = mesh.getPositions();
+            int[] indices = mesh.getIndices();
+            for (int i = 0; i + 2 < indices.length; i += 3, triangle++) {
+                for (int j = 0; j < 3; j++) {
+                    int src = indices[i + j] * 3;
+                    int dst = triangle * 9 + j * 3;
+                    source[dst] = positions[src];
+                    source[dst + 1] = positions[src + 1];
+                    source[dst + 2] = positions[src + 2];
+                    centroids[triangle * 3] += positions[src] / 3;
+                    centroids[triangle * 3 + 1] += positions[src + 1] / 3;
+                    centroids[triangle * 3 + 2] += positions[src + 2] / 3;
+                }
+            }
+        }
+
+        int[] order = new int[numTriangles];
+        for (int i = 0; i < numTriangles; i++) {
+            order[i] = i;
+        }
+        nodeBounds = new float[64 * 6];
+        nodeData = new int[64 * 2];
+        numNodes = 1;
+        if (numTriangles > 0) {
+            build(0, 0, numTriangles, 0, source, centroids, order);
+        } else {
+            setEmptyBounds(0);
+        }
+
+        triangles = new float[numTriangles * 9];
+        for (int i = 0; i < numTriangles; i++) {
+            System.arraycopy(source, order[i] * 9, triangles, i * 9, 9);
+        }
+    }
+
+    private void build(int node, int first, int count, int depth, float[] source, float[] centroids, int[] order) {
+        setEmptyBounds(node);
+        float[] centroidBounds = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE,
+                -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+        for (int i = first; i < first + count; i++) {
+            int triangle = order[i];
+            for (int j = 0; j < 9; j++) {
+                int axis = j % 3;
+                nodeBounds[node * 6 + axis] = Math.min(nodeBounds[node * 6 + axis], source[triangle * 9 + j]);
+                nodeBounds[node * 6 + axis + 3] = Math.max(nodeBounds[node * 6 + axis + 3], source[triangle * 9 + j]);
+            }
+            for (int axis = 0; axis < 3; axis++) {
+                centroidBounds[axis] = Math.min(centroidBounds[axis], centroids[triangle * 3 + axis]);
+                centroidBounds[axis + 3] = Math.max(centroidBounds[axis + 3], centroids[triangle * 3 + axis]);
+            }
+        }
+        if (count <= MAX_LEAF_TRIANGLES || depth >= MAX_DEPTH) {
+            nodeData[node * 2] = first;
+            nodeData[node * 2 + 1] = count;
+            return;
+        }
+
+        int axis = 0;
+        for (int i = 1; i < 3; i++) {
+            if (centroidBounds[i + 3] - centroidBounds[i] > centroidBounds[axis + 3] - centroidBounds[axis]) {
+                axis = i;
+            }
+        }
+        float split = (centroidBounds[axis] + centroidBounds[axis + 3]) * 0.5f;
+        int middle = first;
+        for (int i = first; i < first + count; i++) {
+            if (centroids[order[i] * 3 + axis] < split) {
+                int tmp = order[i];
+                order[i] = order[middle];
+                order[middle] = tmp;
+                middle++;
+            }
+        }
+        if (middle == first || middle == first + count) {
+            // All the centroids are at the same place, any half is as good as the other
+            middle = first + count / 2;
+        }
+
+        int left = allocateNodes();
+        nodeData[node * 2] = left;
+        nodeData[node * 2 + 1] = 0;
+        build(left, first, middle - first, depth + 1, source, centroids, order);
+        build(left + 1, middle, first + count - middle, depth + 1, source, centroids, order);
+    }
+
+    private int allocateNodes() {
+        int first = numNodes;
+        numNodes += 2;
+        if (numNodes * 6 > nodeBounds.length) {
+            nodeBounds = Arrays.copyOf(nodeBounds, nodeBounds.length * 2);
+            nodeData = Arrays.copyOf(nodeData, nodeData.length * 2);
+        }
+        return first;
+    }
+
+    private void setEmptyBounds(int node) {
+        for (int axis = 0; axis < 3; axis++) {
+            nodeBounds[node * 6 + axis] = Float.MAX_VALUE;
+            nodeBounds[node * 6 + axis + 3] = -Float.MAX_VALUE;
+        }
+    }
+
+    public int getNumTriangles() {
+        return triangles.length / 9;
+    }
+
+    /**
+     * Checks if a ray hits any triangle, whatever its facing, before a distance.
+     *
+     * @param stack Traversal stack of the calling thread, with at least MAX_DEPTH + 2 elements
+     * @return If the ray is blocked
+     */
+    public boolean isOccluded(float ox, float oy, float oz, float dx, float dy, float dz, float maxDistance,
+                              int[] stack) {
+        // Rays parallel to an axis would give NaN slabs for origins on the planes of the bounds, which block worlds
+        // have everywhere
+        float invX = 1.0f / (dx != 0 ? dx : MIN_DIRECTION);
+        float invY = 1.0f / (dy != 0 ? dy : MIN_DIRECTION);
+        float invZ = 1.0f / (dz != 0 ? dz : MIN_DIRECTION);
+        int stackSize = 0;
+        stack[stackSize++] = 0;
+        while (stackSize > 0) {
+            int node = stack[--stackSize];
+            if (!intersectsBounds(node, ox, oy, oz, invX, invY, invZ, maxDistance)) {
+                continue;
+            }
+            int count = nodeData[node * 2 + 1];
+            if (count == 0) {
+                stack[stackSize++] = nodeData[node * 2];
+                stack[stackSize++] = nodeData[node * 2] + 1;
+                continue;
+            }
+            int first = nodeData[node * 2];
+            for (int i = first; i < first + count; i++) {
+                if (intersectsTriangle(i * 9, ox, oy, oz, dx, dy, dz, maxDistance)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean intersectsBounds(int node, float ox, float oy, float oz, float invX, float invY, float invZ,
+                                     float maxDistance) {
+        int base = node * 6;
+        float t0 = (nodeBounds[base] - ox) * invX;
+        float t1 = (nodeBounds[base + 3] - ox) * invX;
+        float near = Math.min(t0, t1);
+        float far = Math.max(t0, t1);
+        t0 = (nodeBounds[base + 1] - oy) * invY;
+        t1 = (nodeBounds[base + 4] - oy) * invY;
+        near = Math.max(near, Math.min(t0, t1));
+        far = Math.min(far, Math.max(t0, t1));
+        t0 = (nodeBounds[base + 2] - oz) * invZ;
+        t1 = (nodeBounds[base + 5] - oz) * invZ;
+        near = Math.max(near, Math.min(t0, t1));
+        far = Math.min(far, Math.max(t0, t1));
+        return near <= far && far >= 0 && near <= maxDistance;
+    }
+
+    /**
+     * Moller-Trumbore intersection of the ray with one triangle
+     */
+    private boolean intersectsTriangle(int base, float ox, float oy, float oz, float dx, float dy, float dz,
+                                       float maxDistance) {
+        float e1x = triangles[base + 3] - triangles[base];
+        float e1y = triangles[base + 4] - triangles[base + 1];
+        float e1z = triangles[base + 5] - triangles[base + 2];
+        float e2x = triangles[base + 6] - triangles[base];
+        float e2y = triangles[base + 7] - triangles[base + 1];
+        float e2z = triangles[base + 8] - triangles[base + 2];
+        float px = dy * e2z - dz * e2y;
+        float py = dz * e2x - dx * e2z;
+        float pz = dx * e2y - dy * e2x;
+        float det = e1x * px + e1y * py + e1z * pz;
+        if (det > -EPSILON && det < EPSILON) {
+            return false;
+        }
+        float invDet = 1.0f / det;
+        float tx = ox - triangles[base];
+        float ty = oy - triangles[base + 1];
+        float tz = oz - triangles[base + 2];
+        float u = (tx * px + ty * py + tz * pz) * invDet;
+        if (u < 0 || u > 1) {
+            return false;
+        }
+        float qx = ty * e1z - tz * e1y;
+        float qy = tz * e1x - tx * e1z;
+        float qz = tx * e1y - ty * e1x;
+        float v = (dx * qx + dy * qy + dz * qz) * invDet;
+        if (v < 0 || u + v > 1) {
+            return false;
+        }
+        float t = (e2x * qx + e2y * qy + e2z * qz) * invDet;
+        return t > 0 && t < maxDistance;
+    }
+}
@@ -0,0 +1,358 @@
+package org.lwjgl.engine.graph.bake;
+
+import org.joml.Vector3f;
+import org.lwjgl.engine.Metrics;
+import org.lwjgl.engine.Scene;
+import org.lwjgl.engine.graph.batch.StaticBatch;
+import org.lwjgl.engine.graph.lights.DirectionalLight;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Bakes the sun visibility and the ambient occlusion of the static batches into their vertices. The rays are traced
+ * on the CPU against a BVH of the batches, on one worker thread per core, while the frames go on. The results are
+ * uploaded when all the tasks have finished, so the batches never show a half baked state.
+ * <p>
+ * The ambient occlusion only depends on the geometry and is baked once per scene version. The sun visibility is
+ * baked again when the sun direction changes, the batches keep the previous results until then.
+ */
+public class LightBaker {
+
+    /**
+     * Cosine weighted rays over the hemisphere of each vertex
+     */
+    private static final int OCCLUSION_SAMPLES = 16;
+
+    /**
+     * Occluders farther than this do not darken the ambient light
+     */
+    private static final float OCCLUSION_DISTANCE = 2.0f;
+
+    /**
+     * Rays towards the disc of the sun, which soften the shadow edges between the vertices
+     */
+    private static final int SUN_SAMPLES = 4;
+
+    /**
+     * Angular radius of the sun in radians. It is wider than the real one so the per vertex shadows are smooth.
+     */
+    private static final float SUN_RADIUS = 0.02f;
+
+    private static final float SUN_DISTANCE = 1000.0f;
+
+    /**
+     * The sun is baked again if its direction moves more than this angle, as a cosine
+     */
+    private static final float MIN_SUN_CHANGE_COS = (float) Math.cos(Math.toRadians(0.5));
+
+    /**
+     * Ray origins are moved along the normal, so the rays do not hit the surface they leave
+     */
+    private static final float RAY_OFFSET = 1e-3f;
+
+    /**
+     * Ray origins are moved towards the triangles of the vertex by this fraction, so the rays leaving a corner do
+     * not graze the faces of the neighbour blocks
+     */
+    private static final float CORNER_PULL = 0.05f;
+
+    private static final int VERTICES_PER_TASK = 4096;
+
+    private final ExecutorService executor;
+
+    private final List<Future<?>> futures;
+
+    private int sceneVersion;
+
+    private List<StaticBatch> staticBatches;
+
+    /**
+     * It is null if the scene has no static geometry
+     */
+    private Bvh bvh;
+
+    /**
+     * Ray origin and normal of each vertex of each batch, six floats per vertex
+     */
+    private float[][] vertexFrames;
+
+    /**
+     * Sun visibility and ambient occlusion of each vertex of each batch
+     */
+    private float[][] results;
+
+    private boolean occlusionBaked;
+
+    private boolean baked;
+
+    private final Vector3f sunDirection;
+
+    private long bakeStartTime;
+
+    public LightBaker() {
+        int numThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        executor = Executors.newFixedThreadPool(numThreads, (Runnable runnable) -> {
+            Thread thread = new Thread(runnable, "LIGHT_BAKING_THREAD");
+            thread.setDaemon(true);
+            // Baking must not slow down the render thread
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        futures = new ArrayList<>();
+        sceneVersion = -1;
+        staticBatches = new ArrayList<>();
+        sunDirection = new Vector3f();
+    }
+
+    /**
+     * Uploads the results of the finished bake and starts a new one if the static geometry or the sun direction
+     * has changed. Must be called from the render thread.
+     *
+     * @return If some batches have been baked for the first time, so their shader variants have changed
+     */
+    public boolean update(Scene scene, DirectionalLight directionalLight) {
+        if (scene.getVersion() != sceneVersion) {
+            // The running tasks finish on their own copies, their results are dropped
+            futures.clear();
+            sceneVersion = scene.getVersion();
+            staticBatches = new ArrayList<>(scene.getStaticBatches());
+            bvh = staticBatches.isEmpty() ? null : new Bvh(staticBatches);
+            vertexFrames = new float[staticBatches.size()][];
+            for (int i = 0; i < staticBatches.size(); i++) {
+                vertexFrames[i] = buildVertexFrames(staticBatches.get(i));
+            }
+            results = null;
+            occlusionBaked = false;
+            baked = false;
+        }
+
+        if (!futures.isEmpty()) {
+            for (Future<?> future : futures) {
+                if (!future.isDone()) {
+                    return false;
+                }
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException | ExecutionException excp) {
+                    throw new RuntimeException("Could not bake the lighting", excp);
+                }
+            }
+            futures.clear();
+            for (int i = 0; i < staticBatches.size(); i++) {
+                staticBatches.get(i).setBakedLighting(results[i]);
+            }
+            Metrics.set("bake", String.format("%d tris, %.0f ms", bvh.getNumTriangles(),
+                    (System.nanoTime() - bakeStartTime) / 1e6f));
+            occlusionBaked = true;
+            boolean firstBake = !baked;
+            baked = true;
+            return firstBake;
+        }
+
+        if (bvh == null || directionalLight == null) {
+            return false;
+        }
+        Vector3f direction = directionalLight.getDirection();
+        float length = direction.length();
+        if (length == 0 || baked && direction.dot(sunDirection) >= MIN_SUN_CHANGE_COS * length) {
+            return false;
+        }
+        startBake(direction);
+        return false;
+    }
+
+    private void startBake(Vector3f direction) {
+        sunDirection.set(direction).normalize();
+        bakeStartTime = System.nanoTime();
+        if (results == null) {
+            results = new float[staticBatches.size()][];
+            for (int i = 0; i < staticBatches.size(); i++) {
+                results[i] = new float[vertexFrames[i].length / 3];
+            }
+        }
+        // The tasks only read the fields captured here, so a later scene change does not affect them
+        BakeInputs inputs = new BakeInputs(bvh, vertexFrames, results, new Vector3f(sunDirection), !occlusionBaked);
+        for (int i = 0; i < staticBatches.size(); i++) {
+            int numVertices = vertexFrames[i].length / 6;
+            for (int first = 0; first < numVertices; first += VERTICES_PER_TASK) {
+                futures.add(executor.submit(new BakeTask(inputs, i, first,
+                        Math.min(first + VERTICES_PER_TASK, numVertices))));
+            }
+        }
+    }
+
+    /**
+     * Computes the ray origin of each vertex, pulled towards the centroids of its triangles and pushed along its
+     * normal, and copies its normal.
+     */
+    private static float[] buildVertexFrames(StaticBatch staticBatch) {
+        float[] positions = staticBatch.getPositions();
+        float[] normals = staticBatch.getNormals();
+        int[] indices = staticBatch.getIndices();
+        int numVertices = positions.length / 3;
+        float[] centroids = new float[numVertices * 4];
+        for (int i = 0; i + 2 < indices.length; i += 3) {
+            for (int axis = 0; axis < 3; axis++) {
+                float centroid = (positions[indices[i] * 3 + axis] + positions[indices[i + 1] * 3 + axis]
+                        + positions[indices[i + 2] * 3 + axis]) / 3;
+                for (int j = 0; j < 3; j++) {
+                    centroids[indices[i + j] * 4 + axis] += centroid;
+                }
+            }
+            for (int j = 0; j < 3; j++) {
+                centroids[indices[i + j] * 4 + 3]++;
+            }
+        }
+        float[] frames = new float[numVertices * 6];
+        for (int i = 0; i < numVertices; i++) {
+            float count = Math.max(centroids[i * 4 + 3], 1);
+            for (int axis = 0; axis < 3; axis++) {
+                float position = positions[i * 3 + axis];
+                float centroid = centroids[i * 4 + 3] > 0 ? centroids[i * 4 + axis] / count : position;
+                float normal = normals[i * 3 + axis];
+                frames[i * 6 + axis] = position + (centroid - position) * CORNER_PULL + normal * RAY_OFFSET;
+                frames[i * 6 + 3 + axis] = normal;
+            }
+        }
+        return frames;
+    }
+
+    public boolean isBaked() {
+        return baked;
+    }
+
+    public void cleanup() {
+        executor.shutdownNow();
+    }
+
+    private static class BakeInputs {
+
+        private final Bvh bvh;
+
+        private final float[][] vertexFrames;
+
+        private final float[][] results;
+
+        private final Vector3f sunDirection;
+
+        private final boolean bakeOcclusion;
+
+        BakeInputs(Bvh bvh, float[][] vertexFrames, float[][] results, Vector3f sunDirection,
+                   boolean bakeOcclusion) {
+            this.bvh = bvh;
+            this.vertexFrames = vertexFrames;
+            this.results = results;
+            this.sunDirection = sunDirection;
+            this.bakeOcclusion = bakeOcclusion;
+        }
+    }
+
+    /**
+     * Bakes a range of vertices of one batch
+     */
+    private static class BakeTask implements Runnable {
+
+        private final BakeInputs inputs;
+
+        private final int batch;
+
+        private final int firstVertex;
+
+        private final int endVertex;
+
+        BakeTask(BakeInputs inputs, int batch, int firstVertex, int endVertex) {
+            this.inputs = inputs;
+            this.batch = batch;
+            this.firstVertex = firstVertex;
+            this.endVertex = endVertex;
+        }
+
+        @Override
+        public void run() {
+            Bvh bvh = inputs.bvh;
+            float[] frames = inputs.vertexFrames[batch];
+            float[] result = inputs.results[batch];
+            Vector3f sun = inputs.sunDirection;
+            // Seeded with the vertex range, so the noise is the same every time the lighting is baked
+            SplittableRandom random = new SplittableRandom(((long) batch << 32) | firstVertex);
+            int[] stack = new int[Bvh.MAX_DEPTH + 2];
+            Vector3f tangent = new Vector3f();
+            Vector3f bitangent = new Vector3f();
+            Vector3f normal = new Vector3f();
+            Vector3f sunTangent = new Vector3f();
+            Vector3f sunBitangent = new Vector3f();
+            buildBasis(sun, sunTangent, sunBitangent);
+
+            for (int i = firstVertex; i < endVertex; i++) {
+                float ox = frames[i * 6];
+                float oy = frames[i * 6 + 1];
+                float oz = frames[i * 6 + 2];
+                normal.set(frames[i * 6 + 3], frames[i * 6 + 4], frames[i * 6 + 5]);
+
+                // Faces turned away from the sun are not lit by it whatever the occluders
+                int visible = 0;
+                if (normal.dot(sun) > 0) {
+                    for (int sample = 0; sample < SUN_SAMPLES; sample++) {
+                        double angle = random.nextDouble() * 2 * Math.PI;
+                        float radius = (float) Math.sqrt(random.nextDouble()) * SUN_RADIUS;
+                        float a = radius * (float) Math.cos(angle);
+                        float b = radius * (float) Math.sin(angle);
+                        float dx = sun.x + sunTangent.x * a + sunBitangent.x * b;
+                        float dy = sun.y + sunTangent.y * a + sunBitangent.y * b;
+                        float dz = sun.z + sunTangent.z * a + sunBitangent.z * b;
+                        if (!bvh.isOccluded(ox, oy, oz, dx, dy, dz, SUN_DISTANCE, stack)) {
+                            visible++;
+                        }
+                    }
+                }
+                result[i * 2] = (float) visible / SUN_SAMPLES;
+
+                if (!inputs.bakeOcclusion) {
+                    continue;
+                }
+                if (normal.lengthSquared() == 0) {
+                    result[i * 2 + 1] = 1.0f;
+                    continue;
+                }
+                buildBasis(normal, tangent, bitangent);
+                int unoccluded = 0;
+                for (int sample = 0; sample < OCCLUSION_SAMPLES; sample++) {
+                    double angle = random.nextDouble() * 2 * Math.PI;
+                    double r2 = random.nextDouble();
+                    float radius = (float) Math.sqrt(r2);
+                    float a = radius * (float) Math.cos(angle);
+                    float b = radius * (float) Math.sin(angle);
+                    float c = (float) Math.sqrt(1 - r2);
+                    float dx = tangent.x * a + bitangent.x * b + normal.x * c;
+                    float dy = tangent.y * a + bitangent.y * b + normal.y * c;
+                    float dz = tangent.z * a + bitangent.z * b + normal.z * c;
+                    if (!bvh.isOccluded(ox, oy, oz, dx, dy, dz, OCCLUSION_DISTANCE, stack)) {
+                        unoccluded++;
+                    }
+                }
+                result[i * 2 + 1] = (float) unoccluded / OCCLUSION_SAMPLES;
+            }
+        }
+
+        /**
+         * Builds two unit vectors perpendicular to a unit direction and to each other
+         */
+        private static void buildBasis(Vector3f direction, Vector3f tangent, Vector3f bitangent) {
+            if (Math.abs(direction.x) < 0.9f) {
+                tangent.set(1, 0, 0);
+            } else {
+                tangent.set(0, 1, 0);
+            }
+            tangent.cross(direction).normalize();
+            direction.cross(tangent, bitangent);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package org.lwjgl.engine.graph.batch;
+
+import org.joml.Vector3f;
+import org.lwjgl.engine.graph.GLState;
+import org.lwjgl.engine.graph.Mesh;
+import org.lwjgl.engine.items.GameItem;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.FloatBuffer;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.glEnableVertexAttribArray;
+import static org.lwjgl.opengl.GL20.glVertexAttribPointer;
+
+/**
+ * A cluster of static items sharing a material whose vertices have been pre-transformed into world space,
+ * so that the whole cluster can be drawn with a single call.
+ */
+public class StaticBatch extends Mesh {
+
+    private static final int INDEX_SIZE_BYTES = 4;
+
+    private static final int BAKED_LIGHTING_LOCATION = 3;
+
+    private final List<ItemRange> itemRanges;
+
+    /**
+     * Center of the bounding sphere in world space coordinates.
+     */
+    private final Vector3f center;
+
+    private boolean insideFrustum;
+
+    /**
+     * Buffer of the baked sun visibility and ambient occlusion of each vertex. It is 0 until the batch is baked.
+     */
+    private int bakedLightingVboId;
+
+    public StaticBatch(float[] positions, float[] textCoords, float[] normals, int[] indices,
+                       List<ItemRange> itemRanges, Vector3f center, float boundingRadius) {
+        super(positions, textCoords, normals, indices);
+        this.itemRanges = itemRanges;
+        this.center = center;
+        this.insideFrustum = true;
+        setBoundingRadius(boundingRadius);
+    }
+
+    public List<ItemRange> getItemRanges() {
+        return itemRanges;
+    }
+
+    public Vector3f getCenter() {
+        return center;
+    }
+
+    public boolean isInsideFrustum() {
+        return insideFrustum;
+    }
+
+    public void setInsideFrustum(boolean insideFrustum) {
+        this.insideFrustum = insideFrustum;
+    }
+
+    public boolean isBaked() {
+        return bakedLightingVboId != 0;
+    }
+
+    /**
+     * Uploads the baked lighting of the vertices, which is read by the baked variant of the scene shader.
+     *
+     * @param bakedLighting Sun visibility and ambient occlusion of each vertex
+     */
+    public void setBakedLighting(float[] bakedLighting) {
+        FloatBuffer bakedLightingBuffer = MemoryUtil.memAllocFloat(bakedLighting.length);
+        try {
+            bakedLightingBuffer.put(bakedLighting).flip();
+            if (bakedLightingVboId == 0) {
+                bakedLightingVboId = glGenBuffers();
+                vboIdList.add(bakedLightingVboId);
+                GLState.bindVertexArray(vaoId);
+                GLState.bindBuffer(GL_ARRAY_BUFFER, bakedLightingVboId);
+                glBufferData(GL_ARRAY_BUFFER, bakedLightingBuffer, GL_STATIC_DRAW);
+                glVertexAttribPointer(BAKED_LIGHTING_LOCATION, 2, GL_FLOAT, false, 0, 0);
+                glEnableVertexAttribArray(BAKED_LIGHTING_LOCATION);
+                GLState.bindVertexArray(0);
+            } else {
+                GLState.bindBuffer(GL_ARRAY_BUFFER, bakedLightingVboId);
+                glBufferSubData(GL_ARRAY_BUFFER, 0, bakedLightingBuffer);
+            }
+            GLState.bindBuffer(GL_ARRAY_BUFFER, 0);
+        } finally {
+            MemoryUtil.memFree(bakedLightingBuffer);
+        }
+    }
+
+    /**
+     * Renders the batch, splitting it only where the selection state of the items changes.
+     *
+     * @param selectionConsumer Receives the selection state before each sub range is drawn
+     */
+    public void renderBatch(Consumer<Boolean> selectionConsumer) {
+        initRender();
+
+        int numRanges = itemRanges.size();
+        int start = 0;
+        while (start < numRanges) {
+            boolean selected = itemRanges.get(start).getGameItem().isSelected();
+            int end = start + 1;
+            while (end < numRanges && itemRanges.get(end).getGameItem().isSelected() == selected) {
+                end++;
+            }
+            int firstIndex = itemRanges.get(start).getFirstIndex();
+            ItemRange last = itemRanges.get(end - 1);
+            int count = last.getFirstIndex() + last.getIndexCount() - firstIndex;
+
+            selectionConsumer.accept(selected);
+            glDrawElements(GL_TRIANGLES, count, GL_UNSIGNED_INT, (long) firstIndex * INDEX_SIZE_BYTES);
+
+            start = end;
+        }
+
+        endRender();
+    }
+
+    /**
+     * Range of indices of the batch that belongs to a single game item.
+     */
+    public static class ItemRange {
+
+        private final GameItem gameItem;
+
+        private final int firstIndex;
+
+        private final int indexCount;
+
+        public ItemRange(GameItem gameItem, int firstIndex, int indexCount) {
+            this.gameItem = gameItem;
+            this.firstIndex = firstIndex;
+            this.indexCount = indexCount;
+        }
+
+        public GameItem getGameItem() {
+            return gameItem;
+        }
+
+        public int getFirstIndex() {
+            return firstIndex;
+        }
+
+        public int getIndexCount() {
+            return indexCount;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package org.lwjgl.engine.graph.batch;
+
+import org.joml.Matrix3f;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.lwjgl.engine.graph.Material;
+import org.lwjgl.engine.graph.Mesh;
+import org.lwjgl.engine.graph.Texture;
+import org.lwjgl.engine.graph.Transformation;
+import org.lwjgl.engine.graph.shadow.ShadowProxy;
+import org.lwjgl.engine.items.GameItem;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges the meshes of static items that share a material into a few pre-transformed batches.
+ * Items are split into spatial clusters so that each batch can still be frustum culled.
+ */
+public class StaticBatcher {
+
+    public static final float DEFAULT_CLUSTER_SIZE = 16.0f;
+
+    public static final int MAX_BATCH_VERTICES = 65536;
+
+    private static final int CELL_BITS = 21;
+
+    private static final int CELL_MASK = (1 << CELL_BITS) - 1;
+
+    /**
+     * Cells along each axis of the grid used to simplify batches that cannot be replaced by boxes
+     */
+    private static final int PROXY_GRID_SIZE = 32;
+
+    private final float clusterSize;
+
+    private final Transformation transformation;
+
+    private final Matrix3f normalMatrix;
+
+    private final Vector3f tmpVec;
+
+    /**
+     * If the vertices of each mesh are the corners of its bounds
+     */
+    private final Map<Mesh, Boolean> boxMeshes;
+
+    public StaticBatcher() {
+        this(DEFAULT_CLUSTER_SIZE);
+    }
+
+    public StaticBatcher(float clusterSize) {
+        this.clusterSize = clusterSize;
+        transformation = new Transformation();
+        normalMatrix = new Matrix3f();
+        tmpVec = new Vector3f();
+        boxMeshes = new HashMap<>();
+    }
+
+    /**
+     * Builds the batches for the non instanced meshes of the given items.
+     *
+     * @param gameItems Static game items
+     * @return The list of batches, one or more per material and cluster
+     */
+    public List<StaticBatch> batch(List<GameItem> gameItems) {
+        // Group meshes by material and then by the cluster cell that contains the item
+        Map<Material, Map<Long, List<BatchEntry>>> groups = new LinkedHashMap<>();
+        for (GameItem gameItem : gameItems) {
+            Vector3f pos = gameItem.getPosition();
+            long cell = cellKey(pos.x, pos.y, pos.z);
+            for (Mesh mesh : gameItem.getMeshes()) {
+                Map<Long, List<BatchEntry>> clusters = groups.computeIfAbsent(mesh.getMaterial(), k -> new LinkedHashMap<>());
+                clusters.computeIfAbsent(cell, k -> new ArrayList<>()).add(new BatchEntry(gameItem, mesh));
+            }
+        }
+
+        List<StaticBatch> result = new ArrayList<>();
+        for (Map.Entry<Material, Map<Long, List<BatchEntry>>> group : groups.entrySet()) {
+            for (List<BatchEntry> cluster : group.getValue().values()) {
+                int start = 0;
+                int numVertices = 0;
+                int size = cluster.size();
+                for (int i = 0; i < size; i++) {
+                    int meshVertices = cluster.get(i).mesh.getPositions().length / 3;
+                    if (numVertices + meshVertices > MAX_BATCH_VERTICES && i > start) {
+                        result.add(buildBatch(cluster.subList(start, i), group.getKey()));
+                        start = i;
+                        numVertices = 0;
+                    }
+                    numVertices += meshVertices;
+                }
+                result.add(buildBatch(cluster.subList(start, size), group.getKey()));
+            }
+        }
+        return result;
+    }
+
+    private long cellKey(float x, float y, float z) {
+        long cellX = (long) Math.floor(x / clusterSize) & CELL_MASK;
+        long cellY = (long) Math.floor(y / clusterSize) & CELL_MASK;
+        long cellZ = (long) Math.floor(z / clusterSize) & CELL_MASK;
+        return (cellX << (2 * CELL_BITS)) | (cellY << CELL_BITS) | cellZ;
+    }
+
+    private StaticBatch buildBatch(List<BatchEntry> entries, Material material) {
+        int numVertices = 0;
+        int numIndices = 0;
+        for (BatchEntry entry : entries) {
+            numVertices += entry.mesh.getPositions().length / 3;
+            numIndices += entry.mesh.getIndices().length;
+        }
+
+        float[] positions = new float[numVertices * 3];
+        float[] textCoords = new float[numVertices * 2];
+        float[] normals = new float[numVertices * 3];
+        int[] indices = new int[numIndices];
+        List<StaticBatch.ItemRange> itemRanges = new ArrayList<>(entries.size());
+
+        // The atlas offset of each item is added to its texture coordinates, since the batch has no per item data
+        Texture texture = material.getTexture();
+        int numCols = texture != null ? texture.getNumCols() : 1;
+
+        List<float[]> boxes = new ArrayList<>();
+        boolean boxesExact = true;
+        Vector3f min = new Vector3f(Float.MAX_VALUE);
+        Vector3f max = new Vector3f(-Float.MAX_VALUE);
+        int baseVertex = 0;
+        int baseIndex = 0;
+        for (BatchEntry entry : entries) {
+            Mesh mesh = entry.mesh;
+            Matrix4f modelMatrix = transformation.buildModelMatrix(entry.gameItem);
+            modelMatrix.normal(normalMatrix);
+            if (boxesExact && boxMeshes.computeIfAbsent(mesh, ShadowProxy::isBox)) {
+                float[] box = new float[6];
+                boxesExact = ShadowProxy.getItemBox(mesh, entry.gameItem, modelMatrix, box);
+                boxes.add(box);
+            } else {
+                boxesExact = false;
+            }
+
+            float[] meshPositions = mesh.getPositions();
+            float[] meshTextCoords = mesh.getTextCoords();
+            float[] meshNormals = mesh.getNormals();
+            int col = entry.gameItem.getTextPos() % numCols;
+            int row = entry.gameItem.getTextPos() / numCols;
+            int meshVertices = meshPositions.length / 3;
+            for (int i = 0; i < meshVertices; i++) {
+                int dst = (baseVertex + i) * 3;
+                modelMatrix.transformPosition(meshPositions[i * 3], meshPositions[i * 3 + 1], meshPositions[i * 3 + 2], tmpVec);
+                positions[dst] = tmpVec.x;
+                positions[dst + 1] = tmpVec.y;
+                positions[dst + 2] = tmpVec.z;
+                min.min(tmpVec);
+                max.max(tmpVec);
+
+                // Some meshes (text, etc.) do not define normals or texture coordinates
+                if (meshNormals.length >= (i + 1) * 3) {
+                    tmpVec.set(meshNormals[i * 3], meshNormals[i * 3 + 1], meshNormals[i * 3 + 2]);
+                    normalMatrix.transform(tmpVec);
+                    if (tmpVec.lengthSquared() > 0) {
+                        tmpVec.normalize();
+                    }
+                    normals[dst] = tmpVec.x;
+                    normals[dst + 1] = tmpVec.y;
+                    normals[dst + 2] = tmpVec.z;
+                }
+                if (meshTextCoords.length >= (i + 1) * 2) {
+                    textCoords[(baseVertex + i) * 2] = meshTextCoords[i * 2] + col;
+                    textCoords[(baseVertex + i) * 2 + 1] = meshTextCoords[i * 2 + 1] + row;
+                }
+            }
+
+            int[] meshIndices = mesh.getIndices();
+            for (int i = 0; i < meshIndices.length; i++) {
+                indices[baseIndex + i] = baseVertex + meshIndices[i];
+            }
+            itemRanges.add(new StaticBatch.ItemRange(entry.gameItem, baseIndex, meshIndices.length));
+
+            baseVertex += meshVertices;
+            baseIndex += meshIndices.length;
+        }
+
+        Vector3f center = new Vector3f(min).add(max).mul(0.5f);
+        float boundingRadius = numVertices > 0 ? center.distance(max) : 0;
+        StaticBatch batch = new StaticBatch(positions, textCoords, normals, indices, itemRanges, center, boundingRadius);
+        batch.setMaterial(material);
+        // Items that are boxes cast exactly the same shadows as a few merged boxes
+        if (boxesExact) {
+            batch.setShadowProxy(ShadowProxy.mergeBoxes(boxes), true);
+        } else {
+            batch.setShadowProxy(ShadowProxy.simplify(batch, PROXY_GRID_SIZE), false);
+        }
+        return batch;
+    }
+
+    private static class BatchEntry {
+
+        private final GameItem gameItem;
+
+        private final Mesh mesh;
+
+        BatchEntry(GameItem gameItem, Mesh mesh) {
+            this.gameItem = gameItem;
+            this.mesh = mesh;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package org.lwjgl.engine.graph.capture;
+
+import org.lwjgl.system.MemoryUtil;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Writes captured frames to disk on a background thread. Pixel buffers are recycled, so a running sequence does
+ * not allocate memory for every frame.
+ */
+public class CaptureEncoder implements Runnable {
+
+    public enum Format {
+        /**
+         * Compressed image, top row first
+         */
+        PNG,
+        /**
+         * RGBA bytes as read from OpenGL, bottom row first. The size is in the file name.
+         */
+        RAW
+    }
+
+    /**
+     * Frames waiting to be written. When the queue is full new frames are dropped instead of waiting.
+     */
+    private static final int MAX_QUEUED_FRAMES = 8;
+
+    private static class Job {
+
+        private final ByteBuffer pixels;
+
+        private final int width;
+
+        private final int height;
+
+        private final Path file;
+
+        private final Format format;
+
+        private Job(ByteBuffer pixels, int width, int height, Path file, Format format) {
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+            this.file = file;
+            this.format = format;
+        }
+    }
+
+    /**
+     * Tells the thread to finish after the queued frames
+     */
+    private static final Job END = new Job(null, 0, 0, null, null);
+
+    private final BlockingQueue<Job> jobs;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> freeBuffers;
+
+    private final Thread thread;
+
+    public CaptureEncoder() {
+        jobs = new ArrayBlockingQueue<>(MAX_QUEUED_FRAMES + 1);
+        freeBuffers = new ConcurrentLinkedQueue<>();
+        thread = new Thread(this, "CAPTURE_ENCODER_THREAD");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return A buffer of at least the size, to copy the pixels of a frame to
+     */
+    public ByteBuffer getBuffer(int size) {
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer != null && buffer.capacity() < size) {
+            MemoryUtil.memFree(buffer);
+            buffer = null;
+        }
+        if (buffer == null) {
+            buffer = MemoryUtil.memAlloc(size);
+        }
+        buffer.clear().limit(size);
+        return buffer;
+    }
+
+    /**
+     * Queues a frame to be written. The buffer belongs to the encoder afterwards.
+     *
+     * @return If the frame was queued, false if the encoder is too far behind
+     */
+    public boolean submit(ByteBuffer pixels, int width, int height, Path file, Format format) {
+        if (jobs.offer(new Job(pixels, width, height, file, format))) {
+            return true;
+        }
+        freeBuffers.add(pixels);
+        return false;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Job job = jobs.take();
+                if (job == END) {
+                    return;
+                }
+                try {
+                    write(job);
+                } catch (IOException excp) {
+                    System.err.println("Could not write capture " + job.file + ": " + excp.getMessage());
+                } finally {
+                    freeBuffers.add(job.pixels);
+                }
+            }
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void write(Job job) throws IOException {
+        Files.createDirectories(job.file.getParent());
+        if (job.format == Format.RAW) {
+            try (FileChannel channel = FileChannel.open(job.file, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                while (job.pixels.hasRemaining()) {
+                    channel.write(job.pixels);
+                }
+            }
+            return;
+        }
+
+        BufferedImage image = new BufferedImage(job.width, job.height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < job.height; y++) {
+            // OpenGL rows start at the bottom of the image
+            int rowOffset = (job.height - 1 - y) * job.width * 4;
+            for (int x = 0; x < job.width; x++) {
+                int offset = rowOffset + x * 4;
+                int r = job.pixels.get(offset) & 0xFF;
+                int g = job.pixels.get(offset + 1) & 0xFF;
+                int b = job.pixels.get(offset + 2) & 0xFF;
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        ImageIO.write(image, "png", job.file.toFile());
+    }
+
+    /**
+     * Writes the queued frames and stops the thread.
+     */
+    public void cleanup() {
+        try {
+            jobs.put(END);
+            thread.join();
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+        }
+        ByteBuffer buffer;
+        while ((buffer = freeBuffers.poll()) != null) {
+            MemoryUtil.memFree(buffer);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package org.lwjgl.engine.graph.capture;
+
+import org.lwjgl.engine.Metrics;
+import org.lwjgl.engine.Window;
+import org.lwjgl.engine.graph.GLState;
+import org.lwjgl.opengl.GLCapabilities;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL21.GL_PIXEL_PACK_BUFFER;
+import static org.lwjgl.opengl.GL30.GL_MAP_READ_BIT;
+import static org.lwjgl.opengl.GL30.glMapBufferRange;
+import static org.lwjgl.opengl.GL32.*;
+
+/**
+ * Captures screenshots and frame sequences of the window without stalling the pipeline. The back buffer is read
+ * into a ring of pixel buffer objects and each read is followed by a fence. The buffer is mapped frames later,
+ * once its fence is signaled, and the pixels are written to disk by a {@link CaptureEncoder}. If the ring or the
+ * encoder is full, the frame is dropped instead of waiting.
+ */
+public class FrameCapture {
+
+    private static final int RING_SIZE = 3;
+
+    private final Path folder;
+
+    private final CaptureEncoder encoder;
+
+    private final int[] pboIds;
+
+    private final long[] fences;
+
+    private final int[] pboSizes;
+
+    private final int[] widths;
+
+    private final int[] heights;
+
+    private final Path[] files;
+
+    private final CaptureEncoder.Format[] formats;
+
+    private int next;
+
+    private boolean screenshotRequested;
+
+    /**
+     * Folder of the running sequence, null if no sequence is running
+     */
+    private Path sequenceFolder;
+
+    private CaptureEncoder.Format sequenceFormat;
+
+    private int sequenceFrame;
+
+    private int droppedFrames;
+
+    private final SimpleDateFormat dateFormat;
+
+    /**
+     * @param folder Folder the captures are written to
+     */
+    public FrameCapture(Path folder) {
+        this.folder = folder;
+        encoder = new CaptureEncoder();
+        pboIds = new int[RING_SIZE];
+        glGenBuffers(pboIds);
+        fences = new long[RING_SIZE];
+        pboSizes = new int[RING_SIZE];
+        widths = new int[RING_SIZE];
+        heights = new int[RING_SIZE];
+        files = new Path[RING_SIZE];
+        formats = new CaptureEncoder.Format[RING_SIZE];
+        dateFormat = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS");
+    }
+
+    public static boolean isSupported(GLCapabilities caps) {
+        return caps.OpenGL32 || caps.GL_ARB_sync;
+    }
+
+    /**
+     * Captures the next frame as a PNG image.
+     */
+    public void requestScreenshot() {
+        screenshotRequested = true;
+    }
+
+    /**
+     * Captures every frame until the sequence is stopped, into a new folder.
+     */
+    public void startSequence(CaptureEncoder.Format format) {
+        sequenceFolder = folder.resolve("sequence-" + dateFormat.format(new Date()));
+        sequenceFormat = format;
+        sequenceFrame = 0;
+        droppedFrames = 0;
+    }
+
+    public void stopSequence() {
+        sequenceFolder = null;
+        Metrics.remove("capture");
+    }
+
+    public boolean isRecording() {
+        return sequenceFolder != null;
+    }
+
+    /**
+     * Hands the finished reads to the encoder and starts the read of the frame just rendered, if it has to be
+     * captured. It must be called after the frame is complete and before the buffers are swapped.
+     */
+    public void capture(Window window) {
+        collect();
+
+        Path file;
+        CaptureEncoder.Format format;
+        boolean sequence = sequenceFolder != null;
+        if (sequence) {
+            format = sequenceFormat;
+            String extension = format == CaptureEncoder.Format.PNG ? ".png"
+                    : "-" + window.getWidth() + "x" + window.getHeight() + ".rgba";
+            file = sequenceFolder.resolve(String.format("frame-%06d%s", sequenceFrame, extension));
+            // Frames are numbered even if they are dropped, so the gaps can be seen
+            sequenceFrame++;
+            Metrics.set("capture", sequenceFrame + " frames, " + droppedFrames + " dropped");
+        } else if (screenshotRequested) {
+            format = CaptureEncoder.Format.PNG;
+            file = folder.resolve("screenshot-" + dateFormat.format(new Date()) + ".png");
+        } else {
+            return;
+        }
+
+        if (fences[next] != 0) {
+            // The GPU has not finished a whole ring of reads. A screenshot stays requested until a slot is free
+            if (sequence) {
+                droppedFrames++;
+            }
+            return;
+        }
+        read(next, window.getWidth(), window.getHeight(), file, format);
+        next = (next + 1) % RING_SIZE;
+        if (!sequence) {
+            screenshotRequested = false;
+        }
+    }
+
+    private void read(int slot, int width, int height, Path file, CaptureEncoder.Format format) {
+        int size = width * height * 4;
+        GLState.bindFramebuffer(0);
+        GLState.bindBuffer(GL_PIXEL_PACK_BUFFER, pboIds[slot]);
+        if (pboSizes[slot] != size) {
+            glBufferData(GL_PIXEL_PACK_BUFFER, size, GL_STREAM_READ);
+            pboSizes[slot] = size;
+        }
+        glPixelStorei(GL_PACK_ALIGNMENT, 4);
+        // The read is queued like any other command, the pixels are copied to the buffer when the GPU gets there
+        glReadPixels(0, 0, width, height, GL_RGBA, GL_UNSIGNED_BYTE, 0L);
+        GLState.bindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+
+        fences[slot] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        widths[slot] = width;
+        heights[slot] = height;
+        files[slot] = file;
+        formats[slot] = format;
+    }
+
+    /**
+     * Hands the reads whose fence is signaled to the encoder, oldest first.
+     */
+    private void collect() {
+        for (int i = 0; i < RING_SIZE; i++) {
+            int slot = (next + i) % RING_SIZE;
+            long fence = fences[slot];
+            if (fence == 0) {
+                continue;
+            }
+            if (glGetSynci(fence, GL_SYNC_STATUS, null) != GL_SIGNALED) {
+                // The reads complete in order, the next ones are not ready either
+                return;
+            }
+            glDeleteSync(fence);
+            fences[slot] = 0;
+            submit(slot);
+        }
+    }
+
+    private void submit(int slot) {
+        int size = widths[slot] * heights[slot] * 4;
+        GLState.bindBuffer(GL_PIXEL_PACK_BUFFER, pboIds[slot]);
+        ByteBuffer mapped = glMapBufferRange(GL_PIXEL_PACK_BUFFER, 0, size, GL_MAP_READ_BIT);
+        if (mapped != null) {
+            ByteBuffer pixels = encoder.getBuffer(size);
+            MemoryUtil.memCopy(mapped, pixels);
+            glUnmapBuffer(GL_PIXEL_PACK_BUFFER);
+            if (!encoder.submit(pixels, widths[slot], heights[slot], files[slot], formats[slot])) {
+                droppedFrames++;
+            }
+        }
+        GLState.bindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+        files[slot] = null;
+    }
+
+    /**
+     * Writes the frames already read and releases the buffers.
+     */
+    public void cleanup() {
+        for (int i = 0; i < RING_SIZE; i++) {
+            int slot = (next + i) % RING_SIZE;
+            if (fences[slot] != 0) {
+                glClientWaitSync(fences[slot], GL_SYNC_FLUSH_COMMANDS_BIT, GL_TIMEOUT_IGNORED);
+                glDeleteSync(fences[slot]);
+                fences[slot] = 0;
+                submit(slot);
+            }
+        }
+        for (int pboId : pboIds) {
+            GLState.deleteBuffer(pboId);
+        }
+        encoder.cleanup();
+    }
+}
@@ -0,0 +1,276 @@
+package org.lwjgl.engine.graph.framegraph;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Passes of a frame with the resources they read and write. The passes are declared again every frame, and on
+ * execution the graph:
+ * <ul>
+ * <li>culls the passes whose results are not used by a pass that writes an imported resource,</li>
+ * <li>orders the rest so each pass runs after the passes that write what it reads,</li>
+ * <li>gives each transient texture a texture from the pool just before its first use and returns it just after
+ * its last use, so textures whose lifetimes do not overlap share memory.</li>
+ * </ul>
+ */
+public class FrameGraph {
+
+    private final TexturePool texturePool;
+
+    private final List<FrameResource> resources;
+
+    /**
+     * Pass objects are reused between frames, the first numPasses are the ones declared in this frame
+     */
+    private final List<RenderPass> passes;
+
+    private int numPasses;
+
+    private final List<RenderPass> executionOrder;
+
+    private boolean[][] dependencies;
+
+    private boolean[] needed;
+
+    private boolean[] scheduled;
+
+    private int numCulledPasses;
+
+    public FrameGraph() {
+        texturePool = new TexturePool();
+        resources = new ArrayList<>();
+        passes = new ArrayList<>();
+        executionOrder = new ArrayList<>();
+        dependencies = new boolean[0][0];
+        needed = new boolean[0];
+        scheduled = new boolean[0];
+    }
+
+    /**
+     * Declares a transient texture. It is allocated from the pool only in the frames that use it.
+     */
+    public FrameResource createTexture(String name, int internalFormat) {
+        FrameResource resource = new FrameResource(name, false, internalFormat);
+        resources.add(resource);
+        return resource;
+    }
+
+    /**
+     * Declares a resource owned outside the graph. Passes that write it are never culled.
+     */
+    public FrameResource importResource(String name) {
+        FrameResource resource = new FrameResource(name, true, 0);
+        resources.add(resource);
+        return resource;
+    }
+
+    /**
+     * Starts the declaration of the passes of a new frame.
+     */
+    public void reset() {
+        numPasses = 0;
+    }
+
+    /**
+     * Declares a pass of this frame. Its inputs and outputs are declared on the returned pass.
+     */
+    public RenderPass addPass(String name, RenderPass.Executor executor) {
+        if (numPasses == passes.size()) {
+            passes.add(new RenderPass());
+        }
+        RenderPass pass = passes.get(numPasses++);
+        pass.reset(name, executor);
+        return pass;
+    }
+
+    /**
+     * Culls, orders and runs the passes declared since the last reset.
+     */
+    public void execute() {
+        compile();
+
+        int numExecuted = executionOrder.size();
+        for (int i = 0; i < numExecuted; i++) {
+            RenderPass pass = executionOrder.get(i);
+            for (FrameResource resource : resources) {
+                if (!resource.isImported() && resource.firstUse == i) {
+                    resource.setTextureId(texturePool.acquire(resource.getInternalFormat(), resource.getWidth(),
+                            resource.getHeight()));
+                }
+            }
+
+            if (pass.writesTransient()) {
+                pass.bindFramebuffer();
+            }
+            pass.execute();
+
+            for (FrameResource resource : resources) {
+                if (!resource.isImported() && resource.lastUse == i) {
+                    texturePool.release(resource.getTextureId());
+                    resource.setTextureId(0);
+                }
+            }
+        }
+        texturePool.endFrame();
+    }
+
+    private void compile() {
+        if (dependencies.length < numPasses) {
+            dependencies = new boolean[numPasses][numPasses];
+            needed = new boolean[numPasses];
+            scheduled = new boolean[numPasses];
+        }
+
+        findDependencies();
+        cullPasses();
+        orderPasses();
+        findLifetimes();
+    }
+
+    /**
+     * A pass depends on the passes that write the transient textures it reads, and on the previous passes that
+     * write the imported resources it reads or any resource it writes, so writes keep their declaration order.
+     */
+    private void findDependencies() {
+        for (int i = 0; i < numPasses; i++) {
+            RenderPass pass = passes.get(i);
+            for (int j = 0; j < numPasses; j++) {
+                dependencies[i][j] = false;
+                if (i == j) {
+                    continue;
+                }
+                RenderPass other = passes.get(j);
+                for (FrameResource resource : other.getWrites()) {
+                    boolean read = pass.getReads().contains(resource);
+                    boolean written = pass.getWrites().contains(resource);
+                    if (read && !resource.isImported() || (read || written) && j < i) {
+                        dependencies[i][j] = true;
+                        break;
+                    }
+                }
+            }
+            for (FrameResource resource : pass.getReads()) {
+                if (!resource.isImported() && !isWritten(resource)) {
+                    throw new RuntimeException("Pass " + pass.getName() + " reads " + resource.getName()
+                            + ", which no pass writes");
+                }
+            }
+        }
+    }
+
+    private boolean isWritten(FrameResource resource) {
+        for (int i = 0; i < numPasses; i++) {
+            if (passes.get(i).getWrites().contains(resource)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Keeps the passes that write imported resources and, transitively, the passes they depend on.
+     */
+    private void cullPasses() {
+        for (int i = 0; i < numPasses; i++) {
+            needed[i] = false;
+            for (FrameResource resource : passes.get(i).getWrites()) {
+                if (resource.isImported()) {
+                    needed[i] = true;
+                    break;
+                }
+            }
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 0; i < numPasses; i++) {
+                if (!needed[i]) {
+                    continue;
+                }
+                for (int j = 0; j < numPasses; j++) {
+                    if (dependencies[i][j] && !needed[j]) {
+                        needed[j] = true;
+                        changed = true;
+                    }
+                }
+            }
+        }
+        numCulledPasses = 0;
+        for (int i = 0; i < numPasses; i++) {
+            if (!needed[i]) {
+                numCulledPasses++;
+            }
+        }
+    }
+
+    /**
+     * Topological order of the needed passes. Among the passes that are ready, the first declared runs first.
+     */
+    private void orderPasses() {
+        executionOrder.clear();
+        for (int i = 0; i < numPasses; i++) {
+            scheduled[i] = !needed[i];
+        }
+        int numNeeded = numPasses - numCulledPasses;
+        while (executionOrder.size() < numNeeded) {
+            int next = -1;
+            for (int i = 0; i < numPasses && next < 0; i++) {
+                if (scheduled[i]) {
+                    continue;
+                }
+                boolean ready = true;
+                for (int j = 0; j < numPasses; j++) {
+                    if (dependencies[i][j] && !scheduled[j]) {
+                        ready = false;
+                        break;
+                    }
+                }
+                if (ready) {
+                    next = i;
+                }
+            }
+            if (next < 0) {
+                throw new RuntimeException("The passes of the frame graph have a dependency cycle");
+            }
+            scheduled[next] = true;
+            executionOrder.add(passes.get(next));
+        }
+    }
+
+    private void findLifetimes() {
+        for (FrameResource resource : resources) {
+            resource.firstUse = -1;
+            resource.lastUse = -1;
+        }
+        int numExecuted = executionOrder.size();
+        for (int i = 0; i < numExecuted; i++) {
+            RenderPass pass = executionOrder.get(i);
+            updateLifetimes(pass.getReads(), i);
+            updateLifetimes(pass.getWrites(), i);
+        }
+    }
+
+    private static void updateLifetimes(List<FrameResource> passResources, int index) {
+        for (FrameResource resource : passResources) {
+            if (resource.firstUse < 0) {
+                resource.firstUse = index;
+            }
+            resource.lastUse = index;
+        }
+    }
+
+    public int getNumCulledPasses() {
+        return numCulledPasses;
+    }
+
+    public TexturePool getTexturePool() {
+        return texturePool;
+    }
+
+    public void cleanup() {
+        for (RenderPass pass : passes) {
+            pass.cleanup();
+        }
+        texturePool.cleanup();
+    }
+}
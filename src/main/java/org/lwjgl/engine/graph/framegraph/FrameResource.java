@@ -0,0 +1,76 @@
+package org.lwjgl.engine.graph.framegraph;
+
+/**
+ * A texture used by the passes of a {@link FrameGraph}. Transient textures only exist while the passes that use
+ * them run, and take their memory from the pool of the graph. Imported resources, like the window framebuffer or
+ * the shadow maps, are owned outside the graph and keep their contents between frames.
+ */
+public class FrameResource {
+
+    private final String name;
+
+    private final boolean imported;
+
+    private final int internalFormat;
+
+    private int width;
+
+    private int height;
+
+    /**
+     * Texture assigned by the graph while the resource is alive, 0 otherwise
+     */
+    private int textureId;
+
+    /**
+     * Positions in the execution order of the first and last passes that use the resource, -1 if none does
+     */
+    int firstUse;
+
+    int lastUse;
+
+    FrameResource(String name, boolean imported, int internalFormat) {
+        this.name = name;
+        this.imported = imported;
+        this.internalFormat = internalFormat;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isImported() {
+        return imported;
+    }
+
+    public int getInternalFormat() {
+        return internalFormat;
+    }
+
+    /**
+     * Sets the size of a transient texture for the next executions of the graph.
+     */
+    public void setSize(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return The texture of a transient resource. It is only valid inside the passes that declare the resource.
+     */
+    public int getTextureId() {
+        return textureId;
+    }
+
+    void setTextureId(int textureId) {
+        this.textureId = textureId;
+    }
+}
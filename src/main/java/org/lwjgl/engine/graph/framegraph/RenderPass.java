@@ -0,0 +1,177 @@
+package org.lwjgl.engine.graph.framegraph;
+
+import org.lwjgl.engine.graph.GLState;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL20.glDrawBuffers;
+import static org.lwjgl.opengl.GL30.*;
+
+/**
+ * A pass of a {@link FrameGraph} with the resources it reads and writes. If the pass writes transient textures,
+ * the graph binds a framebuffer with them attached before running it. Otherwise the pass binds its own target.
+ */
+public class RenderPass {
+
+    /**
+     * Depth attachment and colour attachments
+     */
+    private static final int MAX_ATTACHMENTS = 5;
+
+    public interface Executor {
+
+        void execute(RenderPass pass);
+    }
+
+    private String name;
+
+    private Executor executor;
+
+    private final List<FrameResource> reads;
+
+    private final List<FrameResource> writes;
+
+    /**
+     * Framebuffer of the transient textures written by the pass, 0 until it is needed
+     */
+    private int fboId;
+
+    private final int[] attachedTextureIds;
+
+    private int numAttachedTextures;
+
+    RenderPass() {
+        reads = new ArrayList<>();
+        writes = new ArrayList<>();
+        attachedTextureIds = new int[MAX_ATTACHMENTS];
+    }
+
+    void reset(String name, Executor executor) {
+        this.name = name;
+        this.executor = executor;
+        reads.clear();
+        writes.clear();
+    }
+
+    public RenderPass reads(FrameResource resource) {
+        reads.add(resource);
+        return this;
+    }
+
+    public RenderPass writes(FrameResource resource) {
+        writes.add(resource);
+        return this;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    List<FrameResource> getReads() {
+        return reads;
+    }
+
+    List<FrameResource> getWrites() {
+        return writes;
+    }
+
+    boolean writesTransient() {
+        for (FrameResource resource : writes) {
+            if (!resource.isImported()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void execute() {
+        executor.execute(this);
+    }
+
+    /**
+     * Binds the framebuffer of the transient textures written by the pass, attaching them again if the graph has
+     * assigned different textures since the last frame.
+     */
+    void bindFramebuffer() {
+        if (fboId == 0) {
+            fboId = glGenFramebuffers();
+        }
+        GLState.bindFramebuffer(fboId);
+
+        boolean changed = false;
+        int index = 0;
+        for (FrameResource resource : writes) {
+            if (resource.isImported()) {
+                continue;
+            }
+            if (index == MAX_ATTACHMENTS) {
+                throw new RuntimeException("Pass " + name + " writes more than " + MAX_ATTACHMENTS + " textures");
+            }
+            int textureId = resource.getTextureId();
+            if (attachedTextureIds[index] != textureId) {
+                attachedTextureIds[index] = textureId;
+                changed = true;
+            }
+            index++;
+        }
+        if (changed || index != numAttachedTextures) {
+            numAttachedTextures = index;
+            attach();
+        }
+    }
+
+    private void attach() {
+        // Detach everything first, the previous frame may have used other attachment points
+        glFramebufferTexture2D(GL_FRAMEBUFFER, GL_DEPTH_STENCIL_ATTACHMENT, GL_TEXTURE_2D, 0, 0);
+        for (int i = 0; i < MAX_ATTACHMENTS - 1; i++) {
+            glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0 + i, GL_TEXTURE_2D, 0, 0);
+        }
+
+        int numColourAttachments = 0;
+        for (FrameResource resource : writes) {
+            if (resource.isImported()) {
+                continue;
+            }
+            int attachment;
+            switch (resource.getInternalFormat()) {
+                case GL_DEPTH24_STENCIL8:
+                case GL_DEPTH32F_STENCIL8:
+                    attachment = GL_DEPTH_STENCIL_ATTACHMENT;
+                    break;
+                case GL_DEPTH_COMPONENT:
+                case GL_DEPTH_COMPONENT32F:
+                    attachment = GL_DEPTH_ATTACHMENT;
+                    break;
+                default:
+                    attachment = GL_COLOR_ATTACHMENT0 + numColourAttachments;
+                    numColourAttachments++;
+            }
+            glFramebufferTexture2D(GL_FRAMEBUFFER, attachment, GL_TEXTURE_2D, resource.getTextureId(), 0);
+        }
+        if (numColourAttachments == 0) {
+            glDrawBuffer(GL_NONE);
+            glReadBuffer(GL_NONE);
+        } else {
+            int[] drawBuffers = new int[numColourAttachments];
+            for (int i = 0; i < numColourAttachments; i++) {
+                drawBuffers[i] = GL_COLOR_ATTACHMENT0 + i;
+            }
+            glDrawBuffers(drawBuffers);
+            glReadBuffer(GL_COLOR_ATTACHMENT0);
+        }
+
+        int status = glCheckFramebufferStatus(GL_FRAMEBUFFER);
+        if (status != GL_FRAMEBUFFER_COMPLETE) {
+            throw new RuntimeException("Could not create FrameBuffer of pass " + name + ": " + status);
+        }
+    }
+
+    void cleanup() {
+        if (fboId != 0) {
+            glDeleteFramebuffers(fboId);
+            fboId = 0;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package org.lwjgl.engine.graph.framegraph;
+
+import org.lwjgl.engine.graph.GLState;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.GL_CLAMP_TO_EDGE;
+import static org.lwjgl.opengl.GL13.GL_TEXTURE0;
+import static org.lwjgl.opengl.GL30.*;
+
+/**
+ * Textures of the transient resources of a {@link FrameGraph}. A released texture is given to the next request
+ * with the same format and size, so resources whose lifetimes do not overlap share memory. Textures that are not
+ * requested for a while, for example after the window is resized, are deleted.
+ */
+public class TexturePool {
+
+    /**
+     * Frames a free texture is kept before it is deleted
+     */
+    private static final int MAX_UNUSED_FRAMES = 120;
+
+    private static class PooledTexture {
+
+        private final int textureId;
+
+        private final int internalFormat;
+
+        private final int width;
+
+        private final int height;
+
+        private boolean inUse;
+
+        private int lastUsedFrame;
+
+        private PooledTexture(int textureId, int internalFormat, int width, int height) {
+            this.textureId = textureId;
+            this.internalFormat = internalFormat;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private final List<PooledTexture> textures;
+
+    private int frame;
+
+    private long allocatedBytes;
+
+    public TexturePool() {
+        textures = new ArrayList<>();
+    }
+
+    /**
+     * @return A texture with the format and size, reused from the pool if a free one exists
+     */
+    public int acquire(int internalFormat, int width, int height) {
+        for (PooledTexture texture : textures) {
+            if (!texture.inUse && texture.internalFormat == internalFormat && texture.width == width
+                    && texture.height == height) {
+                texture.inUse = true;
+                texture.lastUsedFrame = frame;
+                return texture.textureId;
+            }
+        }
+
+        PooledTexture texture = new PooledTexture(createTexture(internalFormat, width, height), internalFormat, width, height);
+        texture.inUse = true;
+        texture.lastUsedFrame = frame;
+        textures.add(texture);
+        allocatedBytes += getSizeBytes(texture);
+        return texture.textureId;
+    }
+
+    public void release(int textureId) {
+        for (PooledTexture texture : textures) {
+            if (texture.textureId == textureId) {
+                texture.inUse = false;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Deletes the textures that have not been used for a while.
+     */
+    public void endFrame() {
+        frame++;
+        for (int i = textures.size() - 1; i >= 0; i--) {
+            PooledTexture texture = textures.get(i);
+            if (!texture.inUse && frame - texture.lastUsedFrame > MAX_UNUSED_FRAMES) {
+                GLState.deleteTexture(texture.textureId);
+                allocatedBytes -= getSizeBytes(texture);
+                textures.remove(i);
+            }
+        }
+    }
+
+    public int getNumTextures() {
+        return textures.size();
+    }
+
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    private static int createTexture(int internalFormat, int width, int height) {
+        int textureId = glGenTextures();
+        GLState.bindTexture(GL_TEXTURE0, GL_TEXTURE_2D, textureId);
+        switch (internalFormat) {
+            case GL_DEPTH24_STENCIL8:
+                glTexImage2D(GL_TEXTURE_2D, 0, internalFormat, width, height, 0, GL_DEPTH_STENCIL,
+                        GL_UNSIGNED_INT_24_8, (ByteBuffer) null);
+                break;
+            case GL_DEPTH32F_STENCIL8:
+                glTexImage2D(GL_TEXTURE_2D, 0, internalFormat, width, height, 0, GL_DEPTH_STENCIL,
+                        GL_FLOAT_32_UNSIGNED_INT_24_8_REV, (ByteBuffer) null);
+                break;
+            case GL_DEPTH_COMPONENT:
+            case GL_DEPTH_COMPONENT32F:
+                glTexImage2D(GL_TEXTURE_2D, 0, internalFormat, width, height, 0, GL_DEPTH_COMPONENT, GL_FLOAT,
+                        (ByteBuffer) null);
+                break;
+            default:
+                glTexImage2D(GL_TEXTURE_2D, 0, internalFormat, width, height, 0, GL_RGBA, GL_UNSIGNED_BYTE,
+                        (ByteBuffer) null);
+        }
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+        return textureId;
+    }
+
+    private static long getSizeBytes(PooledTexture texture) {
+        int bytesPerPixel;
+        switch (texture.internalFormat) {
+            case GL_RGBA16F:
+            case GL_DEPTH32F_STENCIL8:
+                bytesPerPixel = 8;
+                break;
+            case GL_RGBA32F:
+                bytesPerPixel = 16;
+                break;
+            default:
+                bytesPerPixel = 4;
+        }
+        return (long) texture.width * texture.height * bytesPerPixel;
+    }
+
+    public void cleanup() {
+        for (PooledTexture texture : textures) {
+            GLState.deleteTexture(texture.textureId);
+        }
+        textures.clear();
+        allocatedBytes = 0;
+    }
+}
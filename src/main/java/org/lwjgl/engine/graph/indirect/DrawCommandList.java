@@ -0,0 +1,189 @@
+package org.lwjgl.engine.graph.indirect;
+
+import org.joml.Matrix4f;
+import org.lwjgl.engine.graph.Texture;
+import org.lwjgl.engine.graph.Transformation;
+import org.lwjgl.engine.items.GameItem;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.List;
+
+/**
+ * CPU side list of DrawElementsIndirectCommand structures and the per instance data they reference.
+ * Each command draws all the visible items of one mesh, its instances start at the command's base instance.
+ */
+public class DrawCommandList {
+
+    public static final int COMMAND_SIZE_INTS = 5;
+
+    public static final int COMMAND_SIZE_BYTES = COMMAND_SIZE_INTS * 4;
+
+    public static final int MATRIX_SIZE_FLOATS = 4 * 4;
+
+    public static final int INSTANCE_SIZE_FLOATS = MATRIX_SIZE_FLOATS + 2 + 1;
+
+    public static final int INSTANCE_SIZE_BYTES = INSTANCE_SIZE_FLOATS * 4;
+
+    private IntBuffer commands;
+
+    private FloatBuffer instanceData;
+
+    private int numCommands;
+
+    private int numInstances;
+
+    public DrawCommandList(int commandCapacity, int instanceCapacity) {
+        commands = MemoryUtil.memAllocInt(Math.max(commandCapacity, 1) * COMMAND_SIZE_INTS);
+        instanceData = MemoryUtil.memAllocFloat(Math.max(instanceCapacity, 1) * INSTANCE_SIZE_FLOATS);
+    }
+
+    public void clear() {
+        numCommands = 0;
+        numInstances = 0;
+    }
+
+    public int getNumCommands() {
+        return numCommands;
+    }
+
+    public int getNumInstances() {
+        return numInstances;
+    }
+
+    /**
+     * Records a command that draws the given items with the geometry stored in an arena allocation.
+     *
+     * @param allocation Region of the arena that holds the mesh
+     * @param gameItems Items that use the mesh
+     * @param text Texture of the mesh material, used to calculate texture atlas offsets. It may be null
+     * @param transformation Used to build the model matrices
+     * @param frustumCulling If true, items outside the view frustum are skipped
+     * @return true if a command has been recorded, false if no item was visible
+     */
+    public boolean addCommand(GeometryArena.Allocation allocation, List<GameItem> gameItems, Texture text,
+                              Transformation transformation, boolean frustumCulling) {
+        ensureInstanceCapacity(numInstances + gameItems.size());
+        int baseInstance = numInstances;
+        for (GameItem gameItem : gameItems) {
+            if (frustumCulling && !gameItem.isInsideFrustum()) {
+                continue;
+            }
+            int buffPos = INSTANCE_SIZE_FLOATS * numInstances;
+            Matrix4f modelMatrix = transformation.buildModelMatrix(gameItem);
+            modelMatrix.get(buffPos, instanceData);
+            buffPos += MATRIX_SIZE_FLOATS;
+            if (text != null) {
+                int col = gameItem.getTextPos() % text.getNumCols();
+                int row = gameItem.getTextPos() / text.getNumCols();
+                instanceData.put(buffPos, (float) col / text.getNumCols());
+                instanceData.put(buffPos + 1, (float) row / text.getNumRows());
+            } else {
+                instanceData.put(buffPos, 0);
+                instanceData.put(buffPos + 1, 0);
+            }
+            instanceData.put(buffPos + 2, gameItem.isSelected() ? 1 : 0);
+            numInstances++;
+        }
+
+        return addCommand(allocation, baseInstance);
+    }
+
+    /**
+     * Records a command that draws each item once for every layer of its mask. The layer is stored in the place
+     * of the selected flag, so a layered shader can send the instance to its layer.
+     *
+     * @param allocation Region of the arena that holds the mesh
+     * @param gameItems Items that use the mesh
+     * @param layerMasks Bit mask of the layers of each item, in the same order as the items
+     * @param layerFilter Only the layers of this mask are recorded
+     * @param transformation Used to build the model matrices
+     * @return true if a command has been recorded, false if no item had a layer
+     */
+    public boolean addLayeredCommand(GeometryArena.Allocation allocation, List<GameItem> gameItems, int[] layerMasks,
+                                     int layerFilter, Transformation transformation) {
+        int baseInstance = numInstances;
+        int numItems = gameItems.size();
+        for (int i = 0; i < numItems; i++) {
+            int layerMask = layerMasks[i] & layerFilter;
+            if (layerMask == 0) {
+                continue;
+            }
+            ensureInstanceCapacity(numInstances + Integer.bitCount(layerMask));
+            Matrix4f modelMatrix = transformation.buildModelMatrix(gameItems.get(i));
+            for (int layer = 0; layerMask != 0; layer++, layerMask >>>= 1) {
+                if ((layerMask & 1) == 0) {
+                    continue;
+                }
+                int buffPos = INSTANCE_SIZE_FLOATS * numInstances;
+                modelMatrix.get(buffPos, instanceData);
+                buffPos += MATRIX_SIZE_FLOATS;
+                instanceData.put(buffPos, 0);
+                instanceData.put(buffPos + 1, 0);
+                instanceData.put(buffPos + 2, layer);
+                numInstances++;
+            }
+        }
+        return addCommand(allocation, baseInstance);
+    }
+
+    private boolean addCommand(GeometryArena.Allocation allocation, int baseInstance) {
+        int instanceCount = numInstances - baseInstance;
+        if (instanceCount == 0) {
+            return false;
+        }
+        ensureCommandCapacity(numCommands + 1);
+        int buffPos = COMMAND_SIZE_INTS * numCommands;
+        commands.put(buffPos, allocation.getIndexCount());
+        commands.put(buffPos + 1, instanceCount);
+        commands.put(buffPos + 2, allocation.getFirstIndex());
+        commands.put(buffPos + 3, allocation.getBaseVertex());
+        commands.put(buffPos + 4, baseInstance);
+        numCommands++;
+        return true;
+    }
+
+    /**
+     * @return The recorded commands, ready to be uploaded
+     */
+    public IntBuffer getCommands() {
+        commands.limit(numCommands * COMMAND_SIZE_INTS);
+        commands.position(0);
+        return commands;
+    }
+
+    /**
+     * @return The recorded instance data, ready to be uploaded
+     */
+    public FloatBuffer getInstanceData() {
+        instanceData.limit(numInstances * INSTANCE_SIZE_FLOATS);
+        instanceData.position(0);
+        return instanceData;
+    }
+
+    private void ensureCommandCapacity(int required) {
+        commands.limit(commands.capacity());
+        if (required * COMMAND_SIZE_INTS > commands.capacity()) {
+            commands = MemoryUtil.memRealloc(commands, Math.max(required, numCommands * 2) * COMMAND_SIZE_INTS);
+        }
+    }
+
+    private void ensureInstanceCapacity(int required) {
+        instanceData.limit(instanceData.capacity());
+        if (required * INSTANCE_SIZE_FLOATS > instanceData.capacity()) {
+            instanceData = MemoryUtil.memRealloc(instanceData, Math.max(required, numInstances * 2) * INSTANCE_SIZE_FLOATS);
+        }
+    }
+
+    public void cleanup() {
+        if (commands != null) {
+            MemoryUtil.memFree(commands);
+            commands = null;
+        }
+        if (instanceData != null) {
+            MemoryUtil.memFree(instanceData);
+            instanceData = null;
+        }
+    }
+}
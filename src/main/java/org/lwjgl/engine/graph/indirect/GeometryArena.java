@@ -0,0 +1,363 @@
+package org.lwjgl.engine.graph.indirect;
+
+import org.lwjgl.engine.graph.GLState;
+import org.lwjgl.engine.graph.Mesh;
+import org.lwjgl.opengl.GLCapabilities;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.*;
+import static org.lwjgl.opengl.GL33.glVertexAttribDivisor;
+import static org.lwjgl.opengl.GL40.GL_DRAW_INDIRECT_BUFFER;
+import static org.lwjgl.opengl.GL43.glMultiDrawElementsIndirect;
+
+/**
+ * Holds the geometry of many meshes in one vertex buffer and one index buffer, so that they can be drawn
+ * with a single VAO through multi draw indirect commands.
+ * <p>
+ * The commands and the per instance data are held by streams. Each stream has its own VAO over the shared geometry,
+ * so a pass can upload its commands without overwriting the ones another pass of the frame still has to draw.
+ */
+public class GeometryArena {
+
+    /**
+     * Stream created with the arena, used by the scene pass and filled by the GPU culler
+     */
+    public static final int SCENE_STREAM = 0;
+
+    private static final int FLOAT_SIZE_BYTES = 4;
+
+    private static final int INT_SIZE_BYTES = 4;
+
+    private static final int VERTEX_SIZE_FLOATS = 3 + 2 + 3;
+
+    private static final int VERTEX_SIZE_BYTES = VERTEX_SIZE_FLOATS * FLOAT_SIZE_BYTES;
+
+    private static final int INSTANCE_ATTRIB_START = 5;
+
+    private static final int NUM_INSTANCE_ATTRIBS = 4 + 1 + 1;
+
+    private int vertexVboId;
+
+    private int indexVboId;
+
+    private final List<Stream> streams;
+
+    private int vertexCapacity;
+
+    private int indexCapacity;
+
+    private int numVertices;
+
+    private int numIndices;
+
+    private final Map<Mesh, Allocation> allocations;
+
+    public GeometryArena(int vertexCapacity, int indexCapacity) {
+        this.vertexCapacity = Math.max(vertexCapacity, 1);
+        this.indexCapacity = Math.max(indexCapacity, 1);
+        allocations = new HashMap<>();
+        streams = new ArrayList<>();
+
+        vertexVboId = createBuffer((long) this.vertexCapacity * VERTEX_SIZE_BYTES);
+        indexVboId = createBuffer((long) this.indexCapacity * INT_SIZE_BYTES);
+        createStream();
+    }
+
+    /**
+     * Creates a stream with its own commands and per instance data.
+     *
+     * @return Index of the stream
+     */
+    public int createStream() {
+        Stream stream = new Stream(glGenVertexArrays(), glGenBuffers(), glGenBuffers());
+        streams.add(stream);
+
+        GLState.bindVertexArray(stream.vaoId);
+        setupVertexAttributes();
+
+        // Per instance data: model matrix, texture offsets and selected flag
+        GLState.bindBuffer(GL_ARRAY_BUFFER, stream.instanceVboId);
+        int strideStart = 0;
+        for (int i = 0; i < 4; i++) {
+            glVertexAttribPointer(INSTANCE_ATTRIB_START + i, 4, GL_FLOAT, false, DrawCommandList.INSTANCE_SIZE_BYTES, strideStart);
+            strideStart += 4 * FLOAT_SIZE_BYTES;
+        }
+        glVertexAttribPointer(INSTANCE_ATTRIB_START + 4, 2, GL_FLOAT, false, DrawCommandList.INSTANCE_SIZE_BYTES, strideStart);
+        strideStart += 2 * FLOAT_SIZE_BYTES;
+        glVertexAttribPointer(INSTANCE_ATTRIB_START + 5, 1, GL_FLOAT, false, DrawCommandList.INSTANCE_SIZE_BYTES, strideStart);
+        for (int i = 0; i < NUM_INSTANCE_ATTRIBS; i++) {
+            glVertexAttribDivisor(INSTANCE_ATTRIB_START + i, 1);
+            glEnableVertexAttribArray(INSTANCE_ATTRIB_START + i);
+        }
+
+        GLState.bindBuffer(GL_ARRAY_BUFFER, 0);
+        GLState.bindVertexArray(0);
+        return streams.size() - 1;
+    }
+
+    /**
+     * Multi draw indirect with a base instance per command is core in OpenGL 4.3. Mesa's software
+     * driver (llvmpipe) exposes it, so this path can be tested without a GPU.
+     *
+     * @param caps Capabilities of the current context
+     * @return true if the arena can be used in the current context
+     */
+    public static boolean isSupported(GLCapabilities caps) {
+        return caps.OpenGL43 || (caps.GL_ARB_multi_draw_indirect && caps.GL_ARB_base_instance);
+    }
+
+    private static int createBuffer(long size) {
+        // Use the copy target so no VAO state is touched while creating the buffer
+        int bufferId = glGenBuffers();
+        glBindBuffer(GL_COPY_WRITE_BUFFER, bufferId);
+        glBufferData(GL_COPY_WRITE_BUFFER, size, GL_STATIC_DRAW);
+        glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+        return bufferId;
+    }
+
+    private void setupVertexAttributes() {
+        GLState.bindBuffer(GL_ARRAY_BUFFER, vertexVboId);
+        glVertexAttribPointer(0, 3, GL_FLOAT, false, VERTEX_SIZE_BYTES, 0);
+        glVertexAttribPointer(1, 2, GL_FLOAT, false, VERTEX_SIZE_BYTES, 3 * FLOAT_SIZE_BYTES);
+        glVertexAttribPointer(2, 3, GL_FLOAT, false, VERTEX_SIZE_BYTES, 5 * FLOAT_SIZE_BYTES);
+        glEnableVertexAttribArray(0);
+        glEnableVertexAttribArray(1);
+        glEnableVertexAttribArray(2);
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, indexVboId);
+    }
+
+    public int getInstanceVboId() {
+        return streams.get(SCENE_STREAM).instanceVboId;
+    }
+
+    public int getIndirectBufferId() {
+        return streams.get(SCENE_STREAM).indirectBufferId;
+    }
+
+    public Allocation getAllocation(Mesh mesh) {
+        return allocations.get(mesh);
+    }
+
+    /**
+     * Copies the geometry of a mesh into the arena. Meshes that are already stored are not copied again.
+     *
+     * @param mesh The mesh to store
+     * @return The region of the arena that holds the mesh
+     */
+    public Allocation allocate(Mesh mesh) {
+        Allocation allocation = allocations.get(mesh);
+        if (allocation != null) {
+            return allocation;
+        }
+
+        float[] positions = mesh.getPositions();
+        float[] textCoords = mesh.getTextCoords();
+        float[] normals = mesh.getNormals();
+        int[] indices = mesh.getIndices();
+        int meshVertices = positions.length / 3;
+        ensureCapacity(numVertices + meshVertices, numIndices + indices.length);
+
+        FloatBuffer vertexBuffer = null;
+        IntBuffer indexBuffer = null;
+        try {
+            vertexBuffer = MemoryUtil.memAllocFloat(meshVertices * VERTEX_SIZE_FLOATS);
+            for (int i = 0; i < meshVertices; i++) {
+                vertexBuffer.put(positions[i * 3]).put(positions[i * 3 + 1]).put(positions[i * 3 + 2]);
+                if (textCoords.length >= (i + 1) * 2) {
+                    vertexBuffer.put(textCoords[i * 2]).put(textCoords[i * 2 + 1]);
+                } else {
+                    vertexBuffer.put(0).put(0);
+                }
+                if (normals.length >= (i + 1) * 3) {
+                    vertexBuffer.put(normals[i * 3]).put(normals[i * 3 + 1]).put(normals[i * 3 + 2]);
+                } else {
+                    vertexBuffer.put(0).put(0).put(0);
+                }
+            }
+            vertexBuffer.flip();
+            indexBuffer = MemoryUtil.memAllocInt(indices.length);
+            indexBuffer.put(indices).flip();
+
+            GLState.bindBuffer(GL_ARRAY_BUFFER, vertexVboId);
+            glBufferSubData(GL_ARRAY_BUFFER, (long) numVertices * VERTEX_SIZE_BYTES, vertexBuffer);
+            GLState.bindBuffer(GL_ARRAY_BUFFER, 0);
+            glBindBuffer(GL_COPY_WRITE_BUFFER, indexVboId);
+            glBufferSubData(GL_COPY_WRITE_BUFFER, (long) numIndices * INT_SIZE_BYTES, indexBuffer);
+            glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+        } finally {
+            if (vertexBuffer != null) {
+                MemoryUtil.memFree(vertexBuffer);
+            }
+            if (indexBuffer != null) {
+                MemoryUtil.memFree(indexBuffer);
+            }
+        }
+
+        allocation = new Allocation(numVertices, numIndices, indices.length);
+        allocations.put(mesh, allocation);
+        numVertices += meshVertices;
+        numIndices += indices.length;
+        return allocation;
+    }
+
+    private void ensureCapacity(int requiredVertices, int requiredIndices) {
+        if (requiredVertices <= vertexCapacity && requiredIndices <= indexCapacity) {
+            return;
+        }
+        if (requiredVertices > vertexCapacity) {
+            int newCapacity = Math.max(requiredVertices, vertexCapacity * 2);
+            vertexVboId = growBuffer(vertexVboId, (long) numVertices * VERTEX_SIZE_BYTES, (long) newCapacity * VERTEX_SIZE_BYTES);
+            vertexCapacity = newCapacity;
+        }
+        if (requiredIndices > indexCapacity) {
+            int newCapacity = Math.max(requiredIndices, indexCapacity * 2);
+            indexVboId = growBuffer(indexVboId, (long) numIndices * INT_SIZE_BYTES, (long) newCapacity * INT_SIZE_BYTES);
+            indexCapacity = newCapacity;
+        }
+        // The VAOs reference the old buffers, point them to the new ones
+        for (Stream stream : streams) {
+            GLState.bindVertexArray(stream.vaoId);
+            setupVertexAttributes();
+        }
+        GLState.bindBuffer(GL_ARRAY_BUFFER, 0);
+        GLState.bindVertexArray(0);
+    }
+
+    private static int growBuffer(int oldBufferId, long usedSize, long newSize) {
+        int newBufferId = createBuffer(newSize);
+        glBindBuffer(GL_COPY_WRITE_BUFFER, newBufferId);
+        if (usedSize > 0) {
+            glBindBuffer(GL_COPY_READ_BUFFER, oldBufferId);
+            glCopyBufferSubData(GL_COPY_READ_BUFFER, GL_COPY_WRITE_BUFFER, 0, 0, usedSize);
+            glBindBuffer(GL_COPY_READ_BUFFER, 0);
+        }
+        glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+        GLState.deleteBuffer(oldBufferId);
+        return newBufferId;
+    }
+
+    /**
+     * Uploads the commands and per instance data recorded in the list into the scene stream.
+     *
+     * @param commandList The recorded commands
+     */
+    public void upload(DrawCommandList commandList) {
+        upload(commandList, SCENE_STREAM);
+    }
+
+    /**
+     * Uploads the commands and per instance data recorded in the list into a stream. Buffers are orphaned, so a
+     * stream can be uploaded several times per frame without waiting for previous draws.
+     *
+     * @param commandList The recorded commands
+     * @param stream Index of the stream
+     */
+    public void upload(DrawCommandList commandList, int stream) {
+        Stream target = streams.get(stream);
+        GLState.bindBuffer(GL_ARRAY_BUFFER, target.instanceVboId);
+        glBufferData(GL_ARRAY_BUFFER, commandList.getInstanceData(), GL_STREAM_DRAW);
+        GLState.bindBuffer(GL_ARRAY_BUFFER, 0);
+
+        GLState.bindBuffer(GL_DRAW_INDIRECT_BUFFER, target.indirectBufferId);
+        glBufferData(GL_DRAW_INDIRECT_BUFFER, commandList.getCommands(), GL_STREAM_DRAW);
+        GLState.bindBuffer(GL_DRAW_INDIRECT_BUFFER, 0);
+    }
+
+    public void bind() {
+        bind(SCENE_STREAM);
+    }
+
+    /**
+     * Binds the VAO and the commands of a stream, whose commands are then submitted by {@link #multiDraw}.
+     */
+    public void bind(int stream) {
+        Stream target = streams.get(stream);
+        GLState.bindVertexArray(target.vaoId);
+        GLState.bindBuffer(GL_DRAW_INDIRECT_BUFFER, target.indirectBufferId);
+    }
+
+    /**
+     * Submits a range of the uploaded commands. The arena must be bound.
+     *
+     * @param firstCommand Index of the first command
+     * @param numCommands Number of commands to submit
+     */
+    public void multiDraw(int firstCommand, int numCommands) {
+        if (numCommands > 0) {
+            glMultiDrawElementsIndirect(GL_TRIANGLES, GL_UNSIGNED_INT,
+                    (long) firstCommand * DrawCommandList.COMMAND_SIZE_BYTES, numCommands, 0);
+        }
+    }
+
+    public void cleanup() {
+        GLState.bindBuffer(GL_ARRAY_BUFFER, 0);
+        GLState.deleteBuffer(vertexVboId);
+        GLState.deleteBuffer(indexVboId);
+
+        GLState.bindVertexArray(0);
+        for (Stream stream : streams) {
+            GLState.deleteBuffer(stream.instanceVboId);
+            GLState.deleteBuffer(stream.indirectBufferId);
+            GLState.deleteVertexArray(stream.vaoId);
+        }
+    }
+
+    /**
+     * VAO, per instance data and commands of a stream.
+     */
+    private static class Stream {
+
+        private final int vaoId;
+
+        private final int instanceVboId;
+
+        private final int indirectBufferId;
+
+        private Stream(int vaoId, int instanceVboId, int indirectBufferId) {
+            this.vaoId = vaoId;
+            this.instanceVboId = instanceVboId;
+            this.indirectBufferId = indirectBufferId;
+        }
+    }
+
+    /**
+     * Region of the arena that holds a mesh.
+     */
+    public static class Allocation {
+
+        private final int baseVertex;
+
+        private final int firstIndex;
+
+        private final int indexCount;
+
+        public Allocation(int baseVertex, int firstIndex, int indexCount) {
+            this.baseVertex = baseVertex;
+            this.firstIndex = firstIndex;
+            this.indexCount = indexCount;
+        }
+
+        public int getBaseVertex() {
+            return baseVertex;
+        }
+
+        public int getFirstIndex() {
+            return firstIndex;
+        }
+
+        public int getIndexCount() {
+            return indexCount;
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package org.lwjgl.engine.graph.indirect;
+
+import org.joml.FrustumIntersection;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.joml.Vector4f;
+import org.lwjgl.engine.graph.Mesh;
+import org.lwjgl.engine.graph.ProgramCache;
+import org.lwjgl.engine.graph.ShaderPreprocessor;
+import org.lwjgl.engine.graph.ShaderProgram;
+import org.lwjgl.engine.graph.ShaderVariants;
+import org.lwjgl.engine.graph.Texture;
+import org.lwjgl.engine.graph.Transformation;
+import org.lwjgl.engine.graph.uniform.IntUniform;
+import org.lwjgl.engine.graph.uniform.Vector4fArrayUniform;
+import org.lwjgl.engine.items.GameItem;
+import org.lwjgl.opengl.GLCapabilities;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL30.glBindBufferBase;
+import static org.lwjgl.opengl.GL31.*;
+import static org.lwjgl.opengl.GL42.GL_COMMAND_BARRIER_BIT;
+import static org.lwjgl.opengl.GL42.GL_VERTEX_ATTRIB_ARRAY_BARRIER_BIT;
+import static org.lwjgl.opengl.GL42.glMemoryBarrier;
+import static org.lwjgl.opengl.GL43.GL_SHADER_STORAGE_BUFFER;
+import static org.lwjgl.opengl.GL43.glDispatchCompute;
+
+/**
+ * Culls the items stored in a geometry arena with a compute shader. Item transforms and bounds stay resident in a
+ * shader storage buffer, and the surviving instances and instance counts are written straight into the indirect
+ * and instance buffers of the arena. Each view (the camera and every shadow cascade) gets its own range of commands.
+ */
+public class GpuCuller {
+
+    public static final int MAX_VIEWS = 4;
+
+    private static final int WORK_GROUP_SIZE = 64;
+
+    private static final int ITEM_SIZE_BYTES = (16 + 4 + 4 + 4) * 4;
+
+    private static final int SPHERE_OFFSET = 16 * 4;
+
+    private static final int INSTANCE_OFFSET = SPHERE_OFFSET + 4 * 4;
+
+    private static final int INFO_OFFSET = INSTANCE_OFFSET + 4 * 4;
+
+    private final int numViews;
+
+    /**
+     * Views culled by the next dispatch, the first ones of the views. The commands of the others are not updated.
+     */
+    private int numActiveViews;
+
+    private ShaderVariants<ShaderProgram> cullShaders;
+
+    private ShaderProgram cullShaderProgram;
+
+    private Vector4fArrayUniform frustumPlanesUniform;
+
+    private IntUniform numItemsUniform;
+
+    private IntUniform numCommandsUniform;
+
+    private final int itemBufferId;
+
+    private final int templateBufferId;
+
+    private ByteBuffer itemData;
+
+    private final List<GameItem> items;
+
+    private final List<Texture> commandTextures;
+
+    private final List<Float> commandRadius;
+
+    private int[] itemCommands;
+
+    private int[] itemVersions;
+
+    private int numCommands;
+
+    private int lastModificationCount;
+
+    private final Transformation transformation;
+
+    private final Vector4f[] frustumPlanes;
+
+    private final Vector3f tmpVec;
+
+    public GpuCuller(int numViews) {
+        this.numViews = Math.min(numViews, MAX_VIEWS);
+        numActiveViews = this.numViews;
+        itemBufferId = glGenBuffers();
+        templateBufferId = glGenBuffers();
+        items = new ArrayList<>();
+        commandTextures = new ArrayList<>();
+        commandRadius = new ArrayList<>();
+        itemCommands = new int[0];
+        itemVersions = new int[0];
+        transformation = new Transformation();
+        frustumPlanes = new Vector4f[MAX_VIEWS * 6];
+        for (int i = 0; i < frustumPlanes.length; i++) {
+            frustumPlanes[i] = new Vector4f(0, 0, 0, 1);
+        }
+        tmpVec = new Vector3f();
+    }
+
+    /**
+     * Compute shaders and shader storage buffers are core in OpenGL 4.3, which Mesa's llvmpipe exposes.
+     *
+     * @param caps Capabilities of the current context
+     * @return true if GPU culling can be used in the current context
+     */
+    public static boolean isSupported(GLCapabilities caps) {
+        return caps.OpenGL43;
+    }
+
+    public void init(ShaderPreprocessor shaderPreprocessor, ProgramCache programCache) throws Exception {
+        cullShaders = new ShaderVariants<>(shaderPreprocessor, programCache, "cull_compute.cs", new String[0],
+                (ShaderProgram shaderProgram, int features) -> shaderProgram);
+        cullShaderProgram = cullShaders.get(0);
+        frustumPlanesUniform = cullShaderProgram.createVector4fArrayUniform("frustumPlanes", MAX_VIEWS * 6);
+        numItemsUniform = cullShaderProgram.createIntUniform("numItems");
+        numCommandsUniform = cullShaderProgram.createIntUniform("numCommands");
+    }
+
+    public int getNumCommands() {
+        return numCommands;
+    }
+
+    /**
+     * Uploads the resident item data and the command templates. It must be called whenever the set of meshes
+     * or items changes. Commands are created in the order of the meshes, one per mesh and view.
+     *
+     * @param meshes Meshes stored in the arena
+     * @param itemLists Items that use each mesh
+     * @param geometryArena Arena whose indirect and instance buffers will receive the culling results
+     */
+    public void setup(List<Mesh> meshes, List<List<GameItem>> itemLists, GeometryArena geometryArena) {
+        items.clear();
+        commandTextures.clear();
+        commandRadius.clear();
+        numCommands = meshes.size();
+
+        int numItems = 0;
+        for (List<GameItem> itemList : itemLists) {
+            numItems += itemList.size();
+        }
+        itemCommands = new int[numItems];
+        itemVersions = new int[numItems];
+
+        // Commands template: instance counts are zero and each command owns a range of instances per view
+        ByteBuffer template = MemoryUtil.memAlloc(Math.max(numViews * numCommands, 1) * DrawCommandList.COMMAND_SIZE_BYTES);
+        try {
+            for (int view = 0; view < numViews; view++) {
+                int baseInstance = view * numItems;
+                for (int i = 0; i < numCommands; i++) {
+                    GeometryArena.Allocation allocation = geometryArena.getAllocation(meshes.get(i));
+                    template.putInt(allocation.getIndexCount());
+                    template.putInt(0);
+                    template.putInt(allocation.getFirstIndex());
+                    template.putInt(allocation.getBaseVertex());
+                    template.putInt(baseInstance);
+                    baseInstance += itemLists.get(i).size();
+                }
+            }
+            template.flip();
+            glBindBuffer(GL_COPY_WRITE_BUFFER, templateBufferId);
+            glBufferData(GL_COPY_WRITE_BUFFER, template, GL_STATIC_DRAW);
+        } finally {
+            MemoryUtil.memFree(template);
+        }
+
+        glBindBuffer(GL_COPY_WRITE_BUFFER, geometryArena.getIndirectBufferId());
+        glBufferData(GL_COPY_WRITE_BUFFER, (long) Math.max(numViews * numCommands, 1) * DrawCommandList.COMMAND_SIZE_BYTES, GL_DYNAMIC_DRAW);
+        glBindBuffer(GL_COPY_WRITE_BUFFER, geometryArena.getInstanceVboId());
+        glBufferData(GL_COPY_WRITE_BUFFER, (long) Math.max(numViews * numItems, 1) * DrawCommandList.INSTANCE_SIZE_BYTES, GL_DYNAMIC_DRAW);
+        glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+
+        // Resident item data
+        if (itemData != null) {
+            MemoryUtil.memFree(itemData);
+        }
+        itemData = MemoryUtil.memAlloc(Math.max(numItems, 1) * ITEM_SIZE_BYTES);
+        int itemIdx = 0;
+        for (int i = 0; i < numCommands; i++) {
+            Mesh mesh = meshes.get(i);
+            commandTextures.add(mesh.getMaterial().getTexture());
+            commandRadius.add(mesh.getBoundingRadius());
+            for (GameItem gameItem : itemLists.get(i)) {
+                items.add(gameItem);
+                itemCommands[itemIdx] = i;
+                writeItem(itemIdx);
+                itemIdx++;
+            }
+        }
+        itemData.limit(numItems * ITEM_SIZE_BYTES);
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, itemBufferId);
+        glBufferData(GL_SHADER_STORAGE_BUFFER, itemData, GL_DYNAMIC_DRAW);
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+        itemData.clear();
+
+        lastModificationCount = GameItem.getModificationCount();
+    }
+
+    private void writeItem(int itemIdx) {
+        GameItem gameItem = items.get(itemIdx);
+        int command = itemCommands[itemIdx];
+        int offset = itemIdx * ITEM_SIZE_BYTES;
+
+        Matrix4f modelMatrix = transformation.buildModelMatrix(gameItem);
+        modelMatrix.get(offset, itemData);
+
+        Vector3f pos = gameItem.getPosition();
+        float radius = gameItem.isDisableFrustumCulling() ? -1 : gameItem.getScale() * commandRadius.get(command);
+        itemData.putFloat(offset + SPHERE_OFFSET, pos.x);
+        itemData.putFloat(offset + SPHERE_OFFSET + 4, pos.y);
+        itemData.putFloat(offset + SPHERE_OFFSET + 8, pos.z);
+        itemData.putFloat(offset + SPHERE_OFFSET + 12, radius);
+
+        Texture text = commandTextures.get(command);
+        float textXOffset = 0;
+        float textYOffset = 0;
+        if (text != null) {
+            int col = gameItem.getTextPos() % text.getNumCols();
+            int row = gameItem.getTextPos() / text.getNumCols();
+            textXOffset = (float) col / text.getNumCols();
+            textYOffset = (float) row / text.getNumRows();
+        }
+        itemData.putFloat(offset + INSTANCE_OFFSET, textXOffset);
+        itemData.putFloat(offset + INSTANCE_OFFSET + 4, textYOffset);
+        itemData.putFloat(offset + INSTANCE_OFFSET + 8, gameItem.isSelected() ? 1 : 0);
+        itemData.putFloat(offset + INSTANCE_OFFSET + 12, 0);
+
+        itemData.putInt(offset + INFO_OFFSET, command);
+
+        itemVersions[itemIdx] = gameItem.getVersion();
+    }
+
+    /**
+     * Uploads the items that have changed since the last frame. Nothing is done if no item has been modified.
+     */
+    private void refreshChangedItems() {
+        if (lastModificationCount == GameItem.getModificationCount()) {
+            return;
+        }
+        lastModificationCount = GameItem.getModificationCount();
+
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, itemBufferId);
+        int numItems = items.size();
+        int start = -1;
+        for (int i = 0; i <= numItems; i++) {
+            boolean changed = i < numItems && items.get(i).getVersion() != itemVersions[i];
+            if (changed) {
+                writeItem(i);
+                if (start < 0) {
+                    start = i;
+                }
+            } else if (start >= 0) {
+                // Upload contiguous ranges of modified items
+                itemData.limit(i * ITEM_SIZE_BYTES);
+                itemData.position(start * ITEM_SIZE_BYTES);
+                glBufferSubData(GL_SHADER_STORAGE_BUFFER, (long) start * ITEM_SIZE_BYTES, itemData);
+                itemData.clear();
+                start = -1;
+            }
+        }
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+    }
+
+    /**
+     * Sets the frustum used to cull the items of a view.
+     *
+     * @param view Index of the view
+     * @param projViewMatrix Projection view matrix of the view
+     * @param cullNearPlane If false, items are not culled by the near plane. Used for shadow casters, which may be
+     *                      between the light and the volume covered by a shadow map
+     */
+    public void setViewFrustum(int view, Matrix4f projViewMatrix, boolean cullNearPlane) {
+        for (int i = 0; i < 6; i++) {
+            Vector4f plane = frustumPlanes[view * 6 + i];
+            if (i == FrustumIntersection.PLANE_NZ && !cullNearPlane) {
+                plane.set(0, 0, 0, 1);
+                continue;
+            }
+            projViewMatrix.frustumPlane(i, plane);
+            float length = tmpVec.set(plane.x, plane.y, plane.z).length();
+            plane.div(length);
+        }
+    }
+
+    /**
+     * Sets the number of views culled by the next dispatches. The ranges of commands of the views do not change.
+     *
+     * @param numActiveViews Number of views, at most the number given at creation
+     */
+    public void setNumActiveViews(int numActiveViews) {
+        this.numActiveViews = Math.max(1, Math.min(numViews, numActiveViews));
+    }
+
+    /**
+     * Disables culling for a view, all the items will be visible.
+     *
+     * @param view Index of the view
+     */
+    public void setViewUnculled(int view) {
+        for (int i = 0; i < 6; i++) {
+            frustumPlanes[view * 6 + i].set(0, 0, 0, 1);
+        }
+    }
+
+    /**
+     * Resets the instance counts and runs the culling shader for the active views.
+     *
+     * @param geometryArena Arena whose indirect and instance buffers receive the results
+     */
+    public void cull(GeometryArena geometryArena) {
+        int numItems = items.size();
+        if (numItems == 0) {
+            return;
+        }
+        refreshChangedItems();
+
+        // Reset instance counts without any CPU work
+        glBindBuffer(GL_COPY_READ_BUFFER, templateBufferId);
+        glBindBuffer(GL_COPY_WRITE_BUFFER, geometryArena.getIndirectBufferId());
+        glCopyBufferSubData(GL_COPY_READ_BUFFER, GL_COPY_WRITE_BUFFER, 0, 0,
+                (long) numActiveViews * numCommands * DrawCommandList.COMMAND_SIZE_BYTES);
+        glBindBuffer(GL_COPY_READ_BUFFER, 0);
+        glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+
+        cullShaderProgram.bind();
+        frustumPlanesUniform.set(frustumPlanes);
+        numItemsUniform.set(numItems);
+        numCommandsUniform.set(numCommands);
+
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, 0, itemBufferId);
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, 1, geometryArena.getIndirectBufferId());
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, 2, geometryArena.getInstanceVboId());
+
+        glDispatchCompute((numItems + WORK_GROUP_SIZE - 1) / WORK_GROUP_SIZE, numActiveViews, 1);
+
+        // Results are consumed as indirect commands and vertex attributes
+        glMemoryBarrier(GL_COMMAND_BARRIER_BIT | GL_VERTEX_ATTRIB_ARRAY_BARRIER_BIT);
+        cullShaderProgram.unbind();
+    }
+
+    public void cleanup() {
+        if (cullShaders != null) {
+            cullShaders.cleanup();
+        }
+        glDeleteBuffers(itemBufferId);
+        glDeleteBuffers(templateBufferId);
+        if (itemData != null) {
+            MemoryUtil.memFree(itemData);
+            itemData = null;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package org.lwjgl.engine.graph.indirect;
+
+import org.lwjgl.engine.graph.Material;
+import org.lwjgl.engine.graph.Mesh;
+import org.lwjgl.engine.items.GameItem;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Meshes stored in a geometry arena that share a material, drawn with a single multi draw indirect call.
+ */
+public class MaterialGroup {
+
+    private final Material material;
+
+    private final List<Mesh> meshes;
+
+    private final List<List<GameItem>> itemLists;
+
+    private int firstCommand;
+
+    private int numCommands;
+
+    public MaterialGroup(Material material) {
+        this.material = material;
+        meshes = new ArrayList<>();
+        itemLists = new ArrayList<>();
+    }
+
+    public void add(Mesh mesh, List<GameItem> gameItems) {
+        meshes.add(mesh);
+        itemLists.add(gameItems);
+    }
+
+    public Material getMaterial() {
+        return material;
+    }
+
+    public List<Mesh> getMeshes() {
+        return meshes;
+    }
+
+    public List<List<GameItem>> getItemLists() {
+        return itemLists;
+    }
+
+    public int getFirstCommand() {
+        return firstCommand;
+    }
+
+    public int getNumCommands() {
+        return numCommands;
+    }
+
+    public void setCommands(int firstCommand, int numCommands) {
+        this.firstCommand = firstCommand;
+        this.numCommands = numCommands;
+    }
+}
@@ -0,0 +1,458 @@
+package org.lwjgl.engine.graph.lights;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.lwjgl.engine.Window;
+import org.lwjgl.engine.graph.GLState;
+import org.lwjgl.engine.graph.shadow.PointShadowRenderer;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.lwjgl.opengl.GL11.glGenTextures;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL30.GL_R32UI;
+import static org.lwjgl.opengl.GL30.GL_RG32UI;
+import static org.lwjgl.opengl.GL30.GL_RGBA32F;
+import static org.lwjgl.opengl.GL31.GL_TEXTURE_BUFFER;
+import static org.lwjgl.opengl.GL31.glTexBuffer;
+
+/**
+ * Assigns the point and spot lights to the clusters of a grid that divides the view frustum in screen tiles and
+ * exponential depth slices. The lights are binned on worker threads, each one taking a range of depth slices,
+ * while the frame goes on, and the results are uploaded as texture buffers: the lights, the range of the light
+ * index list of each cluster and the compact index list. The scene shader only evaluates the lights of the
+ * cluster of each fragment.
+ */
+public class LightClusters {
+
+    public static final int CLUSTERS_X = 16;
+
+    public static final int CLUSTERS_Y = 9;
+
+    public static final int CLUSTERS_Z = 24;
+
+    public static final int NUM_CLUSTERS = CLUSTERS_X * CLUSTERS_Y * CLUSTERS_Z;
+
+    /**
+     * Depth where the exponential slices start. Nearer fragments belong to the first slice, so the slices are not
+     * wasted on the few units in front of the camera.
+     */
+    private static final float SLICE_NEAR = 0.5f;
+
+    /**
+     * Four RGBA texels per light: position and range, colour and intensity, attenuation and cone cut off, and
+     * cone direction and first shadow layer. All in view coordinates.
+     */
+    private static final int LIGHT_SIZE_FLOATS = 16;
+
+    /**
+     * Cut off of the point lights, below the cosine of any angle
+     */
+    private static final float NO_CONE = -2.0f;
+
+    private final ExecutorService executor;
+
+    private final BinningTask[] tasks;
+
+    private final Future<?>[] futures;
+
+    /**
+     * View space bounds of each cluster, minimum and then maximum corner
+     */
+    private final float[] clusterBounds;
+
+    private final Matrix4f boundsProjectionMatrix;
+
+    private final Matrix4f invProjectionMatrix;
+
+    /**
+     * View space position and range of each light
+     */
+    private float[] lightSpheres;
+
+    private int numLights;
+
+    private FloatBuffer lightData;
+
+    private final IntBuffer clusterData;
+
+    private IntBuffer indexData;
+
+    private int maxClusterLights;
+
+    private final Vector3f tmpVec;
+
+    private final int lightBufferId;
+
+    private final int lightTextureId;
+
+    private final int clusterBufferId;
+
+    private final int clusterTextureId;
+
+    private final int indexBufferId;
+
+    private final int indexTextureId;
+
+    private PointShadowRenderer pointShadowRenderer;
+
+    private float tileWidth;
+
+    private float tileHeight;
+
+    public LightClusters() {
+        int numTasks = Math.max(1, Math.min(CLUSTERS_Z, Runtime.getRuntime().availableProcessors() - 1));
+        executor = Executors.newFixedThreadPool(numTasks, (Runnable runnable) -> {
+            Thread thread = new Thread(runnable, "LIGHT_BINNING_THREAD");
+            thread.setDaemon(true);
+            return thread;
+        });
+        tasks = new BinningTask[numTasks];
+        for (int i = 0; i < numTasks; i++) {
+            tasks[i] = new BinningTask(CLUSTERS_Z * i / numTasks, CLUSTERS_Z * (i + 1) / numTasks);
+        }
+        futures = new Future<?>[numTasks];
+        clusterBounds = new float[NUM_CLUSTERS * 6];
+        boundsProjectionMatrix = new Matrix4f().zero();
+        invProjectionMatrix = new Matrix4f();
+        lightSpheres = new float[64 * 4];
+        lightData = MemoryUtil.memAllocFloat(64 * LIGHT_SIZE_FLOATS);
+        clusterData = MemoryUtil.memAllocInt(NUM_CLUSTERS * 2);
+        indexData = MemoryUtil.memAllocInt(1024);
+        tmpVec = new Vector3f();
+
+        lightBufferId = glGenBuffers();
+        lightTextureId = createBufferTexture(lightBufferId, GL_RGBA32F);
+        clusterBufferId = glGenBuffers();
+        clusterTextureId = createBufferTexture(clusterBufferId, GL_RG32UI);
+        indexBufferId = glGenBuffers();
+        indexTextureId = createBufferTexture(indexBufferId, GL_R32UI);
+    }
+
+    private static int createBufferTexture(int bufferId, int internalFormat) {
+        // A buffer texture needs a data store before it is used
+        GLState.bindBuffer(GL_TEXTURE_BUFFER, bufferId);
+        glBufferData(GL_TEXTURE_BUFFER, 16, GL_STREAM_DRAW);
+        GLState.bindBuffer(GL_TEXTURE_BUFFER, 0);
+        int textureId = glGenTextures();
+        GLState.bindTexture(GL_TEXTURE_BUFFER, textureId);
+        glTexBuffer(GL_TEXTURE_BUFFER, internalFormat, bufferId);
+        return textureId;
+    }
+
+    /**
+     * Collects the lights in view coordinates and starts binning them on the worker threads. The results are
+     * collected by {@link #finish()}.
+     *
+     * @param width Width in pixels of the rendered scene
+     * @param height Height in pixels of the rendered scene
+     * @param pointShadowRenderer Gives the shadow layers of the lights. It may be null
+     */
+    public void begin(SceneLight sceneLight, Matrix4f viewMatrix, Matrix4f projectionMatrix, int width, int height,
+                      PointShadowRenderer pointShadowRenderer) {
+        this.pointShadowRenderer = pointShadowRenderer;
+        tileWidth = (float) width / CLUSTERS_X;
+        tileHeight = (float) height / CLUSTERS_Y;
+        if (!projectionMatrix.equals(boundsProjectionMatrix)) {
+            boundsProjectionMatrix.set(projectionMatrix);
+            updateClusterBounds();
+        }
+
+        PointLight[] pointLights = sceneLight != null ? sceneLight.getPointLightList() : null;
+        SpotLight[] spotLights = sceneLight != null ? sceneLight.getSpotLightList() : null;
+        int numPointLights = pointLights != null ? pointLights.length : 0;
+        int numSpotLights = spotLights != null ? spotLights.length : 0;
+        ensureLightCapacity(numPointLights + numSpotLights);
+        numLights = 0;
+        for (int i = 0; i < numPointLights; i++) {
+            addLight(pointLights[i], null, NO_CONE, viewMatrix);
+        }
+        for (int i = 0; i < numSpotLights; i++) {
+            SpotLight spotLight = spotLights[i];
+            addLight(spotLight.getPointLight(), spotLight.getConeDirection(), spotLight.getCutOff(), viewMatrix);
+        }
+
+        for (int i = 0; i < tasks.length; i++) {
+            futures[i] = executor.submit(tasks[i]);
+        }
+    }
+
+    private void addLight(PointLight pointLight, Vector3f coneDirection, float cutOff, Matrix4f viewMatrix) {
+        float range = pointLight.getRange(Window.Z_FAR);
+        viewMatrix.transformPosition(pointLight.getPosition(), tmpVec);
+        int sphere = numLights * 4;
+        lightSpheres[sphere] = tmpVec.x;
+        lightSpheres[sphere + 1] = tmpVec.y;
+        lightSpheres[sphere + 2] = tmpVec.z;
+        lightSpheres[sphere + 3] = range;
+
+        int buffPos = numLights * LIGHT_SIZE_FLOATS;
+        lightData.put(buffPos, tmpVec.x).put(buffPos + 1, tmpVec.y).put(buffPos + 2, tmpVec.z)
+                .put(buffPos + 3, range);
+        Vector3f color = pointLight.getColor();
+        lightData.put(buffPos + 4, color.x).put(buffPos + 5, color.y).put(buffPos + 6, color.z)
+                .put(buffPos + 7, pointLight.getIntensity());
+        PointLight.Attenuation attenuation = pointLight.getAttenuation();
+        lightData.put(buffPos + 8, attenuation.getConstant()).put(buffPos + 9, attenuation.getLinear())
+                .put(buffPos + 10, attenuation.getExponent()).put(buffPos + 11, cutOff);
+        if (coneDirection != null) {
+            viewMatrix.transformDirection(coneDirection, tmpVec).normalize();
+        } else {
+            tmpVec.zero();
+        }
+        int shadowLayer = pointShadowRenderer != null ? pointShadowRenderer.getFirstLayer(pointLight) : -1;
+        lightData.put(buffPos + 12, tmpVec.x).put(buffPos + 13, tmpVec.y).put(buffPos + 14, tmpVec.z)
+                .put(buffPos + 15, shadowLayer);
+        numLights++;
+    }
+
+    private void ensureLightCapacity(int capacity) {
+        if (capacity * 4 > lightSpheres.length) {
+            lightSpheres = new float[capacity * 4];
+            lightData = MemoryUtil.memRealloc(lightData, capacity * LIGHT_SIZE_FLOATS);
+        }
+    }
+
+    /**
+     * Waits for the worker threads, merges their index lists and uploads the lights and the clusters.
+     */
+    public void finish() {
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException | ExecutionException excp) {
+                throw new RuntimeException("Could not bin the lights", excp);
+            }
+        }
+
+        // The tasks own consecutive ranges of clusters, so their lists are concatenated in order
+        int numIndices = 0;
+        for (BinningTask task : tasks) {
+            numIndices += task.numIndices;
+        }
+        if (numIndices > indexData.capacity()) {
+            indexData = MemoryUtil.memRealloc(indexData, Math.max(numIndices, indexData.capacity() * 2));
+        }
+        indexData.clear();
+        clusterData.clear();
+        maxClusterLights = 0;
+        for (BinningTask task : tasks) {
+            int firstIndex = indexData.position();
+            indexData.put(task.indices, 0, task.numIndices);
+            int offset = 0;
+            for (int cluster = task.firstCluster; cluster < task.endCluster; cluster++) {
+                int count = task.counts[cluster - task.firstCluster];
+                clusterData.put(firstIndex + offset).put(count);
+                offset += count;
+                maxClusterLights = Math.max(maxClusterLights, count);
+            }
+        }
+        indexData.flip();
+        clusterData.flip();
+
+        lightData.limit(Math.max(numLights, 1) * LIGHT_SIZE_FLOATS);
+        lightData.position(0);
+        upload(lightBufferId, lightData);
+        lightData.limit(lightData.capacity());
+        upload(clusterBufferId, clusterData);
+        if (numIndices > 0) {
+            upload(indexBufferId, indexData);
+        }
+    }
+
+    private static void upload(int bufferId, FloatBuffer data) {
+        // The previous store is orphaned, so the upload does not wait for the frames that still read it
+        GLState.bindBuffer(GL_TEXTURE_BUFFER, bufferId);
+        glBufferData(GL_TEXTURE_BUFFER, data, GL_STREAM_DRAW);
+        GLState.bindBuffer(GL_TEXTURE_BUFFER, 0);
+    }
+
+    private static void upload(int bufferId, IntBuffer data) {
+        GLState.bindBuffer(GL_TEXTURE_BUFFER, bufferId);
+        glBufferData(GL_TEXTURE_BUFFER, data, GL_STREAM_DRAW);
+        GLState.bindBuffer(GL_TEXTURE_BUFFER, 0);
+    }
+
+    /**
+     * Calculates the view space bounds of the clusters from the tiles of the projection and the depth slices.
+     */
+    private void updateClusterBounds() {
+        boundsProjectionMatrix.invert(invProjectionMatrix);
+        // Points of the near plane through the corners of the tiles
+        Vector3f[] corners = new Vector3f[(CLUSTERS_X + 1) * (CLUSTERS_Y + 1)];
+        for (int y = 0; y <= CLUSTERS_Y; y++) {
+            for (int x = 0; x <= CLUSTERS_X; x++) {
+                corners[y * (CLUSTERS_X + 1) + x] = invProjectionMatrix.transformProject(
+                        -1.0f + 2.0f * x / CLUSTERS_X, -1.0f + 2.0f * y / CLUSTERS_Y, -1.0f, new Vector3f());
+            }
+        }
+        for (int z = 0; z < CLUSTERS_Z; z++) {
+            float near = z == 0 ? Window.Z_NEAR : getSliceDepth(z);
+            float far = z == CLUSTERS_Z - 1 ? Window.Z_FAR : getSliceDepth(z + 1);
+            for (int y = 0; y < CLUSTERS_Y; y++) {
+                for (int x = 0; x < CLUSTERS_X; x++) {
+                    int bounds = ((z * CLUSTERS_Y + y) * CLUSTERS_X + x) * 6;
+                    for (int i = 0; i < 3; i++) {
+                        clusterBounds[bounds + i] = Float.MAX_VALUE;
+                        clusterBounds[bounds + i + 3] = -Float.MAX_VALUE;
+                    }
+                    for (int corner = 0; corner < 4; corner++) {
+                        Vector3f point = corners[(y + (corner >> 1)) * (CLUSTERS_X + 1) + x + (corner & 1)];
+                        addClusterPoint(bounds, point, near);
+                        addClusterPoint(bounds, point, far);
+                    }
+                }
+            }
+        }
+    }
+
+    private void addClusterPoint(int bounds, Vector3f nearPoint, float depth) {
+        // The point of the ray through the near plane point at the given depth
+        float scale = depth / -nearPoint.z;
+        float x = nearPoint.x * scale;
+        float y = nearPoint.y * scale;
+        float z = -depth;
+        clusterBounds[bounds] = Math.min(clusterBounds[bounds], x);
+        clusterBounds[bounds + 1] = Math.min(clusterBounds[bounds + 1], y);
+        clusterBounds[bounds + 2] = Math.min(clusterBounds[bounds + 2], z);
+        clusterBounds[bounds + 3] = Math.max(clusterBounds[bounds + 3], x);
+        clusterBounds[bounds + 4] = Math.max(clusterBounds[bounds + 4], y);
+        clusterBounds[bounds + 5] = Math.max(clusterBounds[bounds + 5], z);
+    }
+
+    /**
+     * @return Depth where a slice starts
+     */
+    private static float getSliceDepth(int slice) {
+        return SLICE_NEAR * (float) Math.pow(Window.Z_FAR / SLICE_NEAR, (float) slice / CLUSTERS_Z);
+    }
+
+    /**
+     * @return Scale and bias that give the slice of a depth from its logarithm
+     */
+    public float getSliceScale() {
+        return CLUSTERS_Z / (float) Math.log(Window.Z_FAR / SLICE_NEAR);
+    }
+
+    public float getSliceBias() {
+        return -getSliceScale() * (float) Math.log(SLICE_NEAR);
+    }
+
+    public float getTileWidth() {
+        return tileWidth;
+    }
+
+    public float getTileHeight() {
+        return tileHeight;
+    }
+
+    public int getNumLights() {
+        return numLights;
+    }
+
+    public int getMaxClusterLights() {
+        return maxClusterLights;
+    }
+
+    /**
+     * Binds the lights, the clusters and the light indices to three consecutive texture units.
+     */
+    public void bindTextures(int firstUnit) {
+        GLState.bindTexture(firstUnit, GL_TEXTURE_BUFFER, lightTextureId);
+        GLState.bindTexture(firstUnit + 1, GL_TEXTURE_BUFFER, clusterTextureId);
+        GLState.bindTexture(firstUnit + 2, GL_TEXTURE_BUFFER, indexTextureId);
+    }
+
+    public void cleanup() {
+        executor.shutdownNow();
+        GLState.deleteTexture(lightTextureId);
+        GLState.deleteTexture(clusterTextureId);
+        GLState.deleteTexture(indexTextureId);
+        GLState.deleteBuffer(lightBufferId);
+        GLState.deleteBuffer(clusterBufferId);
+        GLState.deleteBuffer(indexBufferId);
+        MemoryUtil.memFree(lightData);
+        MemoryUtil.memFree(clusterData);
+        MemoryUtil.memFree(indexData);
+    }
+
+    /**
+     * Bins the lights into the clusters of a range of depth slices. Its clusters are consecutive, so the task
+     * writes their counts and indices without synchronization.
+     */
+    private class BinningTask implements Runnable {
+
+        private final int firstSlice;
+
+        private final int endSlice;
+
+        private final int firstCluster;
+
+        private final int endCluster;
+
+        private final int[] counts;
+
+        private int[] indices;
+
+        private int numIndices;
+
+        BinningTask(int firstSlice, int endSlice) {
+            this.firstSlice = firstSlice;
+            this.endSlice = endSlice;
+            firstCluster = firstSlice * CLUSTERS_X * CLUSTERS_Y;
+            endCluster = endSlice * CLUSTERS_X * CLUSTERS_Y;
+            counts = new int[endCluster - firstCluster];
+            indices = new int[256];
+        }
+
+        @Override
+        public void run() {
+            numIndices = 0;
+            for (int z = firstSlice; z < endSlice; z++) {
+                int sliceBounds = z * CLUSTERS_X * CLUSTERS_Y * 6;
+                // All the clusters of a slice have the same depth range
+                float sliceMinZ = clusterBounds[sliceBounds + 2];
+                float sliceMaxZ = clusterBounds[sliceBounds + 5];
+                for (int tile = 0; tile < CLUSTERS_X * CLUSTERS_Y; tile++) {
+                    int cluster = z * CLUSTERS_X * CLUSTERS_Y + tile;
+                    int bounds = cluster * 6;
+                    int count = 0;
+                    for (int light = 0; light < numLights; light++) {
+                        int sphere = light * 4;
+                        float lightZ = lightSpheres[sphere + 2];
+                        float range = lightSpheres[sphere + 3];
+                        if (lightZ + range < sliceMinZ || lightZ - range > sliceMaxZ
+                                || !intersects(bounds, lightSpheres[sphere], lightSpheres[sphere + 1], lightZ, range)) {
+                            continue;
+                        }
+                        if (numIndices == indices.length) {
+                            int[] newIndices = new int[indices.length * 2];
+                            System.arraycopy(indices, 0, newIndices, 0, numIndices);
+                            indices = newIndices;
+                        }
+                        indices[numIndices++] = light;
+                        count++;
+                    }
+                    counts[cluster - firstCluster] = count;
+                }
+            }
+        }
+
+        private boolean intersects(int bounds, float x, float y, float z, float radius) {
+            float distance = 0;
+            float dx = Math.max(clusterBounds[bounds] - x, Math.max(0, x - clusterBounds[bounds + 3]));
+            distance += dx * dx;
+            float dy = Math.max(clusterBounds[bounds + 1] - y, Math.max(0, y - clusterBounds[bounds + 4]));
+            distance += dy * dy;
+            float dz = Math.max(clusterBounds[bounds + 2] - z, Math.max(0, z - clusterBounds[bounds + 5]));
+            distance += dz * dz;
+            return distance <= radius * radius;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package org.lwjgl.engine.graph.lights;
+
+import org.joml.Vector3f;
+
+public class PointLight {
+
+    /**
+     * Contribution below which a light is considered to have no effect, used to calculate its range
+     */
+    private static final float MIN_CONTRIBUTION = 1.0f / 256.0f;
+
+    private Vector3f color;
+
+    /**
+     * Position in world coordinates
+     */
+    private Vector3f position;
+
+    private float intensity;
+
+    private Attenuation attenuation;
+
+    /**
+     * If the light casts shadows, rendered into the cube faces of the point shadow maps
+     */
+    private boolean shadowCaster;
+
+    public PointLight(Vector3f color, Vector3f position, float intensity, Attenuation attenuation) {
+        this.color = color;
+        this.position = position;
+        this.intensity = intensity;
+        this.attenuation = attenuation;
+    }
+
+    public PointLight(PointLight pointLight) {
+        this(new Vector3f(pointLight.getColor()), new Vector3f(pointLight.getPosition()),
+                pointLight.getIntensity(), new Attenuation(pointLight.getAttenuation()));
+        shadowCaster = pointLight.isShadowCaster();
+    }
+
+    public Vector3f getColor() {
+        return color;
+    }
+
+    public void setColor(Vector3f color) {
+        this.color = color;
+    }
+
+    public Vector3f getPosition() {
+        return position;
+    }
+
+    public void setPosition(Vector3f position) {
+        this.position = position;
+    }
+
+    public float getIntensity() {
+        return intensity;
+    }
+
+    public void setIntensity(float intensity) {
+        this.intensity = intensity;
+    }
+
+    public Attenuation getAttenuation() {
+        return attenuation;
+    }
+
+    public void setAttenuation(Attenuation attenuation) {
+        this.attenuation = attenuation;
+    }
+
+    public boolean isShadowCaster() {
+        return shadowCaster;
+    }
+
+    public void setShadowCaster(boolean shadowCaster) {
+        this.shadowCaster = shadowCaster;
+    }
+
+    /**
+     * @param maxRange Range returned if the light is not attenuated enough to ever fade out
+     * @return Distance at which the contribution of the light falls below the minimum
+     */
+    public float getRange(float maxRange) {
+        // Solves constant + linear * d + exponent * d^2 = intensity / MIN_CONTRIBUTION
+        float a = attenuation.getExponent();
+        float b = attenuation.getLinear();
+        float c = attenuation.getConstant() - intensity / MIN_CONTRIBUTION;
+        if (c >= 0) {
+            return 0;
+        }
+        float range;
+        if (a > 0) {
+            range = (-b + (float) Math.sqrt(b * b - 4 * a * c)) / (2 * a);
+        } else if (b > 0) {
+            range = -c / b;
+        } else {
+            return maxRange;
+        }
+        return Math.min(range, maxRange);
+    }
+
+    public static class Attenuation {
+
+        private float constant;
+
+        private float linear;
+
+        private float exponent;
+
+        public Attenuation(float constant, float linear, float exponent) {
+            this.constant = constant;
+            this.linear = linear;
+            this.exponent = exponent;
+        }
+
+        public Attenuation(Attenuation attenuation) {
+            this(attenuation.getConstant(), attenuation.getLinear(), attenuation.getExponent());
+        }
+
+        public float getConstant() {
+            return constant;
+        }
+
+        public void setConstant(float constant) {
+            this.constant = constant;
+        }
+
+        public float getLinear() {
+            return linear;
+        }
+
+        public void setLinear(float linear) {
+            this.linear = linear;
+        }
+
+        public float getExponent() {
+            return exponent;
+        }
+
+        public void setExponent(float exponent) {
+            this.exponent = exponent;
+        }
+    }
+}
@@ -12,6 +12,16 @@ public class SceneLight {
 
     private DirectionalLight directionalLight;
 
+    /**
+     * Point lights, evaluated per cluster by the clustered lighting. It is null if there are none.
+     */
+    private PointLight[] pointLightList;
+
+    /**
+     * Spot lights, evaluated per cluster by the clustered lighting. It is null if there are none.
+     */
+    private SpotLight[] spotLightList;
+
     public Vector3f getAmbientLight() {
         return ambientLight;
     }
@@ -28,6 +38,22 @@ public class SceneLight {
         this.directionalLight = directionalLight;
     }
 
+    public PointLight[] getPointLightList() {
+        return pointLightList;
+    }
+
+    public void setPointLightList(PointLight[] pointLightList) {
+        this.pointLightList = pointLightList;
+    }
+
+    public SpotLight[] getSpotLightList() {
+        return spotLightList;
+    }
+
+    public void setSpotLightList(SpotLight[] spotLightList) {
+        this.spotLightList = spotLightList;
+    }
+
     public Vector3f getSkyBoxLight() {
         return skyBoxLight;
     }
@@ -0,0 +1,63 @@
+package org.lwjgl.engine.graph.lights;
+
+import org.joml.Vector3f;
+
+/**
+ * A point light that only lights the inside of a cone.
+ */
+public class SpotLight {
+
+    private PointLight pointLight;
+
+    /**
+     * Direction of the axis of the cone in world coordinates
+     */
+    private Vector3f coneDirection;
+
+    /**
+     * Cosine of the angle between the axis and the border of the cone
+     */
+    private float cutOff;
+
+    /**
+     * @param cutOffAngle Angle between the axis and the border of the cone, in degrees
+     */
+    public SpotLight(PointLight pointLight, Vector3f coneDirection, float cutOffAngle) {
+        this.pointLight = pointLight;
+        this.coneDirection = coneDirection;
+        setCutOffAngle(cutOffAngle);
+    }
+
+    public SpotLight(SpotLight spotLight) {
+        this(new PointLight(spotLight.getPointLight()), new Vector3f(spotLight.getConeDirection()), 0);
+        setCutOff(spotLight.getCutOff());
+    }
+
+    public PointLight getPointLight() {
+        return pointLight;
+    }
+
+    public void setPointLight(PointLight pointLight) {
+        this.pointLight = pointLight;
+    }
+
+    public Vector3f getConeDirection() {
+        return coneDirection;
+    }
+
+    public void setConeDirection(Vector3f coneDirection) {
+        this.coneDirection = coneDirection;
+    }
+
+    public float getCutOff() {
+        return cutOff;
+    }
+
+    public void setCutOff(float cutOff) {
+        this.cutOff = cutOff;
+    }
+
+    public final void setCutOffAngle(float cutOffAngle) {
+        this.setCutOff((float) Math.cos(Math.toRadians(cutOffAngle)));
+    }
+}
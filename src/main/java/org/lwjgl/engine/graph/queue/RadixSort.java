@@ -0,0 +1,83 @@
+package org.lwjgl.engine.graph.queue;
+
+import java.util.Arrays;
+
+/**
+ * LSD radix sort of 64 bit keys with an int payload. Passes whose digit is the same for all the keys are
+ * skipped, so keys that only differ in a few fields are sorted with a couple of passes.
+ */
+public class RadixSort {
+
+    private static final int DIGIT_BITS = 8;
+
+    private static final int NUM_BUCKETS = 1 << DIGIT_BITS;
+
+    private static final int NUM_PASSES = Long.SIZE / DIGIT_BITS;
+
+    private long[] tmpKeys;
+
+    private int[] tmpValues;
+
+    private final int[] counts;
+
+    public RadixSort() {
+        tmpKeys = new long[0];
+        tmpValues = new int[0];
+        counts = new int[NUM_BUCKETS];
+    }
+
+    /**
+     * Sorts the first n keys in ascending (unsigned) order, moving the values along with them.
+     *
+     * @param keys Keys to sort
+     * @param values Payload of each key
+     * @param n Number of elements to sort
+     */
+    public void sort(long[] keys, int[] values, int n) {
+        if (tmpKeys.length < n) {
+            tmpKeys = new long[n];
+            tmpValues = new int[n];
+        }
+
+        long[] srcKeys = keys;
+        int[] srcValues = values;
+        long[] dstKeys = tmpKeys;
+        int[] dstValues = tmpValues;
+        for (int pass = 0; pass < NUM_PASSES; pass++) {
+            int shift = pass * DIGIT_BITS;
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < n; i++) {
+                counts[(int) (srcKeys[i] >>> shift) & (NUM_BUCKETS - 1)]++;
+            }
+            if (n == 0 || counts[(int) (srcKeys[0] >>> shift) & (NUM_BUCKETS - 1)] == n) {
+                // All the keys share this digit
+                continue;
+            }
+
+            int total = 0;
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                int count = counts[i];
+                counts[i] = total;
+                total += count;
+            }
+            for (int i = 0; i < n; i++) {
+                int bucket = (int) (srcKeys[i] >>> shift) & (NUM_BUCKETS - 1);
+                int dst = counts[bucket]++;
+                dstKeys[dst] = srcKeys[i];
+                dstValues[dst] = srcValues[i];
+            }
+
+            long[] auxKeys = srcKeys;
+            srcKeys = dstKeys;
+            dstKeys = auxKeys;
+            int[] auxValues = srcValues;
+            srcValues = dstValues;
+            dstValues = auxValues;
+        }
+
+        if (srcKeys != keys) {
+            System.arraycopy(srcKeys, 0, keys, 0, n);
+            System.arraycopy(srcValues, 0, values, 0, n);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package org.lwjgl.engine.graph.queue;
+
+import org.lwjgl.engine.graph.Material;
+import org.lwjgl.engine.graph.Mesh;
+import org.lwjgl.engine.graph.indirect.MaterialGroup;
+import org.lwjgl.engine.items.GameItem;
+
+import java.util.List;
+
+/**
+ * A draw group of the render queue: a mesh with its items, a static batch or a material group of the geometry arena.
+ */
+public class RenderEntry {
+
+    public enum Type {
+        MESH, INSTANCED_MESH, STATIC_BATCH, INDIRECT
+    }
+
+    private final Type type;
+
+    private final Material material;
+
+    private final Mesh mesh;
+
+    private List<GameItem> gameItems;
+
+    private final MaterialGroup materialGroup;
+
+    private int pass;
+
+    private int shader;
+
+    private float depth;
+
+    private long key;
+
+    public RenderEntry(Type type, Mesh mesh, List<GameItem> gameItems) {
+        this.type = type;
+        this.material = mesh.getMaterial();
+        this.mesh = mesh;
+        this.gameItems = gameItems;
+        this.materialGroup = null;
+    }
+
+    public RenderEntry(MaterialGroup materialGroup) {
+        this.type = Type.INDIRECT;
+        this.material = materialGroup.getMaterial();
+        this.mesh = null;
+        this.gameItems = null;
+        this.materialGroup = materialGroup;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public Material getMaterial() {
+        return material;
+    }
+
+    public Mesh getMesh() {
+        return mesh;
+    }
+
+    public List<GameItem> getGameItems() {
+        return gameItems;
+    }
+
+    public void setGameItems(List<GameItem> gameItems) {
+        this.gameItems = gameItems;
+    }
+
+    public MaterialGroup getMaterialGroup() {
+        return materialGroup;
+    }
+
+    public int getPass() {
+        return pass;
+    }
+
+    public void setPass(int pass) {
+        this.pass = pass;
+    }
+
+    public int getShader() {
+        return shader;
+    }
+
+    public void setShader(int shader) {
+        this.shader = shader;
+    }
+
+    /**
+     * @return View space depth used to order entries that share pass, shader, material and VAO
+     */
+    public float getDepth() {
+        return depth;
+    }
+
+    public void setDepth(float depth) {
+        this.depth = depth;
+    }
+
+    public long getKey() {
+        return key;
+    }
+
+    void setKey(long key) {
+        this.key = key;
+    }
+}
@@ -0,0 +1,219 @@
+package org.lwjgl.engine.graph.queue;
+
+import org.lwjgl.engine.graph.Material;
+import org.lwjgl.engine.graph.Mesh;
+import org.lwjgl.engine.graph.indirect.MaterialGroup;
+import org.lwjgl.engine.items.GameItem;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistent list of draw groups ordered by a 64 bit sort key. Entries are kept across frames, only the keys that
+ * change are recalculated and the queue is only sorted again when a key changes.
+ * <p>
+ * Opaque keys hold, from the most to the least significant bits, the pass, a coarse depth bucket, the shader, the
+ * material, the VAO and the depth, so opaque geometry is drawn roughly front to back while still grouping state.
+ * Transparent keys hold the pass, the inverted depth, the shader, the material and the VAO, so transparent geometry
+ * is drawn strictly back to front.
+ */
+public class RenderQueue {
+
+    public static final int PASS_OPAQUE = 0;
+
+    public static final int PASS_TRANSPARENT = 1;
+
+    private static final int VAO_BITS = 16;
+
+    private static final int MATERIAL_BITS = 16;
+
+    private static final int SHADER_BITS = 8;
+
+    private static final int PASS_BITS = 4;
+
+    private static final int BUCKET_BITS = 4;
+
+    private static final int OPAQUE_DEPTH_BITS = 16;
+
+    private static final int TRANSPARENT_DEPTH_BITS = 20;
+
+    private static final int PASS_SHIFT = Long.SIZE - PASS_BITS;
+
+    private static final int MAX_BUCKET = (1 << BUCKET_BITS) - 1;
+
+    private final float maxDepth;
+
+    private final Map<Object, RenderEntry> entriesBySource;
+
+    private final Set<Object> updatedSources;
+
+    private final List<RenderEntry> entries;
+
+    private final Map<Material, Integer> materialIds;
+
+    private final RadixSort radixSort;
+
+    private long[] sortKeys;
+
+    private int[] order;
+
+    private boolean dirty;
+
+    /**
+     * @param maxDepth Depth mapped to the largest depth value of the key. Deeper entries are clamped
+     */
+    public RenderQueue(float maxDepth) {
+        this.maxDepth = maxDepth;
+        entriesBySource = new HashMap<>();
+        updatedSources = new HashSet<>();
+        entries = new ArrayList<>();
+        materialIds = new HashMap<>();
+        radixSort = new RadixSort();
+        sortKeys = new long[0];
+        order = new int[0];
+    }
+
+    /**
+     * Starts updating the set of entries. Entries whose source is not added again before {@link #endUpdate()}
+     * are removed, the rest are kept.
+     */
+    public void beginUpdate() {
+        updatedSources.clear();
+    }
+
+    public RenderEntry add(Object source, RenderEntry.Type type, Mesh mesh, List<GameItem> gameItems) {
+        updatedSources.add(source);
+        RenderEntry entry = entriesBySource.get(source);
+        if (entry != null && entry.getType() == type && entry.getMesh() == mesh) {
+            entry.setGameItems(gameItems);
+            return entry;
+        }
+        return put(source, new RenderEntry(type, mesh, gameItems));
+    }
+
+    public RenderEntry add(Object source, MaterialGroup materialGroup) {
+        updatedSources.add(source);
+        RenderEntry entry = entriesBySource.get(source);
+        if (entry != null && entry.getMaterialGroup() == materialGroup) {
+            return entry;
+        }
+        return put(source, new RenderEntry(materialGroup));
+    }
+
+    private RenderEntry put(Object source, RenderEntry entry) {
+        RenderEntry oldEntry = entriesBySource.put(source, entry);
+        if (oldEntry != null) {
+            entries.remove(oldEntry);
+        }
+        entries.add(entry);
+        updateKey(entry);
+        dirty = true;
+        return entry;
+    }
+
+    public void endUpdate() {
+        Iterator<Map.Entry<Object, RenderEntry>> it = entriesBySource.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Object, RenderEntry> mapEntry = it.next();
+            if (!updatedSources.contains(mapEntry.getKey())) {
+                entries.remove(mapEntry.getValue());
+                it.remove();
+                dirty = true;
+            }
+        }
+    }
+
+    public List<RenderEntry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Recalculates the key of an entry after its pass, shader or depth have been modified.
+     *
+     * @param entry The entry to update
+     */
+    public void updateKey(RenderEntry entry) {
+        long state = ((long) (entry.getShader() & ((1 << SHADER_BITS) - 1)) << (MATERIAL_BITS + VAO_BITS))
+                | ((long) (getMaterialId(entry.getMaterial()) & ((1 << MATERIAL_BITS) - 1)) << VAO_BITS)
+                | (getVaoId(entry) & ((1 << VAO_BITS) - 1));
+        long key = (long) (entry.getPass() & ((1 << PASS_BITS) - 1)) << PASS_SHIFT;
+        if (entry.getPass() == PASS_TRANSPARENT) {
+            long maxDepthValue = (1L << TRANSPARENT_DEPTH_BITS) - 1;
+            key |= (maxDepthValue - quantizeDepth(entry.getDepth(), TRANSPARENT_DEPTH_BITS)) << (PASS_SHIFT - TRANSPARENT_DEPTH_BITS)
+                    | state;
+        } else {
+            key |= (long) getDepthBucket(entry.getDepth()) << (PASS_SHIFT - BUCKET_BITS)
+                    | state << OPAQUE_DEPTH_BITS
+                    | quantizeDepth(entry.getDepth(), OPAQUE_DEPTH_BITS);
+        }
+        if (key != entry.getKey()) {
+            entry.setKey(key);
+            dirty = true;
+        }
+    }
+
+    private int getMaterialId(Material material) {
+        Integer id = materialIds.get(material);
+        if (id == null) {
+            id = materialIds.size();
+            materialIds.put(material, id);
+        }
+        return id;
+    }
+
+    private static int getVaoId(RenderEntry entry) {
+        // Material groups are all drawn with the VAO of the geometry arena
+        Mesh mesh = entry.getMesh();
+        return mesh != null ? mesh.getVaoId() : 0;
+    }
+
+    /**
+     * Buckets grow exponentially with the distance, so close geometry is ordered more finely.
+     */
+    private static int getDepthBucket(float depth) {
+        int bucket = 32 - Integer.numberOfLeadingZeros((int) Math.max(0.0f, depth));
+        return Math.min(bucket, MAX_BUCKET);
+    }
+
+    private long quantizeDepth(float depth, int bits) {
+        float normalized = Math.max(0.0f, Math.min(1.0f, depth / maxDepth));
+        return (long) (normalized * ((1 << bits) - 1));
+    }
+
+    /**
+     * Sorts the entries if any key has changed since the last sort.
+     */
+    public void sort() {
+        if (!dirty) {
+            return;
+        }
+        int n = entries.size();
+        if (sortKeys.length < n) {
+            sortKeys = new long[n];
+            order = new int[n];
+        }
+        for (int i = 0; i < n; i++) {
+            sortKeys[i] = entries.get(i).getKey();
+            order[i] = i;
+        }
+        radixSort.sort(sortKeys, order, n);
+        dirty = false;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @param i Position in sorted order
+     * @return The entry at that position
+     */
+    public RenderEntry get(int i) {
+        return entries.get(order[i]);
+    }
+}
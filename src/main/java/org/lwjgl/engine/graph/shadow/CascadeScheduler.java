@@ -0,0 +1,136 @@
+package org.lwjgl.engine.graph.shadow;
+
+import java.util.Arrays;
+
+/**
+ * Decides which cascades are refreshed in each shadow update. The near cascade is refreshed every update and the
+ * far ones once every their interval, taking turns, so only a few cascades are rendered in the same frame and the
+ * cost of the shadows does not grow with the number of cascades. A cascade that is not refreshed keeps its
+ * matrices, so the scene still samples its depth map correctly, only with older content.
+ */
+public class CascadeScheduler {
+
+    /**
+     * Cascades with an interval above one refreshed in the same update, unless they are forced
+     */
+    private static final int MAX_STAGGERED_UPDATES = 1;
+
+    private final int[] intervals;
+
+    private int intervalScale;
+
+    /**
+     * Updates since each cascade was refreshed
+     */
+    private final int[] ages;
+
+    /**
+     * Cascades that have not been refreshed since the scene or the view last changed
+     */
+    private final boolean[] stale;
+
+    /**
+     * Cascades that must be refreshed in the next update regardless of their interval, because the settings changed
+     */
+    private final boolean[] forced;
+
+    public CascadeScheduler(int numCascades) {
+        intervals = new int[numCascades];
+        Arrays.fill(intervals, 1);
+        intervalScale = 1;
+        ages = new int[numCascades];
+        stale = new boolean[numCascades];
+        forced = new boolean[numCascades];
+        Arrays.fill(forced, true);
+    }
+
+    /**
+     * @param intervals Number of updates between the refreshes of each cascade, starting at the near one. Missing
+     *                  cascades use the last interval.
+     */
+    public void setIntervals(int[] intervals) {
+        for (int i = 0; i < this.intervals.length; i++) {
+            int interval = intervals[Math.min(i, intervals.length - 1)];
+            this.intervals[i] = Math.max(1, interval);
+        }
+    }
+
+    /**
+     * Multiplies the intervals of all the cascades but the first, to lower the cost of the shadows.
+     */
+    public void setIntervalScale(int intervalScale) {
+        this.intervalScale = Math.max(1, intervalScale);
+    }
+
+    public int getInterval(int cascade) {
+        return cascade == 0 ? intervals[0] : intervals[cascade] * intervalScale;
+    }
+
+    /**
+     * Refreshes every cascade in the next update.
+     */
+    public void forceAll() {
+        Arrays.fill(forced, true);
+    }
+
+    /**
+     * @return If some cascade has to be refreshed even if nothing changes, because it is stale or forced
+     */
+    public boolean isUpdatePending(int numCascades) {
+        for (int i = 0; i < numCascades; i++) {
+            if (stale[i] || forced[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Chooses the cascades to refresh in this update. Among the stale cascades whose interval has passed, the
+     * ones that are most overdue go first.
+     *
+     * @param numCascades Number of cascades in use
+     * @param changed If the scene or the view changed since the last update, which makes all the cascades stale
+     * @return Bit mask of the cascades to refresh
+     */
+    public int schedule(int numCascades, boolean changed) {
+        if (changed) {
+            Arrays.fill(stale, 0, numCascades, true);
+        }
+        int mask = 0;
+        for (int i = 0; i < numCascades; i++) {
+            ages[i]++;
+            if (forced[i] || stale[i] && getInterval(i) == 1) {
+                mask |= 1 << i;
+            }
+        }
+        for (int n = 0; n < MAX_STAGGERED_UPDATES; n++) {
+            int next = -1;
+            float nextPriority = 0;
+            for (int i = 0; i < numCascades; i++) {
+                int interval = getInterval(i);
+                if ((mask & (1 << i)) != 0 || !stale[i] || ages[i] < interval) {
+                    continue;
+                }
+                // Ties go to the farthest cascade, the one refreshed the least often
+                float priority = (float) ages[i] / interval;
+                if (priority >= nextPriority) {
+                    next = i;
+                    nextPriority = priority;
+                }
+            }
+            if (next < 0) {
+                break;
+            }
+            mask |= 1 << next;
+        }
+        for (int i = 0; i < numCascades; i++) {
+            if ((mask & (1 << i)) != 0) {
+                ages[i] = 0;
+                stale[i] = false;
+                forced[i] = false;
+            }
+        }
+        return mask;
+    }
+}
@@ -0,0 +1,95 @@
+package org.lwjgl.engine.graph.shadow;
+
+import org.lwjgl.engine.graph.FrameUniforms;
+import org.lwjgl.engine.graph.ShaderProgram;
+import org.lwjgl.engine.graph.uniform.FloatUniform;
+import org.lwjgl.engine.graph.uniform.IntUniform;
+import org.lwjgl.engine.graph.uniform.Matrix4fUniform;
+import org.lwjgl.engine.graph.uniform.Vector3fUniform;
+import org.lwjgl.opengl.GLCapabilities;
+
+/**
+ * A variant of the depth shader with its uniform handles.
+ */
+public class DepthShader {
+
+    /**
+     * Model matrices come from the instance attributes instead of a uniform
+     */
+    public static final int INSTANCED = 1;
+
+    /**
+     * Positions are projected with the camera instead of a cascade, for the depth pre-pass of the scene
+     */
+    public static final int CAMERA = 1 << 1;
+
+    /**
+     * The vertex shader sends the primitives to the layer of their cascade, so all the cascades are drawn into the
+     * depth texture array at once. Instanced draws take the cascade of each instance from its attributes.
+     */
+    public static final int LAYERED = 1 << 2;
+
+    /**
+     * Positions are projected with the matrix of a cube face of a point light, and the depth written is the
+     * distance to the light divided by its range
+     */
+    public static final int POINT = 1 << 3;
+
+    public static final String[] FEATURE_DEFINES = {"INSTANCED", "CAMERA", "LAYERED", "POINT"};
+
+    /**
+     * @param caps Capabilities of the current context
+     * @return true if the vertex shader can select the layer, which the {@link #LAYERED} variants need
+     */
+    public static boolean isLayeredSupported(GLCapabilities caps) {
+        return caps.GL_ARB_shader_viewport_layer_array || caps.GL_AMD_vertex_shader_layer;
+    }
+
+    private final ShaderProgram shaderProgram;
+
+    private final Matrix4fUniform modelNonInstancedMatrixUniform;
+
+    private final IntUniform cascadeIndexUniform;
+
+    private final Matrix4fUniform faceMatrixUniform;
+
+    private final Vector3fUniform lightPositionUniform;
+
+    private final FloatUniform lightRangeUniform;
+
+    public DepthShader(ShaderProgram shaderProgram) throws Exception {
+        this.shaderProgram = shaderProgram;
+
+        modelNonInstancedMatrixUniform = shaderProgram.createMatrix4fUniform("modelNonInstancedMatrix");
+        // The cascade matrices come from the per frame uniform block
+        FrameUniforms.bindBlock(shaderProgram);
+        cascadeIndexUniform = shaderProgram.createIntUniform("cascadeIndex");
+        faceMatrixUniform = shaderProgram.createMatrix4fUniform("faceMatrix");
+        lightPositionUniform = shaderProgram.createVector3fUniform("lightPosition");
+        lightRangeUniform = shaderProgram.createFloatUniform("lightRange");
+    }
+
+    public ShaderProgram getShaderProgram() {
+        return shaderProgram;
+    }
+
+    public Matrix4fUniform getModelNonInstancedMatrixUniform() {
+        return modelNonInstancedMatrixUniform;
+    }
+
+    public IntUniform getCascadeIndexUniform() {
+        return cascadeIndexUniform;
+    }
+
+    public Matrix4fUniform getFaceMatrixUniform() {
+        return faceMatrixUniform;
+    }
+
+    public Vector3fUniform getLightPositionUniform() {
+        return lightPositionUniform;
+    }
+
+    public FloatUniform getLightRangeUniform() {
+        return lightRangeUniform;
+    }
+}
@@ -0,0 +1,488 @@
+package org.lwjgl.engine.graph.shadow;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.lwjgl.engine.Metrics;
+import org.lwjgl.engine.Scene;
+import org.lwjgl.engine.Window;
+import org.lwjgl.engine.graph.*;
+import org.lwjgl.engine.graph.batch.StaticBatch;
+import org.lwjgl.engine.graph.lights.PointLight;
+import org.lwjgl.engine.graph.lights.SceneLight;
+import org.lwjgl.engine.graph.lights.SpotLight;
+import org.lwjgl.engine.items.GameItem;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.GL_CLAMP_TO_EDGE;
+import static org.lwjgl.opengl.GL12.glTexImage3D;
+import static org.lwjgl.opengl.GL14.GL_DEPTH_COMPONENT16;
+import static org.lwjgl.opengl.GL14.GL_TEXTURE_COMPARE_MODE;
+import static org.lwjgl.opengl.GL30.*;
+
+/**
+ * Shadows of the point lights. Each shadow casting light gets a slot of six layers in a depth texture array, one
+ * per cube face, holding the distance to the light divided by its range. Faces are cached: a face is only
+ * rendered again when the light moves or a caster that overlaps it changes, and the faces rendered per frame are
+ * limited by a budget, the lights with the largest contribution to the screen first.
+ */
+public class PointShadowRenderer {
+
+    public static final int MAX_LIGHTS = 8;
+
+    public static final int NUM_FACES = 6;
+
+    public static final int FACE_SIZE = 512;
+
+    /**
+     * Distance from the light where the faces start
+     */
+    private static final float FACE_NEAR = 0.05f;
+
+    /**
+     * Axis and sign of each face, in the order of the cube map targets: +X, -X, +Y, -Y, +Z and -Z
+     */
+    private static final Vector3f[] FACE_DIRECTIONS = {
+            new Vector3f(1, 0, 0), new Vector3f(-1, 0, 0), new Vector3f(0, 1, 0),
+            new Vector3f(0, -1, 0), new Vector3f(0, 0, 1), new Vector3f(0, 0, -1)
+    };
+
+    private static final Vector3f[] FACE_UPS = {
+            new Vector3f(0, -1, 0), new Vector3f(0, -1, 0), new Vector3f(0, 0, 1),
+            new Vector3f(0, 0, -1), new Vector3f(0, -1, 0), new Vector3f(0, -1, 0)
+    };
+
+    private static final float SQRT_2 = (float) Math.sqrt(2);
+
+    private ShaderVariants<DepthShader> depthShaders;
+
+    private DepthShader depthShader;
+
+    private final int depthMapId;
+
+    /**
+     * Framebuffers with one face attached
+     */
+    private final int[] faceFBOs;
+
+    /**
+     * Faces rendered per frame at most
+     */
+    private final int faceBudget;
+
+    /**
+     * Light of each slot. It is null if the slot is free.
+     */
+    private final PointLight[] slotLights;
+
+    /**
+     * Position and range of the light of each slot when its faces were rendered
+     */
+    private final Vector3f[] slotPositions;
+
+    private final float[] slotRanges;
+
+    /**
+     * If all the faces of the slot have been rendered for its light. Until then the light has no shadows.
+     */
+    private final boolean[] slotReady;
+
+    /**
+     * Sum of the versions of the casters that overlap each face when it was rendered, and now
+     */
+    private final long[] renderedVersions;
+
+    private final long[] faceVersions;
+
+    private final boolean[] faceValid;
+
+    private final List<PointLight> candidates;
+
+    private final float[] priorities;
+
+    private final Matrix4f faceMatrix;
+
+    private final Matrix4f projectionMatrix;
+
+    private final Matrix4f identityMatrix;
+
+    private final List<GameItem> filteredItems;
+
+    private final Vector3f tmpVec;
+
+    private int sceneVersion;
+
+    private int modificationCount;
+
+    private boolean slotsChanged;
+
+    /**
+     * @param faceBudget Faces rendered per frame at most
+     */
+    public PointShadowRenderer(int faceBudget) throws Exception {
+        this.faceBudget = Math.max(1, faceBudget);
+        slotLights = new PointLight[MAX_LIGHTS];
+        slotPositions = new Vector3f[MAX_LIGHTS];
+        for (int i = 0; i < MAX_LIGHTS; i++) {
+            slotPositions[i] = new Vector3f();
+        }
+        slotRanges = new float[MAX_LIGHTS];
+        slotReady = new boolean[MAX_LIGHTS];
+        renderedVersions = new long[MAX_LIGHTS * NUM_FACES];
+        faceVersions = new long[MAX_LIGHTS * NUM_FACES];
+        faceValid = new boolean[MAX_LIGHTS * NUM_FACES];
+        candidates = new ArrayList<>();
+        priorities = new float[MAX_LIGHTS];
+        faceMatrix = new Matrix4f();
+        projectionMatrix = new Matrix4f();
+        identityMatrix = new Matrix4f();
+        filteredItems = new ArrayList<>();
+        tmpVec = new Vector3f();
+        sceneVersion = -1;
+        modificationCount = -1;
+
+        depthMapId = glGenTextures();
+        GLState.bindTexture(GL_TEXTURE_2D_ARRAY, depthMapId);
+        glTexImage3D(GL_TEXTURE_2D_ARRAY, 0, GL_DEPTH_COMPONENT16, FACE_SIZE, FACE_SIZE, MAX_LIGHTS * NUM_FACES, 0,
+                GL_DEPTH_COMPONENT, GL_UNSIGNED_SHORT, (ByteBuffer) null);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_COMPARE_MODE, GL_NONE);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+
+        faceFBOs = new int[MAX_LIGHTS * NUM_FACES];
+        glGenFramebuffers(faceFBOs);
+        for (int i = 0; i < faceFBOs.length; i++) {
+            GLState.bindFramebuffer(faceFBOs[i]);
+            glFramebufferTextureLayer(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, depthMapId, 0, i);
+            // Set only depth
+            glDrawBuffer(GL_NONE);
+            glReadBuffer(GL_NONE);
+            if (glCheckFramebufferStatus(GL_FRAMEBUFFER) != GL_FRAMEBUFFER_COMPLETE) {
+                throw new Exception("Could not create FrameBuffer");
+            }
+        }
+        GLState.bindFramebuffer(0);
+    }
+
+    public void init(ShaderPreprocessor shaderPreprocessor, ProgramCache programCache) throws Exception {
+        depthShaders = new ShaderVariants<>(shaderPreprocessor, programCache, "depth_vertex.vs", "depth_fragment.fs",
+                DepthShader.FEATURE_DEFINES, (ShaderProgram shaderProgram, int features) -> new DepthShader(shaderProgram));
+        depthShaders.prepare(DepthShader.POINT);
+        depthShaders.prepare(DepthShader.POINT | DepthShader.INSTANCED);
+    }
+
+    /**
+     * @return First layer of the faces of a light, or -1 if the light has no shadows this frame
+     */
+    public int getFirstLayer(PointLight pointLight) {
+        int slot = getSlot(pointLight);
+        return slot >= 0 && slotReady[slot] ? slot * NUM_FACES : -1;
+    }
+
+    private int getSlot(PointLight pointLight) {
+        for (int i = 0; i < MAX_LIGHTS; i++) {
+            if (slotLights[i] == pointLight) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gives the slots to the shadow casting lights with the largest contribution to the screen and invalidates
+     * the faces whose light or casters have changed.
+     */
+    public void update(Scene scene, Vector3f cameraPosition) {
+        SceneLight sceneLight = scene.getSceneLight();
+        PointLight[] pointLights = sceneLight != null ? sceneLight.getPointLightList() : null;
+        SpotLight[] spotLights = sceneLight != null ? sceneLight.getSpotLightList() : null;
+        candidates.clear();
+        Arrays.fill(priorities, 0);
+        if (pointLights != null) {
+            for (PointLight pointLight : pointLights) {
+                if (pointLight.isShadowCaster()) {
+                    addCandidate(pointLight, getPriority(pointLight, cameraPosition));
+                }
+            }
+        }
+        if (spotLights != null) {
+            // The cone is ignored, the faces outside it are rendered too
+            for (SpotLight spotLight : spotLights) {
+                PointLight pointLight = spotLight.getPointLight();
+                if (pointLight.isShadowCaster()) {
+                    addCandidate(pointLight, getPriority(pointLight, cameraPosition));
+                }
+            }
+        }
+        assignSlots();
+
+        for (int slot = 0; slot < MAX_LIGHTS; slot++) {
+            PointLight pointLight = slotLights[slot];
+            if (pointLight == null) {
+                continue;
+            }
+            float range = pointLight.getRange(Window.Z_FAR);
+            if (!pointLight.getPosition().equals(slotPositions[slot]) || range != slotRanges[slot]) {
+                slotPositions[slot].set(pointLight.getPosition());
+                slotRanges[slot] = range;
+                Arrays.fill(faceValid, slot * NUM_FACES, (slot + 1) * NUM_FACES, false);
+                // The casters around the light are different
+                slotsChanged = true;
+            }
+        }
+        checkCasters(scene);
+    }
+
+    /**
+     * @return Approximate contribution of a light to the screen, its intensity times its solid angle
+     */
+    private static float getPriority(PointLight pointLight, Vector3f cameraPosition) {
+        float range = pointLight.getRange(Window.Z_FAR);
+        float distanceSquared = Math.max(pointLight.getPosition().distanceSquared(cameraPosition), 1.0f);
+        return pointLight.getIntensity() * range * range / distanceSquared;
+    }
+
+    /**
+     * Keeps the candidates sorted by decreasing priority, up to the number of slots.
+     */
+    private void addCandidate(PointLight pointLight, float priority) {
+        int numCandidates = candidates.size();
+        if (numCandidates == MAX_LIGHTS && priority <= priorities[MAX_LIGHTS - 1]) {
+            return;
+        }
+        int pos = Math.min(numCandidates, MAX_LIGHTS - 1);
+        while (pos > 0 && priorities[pos - 1] < priority) {
+            pos--;
+        }
+        if (numCandidates == MAX_LIGHTS) {
+            candidates.remove(MAX_LIGHTS - 1);
+        }
+        System.arraycopy(priorities, pos, priorities, pos + 1, MAX_LIGHTS - 1 - pos);
+        priorities[pos] = priority;
+        candidates.add(pos, pointLight);
+    }
+
+    /**
+     * Lights that keep a slot keep their faces. The other slots are given to the new candidates.
+     */
+    private void assignSlots() {
+        for (int slot = 0; slot < MAX_LIGHTS; slot++) {
+            if (slotLights[slot] != null && !candidates.contains(slotLights[slot])) {
+                slotLights[slot] = null;
+                slotsChanged = true;
+            }
+        }
+        for (PointLight pointLight : candidates) {
+            if (getSlot(pointLight) >= 0) {
+                continue;
+            }
+            for (int slot = 0; slot < MAX_LIGHTS; slot++) {
+                if (slotLights[slot] == null) {
+                    slotLights[slot] = pointLight;
+                    slotReady[slot] = false;
+                    // The position is set again before the faces are rendered
+                    slotPositions[slot].set(Float.NaN);
+                    Arrays.fill(faceValid, slot * NUM_FACES, (slot + 1) * NUM_FACES, false);
+                    slotsChanged = true;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Recalculates the versions of the casters of each face if items have been added, removed or modified, and
+     * invalidates the faces whose casters have changed.
+     */
+    private void checkCasters(Scene scene) {
+        if (!slotsChanged && scene.getVersion() == sceneVersion
+                && GameItem.getModificationCount() == modificationCount) {
+            return;
+        }
+        slotsChanged = false;
+        sceneVersion = scene.getVersion();
+        modificationCount = GameItem.getModificationCount();
+        Arrays.fill(faceVersions, 0);
+        for (Map.Entry<Mesh, List<GameItem>> entry : scene.getGameMeshes().entrySet()) {
+            addCasterVersions(entry.getValue(), entry.getKey().getBoundingRadius());
+        }
+        for (Map.Entry<InstancedMesh, List<GameItem>> entry : scene.getGameInstancedMeshes().entrySet()) {
+            addCasterVersions(entry.getValue(), entry.getKey().getBoundingRadius());
+        }
+        for (StaticBatch staticBatch : scene.getStaticBatches()) {
+            long version = 1;
+            for (StaticBatch.ItemRange itemRange : staticBatch.getItemRanges()) {
+                version += itemRange.getGameItem().getVersion();
+            }
+            addCasterVersion(staticBatch.getCenter(), staticBatch.getBoundingRadius(), version);
+        }
+        for (int i = 0; i < faceVersions.length; i++) {
+            if (faceVersions[i] != renderedVersions[i]) {
+                faceValid[i] = false;
+            }
+        }
+    }
+
+    private void addCasterVersions(List<GameItem> gameItems, float meshBoundingRadius) {
+        for (GameItem gameItem : gameItems) {
+            // The version is offset, so a caster that enters a face changes the sum even if it was never modified
+            addCasterVersion(gameItem.getPosition(), gameItem.getScale() * meshBoundingRadius,
+                    gameItem.getVersion() + 1L);
+        }
+    }
+
+    private void addCasterVersion(Vector3f center, float radius, long version) {
+        for (int slot = 0; slot < MAX_LIGHTS; slot++) {
+            PointLight pointLight = slotLights[slot];
+            if (pointLight == null) {
+                continue;
+            }
+            tmpVec.set(center).sub(pointLight.getPosition());
+            float range = pointLight.getRange(Window.Z_FAR) + radius;
+            if (tmpVec.lengthSquared() > range * range) {
+                continue;
+            }
+            for (int face = 0; face < NUM_FACES; face++) {
+                if (overlapsFace(face, tmpVec, radius)) {
+                    faceVersions[slot * NUM_FACES + face] += version;
+                }
+            }
+        }
+    }
+
+    /**
+     * Conservative test of a sphere against the pyramid of a face.
+     *
+     * @param offset Center of the sphere relative to the light
+     */
+    private static boolean overlapsFace(int face, Vector3f offset, float radius) {
+        int axis = face / 2;
+        float along = (face % 2 == 0 ? 1 : -1) * offset.get(axis);
+        if (along < -radius) {
+            return false;
+        }
+        float limit = along + radius * SQRT_2;
+        return Math.abs(offset.get((axis + 1) % 3)) <= limit && Math.abs(offset.get((axis + 2) % 3)) <= limit;
+    }
+
+    /**
+     * Renders the invalid faces within the budget, the ones of the lights with the largest contribution first.
+     */
+    public void render(Scene scene, Transformation transformation) {
+        int numInvalid = 0;
+        for (int slot = 0; slot < MAX_LIGHTS; slot++) {
+            for (int face = 0; face < NUM_FACES; face++) {
+                if (slotLights[slot] != null && !faceValid[slot * NUM_FACES + face]) {
+                    numInvalid++;
+                }
+            }
+        }
+        int numRendered = 0;
+        if (numInvalid > 0) {
+            GLState.viewport(0, 0, FACE_SIZE, FACE_SIZE);
+            // Candidates are sorted by priority
+            for (PointLight pointLight : candidates) {
+                int slot = getSlot(pointLight);
+                boolean ready = true;
+                for (int face = 0; face < NUM_FACES; face++) {
+                    int layer = slot * NUM_FACES + face;
+                    if (!faceValid[layer] && numRendered < faceBudget) {
+                        renderFace(scene, transformation, slot, face);
+                        faceValid[layer] = true;
+                        renderedVersions[layer] = faceVersions[layer];
+                        numRendered++;
+                    }
+                    ready &= faceValid[layer];
+                }
+                // Once ready, a light keeps its shadows while its faces are refreshed
+                slotReady[slot] |= ready;
+            }
+            GLState.useProgram(0);
+            GLState.bindFramebuffer(0);
+        }
+        if (Metrics.isSampling()) {
+            Metrics.set("point faces", numRendered + "/" + numInvalid);
+        }
+    }
+
+    private void renderFace(Scene scene, Transformation transformation, int slot, int face) {
+        Vector3f lightPosition = slotPositions[slot];
+        float range = slotRanges[slot];
+        projectionMatrix.setPerspective((float) Math.toRadians(90.0f), 1.0f, FACE_NEAR, range);
+        tmpVec.set(lightPosition).add(FACE_DIRECTIONS[face]);
+        faceMatrix.set(projectionMatrix).lookAt(lightPosition, tmpVec, FACE_UPS[face]);
+
+        GLState.bindFramebuffer(faceFBOs[slot * NUM_FACES + face]);
+        glClear(GL_DEPTH_BUFFER_BIT);
+
+        useDepthShader(0, lightPosition, range);
+        for (Map.Entry<Mesh, List<GameItem>> entry : scene.getGameMeshes().entrySet()) {
+            Mesh mesh = entry.getKey();
+            mesh.renderList(filterCasters(entry.getValue(), mesh.getBoundingRadius(), lightPosition, range, face),
+                    (GameItem gameItem) -> depthShader.getModelNonInstancedMatrixUniform()
+                            .set(transformation.buildModelMatrix(gameItem)));
+        }
+        depthShader.getModelNonInstancedMatrixUniform().set(identityMatrix);
+        for (StaticBatch staticBatch : scene.getStaticBatches()) {
+            if (isCaster(staticBatch.getCenter(), staticBatch.getBoundingRadius(), lightPosition, range, face)) {
+                staticBatch.render();
+            }
+        }
+
+        useDepthShader(DepthShader.INSTANCED, lightPosition, range);
+        for (Map.Entry<InstancedMesh, List<GameItem>> entry : scene.getGameInstancedMeshes().entrySet()) {
+            InstancedMesh mesh = entry.getKey();
+            mesh.renderListInstanced(filterCasters(entry.getValue(), mesh.getBoundingRadius(), lightPosition, range,
+                    face), transformation, null);
+        }
+    }
+
+    private void useDepthShader(int features, Vector3f lightPosition, float range) {
+        depthShader = depthShaders.get(DepthShader.POINT | features);
+        depthShader.getShaderProgram().bind();
+        depthShader.getFaceMatrixUniform().set(faceMatrix);
+        depthShader.getLightPositionUniform().set(lightPosition);
+        depthShader.getLightRangeUniform().set(range);
+    }
+
+    /**
+     * @return The items inside the range of the light that overlap the face. The returned list is reused by the
+     * next call.
+     */
+    private List<GameItem> filterCasters(List<GameItem> gameItems, float meshBoundingRadius, Vector3f lightPosition,
+                                         float range, int face) {
+        filteredItems.clear();
+        for (GameItem gameItem : gameItems) {
+            if (isCaster(gameItem.getPosition(), gameItem.getScale() * meshBoundingRadius, lightPosition, range,
+                    face)) {
+                filteredItems.add(gameItem);
+            }
+        }
+        return filteredItems;
+    }
+
+    private boolean isCaster(Vector3f center, float radius, Vector3f lightPosition, float range, int face) {
+        tmpVec.set(center).sub(lightPosition);
+        float maxDistance = range + radius;
+        return tmpVec.lengthSquared() <= maxDistance * maxDistance && overlapsFace(face, tmpVec, radius);
+    }
+
+    public void bindTextures(int unit) {
+        GLState.bindTexture(unit, GL_TEXTURE_2D_ARRAY, depthMapId);
+    }
+
+    public void cleanup() {
+        glDeleteFramebuffers(faceFBOs);
+        GLState.deleteTexture(depthMapId);
+        if (depthShaders != null) {
+            depthShaders.cleanup();
+        }
+    }
+}
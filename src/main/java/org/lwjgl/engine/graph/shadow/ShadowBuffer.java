@@ -1,62 +1,227 @@
 package org.lwjgl.engine.graph.shadow;
 
-import org.lwjgl.engine.graph.ArrTexture;
+import org.lwjgl.engine.graph.GLState;
+
+import java.nio.ByteBuffer;
 
 import static org.lwjgl.opengl.GL11.*;
-import static org.lwjgl.opengl.GL13.glActiveTexture;
+import static org.lwjgl.opengl.GL12.GL_CLAMP_TO_EDGE;
+import static org.lwjgl.opengl.GL12.glTexImage3D;
+import static org.lwjgl.opengl.GL14.GL_DEPTH_COMPONENT16;
+import static org.lwjgl.opengl.GL14.GL_DEPTH_COMPONENT24;
+import static org.lwjgl.opengl.GL14.GL_TEXTURE_COMPARE_MODE;
 import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL32.glFramebufferTexture;
 
+/**
+ * Depth maps of the cascades, stored as the layers of one texture array. The array can be attached whole, so all
+ * the cascades are rendered in one pass with the layer selected by the shader, or one layer at a time.
+ */
 public class ShadowBuffer {
 
-    public static final int SHADOW_MAP_WIDTH = (int)Math.pow(65, 2);
+    public static final int DEFAULT_SIZE = 2048;
+
+    /**
+     * Depth format of the maps, 16 or 24 bits
+     */
+    private final int depthBits;
+
+    private int size;
 
-    public static final int SHADOW_MAP_HEIGHT = SHADOW_MAP_WIDTH;
+    private int depthMapId;
 
+    /**
+     * Framebuffer with all the layers of the depth map attached
+     */
     private final int depthMapFBO;
 
-    private final ArrTexture depthMap;
+    /**
+     * Framebuffers with one layer of the depth map attached, to clear and copy single cascades
+     */
+    private final int[] layerFBOs;
+
+    /**
+     * Depth of the static casters of each cascade, copied to the depth map before the dynamic casters are drawn.
+     * They are 0 if shadow caching is disabled.
+     */
+    private int staticDepthMapId;
+
+    private int staticDepthMapFBO;
+
+    private int[] staticLayerFBOs;
+
+    /**
+     * @param size Width and height of each cascade in texels
+     * @param depthBits Precision of the depth, 16 or 24 bits
+     * @param staticLayer If the static caster layers of shadow caching have to be created
+     */
+    public ShadowBuffer(int size, int depthBits, boolean staticLayer) throws Exception {
+        this.size = size > 0 ? size : DEFAULT_SIZE;
+        this.depthBits = depthBits == 16 ? 16 : 24;
 
-    public ShadowBuffer() throws Exception {
-        // Create a FBO to render the depth map
         depthMapFBO = glGenFramebuffers();
+        layerFBOs = new int[ShadowRenderer.NUM_CASCADES];
+        glGenFramebuffers(layerFBOs);
+        if (staticLayer) {
+            staticDepthMapFBO = glGenFramebuffers();
+            staticLayerFBOs = new int[ShadowRenderer.NUM_CASCADES];
+            glGenFramebuffers(staticLayerFBOs);
+        }
+        createTextures();
+        checkFramebuffers();
+    }
 
-        // Create the depth map textures
-        depthMap = new ArrTexture(ShadowRenderer.NUM_CASCADES, SHADOW_MAP_WIDTH, SHADOW_MAP_HEIGHT, GL_DEPTH_COMPONENT);
+    private void createTextures() {
+        depthMapId = createDepthArray();
+        attach(depthMapFBO, layerFBOs, depthMapId);
+        if (staticLayerFBOs != null) {
+            staticDepthMapId = createDepthArray();
+            attach(staticDepthMapFBO, staticLayerFBOs, staticDepthMapId);
+        }
+        // Unbind
+        GLState.bindFramebuffer(0);
+    }
+
+    private int createDepthArray() {
+        int textureId = glGenTextures();
+        GLState.bindTexture(GL_TEXTURE_2D_ARRAY, textureId);
+        int internalFormat = depthBits == 16 ? GL_DEPTH_COMPONENT16 : GL_DEPTH_COMPONENT24;
+        int type = depthBits == 16 ? GL_UNSIGNED_SHORT : GL_UNSIGNED_INT;
+        glTexImage3D(GL_TEXTURE_2D_ARRAY, 0, internalFormat, size, size, ShadowRenderer.NUM_CASCADES, 0,
+                GL_DEPTH_COMPONENT, type, (ByteBuffer) null);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_COMPARE_MODE, GL_NONE);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+        return textureId;
+    }
 
-        // Attach the the depth map texture to the FBO
-        glBindFramebuffer(GL_FRAMEBUFFER, depthMapFBO);
-        glFramebufferTexture2D(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, GL_TEXTURE_2D, depthMap.getIds()[0], 0);
-        
+    private static void attach(int fbo, int[] layerFbos, int textureId) {
+        GLState.bindFramebuffer(fbo);
+        glFramebufferTexture(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, textureId, 0);
         // Set only depth
         glDrawBuffer(GL_NONE);
         glReadBuffer(GL_NONE);
+        for (int i = 0; i < layerFbos.length; i++) {
+            GLState.bindFramebuffer(layerFbos[i]);
+            glFramebufferTextureLayer(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, textureId, 0, i);
+            glDrawBuffer(GL_NONE);
+            glReadBuffer(GL_NONE);
+        }
+    }
 
+    private void checkFramebuffers() throws Exception {
+        checkFramebuffer(depthMapFBO);
+        for (int layerFBO : layerFBOs) {
+            checkFramebuffer(layerFBO);
+        }
+        if (staticLayerFBOs != null) {
+            checkFramebuffer(staticDepthMapFBO);
+            for (int layerFBO : staticLayerFBOs) {
+                checkFramebuffer(layerFBO);
+            }
+        }
+        GLState.bindFramebuffer(0);
+    }
+
+    private static void checkFramebuffer(int fbo) throws Exception {
+        GLState.bindFramebuffer(fbo);
         if (glCheckFramebufferStatus(GL_FRAMEBUFFER) != GL_FRAMEBUFFER_COMPLETE) {
             throw new Exception("Could not create FrameBuffer");
         }
+    }
+
+    public boolean hasStaticLayer() {
+        return staticLayerFBOs != null;
+    }
+
+    /**
+     * Binds the framebuffer with all the cascades of the depth map attached. The layer of each primitive is
+     * chosen by the shader.
+     */
+    public void bindDepthMaps() {
+        GLState.bindFramebuffer(depthMapFBO);
+    }
+
+    /**
+     * Binds the framebuffer with the depth map of a cascade attached.
+     */
+    public void bindDepthMap(int cascade) {
+        GLState.bindFramebuffer(layerFBOs[cascade]);
+    }
+
+    /**
+     * Binds the framebuffer with the static caster depth of all the cascades attached.
+     */
+    public void bindStaticLayers() {
+        GLState.bindFramebuffer(staticDepthMapFBO);
+    }
+
+    /**
+     * Binds the framebuffer with the static caster depth of a cascade attached.
+     */
+    public void bindStaticLayer(int cascade) {
+        GLState.bindFramebuffer(staticLayerFBOs[cascade]);
+    }
+
+    /**
+     * Copies the static caster depth of a cascade to its depth map and leaves the depth map of the cascade bound.
+     */
+    public void copyStaticLayer(int cascade) {
+        bindDepthMap(cascade);
+        GLState.bindReadFramebuffer(staticLayerFBOs[cascade]);
+        glBlitFramebuffer(0, 0, size, size, 0, 0, size, size, GL_DEPTH_BUFFER_BIT, GL_NEAREST);
+    }
+
+    /**
+     * Reallocates the depth maps with a new size. Their contents are lost.
+     */
+    public void resize(int size) {
+        if (size == this.size) {
+            return;
+        }
+        this.size = size;
+        deleteTextures();
+        createTextures();
+    }
 
-        // Unbind
-        glBindFramebuffer(GL_FRAMEBUFFER, 0);
+    public int getSize() {
+        return size;
     }
 
-    public ArrTexture getDepthMapTexture() {
-        return depthMap;
+    public int getDepthBits() {
+        return depthBits;
     }
 
-    public int getDepthMapFBO() {
-        return depthMapFBO;
+    /**
+     * @return Memory used by the depth maps and the static layers, in bytes
+     */
+    public long getAllocatedBytes() {
+        // 24 bit depth is stored in 32 bits
+        long bytes = (long) size * size * ShadowRenderer.NUM_CASCADES * (depthBits == 16 ? 2 : 4);
+        return hasStaticLayer() ? bytes * 2 : bytes;
     }
 
-    public void bindTextures(int start) {
-        for (int i = 0; i < ShadowRenderer.NUM_CASCADES; i++) {
-            glActiveTexture(start + i);
-            glBindTexture(GL_TEXTURE_2D, depthMap.getIds()[i]);
+    public void bindTextures(int unit) {
+        GLState.bindTexture(unit, GL_TEXTURE_2D_ARRAY, depthMapId);
+    }
+
+    private void deleteTextures() {
+        GLState.deleteTexture(depthMapId);
+        if (staticDepthMapId != 0) {
+            GLState.deleteTexture(staticDepthMapId);
         }
     }
-    
+
     public void cleanup() {
         glDeleteFramebuffers(depthMapFBO);
-        depthMap.cleanup();
+        glDeleteFramebuffers(layerFBOs);
+        if (staticLayerFBOs != null) {
+            glDeleteFramebuffers(staticDepthMapFBO);
+            glDeleteFramebuffers(staticLayerFBOs);
+        }
+        deleteTextures();
     }
-    
+
 }
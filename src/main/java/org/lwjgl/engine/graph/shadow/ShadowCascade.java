@@ -1,5 +1,6 @@
 package org.lwjgl.engine.graph.shadow;
 
+import org.joml.FrustumIntersection;
 import org.joml.Matrix4f;
 import org.joml.Vector3f;
 import org.joml.Vector4f;
@@ -11,10 +12,24 @@ public class ShadowCascade {
 
     private static final int FRUSTUM_CORNERS = 8;
 
+    /**
+     * Fraction of the fitted size added on each side of stable bounds, so the view can move before they are refitted
+     */
+    private static final float BOUNDS_PADDING = 0.15f;
+
+    /**
+     * The radius of the bounding sphere is rounded up to a multiple of this, so rounding errors do not change it
+     */
+    private static final float RADIUS_STEP = 1.0f / 16.0f;
+
     private final Matrix4f projViewMatrix;
 
     private final Matrix4f orthoProjMatrix;
 
+    /**
+     * Rotation of the light, with the origin of the world as its position. The cascade is placed by the
+     * projection, so the light space of all the cascades is the same.
+     */
     private final Matrix4f lightViewMatrix;
 
     /**
@@ -24,12 +39,50 @@ public class ShadowCascade {
 
     private final Vector3f[] frustumCorners;
 
-    private final float zNear;
+    private float zNear;
 
-    private final float zFar;
+    private float zFar;
 
     private final Vector4f tmpVec;
-    
+
+    /**
+     * If true the light matrices are kept while the view fits inside their bounds, so the depth map can be cached
+     */
+    private boolean stableBounds;
+
+    private boolean boundsValid;
+
+    /**
+     * Light direction the matrices were fitted for
+     */
+    private final Vector3f fittedLightDirection;
+
+    private final Vector3f lightAngles;
+
+    private final Vector3f origin;
+
+    private float minX;
+
+    private float maxX;
+
+    private float minY;
+
+    private float maxY;
+
+    /**
+     * Light space depth range, from the plane nearest to the light to the farthest one
+     */
+    private float minDepth;
+
+    private float maxDepth;
+
+    /**
+     * Planes of the light volume used to cull casters, normalized and facing inwards
+     */
+    private final Vector4f[] cullingPlanes;
+
+    private final Matrix4f tmpMatrix;
+
     public ShadowCascade(float zNear, float zFar) {
         this.zNear = zNear;
         this.zFar = zFar;
@@ -42,6 +95,14 @@ public class ShadowCascade {
             frustumCorners[i] = new Vector3f();
         }
         tmpVec = new Vector4f();
+        fittedLightDirection = new Vector3f();
+        lightAngles = new Vector3f();
+        origin = new Vector3f();
+        cullingPlanes = new Vector4f[6];
+        for (int i = 0; i < cullingPlanes.length; i++) {
+            cullingPlanes[i] = new Vector4f();
+        }
+        tmpMatrix = new Matrix4f();
     }
 
     public Matrix4f getLightViewMatrix() {
@@ -52,68 +113,172 @@ public class ShadowCascade {
         return orthoProjMatrix;
     }
 
-    public void update(Window window, Matrix4f viewMatrix, DirectionalLight light) {
+    /**
+     * Changes the range of view distances covered by the cascade. It takes effect in the next update.
+     */
+    public void setSplit(float zNear, float zFar) {
+        this.zNear = zNear;
+        this.zFar = zFar;
+        boundsValid = false;
+    }
+
+    /**
+     * Keeps the light matrices while the view fits inside their bounds. The bounds are padded, so the view can
+     * move for a while before they are refitted.
+     */
+    public void setStableBounds(boolean stableBounds) {
+        this.stableBounds = stableBounds;
+        boundsValid = false;
+    }
+
+    public float getZFar() {
+        return zFar;
+    }
+
+    /**
+     * Fits the light matrices to the bounding sphere of the part of the view frustum covered by the cascade. The
+     * size of the sphere does not change when the camera turns or moves and its center is snapped to the texels of
+     * the shadow map, so the texels stay in place in the world and the shadows do not shimmer. The depth range
+     * goes from the casters nearest to the light to the farthest ones.
+     *
+     * @param shadowMapSize Size of the shadow map in texels
+     * @param casterBounds Minimum and maximum corners of the bounds of the casters in world space. They may be
+     *                     null if they are not known
+     * @return If the matrices have changed. With stable bounds they are kept until the view leaves them, the
+     * light direction changes or the casters move out of the depth range.
+     */
+    public boolean update(Window window, Matrix4f viewMatrix, DirectionalLight light, int shadowMapSize,
+                          Vector3f[] casterBounds) {
         // Build projection view matrix for this cascade
         float aspectRatio = (float) window.getWidth() / (float) window.getHeight();
         projViewMatrix.setPerspective(Window.FOV, aspectRatio, zNear, zFar);
         projViewMatrix.mul(viewMatrix);
 
         // Calculate frustum corners in world space
-        float maxZ = Float.MIN_VALUE;
-        float minZ = Float.MAX_VALUE;
+        centroid.set(0, 0, 0);
         for (int i = 0; i < FRUSTUM_CORNERS; i++) {
             Vector3f corner = frustumCorners[i];
-            corner.set(0, 0, 0);
             projViewMatrix.frustumCorner(i, corner);
             centroid.add(corner);
-            centroid.div(8.0f);
-            minZ = Math.min(minZ, corner.z);
-            maxZ = Math.max(maxZ, corner.z);
         }
+        centroid.div(FRUSTUM_CORNERS);
+        float radius = 0;
+        for (int i = 0; i < FRUSTUM_CORNERS; i++) {
+            radius = Math.max(radius, frustumCorners[i].distance(centroid));
+        }
+        radius = (float) Math.ceil(radius / RADIUS_STEP) * RADIUS_STEP;
 
-        // Go back from the centroid up to max.z - min.z in the direction of light
         Vector3f lightDirection = light.getDirection();
-        Vector3f lightPosInc = new Vector3f().set(lightDirection);
-        float distance = maxZ - minZ;
-        lightPosInc.mul(distance);
-        Vector3f lightPosition = new Vector3f();
-        lightPosition.set(centroid);
-        lightPosition.add(lightPosInc);
+        boolean lightChanged = !lightDirection.equals(fittedLightDirection);
+        if (lightChanged || !boundsValid) {
+            updateLightViewMatrix(lightDirection);
+        }
+
+        // Center of the sphere in light space
+        tmpVec.set(centroid, 1);
+        tmpVec.mul(lightViewMatrix);
+        float centerX = tmpVec.x;
+        float centerY = tmpVec.y;
+        float centerZ = tmpVec.z;
+
+        // Depth range, bounded by the casters if they are known. The light looks along -z.
+        float minDepth = -centerZ - 2 * radius;
+        float maxDepth = -centerZ + radius;
+        if (casterBounds != null) {
+            float casterMinDepth = Float.MAX_VALUE;
+            float casterMaxDepth = -Float.MAX_VALUE;
+            for (int i = 0; i < FRUSTUM_CORNERS; i++) {
+                tmpVec.set((i & 1) == 0 ? casterBounds[0].x : casterBounds[1].x,
+                        (i & 2) == 0 ? casterBounds[0].y : casterBounds[1].y,
+                        (i & 4) == 0 ? casterBounds[0].z : casterBounds[1].z, 1);
+                tmpVec.mul(lightViewMatrix);
+                casterMinDepth = Math.min(casterMinDepth, -tmpVec.z);
+                casterMaxDepth = Math.max(casterMaxDepth, -tmpVec.z);
+            }
+            // Nothing nearer to the light than the casters casts shadows and nothing beyond them receives them. The
+            // range does not depend on the view, so it only changes when the casters do.
+            minDepth = casterMinDepth;
+            maxDepth = Math.max(casterMaxDepth, casterMinDepth + 1);
+        }
+
+        if (stableBounds && boundsValid && !lightChanged && isSphereInsideBounds(centerX, centerY, radius)
+                && minDepth >= this.minDepth && maxDepth <= this.maxDepth) {
+            return false;
+        }
+
+        // Stable bounds are padded, so the view can move before they have to be refitted
+        float halfSize = stableBounds ? radius * (1 + 2 * BOUNDS_PADDING) : radius;
+        if (stableBounds && casterBounds == null) {
+            minDepth -= radius * BOUNDS_PADDING;
+            maxDepth += radius * BOUNDS_PADDING;
+        }
+        // Move the center by whole texels only
+        float texelSize = 2 * halfSize / shadowMapSize;
+        centerX = (float) Math.floor(centerX / texelSize) * texelSize;
+        centerY = (float) Math.floor(centerY / texelSize) * texelSize;
 
-        updateLightViewMatrix(lightDirection, lightPosition);
+        boolean changed = lightChanged || !boundsValid || centerX - halfSize != minX || centerY - halfSize != minY
+                || centerX + halfSize != maxX || minDepth != this.minDepth || maxDepth != this.maxDepth;
+        if (!changed) {
+            return false;
+        }
+        minX = centerX - halfSize;
+        maxX = centerX + halfSize;
+        minY = centerY - halfSize;
+        maxY = centerY + halfSize;
+        this.minDepth = minDepth;
+        this.maxDepth = maxDepth;
+        orthoProjMatrix.setOrtho(minX, maxX, minY, maxY, minDepth, maxDepth);
 
-        updateLightProjectionMatrix();
+        updateCullingPlanes();
+        fittedLightDirection.set(lightDirection);
+        boundsValid = true;
+        return true;
     }
 
-    private void updateLightViewMatrix(Vector3f lightDirection, Vector3f lightPosition) {
-        float lightAngleX = (float) Math.toDegrees(Math.acos(lightDirection.z));
-        float lightAngleY = (float) Math.toDegrees(Math.asin(lightDirection.x));
-        float lightAngleZ = 0;
-        Transformation.updateGenericViewMatrix(lightPosition, new Vector3f(lightAngleX, lightAngleY, lightAngleZ), lightViewMatrix);
+    /**
+     * Tests a caster against the light volume of the cascade. The volume has no near plane, so casters between the
+     * light and the volume still cast shadows into it.
+     *
+     * @return If the bounding sphere intersects the volume
+     */
+    public boolean isInsideLightVolume(float x, float y, float z, float radius) {
+        for (Vector4f plane : cullingPlanes) {
+            if (plane.x * x + plane.y * y + plane.z * z + plane.w < -radius) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    private void updateLightProjectionMatrix() {
-        // Now calculate frustum dimensions in light space
-        float minX =  Float.MAX_VALUE;
-        float maxX = -Float.MIN_VALUE;
-        float minY =  Float.MAX_VALUE;
-        float maxY = -Float.MIN_VALUE;
-        float minZ =  Float.MAX_VALUE;
-        float maxZ = -Float.MIN_VALUE;
-        for (int i = 0; i < FRUSTUM_CORNERS; i++) {
-            Vector3f corner = frustumCorners[i];
-            tmpVec.set(corner, 1);
-            tmpVec.mul(lightViewMatrix);
-            minX = Math.min(tmpVec.x, minX);
-            maxX = Math.max(tmpVec.x, maxX);
-            minY = Math.min(tmpVec.y, minY);
-            maxY = Math.max(tmpVec.y, maxY);
-            minZ = Math.min(tmpVec.z, minZ);
-            maxZ = Math.max(tmpVec.z, maxZ);
+    private void updateCullingPlanes() {
+        tmpMatrix.set(orthoProjMatrix).mul(lightViewMatrix);
+        for (int i = 0; i < cullingPlanes.length; i++) {
+            Vector4f plane = cullingPlanes[i];
+            if (i == FrustumIntersection.PLANE_NZ) {
+                plane.set(0, 0, 0, 1);
+                continue;
+            }
+            tmpMatrix.frustumPlane(i, plane);
+            float length = (float) Math.sqrt(plane.x * plane.x + plane.y * plane.y + plane.z * plane.z);
+            plane.div(length);
         }
-        float distz = maxZ - minZ;
+    }
 
-        orthoProjMatrix.setOrtho(minX, maxX, minY, maxY, 0, distz);
+    /**
+     * @return If the bounding sphere of the view, in light space, is inside the bounds of the matrices
+     */
+    private boolean isSphereInsideBounds(float centerX, float centerY, float radius) {
+        return centerX - radius >= minX && centerX + radius <= maxX && centerY - radius >= minY
+                && centerY + radius <= maxY;
+    }
+
+    private void updateLightViewMatrix(Vector3f lightDirection) {
+        float lightAngleX = (float) Math.toDegrees(Math.acos(lightDirection.z));
+        float lightAngleY = (float) Math.toDegrees(Math.asin(lightDirection.x));
+        float lightAngleZ = 0;
+        lightAngles.set(lightAngleX, lightAngleY, lightAngleZ);
+        Transformation.updateGenericViewMatrix(origin, lightAngles, lightViewMatrix);
     }
 
 }
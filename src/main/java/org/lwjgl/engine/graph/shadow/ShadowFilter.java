@@ -0,0 +1,213 @@
+package org.lwjgl.engine.graph.shadow;
+
+import org.lwjgl.engine.graph.GLState;
+import org.lwjgl.engine.graph.ProgramCache;
+import org.lwjgl.engine.graph.ShaderPreprocessor;
+import org.lwjgl.engine.graph.ShaderProgram;
+import org.lwjgl.engine.graph.ShaderVariants;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.GL_CLAMP_TO_EDGE;
+import static org.lwjgl.opengl.GL12.glTexImage3D;
+import static org.lwjgl.opengl.GL13.GL_TEXTURE0;
+import static org.lwjgl.opengl.GL13.GL_TEXTURE1;
+import static org.lwjgl.opengl.GL30.*;
+
+/**
+ * Prefiltered exponential variance shadow maps. The depth of each rendered cascade is warped with an exponential
+ * and stored with its square in a float texture array, blurred with a separable kernel and mipmapped, so the scene
+ * shader resolves soft shadows with a single filtered fetch whatever the size of the kernel.
+ */
+public class ShadowFilter {
+
+    /**
+     * Variant of the filter shader that reads the depth maps, warps them and blurs horizontally. The other variant
+     * blurs the warped moments vertically.
+     */
+    public static final int FROM_DEPTH = 1;
+
+    public static final String[] FEATURE_DEFINES = {"FROM_DEPTH"};
+
+    private final int cascadeCount;
+
+    private int size;
+
+    private int numLevels;
+
+    /**
+     * Filtered moments of the cascades, one layer per cascade
+     */
+    private int momentsMapId;
+
+    private final int[] layerFBOs;
+
+    /**
+     * Moments of one cascade blurred horizontally, between the two passes
+     */
+    private int tmpMapId;
+
+    private final int tmpFBO;
+
+    private ShaderVariants<ShaderProgram> filterShaders;
+
+    /**
+     * The full screen triangle is generated in the vertex shader, but a VAO must be bound to draw
+     */
+    private final int emptyVaoId;
+
+    public ShadowFilter(int size) throws Exception {
+        this.size = size;
+        cascadeCount = ShadowRenderer.NUM_CASCADES;
+        layerFBOs = new int[cascadeCount];
+        glGenFramebuffers(layerFBOs);
+        tmpFBO = glGenFramebuffers();
+        emptyVaoId = glGenVertexArrays();
+        createTextures();
+        for (int layerFBO : layerFBOs) {
+            checkFramebuffer(layerFBO);
+        }
+        checkFramebuffer(tmpFBO);
+        GLState.bindFramebuffer(0);
+    }
+
+    public void init(ShaderPreprocessor shaderPreprocessor, ProgramCache programCache) throws Exception {
+        filterShaders = new ShaderVariants<>(shaderPreprocessor, programCache, "shadow_filter_vertex.vs",
+                "shadow_filter_fragment.fs", FEATURE_DEFINES, (ShaderProgram shaderProgram, int features) -> {
+                    shaderProgram.createUniform("depthMap");
+                    shaderProgram.createUniform("momentsMap");
+                    shaderProgram.createUniform("layer");
+                    shaderProgram.createUniform("radius");
+                    return shaderProgram;
+                });
+        filterShaders.prepare(FROM_DEPTH);
+        filterShaders.prepare(0);
+    }
+
+    private void createTextures() {
+        numLevels = 32 - Integer.numberOfLeadingZeros(size);
+
+        momentsMapId = glGenTextures();
+        GLState.bindTexture(GL_TEXTURE_2D_ARRAY, momentsMapId);
+        for (int level = 0; level < numLevels; level++) {
+            int levelSize = Math.max(1, size >> level);
+            glTexImage3D(GL_TEXTURE_2D_ARRAY, level, GL_RG32F, levelSize, levelSize, cascadeCount, 0, GL_RG,
+                    GL_FLOAT, (ByteBuffer) null);
+        }
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+        for (int i = 0; i < cascadeCount; i++) {
+            GLState.bindFramebuffer(layerFBOs[i]);
+            glFramebufferTextureLayer(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, momentsMapId, 0, i);
+        }
+
+        tmpMapId = glGenTextures();
+        GLState.bindTexture(GL_TEXTURE_2D, tmpMapId);
+        glTexImage2D(GL_TEXTURE_2D, 0, GL_RG32F, size, size, 0, GL_RG, GL_FLOAT, (ByteBuffer) null);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+        GLState.bindFramebuffer(tmpFBO);
+        glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, tmpMapId, 0);
+    }
+
+    private static void checkFramebuffer(int fbo) throws Exception {
+        GLState.bindFramebuffer(fbo);
+        if (glCheckFramebufferStatus(GL_FRAMEBUFFER) != GL_FRAMEBUFFER_COMPLETE) {
+            throw new Exception("Could not create FrameBuffer");
+        }
+    }
+
+    /**
+     * Filters the cascades of the mask from their depth maps and rebuilds the mipmaps. The other cascades keep
+     * their filtered moments.
+     *
+     * @param shadowBuffer Holds the depth maps of the cascades
+     * @param cascadeMask Bit mask of the cascades to filter
+     * @param radius Radius in texels of the blur kernel, 0 only warps the depth
+     */
+    public void filter(ShadowBuffer shadowBuffer, int cascadeMask, int radius) {
+        if (cascadeMask == 0) {
+            return;
+        }
+        GLState.viewport(0, 0, size, size);
+        GLState.disable(GL_DEPTH_TEST);
+        GLState.bindVertexArray(emptyVaoId);
+        shadowBuffer.bindTextures(GL_TEXTURE0);
+        GLState.bindTexture(GL_TEXTURE1, GL_TEXTURE_2D, tmpMapId);
+        for (int i = 0; i < cascadeCount; i++) {
+            if ((cascadeMask & (1 << i)) == 0) {
+                continue;
+            }
+            // Warps the depth and blurs it horizontally
+            GLState.bindFramebuffer(tmpFBO);
+            useFilterShader(FROM_DEPTH, i, radius);
+            glDrawArrays(GL_TRIANGLES, 0, 3);
+
+            // Blurs the moments vertically into the layer of the cascade
+            GLState.bindFramebuffer(layerFBOs[i]);
+            useFilterShader(0, i, radius);
+            glDrawArrays(GL_TRIANGLES, 0, 3);
+        }
+        GLState.bindTexture(GL_TEXTURE_2D_ARRAY, momentsMapId);
+        glGenerateMipmap(GL_TEXTURE_2D_ARRAY);
+        GLState.enable(GL_DEPTH_TEST);
+    }
+
+    private void useFilterShader(int features, int layer, int radius) {
+        ShaderProgram filterShader = filterShaders.get(features);
+        filterShader.bind();
+        filterShader.setUniform("depthMap", 0);
+        filterShader.setUniform("momentsMap", 1);
+        filterShader.setUniform("layer", layer);
+        filterShader.setUniform("radius", radius);
+    }
+
+    /**
+     * Reallocates the moments with a new size. Their contents are lost.
+     */
+    public void resize(int size) {
+        if (size == this.size) {
+            return;
+        }
+        this.size = size;
+        deleteTextures();
+        createTextures();
+        GLState.bindFramebuffer(0);
+    }
+
+    /**
+     * @return Memory used by the moments with their mipmaps and by the intermediate texture, in bytes
+     */
+    public long getAllocatedBytes() {
+        long bytes = 0;
+        for (int level = 0; level < numLevels; level++) {
+            long levelSize = Math.max(1, size >> level);
+            bytes += levelSize * levelSize * cascadeCount * 8;
+        }
+        return bytes + (long) size * size * 8;
+    }
+
+    public void bindTextures(int unit) {
+        GLState.bindTexture(unit, GL_TEXTURE_2D_ARRAY, momentsMapId);
+    }
+
+    private void deleteTextures() {
+        GLState.deleteTexture(momentsMapId);
+        GLState.deleteTexture(tmpMapId);
+    }
+
+    public void cleanup() {
+        glDeleteFramebuffers(layerFBOs);
+        glDeleteFramebuffers(tmpFBO);
+        GLState.deleteVertexArray(emptyVaoId);
+        deleteTextures();
+        if (filterShaders != null) {
+            filterShaders.cleanup();
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package org.lwjgl.engine.graph.shadow;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.lwjgl.engine.graph.Material;
+import org.lwjgl.engine.graph.Mesh;
+import org.lwjgl.engine.items.GameItem;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the simplified geometry the shadow pass draws instead of the full meshes. The proxies only have
+ * positions, since the depth shader does not use the other attributes.
+ */
+public class ShadowProxy {
+
+    /**
+     * Box corners are snapped to this step, so boxes that touch in the world have exactly the same coordinates
+     */
+    private static final float BOX_SNAP = 1.0f / 1024.0f;
+
+    /**
+     * A simplified mesh is only kept if it has at most this fraction of the triangles of the original
+     */
+    private static final float MAX_SIMPLIFIED_RATIO = 0.75f;
+
+    /**
+     * Index of each box corner, bit 0 selects the maximum x, bit 1 the maximum y and bit 2 the maximum z
+     */
+    private static final int[] BOX_INDICES = {
+            0, 4, 6, 0, 6, 2,
+            1, 3, 7, 1, 7, 5,
+            0, 1, 5, 0, 5, 4,
+            2, 6, 7, 2, 7, 3,
+            0, 2, 3, 0, 3, 1,
+            4, 5, 7, 4, 7, 6
+    };
+
+    private ShadowProxy() {
+    }
+
+    /**
+     * Simplifies a mesh by clustering its vertices in a grid over its bounds. Each cluster becomes one vertex and
+     * the triangles that collapse are dropped.
+     *
+     * @param mesh Mesh to simplify
+     * @param gridSize Number of cells along each axis
+     * @return The simplified mesh, or null if it would not be much simpler than the original
+     */
+    public static Mesh simplify(Mesh mesh, int gridSize) {
+        float[] positions = mesh.getPositions();
+        int[] indices = mesh.getIndices();
+        int numVertices = positions.length / 3;
+        if (numVertices == 0) {
+            return null;
+        }
+        float[] bounds = getBounds(positions);
+        Vector3f min = new Vector3f(bounds[0], bounds[1], bounds[2]);
+        Vector3f max = new Vector3f(bounds[3], bounds[4], bounds[5]);
+        Vector3f cellSize = new Vector3f(max).sub(min).div(gridSize).max(new Vector3f(1e-6f));
+
+        // Cluster of each vertex, and the sum of the positions of each cluster
+        Map<Long, Integer> clusters = new HashMap<>();
+        int[] vertexClusters = new int[numVertices];
+        List<float[]> sums = new ArrayList<>();
+        for (int i = 0; i < numVertices; i++) {
+            float x = positions[i * 3];
+            float y = positions[i * 3 + 1];
+            float z = positions[i * 3 + 2];
+            long cellX = Math.min((long) ((x - min.x) / cellSize.x), gridSize - 1);
+            long cellY = Math.min((long) ((y - min.y) / cellSize.y), gridSize - 1);
+            long cellZ = Math.min((long) ((z - min.z) / cellSize.z), gridSize - 1);
+            long key = (cellX * gridSize + cellY) * gridSize + cellZ;
+            Integer cluster = clusters.get(key);
+            if (cluster == null) {
+                cluster = sums.size();
+                clusters.put(key, cluster);
+                sums.add(new float[4]);
+            }
+            float[] sum = sums.get(cluster);
+            sum[0] += x;
+            sum[1] += y;
+            sum[2] += z;
+            sum[3]++;
+            vertexClusters[i] = cluster;
+        }
+
+        List<Integer> newIndices = new ArrayList<>();
+        for (int i = 0; i + 2 < indices.length; i += 3) {
+            int a = vertexClusters[indices[i]];
+            int b = vertexClusters[indices[i + 1]];
+            int c = vertexClusters[indices[i + 2]];
+            if (a != b && b != c && a != c) {
+                newIndices.add(a);
+                newIndices.add(b);
+                newIndices.add(c);
+            }
+        }
+        if (newIndices.isEmpty() || newIndices.size() > indices.length * MAX_SIMPLIFIED_RATIO) {
+            return null;
+        }
+
+        float[] newPositions = new float[sums.size() * 3];
+        for (int i = 0; i < sums.size(); i++) {
+            float[] sum = sums.get(i);
+            newPositions[i * 3] = sum[0] / sum[3];
+            newPositions[i * 3 + 1] = sum[1] / sum[3];
+            newPositions[i * 3 + 2] = sum[2] / sum[3];
+        }
+        int[] indicesArr = new int[newIndices.size()];
+        for (int i = 0; i < indicesArr.length; i++) {
+            indicesArr[i] = newIndices.get(i);
+        }
+        return createMesh(newPositions, indicesArr);
+    }
+
+    /**
+     * @return If all the vertices of the mesh are corners of its bounds, so the mesh can be replaced by a box
+     */
+    public static boolean isBox(Mesh mesh) {
+        float[] positions = mesh.getPositions();
+        if (positions.length == 0) {
+            return false;
+        }
+        float[] bounds = getBounds(positions);
+        for (int i = 0; i < positions.length; i++) {
+            int axis = i % 3;
+            if (positions[i] != bounds[axis] && positions[i] != bounds[axis + 3]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Calculates the world space box of an item whose mesh is a box. The result is exact only if the item is not
+     * rotated or is rotated by multiples of 90 degrees.
+     *
+     * @param box Receives the minimum and then the maximum corner
+     * @return If the box is exact
+     */
+    public static boolean getItemBox(Mesh mesh, GameItem gameItem, Matrix4f modelMatrix, float[] box) {
+        float[] bounds = getBounds(mesh.getPositions());
+        Vector3f corner = new Vector3f();
+        for (int i = 0; i < 3; i++) {
+            box[i] = Float.MAX_VALUE;
+            box[i + 3] = -Float.MAX_VALUE;
+        }
+        for (int i = 0; i < 8; i++) {
+            modelMatrix.transformPosition(bounds[(i & 1) == 0 ? 0 : 3], bounds[(i & 2) == 0 ? 1 : 4],
+                    bounds[(i & 4) == 0 ? 2 : 5], corner);
+            box[0] = Math.min(box[0], corner.x);
+            box[1] = Math.min(box[1], corner.y);
+            box[2] = Math.min(box[2], corner.z);
+            box[3] = Math.max(box[3], corner.x);
+            box[4] = Math.max(box[4], corner.y);
+            box[5] = Math.max(box[5], corner.z);
+        }
+        for (int i = 0; i < box.length; i++) {
+            box[i] = Math.round(box[i] / BOX_SNAP) * BOX_SNAP;
+        }
+        Vector3f rotation = gameItem.getRotation();
+        return rotation.x % 90 == 0 && rotation.y % 90 == 0 && rotation.z % 90 == 0;
+    }
+
+    /**
+     * Merges boxes that touch and have the same section into bigger boxes, along x, then z and then y, and builds
+     * one mesh with the result. The merged boxes cover exactly the same space as the original ones.
+     *
+     * @param boxes Minimum and maximum corners of each box. The list is modified
+     */
+    public static Mesh mergeBoxes(List<float[]> boxes) {
+        List<float[]> merged = mergeAlong(mergeAlong(mergeAlong(boxes, 0), 2), 1);
+        float[] positions = new float[merged.size() * 8 * 3];
+        int[] indices = new int[merged.size() * BOX_INDICES.length];
+        for (int i = 0; i < merged.size(); i++) {
+            float[] box = merged.get(i);
+            for (int corner = 0; corner < 8; corner++) {
+                int dst = (i * 8 + corner) * 3;
+                positions[dst] = box[(corner & 1) == 0 ? 0 : 3];
+                positions[dst + 1] = box[(corner & 2) == 0 ? 1 : 4];
+                positions[dst + 2] = box[(corner & 4) == 0 ? 2 : 5];
+            }
+            for (int j = 0; j < BOX_INDICES.length; j++) {
+                indices[i * BOX_INDICES.length + j] = i * 8 + BOX_INDICES[j];
+            }
+        }
+        return createMesh(positions, indices);
+    }
+
+    private static List<float[]> mergeAlong(List<float[]> boxes, int axis) {
+        int axis1 = (axis + 1) % 3;
+        int axis2 = (axis + 2) % 3;
+        // Boxes with the same section end up next to each other, ordered along the axis
+        boxes.sort(Comparator.<float[]>comparingDouble(box -> box[axis1])
+                .thenComparingDouble(box -> box[axis1 + 3])
+                .thenComparingDouble(box -> box[axis2])
+                .thenComparingDouble(box -> box[axis2 + 3])
+                .thenComparingDouble(box -> box[axis]));
+        List<float[]> result = new ArrayList<>();
+        float[] current = null;
+        for (float[] box : boxes) {
+            if (current != null && current[axis1] == box[axis1] && current[axis1 + 3] == box[axis1 + 3]
+                    && current[axis2] == box[axis2] && current[axis2 + 3] == box[axis2 + 3]
+                    && box[axis] <= current[axis + 3]) {
+                current[axis + 3] = Math.max(current[axis + 3], box[axis + 3]);
+                continue;
+            }
+            current = box.clone();
+            result.add(current);
+        }
+        return result;
+    }
+
+    private static float[] getBounds(float[] positions) {
+        float[] bounds = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE,
+                -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+        for (int i = 0; i < positions.length; i++) {
+            int axis = i % 3;
+            bounds[axis] = Math.min(bounds[axis], positions[i]);
+            bounds[axis + 3] = Math.max(bounds[axis + 3], positions[i]);
+        }
+        return bounds;
+    }
+
+    private static Mesh createMesh(float[] positions, int[] indices) {
+        int numVertices = positions.length / 3;
+        Mesh mesh = new Mesh(positions, new float[numVertices * 2], new float[numVertices * 3], indices);
+        mesh.setMaterial(new Material());
+        return mesh;
+    }
+}
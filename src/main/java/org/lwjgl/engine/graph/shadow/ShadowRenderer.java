@@ -1,29 +1,55 @@
 package org.lwjgl.engine.graph.shadow;
 
 import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.lwjgl.engine.Metrics;
 import org.lwjgl.engine.Scene;
 import org.lwjgl.engine.graph.lights.SceneLight;
-import org.lwjgl.engine.Utils;
 import org.lwjgl.engine.Window;
 import org.lwjgl.engine.graph.*;
+import org.lwjgl.engine.graph.batch.StaticBatch;
+import org.lwjgl.engine.graph.indirect.DrawCommandList;
+import org.lwjgl.engine.graph.indirect.GeometryArena;
+import org.lwjgl.engine.graph.indirect.GpuCuller;
 import org.lwjgl.engine.graph.lights.DirectionalLight;
 import org.lwjgl.engine.items.GameItem;
+import org.lwjgl.opengl.GL;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
 import static org.lwjgl.opengl.GL11.*;
-import static org.lwjgl.opengl.GL13.GL_TEXTURE2;
-import static org.lwjgl.opengl.GL30.*;
 
 public class ShadowRenderer {
 
+    /**
+     * Casters drawn by a render call: all of them, only the static ones or only the dynamic ones
+     */
+    private static final int ALL_CASTERS = 0;
+
+    private static final int STATIC_CASTERS = 1;
+
+    private static final int DYNAMIC_CASTERS = 2;
+
     public static final int NUM_CASCADES = 3;
 
+    /**
+     * First cascade that draws the simplified proxies. The nearer cascades need the full detail of the casters.
+     */
+    private static final int PROXY_CASCADE = 1;
+
     public static final float[] CASCADE_SPLITS = new float[]{Window.Z_FAR / 20.0f, Window.Z_FAR / 10.0f, Window.Z_FAR};
 
-    private ShaderProgram depthShaderProgram;
+    /**
+     * Variants of the depth shader, keyed by the features of {@link DepthShader}
+     */
+    private ShaderVariants<DepthShader> depthShaders;
+
+    private DepthShader depthShader;
+
+    private int cascadeIndex;
 
     private List<ShadowCascade> shadowCascades;
 
@@ -31,19 +57,160 @@ public class ShadowRenderer {
 
     private final List<GameItem> filteredItems;
 
+    private final Matrix4f identityMatrix;
+
+    private final DrawCommandList drawCommandList;
+
+    /**
+     * Stream of the geometry arena that receives the commands recorded on the CPU, so they do not overwrite the
+     * commands of the scene. It is -1 until the first render with an arena.
+     */
+    private int arenaStream;
+
+    /**
+     * Stream drawn by the current render, the shadow stream or the scene stream filled by the GPU culler
+     */
+    private int drawStream;
+
+    /**
+     * Number of cascades in use, the last one extends to the far plane. The others are not updated nor rendered.
+     */
+    private int numCascades;
+
+    /**
+     * Size of the shadow maps set in the options, lower quality tiers use a fraction of it
+     */
+    private int maxShadowMapSize;
+
+    private final CascadeScheduler cascadeScheduler;
+
+    /**
+     * Cascades whose matrices have been updated and whose depth map has not been rendered yet
+     */
+    private final boolean[] renderPending;
+
+    /**
+     * Cascades whose static caster layer matches their matrices and the static casters
+     */
+    private final boolean[] staticLayerValid;
+
+    /**
+     * Minimum and maximum corners of the bounds of all the casters, in world space
+     */
+    private final Vector3f[] casterBounds;
+
+    private final Vector3f tmpBoundsCorner;
+
+    private boolean hasCasters;
+
+    private int boundsSceneVersion;
+
+    private int boundsModificationCount;
+
+    private int sceneVersion;
+
+    private int modificationCount;
+
+    /**
+     * Sum of the transform versions of the static casters. Versions only grow, so it changes when any of them moves.
+     * Changes of the render state, like the selection, do not change the depth maps and are ignored.
+     */
+    private long staticCastersVersion;
+
+    /**
+     * Ranges of the recorded commands of each cascade. The commands of the static casters go from the first
+     * command to the static end and the ones of the dynamic casters from there to the end.
+     */
+    private final int[] firstCommands;
+
+    private final int[] staticEndCommands;
+
+    private final int[] endCommands;
+
+    /**
+     * Casters drawn in each cascade by the last render
+     */
+    private final int[] numDrawnCasters;
+
+    /**
+     * If the depth shader can select the layer, so all the cascades are drawn in one submission with the indirect
+     * path
+     */
+    private boolean layeredSupported;
+
+    /**
+     * Cascades each caster returned by {@link #routeCasters} is drawn into, one bit per cascade
+     */
+    private int[] layerMasks;
+
+    /**
+     * End of the static caster commands and of all the commands recorded for a layered render
+     */
+    private int layeredStaticEnd;
+
+    private int layeredEnd;
+
+    /**
+     * If the casters that have a shadow proxy are drawn with it
+     */
+    private boolean shadowProxies;
+
+    /**
+     * Filters the rendered cascades into exponential variance maps. It is null if filtered shadows are disabled.
+     */
+    private ShadowFilter shadowFilter;
+
+    /**
+     * Radius in texels of the blur of the filtered cascades
+     */
+    private int filterRadius;
+
     public ShadowRenderer() {
         filteredItems = new ArrayList<>();
+        identityMatrix = new Matrix4f();
+        drawCommandList = new DrawCommandList(256, 1024);
+        numCascades = NUM_CASCADES;
+        cascadeScheduler = new CascadeScheduler(NUM_CASCADES);
+        renderPending = new boolean[NUM_CASCADES];
+        staticLayerValid = new boolean[NUM_CASCADES];
+        firstCommands = new int[NUM_CASCADES];
+        staticEndCommands = new int[NUM_CASCADES];
+        endCommands = new int[NUM_CASCADES];
+        numDrawnCasters = new int[NUM_CASCADES];
+        layerMasks = new int[256];
+        arenaStream = -1;
+        casterBounds = new Vector3f[]{new Vector3f(), new Vector3f()};
+        tmpBoundsCorner = new Vector3f();
+        boundsSceneVersion = -1;
+        boundsModificationCount = -1;
+        sceneVersion = -1;
+        modificationCount = -1;
+        filterRadius = 1;
     }
 
-    public void init(Window window) throws Exception {
-        shadowBuffer = new ShadowBuffer();
+    public void init(Window window, ShaderPreprocessor shaderPreprocessor, ProgramCache programCache) throws Exception {
+        Window.WindowOptions options = window.getOptions();
+        boolean shadowCache = options.shadowCache;
+        shadowBuffer = new ShadowBuffer(options.shadowMapSize, options.shadowDepthBits, shadowCache);
         shadowCascades = new ArrayList<>();
+        maxShadowMapSize = shadowBuffer.getSize();
+        if (options.shadowCascadeIntervals != null) {
+            cascadeScheduler.setIntervals(options.shadowCascadeIntervals);
+        }
+        layeredSupported = DepthShader.isLayeredSupported(GL.getCapabilities());
+        shadowProxies = options.shadowProxies;
 
-        setupDepthShader();
+        setupDepthShader(shaderPreprocessor, programCache);
+        if (options.filteredShadows) {
+            shadowFilter = new ShadowFilter(shadowBuffer.getSize());
+            shadowFilter.init(shaderPreprocessor, programCache);
+        }
 
         float zNear = Window.Z_NEAR;
         for (int i = 0; i < NUM_CASCADES; i++) {
             ShadowCascade shadowCascade = new ShadowCascade(zNear, CASCADE_SPLITS[i]);
+            // The static layer can only be reused while the matrices do not change
+            shadowCascade.setStableBounds(shadowCache);
             shadowCascades.add(shadowCascade);
             zNear = CASCADE_SPLITS[i];
         }
@@ -53,90 +220,636 @@ public class ShadowRenderer {
         return shadowCascades;
     }
 
-    public void bindTextures(int start) {
-        this.shadowBuffer.bindTextures(start);
+    public int getNumCascades() {
+        return numCascades;
+    }
+
+    /**
+     * Changes the number of cascades in use. The splits of the cascades before the last one are kept and the last
+     * one covers the rest of the view distance.
+     */
+    public void setNumCascades(int numCascades) {
+        numCascades = Math.max(1, Math.min(NUM_CASCADES, numCascades));
+        if (numCascades == this.numCascades) {
+            return;
+        }
+        this.numCascades = numCascades;
+        float zNear = Window.Z_NEAR;
+        for (int i = 0; i < NUM_CASCADES; i++) {
+            float zFar = i < numCascades - 1 ? CASCADE_SPLITS[i] : Window.Z_FAR;
+            // Unused cascades are empty ranges at the far plane, so the scene shader never selects them
+            shadowCascades.get(i).setSplit(i < numCascades ? zNear : Window.Z_FAR, zFar);
+            zNear = zFar;
+        }
+        cascadeScheduler.forceAll();
+    }
+
+    public int getMaxShadowMapSize() {
+        return maxShadowMapSize;
+    }
+
+    public int getShadowMapSize() {
+        return shadowBuffer.getSize();
+    }
+
+    public void setShadowMapSize(int size) {
+        if (size == shadowBuffer.getSize()) {
+            return;
+        }
+        shadowBuffer.resize(size);
+        if (shadowFilter != null) {
+            shadowFilter.resize(size);
+        }
+        cascadeScheduler.forceAll();
+        Arrays.fill(staticLayerValid, false);
+    }
+
+    /**
+     * Multiplies the update intervals of the far cascades.
+     */
+    public void setCascadeIntervalScale(int intervalScale) {
+        cascadeScheduler.setIntervalScale(intervalScale);
+    }
+
+    /**
+     * @return If some cascade is stale or must be rendered again, so the cascades have to be updated even if the
+     * scene has not changed
+     */
+    public boolean isUpdatePending() {
+        return cascadeScheduler.isUpdatePending(numCascades);
     }
 
-    private void setupDepthShader() throws Exception {
-        depthShaderProgram = new ShaderProgram();
-        depthShaderProgram.createVertexShader(Utils.loadResource("/shaders/depth_vertex.vs"));
-        depthShaderProgram.createFragmentShader(Utils.loadResource("/shaders/depth_fragment.fs"));
-        depthShaderProgram.link();
+    /**
+     * Sets the radius in texels of the blur of the filtered cascades. Cascades rendered before keep their blur.
+     */
+    public void setFilterRadius(int filterRadius) {
+        this.filterRadius = filterRadius;
+    }
+
+    /**
+     * Binds the texture array of the cascades to a texture unit, the filtered moments if filtered shadows are
+     * enabled or the depth maps otherwise.
+     */
+    public void bindTextures(int unit) {
+        if (shadowFilter != null) {
+            shadowFilter.bindTextures(unit);
+        } else {
+            this.shadowBuffer.bindTextures(unit);
+        }
+    }
+
+    private void setupDepthShader(ShaderPreprocessor shaderPreprocessor, ProgramCache programCache) throws Exception {
+        depthShaders = new ShaderVariants<>(shaderPreprocessor, programCache, "depth_vertex.vs", "depth_fragment.fs",
+                DepthShader.FEATURE_DEFINES, (ShaderProgram shaderProgram, int features) -> new DepthShader(shaderProgram));
+        // Both variants are used every frame
+        depthShaders.prepare(0);
+        depthShaders.prepare(DepthShader.INSTANCED);
+        if (layeredSupported) {
+            depthShaders.prepare(DepthShader.LAYERED);
+            depthShaders.prepare(DepthShader.LAYERED | DepthShader.INSTANCED);
+        }
+    }
 
-        depthShaderProgram.createUniform("isInstanced");
-        depthShaderProgram.createUniform("modelNonInstancedMatrix");
-        depthShaderProgram.createUniform("lightViewMatrix");
-        depthShaderProgram.createUniform("orthoProjectionMatrix");
+    /**
+     * Binds a depth shader variant for the cascade being rendered.
+     */
+    private void useDepthShader(int features) {
+        depthShader = depthShaders.get(features);
+        depthShader.getShaderProgram().bind();
+        depthShader.getCascadeIndexUniform().set(cascadeIndex);
     }
 
-    private void update(Window window, Matrix4f viewMatrix, Scene scene) {
+    /**
+     * Updates the matrices of the cascades chosen by the scheduler and marks them to be rendered. The other
+     * cascades keep their matrices, so the scene keeps sampling their depth maps where they were rendered.
+     *
+     * @param changed If the scene or the view changed since the last update
+     */
+    public void update(Window window, Matrix4f viewMatrix, Scene scene, boolean changed) {
         SceneLight sceneLight = scene.getSceneLight();
         DirectionalLight directionalLight = sceneLight != null ? sceneLight.getDirectionalLight() : null;
-        for (int i = 0; i < NUM_CASCADES; i++) {
+        if (shadowBuffer.hasStaticLayer()) {
+            checkStaticCasters(scene);
+        }
+        updateCasterBounds(scene);
+        int updateMask = cascadeScheduler.schedule(numCascades, changed);
+        for (int i = 0; i < numCascades; i++) {
+            if ((updateMask & (1 << i)) == 0) {
+                continue;
+            }
             ShadowCascade shadowCascade = shadowCascades.get(i);
-            shadowCascade.update(window, viewMatrix, directionalLight);
+            if (shadowCascade.update(window, viewMatrix, directionalLight, shadowBuffer.getSize(),
+                    hasCasters ? casterBounds : null)) {
+                staticLayerValid[i] = false;
+            }
+            renderPending[i] = true;
+        }
+        if (Metrics.isSampling()) {
+            Metrics.set("cascades", Integer.bitCount(updateMask) + "/" + numCascades);
         }
     }
 
-    public void render(Window window, Scene scene, Camera camera, Transformation transformation, Renderer renderer) {
-        update(window, camera.getViewMatrix(), scene);
+    /**
+     * Recalculates the bounds of the casters if items have been added, removed or moved.
+     */
+    private void updateCasterBounds(Scene scene) {
+        if (scene.getVersion() == boundsSceneVersion
+                && GameItem.getTransformModificationCount() == boundsModificationCount) {
+            return;
+        }
+        boundsSceneVersion = scene.getVersion();
+        boundsModificationCount = GameItem.getTransformModificationCount();
+        casterBounds[0].set(Float.MAX_VALUE);
+        casterBounds[1].set(-Float.MAX_VALUE);
+        hasCasters = false;
+        for (Map.Entry<Mesh, List<GameItem>> entry : scene.getGameMeshes().entrySet()) {
+            addCasterBounds(entry.getValue(), entry.getKey().getBoundingRadius());
+        }
+        for (Map.Entry<InstancedMesh, List<GameItem>> entry : scene.getGameInstancedMeshes().entrySet()) {
+            addCasterBounds(entry.getValue(), entry.getKey().getBoundingRadius());
+        }
+        for (StaticBatch staticBatch : scene.getStaticBatches()) {
+            addCasterBounds(staticBatch.getCenter(), staticBatch.getBoundingRadius());
+        }
+    }
 
+    private void addCasterBounds(List<GameItem> gameItems, float meshBoundingRadius) {
+        for (GameItem gameItem : gameItems) {
+            addCasterBounds(gameItem.getPosition(), gameItem.getScale() * meshBoundingRadius);
+        }
+    }
+
+    private void addCasterBounds(Vector3f center, float radius) {
+        casterBounds[0].min(tmpBoundsCorner.set(center).sub(radius, radius, radius));
+        casterBounds[1].max(tmpBoundsCorner.set(center).add(radius, radius, radius));
+        hasCasters = true;
+    }
+
+    /**
+     * Invalidates the static layers if static casters have been added, removed or moved.
+     */
+    private void checkStaticCasters(Scene scene) {
+        if (scene.getVersion() == sceneVersion && GameItem.getTransformModificationCount() == modificationCount) {
+            return;
+        }
+        long version = 0;
+        for (List<GameItem> gameItems : scene.getGameMeshes().values()) {
+            version += sumStaticVersions(gameItems);
+        }
+        for (List<GameItem> gameItems : scene.getGameInstancedMeshes().values()) {
+            version += sumStaticVersions(gameItems);
+        }
+        for (StaticBatch staticBatch : scene.getStaticBatches()) {
+            for (StaticBatch.ItemRange itemRange : staticBatch.getItemRanges()) {
+                version += itemRange.getGameItem().getTransformVersion();
+            }
+        }
+        if (scene.getVersion() != sceneVersion || version != staticCastersVersion) {
+            Arrays.fill(staticLayerValid, false);
+        }
+        sceneVersion = scene.getVersion();
+        modificationCount = GameItem.getTransformModificationCount();
+        staticCastersVersion = version;
+    }
+
+    private static long sumStaticVersions(List<GameItem> gameItems) {
+        long version = 0;
+        for (GameItem gameItem : gameItems) {
+            if (gameItem.isStatic()) {
+                version += gameItem.getTransformVersion();
+            }
+        }
+        return version;
+    }
+
+    /**
+     * Renders the cascades updated since the last render. The other depth maps are kept. With shadow caching, the
+     * static casters are only rendered when the static layer of the cascade is invalid, and the dynamic casters are
+     * drawn over a copy of it. Each cascade only draws the casters inside its light volume.
+     */
+    public void render(Window window, Scene scene, Camera camera, Transformation transformation, Renderer renderer) {
         // Setup view port to match the texture size
-        glBindFramebuffer(GL_FRAMEBUFFER, shadowBuffer.getDepthMapFBO());
-        glViewport(0, 0, ShadowBuffer.SHADOW_MAP_WIDTH, ShadowBuffer.SHADOW_MAP_HEIGHT);
-        glClear(GL_DEPTH_BUFFER_BIT);
+        GLState.viewport(0, 0, shadowBuffer.getSize(), shadowBuffer.getSize());
+
+        // The GPU culler does not tell static and dynamic casters apart, so it is not used for the cached layers
+        GeometryArena geometryArena = renderer.getGeometryArena();
+        GpuCuller gpuCuller = shadowBuffer.hasStaticLayer() ? null : renderer.getGpuCuller();
+        if (geometryArena != null && arenaStream < 0) {
+            arenaStream = geometryArena.createStream();
+        }
+        drawStream = gpuCuller != null ? GeometryArena.SCENE_STREAM : arenaStream;
+        Arrays.fill(numDrawnCasters, 0);
+        int renderedMask = 0;
+        for (int i = 0; i < numCascades; i++) {
+            if (renderPending[i]) {
+                renderedMask |= 1 << i;
+            }
+        }
+        if (layeredSupported && geometryArena != null) {
+            renderLayered(scene, transformation, geometryArena, gpuCuller);
+        } else {
+            renderCascades(scene, transformation, geometryArena, gpuCuller);
+        }
+        if (shadowFilter != null) {
+            // Only the cascades rendered now are filtered, the others keep their moments
+            shadowFilter.filter(shadowBuffer, renderedMask, filterRadius);
+        }
 
-        depthShaderProgram.bind();
+        // Unbind
+        GLState.useProgram(0);
+        GLState.bindFramebuffer(0);
+
+        updateMetrics(gpuCuller != null);
+    }
+
+    /**
+     * Renders the pending cascades one at a time, each one into its own layer.
+     */
+    private void renderCascades(Scene scene, Transformation transformation, GeometryArena geometryArena,
+                                GpuCuller gpuCuller) {
+        if (geometryArena != null && gpuCuller == null) {
+            recordIndirectCommands(scene, geometryArena, transformation);
+        }
 
         // Render scene for each cascade map
-        for (int i = 0; i < NUM_CASCADES; i++) {
-            ShadowCascade shadowCascade = shadowCascades.get(i);
+        for (int i = 0; i < numCascades; i++) {
+            if (!renderPending[i]) {
+                continue;
+            }
+            renderPending[i] = false;
+            cascadeIndex = i;
+
+            if (shadowBuffer.hasStaticLayer()) {
+                if (!staticLayerValid[i]) {
+                    shadowBuffer.bindStaticLayer(i);
+                    glClear(GL_DEPTH_BUFFER_BIT);
+                    renderCasters(scene, transformation, geometryArena, STATIC_CASTERS);
+                    staticLayerValid[i] = true;
+                }
+                shadowBuffer.copyStaticLayer(i);
+                renderCasters(scene, transformation, geometryArena, DYNAMIC_CASTERS);
+                continue;
+            }
+
+            shadowBuffer.bindDepthMap(i);
+            glClear(GL_DEPTH_BUFFER_BIT);
+            if (gpuCuller != null) {
+                // Each cascade has its own range of commands, filled by the GPU culler
+                int numCommands = gpuCuller.getNumCommands();
+                renderIndirectMeshes(geometryArena, (i + 1) * numCommands, numCommands, 0);
+                renderStaticBatches(scene, 1 << i, 0);
+            } else {
+                renderCasters(scene, transformation, geometryArena, ALL_CASTERS);
+            }
+        }
+    }
+
+    /**
+     * Renders all the pending cascades together, with the whole texture array attached. Each caster is recorded
+     * once for every cascade it overlaps and the depth shader sends each instance to the layer of its cascade.
+     */
+    private void renderLayered(Scene scene, Transformation transformation, GeometryArena geometryArena,
+                               GpuCuller gpuCuller) {
+        int pendingMask = 0;
+        for (int i = 0; i < numCascades; i++) {
+            if (renderPending[i]) {
+                pendingMask |= 1 << i;
+                renderPending[i] = false;
+            }
+        }
+        if (pendingMask == 0) {
+            return;
+        }
+
+        if (shadowBuffer.hasStaticLayer()) {
+            int staticMask = 0;
+            for (int i = 0; i < numCascades; i++) {
+                if ((pendingMask & (1 << i)) != 0 && !staticLayerValid[i]) {
+                    staticMask |= 1 << i;
+                }
+            }
+            recordLayeredCommands(scene, geometryArena, transformation, staticMask, pendingMask);
+            if (staticMask != 0) {
+                clearLayers(staticMask, true);
+                shadowBuffer.bindStaticLayers();
+                renderIndirectMeshes(geometryArena, 0, layeredStaticEnd, DepthShader.LAYERED);
+                renderStaticBatches(scene, staticMask, DepthShader.LAYERED);
+                for (int i = 0; i < numCascades; i++) {
+                    staticLayerValid[i] |= (staticMask & (1 << i)) != 0;
+                }
+            }
+            for (int i = 0; i < numCascades; i++) {
+                if ((pendingMask & (1 << i)) != 0) {
+                    shadowBuffer.copyStaticLayer(i);
+                }
+            }
+            shadowBuffer.bindDepthMaps();
+            renderIndirectMeshes(geometryArena, layeredStaticEnd, layeredEnd - layeredStaticEnd, DepthShader.LAYERED);
+            return;
+        }
 
-            depthShaderProgram.setUniform("orthoProjectionMatrix", shadowCascade.getOrthoProjMatrix());
-            depthShaderProgram.setUniform("lightViewMatrix", shadowCascade.getLightViewMatrix());
+        clearLayers(pendingMask, false);
+        shadowBuffer.bindDepthMaps();
+        if (gpuCuller != null) {
+            // The ranges of the cascades follow each other, so consecutive pending cascades are drawn together
+            int numCommands = gpuCuller.getNumCommands();
+            int first = 0;
+            while (first < numCascades) {
+                if ((pendingMask & (1 << first)) == 0) {
+                    first++;
+                    continue;
+                }
+                int end = first + 1;
+                while (end < numCascades && (pendingMask & (1 << end)) != 0) {
+                    end++;
+                }
+                renderIndirectMeshes(geometryArena, (first + 1) * numCommands, (end - first) * numCommands,
+                        DepthShader.LAYERED);
+                first = end;
+            }
+        } else {
+            recordLayeredCommands(scene, geometryArena, transformation, 0, pendingMask);
+            renderIndirectMeshes(geometryArena, layeredStaticEnd, layeredEnd - layeredStaticEnd, DepthShader.LAYERED);
+        }
+        renderStaticBatches(scene, pendingMask, DepthShader.LAYERED);
+    }
 
-            glFramebufferTexture2D(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, GL_TEXTURE_2D, shadowBuffer.getDepthMapTexture().getIds()[i], 0);
+    /**
+     * Clears the layers of the cascades of the mask, one at a time, since clearing the whole array would lose the
+     * cascades that are kept.
+     */
+    private void clearLayers(int cascadeMask, boolean staticLayers) {
+        for (int i = 0; i < numCascades; i++) {
+            if ((cascadeMask & (1 << i)) == 0) {
+                continue;
+            }
+            if (staticLayers) {
+                shadowBuffer.bindStaticLayer(i);
+            } else {
+                shadowBuffer.bindDepthMap(i);
+            }
             glClear(GL_DEPTH_BUFFER_BIT);
+        }
+    }
 
-            renderNonInstancedMeshes(scene, transformation);
+    private void updateMetrics(boolean gpuCulling) {
+        if (gpuCulling) {
+            // The GPU culler does not report the number of casters
+            Metrics.remove("casters");
+            return;
+        }
+        if (!Metrics.isSampling()) {
+            return;
+        }
+        StringBuilder casters = new StringBuilder();
+        for (int i = 0; i < numCascades; i++) {
+            if (i > 0) {
+                casters.append('/');
+            }
+            casters.append(numDrawnCasters[i]);
+        }
+        Metrics.set("casters", casters.toString());
+    }
 
-            renderInstancedMeshes(scene, transformation);
+    /**
+     * Draws the casters of the current cascade. Commands of the indirect path must have been recorded.
+     */
+    private void renderCasters(Scene scene, Transformation transformation, GeometryArena geometryArena, int casters) {
+        if (geometryArena != null) {
+            int firstCommand = casters == DYNAMIC_CASTERS ? staticEndCommands[cascadeIndex] : firstCommands[cascadeIndex];
+            int endCommand = casters == STATIC_CASTERS ? staticEndCommands[cascadeIndex] : endCommands[cascadeIndex];
+            renderIndirectMeshes(geometryArena, firstCommand, endCommand - firstCommand, 0);
+        } else {
+            renderNonInstancedMeshes(scene, transformation, casters);
+            renderInstancedMeshes(scene, transformation, casters);
+        }
+        if (casters != DYNAMIC_CASTERS) {
+            renderStaticBatches(scene, 1 << cascadeIndex, 0);
         }
+    }
 
-        // Unbind
-        depthShaderProgram.unbind();
-        glBindFramebuffer(GL_FRAMEBUFFER, 0);
+    /**
+     * @return The items of the casters to draw that are inside the light volume of the current cascade. The
+     * returned list is reused by the next call.
+     */
+    private List<GameItem> filterCasters(List<GameItem> gameItems, float meshBoundingRadius, int casters) {
+        ShadowCascade shadowCascade = shadowCascades.get(cascadeIndex);
+        filteredItems.clear();
+        for (GameItem gameItem : gameItems) {
+            if (casters != ALL_CASTERS && gameItem.isStatic() != (casters == STATIC_CASTERS)) {
+                continue;
+            }
+            Vector3f position = gameItem.getPosition();
+            if (!gameItem.isDisableFrustumCulling() && !shadowCascade.isInsideLightVolume(position.x, position.y,
+                    position.z, gameItem.getScale() * meshBoundingRadius)) {
+                continue;
+            }
+            filteredItems.add(gameItem);
+        }
+        numDrawnCasters[cascadeIndex] += filteredItems.size();
+        return filteredItems;
+    }
+
+    /**
+     * @return The items of the casters to draw that are inside the light volume of some cascade of the mask. The
+     * cascades of each item are stored in {@link #layerMasks}. The returned list is reused by the next call.
+     */
+    private List<GameItem> routeCasters(List<GameItem> gameItems, float meshBoundingRadius, int casters,
+                                        int cascadeMask) {
+        filteredItems.clear();
+        for (GameItem gameItem : gameItems) {
+            if (casters != ALL_CASTERS && gameItem.isStatic() != (casters == STATIC_CASTERS)) {
+                continue;
+            }
+            int layerMask = cascadeMask;
+            if (!gameItem.isDisableFrustumCulling()) {
+                Vector3f position = gameItem.getPosition();
+                float radius = gameItem.getScale() * meshBoundingRadius;
+                for (int i = 0; i < numCascades; i++) {
+                    if ((layerMask & (1 << i)) != 0 && !shadowCascades.get(i).isInsideLightVolume(position.x,
+                            position.y, position.z, radius)) {
+                        layerMask &= ~(1 << i);
+                    }
+                }
+            }
+            if (layerMask == 0) {
+                continue;
+            }
+            int numItems = filteredItems.size();
+            if (numItems == layerMasks.length) {
+                layerMasks = Arrays.copyOf(layerMasks, numItems * 2);
+            }
+            layerMasks[numItems] = layerMask;
+            filteredItems.add(gameItem);
+            for (int i = 0; i < numCascades; i++) {
+                if ((layerMask & (1 << i)) != 0) {
+                    numDrawnCasters[i]++;
+                }
+            }
+        }
+        return filteredItems;
+    }
+
+    /**
+     * @return The mesh to draw for a caster in a cascade, its shadow proxy if it has one that can be used there
+     */
+    private Mesh getShadowMesh(Mesh mesh, int cascade) {
+        Mesh shadowProxy = mesh.getShadowProxy();
+        if (!shadowProxies || shadowProxy == null || !mesh.isShadowProxyExact() && cascade < PROXY_CASCADE) {
+            return mesh;
+        }
+        return shadowProxy;
     }
 
-    private void renderNonInstancedMeshes(Scene scene, Transformation transformation) {
-        depthShaderProgram.setUniform("isInstanced", 0);
+    private void renderNonInstancedMeshes(Scene scene, Transformation transformation, int casters) {
+        useDepthShader(0);
 
         // Render each mesh with the associated game Items
         Map<Mesh, List<GameItem>> mapMeshes = scene.getGameMeshes();
         for (Mesh mesh : mapMeshes.keySet()) {
-            mesh.renderList(mapMeshes.get(mesh), (GameItem gameItem) -> {
+            getShadowMesh(mesh, cascadeIndex).renderList(filterCasters(mapMeshes.get(mesh), mesh.getBoundingRadius(), casters), (GameItem gameItem) -> {
                 Matrix4f modelMatrix = transformation.buildModelMatrix(gameItem);
-                depthShaderProgram.setUniform("modelNonInstancedMatrix", modelMatrix);
+                depthShader.getModelNonInstancedMatrixUniform().set(modelMatrix);
             }
             );
         }
     }
 
-    private void renderInstancedMeshes(Scene scene, Transformation transformation) {
-        depthShaderProgram.setUniform("isInstanced", 1);
+    /**
+     * Records the commands of the cascades to render, each one with its own culled range. Static casters come
+     * first in a range and are not recorded if the static layer of the cascade is valid.
+     */
+    private void recordIndirectCommands(Scene scene, GeometryArena geometryArena, Transformation transformation) {
+        drawCommandList.clear();
+        boolean staticLayer = shadowBuffer.hasStaticLayer();
+        for (int i = 0; i < numCascades; i++) {
+            if (!renderPending[i]) {
+                continue;
+            }
+            cascadeIndex = i;
+            firstCommands[i] = drawCommandList.getNumCommands();
+            if (!staticLayer) {
+                addCommands(scene, geometryArena, transformation, ALL_CASTERS);
+            } else if (!staticLayerValid[i]) {
+                addCommands(scene, geometryArena, transformation, STATIC_CASTERS);
+            }
+            staticEndCommands[i] = drawCommandList.getNumCommands();
+            if (staticLayer) {
+                addCommands(scene, geometryArena, transformation, DYNAMIC_CASTERS);
+            }
+            endCommands[i] = drawCommandList.getNumCommands();
+        }
+        geometryArena.upload(drawCommandList, arenaStream);
+    }
 
-        // Render each mesh with the associated game Items
-        Map<InstancedMesh, List<GameItem>> mapMeshes = scene.getGameInstancedMeshes();
-        for (InstancedMesh mesh : mapMeshes.keySet()) {
-            filteredItems.clear();
-            for (GameItem gameItem : mapMeshes.get(mesh)) {
-                if (gameItem.isInsideFrustum()) {
-                    filteredItems.add(gameItem);
+    /**
+     * Records the commands of a layered render. The static casters of the cascades of the static mask come first,
+     * then the dynamic casters of the pending cascades, or all the casters if there are no static layers.
+     */
+    private void recordLayeredCommands(Scene scene, GeometryArena geometryArena, Transformation transformation,
+                                       int staticMask, int pendingMask) {
+        drawCommandList.clear();
+        if (staticMask != 0) {
+            addLayeredCommands(scene, geometryArena, transformation, STATIC_CASTERS, staticMask);
+        }
+        layeredStaticEnd = drawCommandList.getNumCommands();
+        addLayeredCommands(scene, geometryArena, transformation,
+                shadowBuffer.hasStaticLayer() ? DYNAMIC_CASTERS : ALL_CASTERS, pendingMask);
+        layeredEnd = drawCommandList.getNumCommands();
+        geometryArena.upload(drawCommandList, arenaStream);
+    }
+
+    private void addLayeredCommands(Scene scene, GeometryArena geometryArena, Transformation transformation,
+                                    int casters, int cascadeMask) {
+        for (Map.Entry<Mesh, List<GameItem>> entry : scene.getGameMeshes().entrySet()) {
+            addLayeredCommands(entry.getKey(), entry.getValue(), geometryArena, transformation, casters, cascadeMask);
+        }
+        for (Map.Entry<InstancedMesh, List<GameItem>> entry : scene.getGameInstancedMeshes().entrySet()) {
+            addLayeredCommands(entry.getKey(), entry.getValue(), geometryArena, transformation, casters, cascadeMask);
+        }
+    }
+
+    /**
+     * Records the layered commands of one mesh. The cascades before {@link #PROXY_CASCADE} draw the mesh and the
+     * others its proxy, each with its own command.
+     */
+    private void addLayeredCommands(Mesh mesh, List<GameItem> gameItems, GeometryArena geometryArena,
+                                    Transformation transformation, int casters, int cascadeMask) {
+        List<GameItem> routedItems = routeCasters(gameItems, mesh.getBoundingRadius(), casters, cascadeMask);
+        int proxyMask = -1 << PROXY_CASCADE;
+        Mesh nearMesh = getShadowMesh(mesh, 0);
+        Mesh farMesh = getShadowMesh(mesh, PROXY_CASCADE);
+        if (nearMesh == farMesh) {
+            drawCommandList.addLayeredCommand(geometryArena.allocate(nearMesh), routedItems, layerMasks, -1,
+                    transformation);
+            return;
+        }
+        drawCommandList.addLayeredCommand(geometryArena.allocate(nearMesh), routedItems, layerMasks, ~proxyMask,
+                transformation);
+        drawCommandList.addLayeredCommand(geometryArena.allocate(farMesh), routedItems, layerMasks, proxyMask,
+                transformation);
+    }
+
+    private void addCommands(Scene scene, GeometryArena geometryArena, Transformation transformation, int casters) {
+        for (Map.Entry<Mesh, List<GameItem>> entry : scene.getGameMeshes().entrySet()) {
+            Mesh mesh = entry.getKey();
+            drawCommandList.addCommand(geometryArena.allocate(getShadowMesh(mesh, cascadeIndex)),
+                    filterCasters(entry.getValue(), mesh.getBoundingRadius(), casters), null, transformation, false);
+        }
+        for (Map.Entry<InstancedMesh, List<GameItem>> entry : scene.getGameInstancedMeshes().entrySet()) {
+            Mesh mesh = entry.getKey();
+            drawCommandList.addCommand(geometryArena.allocate(getShadowMesh(mesh, cascadeIndex)),
+                    filterCasters(entry.getValue(), mesh.getBoundingRadius(), casters), null, transformation, false);
+        }
+    }
+
+    private void renderIndirectMeshes(GeometryArena geometryArena, int firstCommand, int numCommands, int features) {
+        if (numCommands == 0) {
+            return;
+        }
+        useDepthShader(DepthShader.INSTANCED | features);
+
+        geometryArena.bind(drawStream);
+        geometryArena.multiDraw(firstCommand, numCommands);
+    }
+
+    /**
+     * Draws the static batches inside the light volume of each cascade of the mask. Without the layered feature
+     * the framebuffer of the only cascade of the mask must be bound.
+     */
+    private void renderStaticBatches(Scene scene, int cascadeMask, int features) {
+        List<StaticBatch> staticBatches = scene.getStaticBatches();
+        if (staticBatches.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < numCascades; i++) {
+            if ((cascadeMask & (1 << i)) == 0) {
+                continue;
+            }
+            cascadeIndex = i;
+            useDepthShader(features);
+            depthShader.getModelNonInstancedMatrixUniform().set(identityMatrix);
+
+            ShadowCascade shadowCascade = shadowCascades.get(i);
+            for (StaticBatch staticBatch : staticBatches) {
+                Vector3f center = staticBatch.getCenter();
+                if (shadowCascade.isInsideLightVolume(center.x, center.y, center.z, staticBatch.getBoundingRadius())) {
+                    getShadowMesh(staticBatch, i).render();
+                    numDrawnCasters[i]++;
                 }
             }
-            bindTextures(GL_TEXTURE2);
+        }
+    }
+
+    private void renderInstancedMeshes(Scene scene, Transformation transformation, int casters) {
+        useDepthShader(DepthShader.INSTANCED);
 
-            mesh.renderListInstanced(filteredItems, transformation, null);
+        // Render each mesh with the associated game Items. The proxies are not instanced meshes, so they are only
+        // drawn by the indirect path
+        Map<InstancedMesh, List<GameItem>> mapMeshes = scene.getGameInstancedMeshes();
+        for (InstancedMesh mesh : mapMeshes.keySet()) {
+            mesh.renderListInstanced(filterCasters(mapMeshes.get(mesh), mesh.getBoundingRadius(), casters),
+                    transformation, null);
         }
     }
 
@@ -144,9 +857,13 @@ public class ShadowRenderer {
         if (shadowBuffer != null) {
             shadowBuffer.cleanup();
         }
-        if (depthShaderProgram != null) {
-            depthShaderProgram.cleanup();
+        if (depthShaders != null) {
+            depthShaders.cleanup();
+        }
+        if (shadowFilter != null) {
+            shadowFilter.cleanup();
         }
+        drawCommandList.cleanup();
     }
 
 }
@@ -0,0 +1,32 @@
+package org.lwjgl.engine.graph.uniform;
+
+import org.joml.Vector3f;
+
+/**
+ * Handles of the fields of a directional light struct uniform.
+ */
+public class DirectionalLightUniform {
+
+    private final Vector3fUniform colour;
+
+    private final Vector3fUniform direction;
+
+    private final FloatUniform intensity;
+
+    public DirectionalLightUniform(Vector3fUniform colour, Vector3fUniform direction, FloatUniform intensity) {
+        this.colour = colour;
+        this.direction = direction;
+        this.intensity = intensity;
+    }
+
+    /**
+     * @param colour Colour of the light
+     * @param direction Direction of the light, in the space used by the shader
+     * @param intensity Intensity of the light
+     */
+    public void set(Vector3f colour, Vector3f direction, float intensity) {
+        this.colour.set(colour);
+        this.direction.set(direction);
+        this.intensity.set(intensity);
+    }
+}
@@ -0,0 +1,21 @@
+package org.lwjgl.engine.graph.uniform;
+
+import static org.lwjgl.opengl.GL20.glUniform1f;
+
+public class FloatUniform extends Uniform {
+
+    private float value;
+
+    public FloatUniform(int location) {
+        super(location);
+    }
+
+    public void set(float value) {
+        if (uploaded && Float.floatToIntBits(this.value) == Float.floatToIntBits(value)) {
+            return;
+        }
+        this.value = value;
+        uploaded = true;
+        glUniform1f(location, value);
+    }
+}
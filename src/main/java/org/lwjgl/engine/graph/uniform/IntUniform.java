@@ -0,0 +1,21 @@
+package org.lwjgl.engine.graph.uniform;
+
+import static org.lwjgl.opengl.GL20.glUniform1i;
+
+public class IntUniform extends Uniform {
+
+    private int value;
+
+    public IntUniform(int location) {
+        super(location);
+    }
+
+    public void set(int value) {
+        if (uploaded && this.value == value) {
+            return;
+        }
+        this.value = value;
+        uploaded = true;
+        glUniform1i(location, value);
+    }
+}
@@ -0,0 +1,33 @@
+package org.lwjgl.engine.graph.uniform;
+
+import org.lwjgl.engine.graph.Material;
+
+/**
+ * Handles of the fields of a material struct uniform. Whether the material is textured is a shader variant
+ * feature, not a uniform.
+ */
+public class MaterialUniform {
+
+    private final Vector4fUniform ambient;
+
+    private final Vector4fUniform diffuse;
+
+    private final Vector4fUniform specular;
+
+    private final FloatUniform reflectance;
+
+    public MaterialUniform(Vector4fUniform ambient, Vector4fUniform diffuse, Vector4fUniform specular,
+                           FloatUniform reflectance) {
+        this.ambient = ambient;
+        this.diffuse = diffuse;
+        this.specular = specular;
+        this.reflectance = reflectance;
+    }
+
+    public void set(Material material) {
+        ambient.set(material.getAmbientColour());
+        diffuse.set(material.getDiffuseColour());
+        specular.set(material.getSpecularColour());
+        reflectance.set(material.getReflectance());
+    }
+}
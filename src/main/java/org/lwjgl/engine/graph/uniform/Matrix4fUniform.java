@@ -0,0 +1,28 @@
+package org.lwjgl.engine.graph.uniform;
+
+import org.joml.Matrix4f;
+
+import static org.lwjgl.opengl.GL20.glUniformMatrix4fv;
+
+public class Matrix4fUniform extends Uniform {
+
+    private final Matrix4f value;
+
+    private final float[] data;
+
+    public Matrix4fUniform(int location) {
+        super(location);
+        value = new Matrix4f();
+        data = new float[16];
+    }
+
+    public void set(Matrix4f value) {
+        if (uploaded && this.value.equals(value)) {
+            return;
+        }
+        this.value.set(value);
+        uploaded = true;
+        value.get(data);
+        glUniformMatrix4fv(location, false, data);
+    }
+}
@@ -0,0 +1,27 @@
+package org.lwjgl.engine.graph.uniform;
+
+/**
+ * Handle to a uniform location resolved when the program is set up. Handles keep a copy of the last uploaded
+ * value and skip the GL call if the value does not change. Values are set on the program that is bound.
+ */
+public abstract class Uniform {
+
+    protected final int location;
+
+    protected boolean uploaded;
+
+    protected Uniform(int location) {
+        this.location = location;
+    }
+
+    public int getLocation() {
+        return location;
+    }
+
+    /**
+     * Forgets the uploaded value, so the next value is always sent.
+     */
+    public void invalidate() {
+        uploaded = false;
+    }
+}
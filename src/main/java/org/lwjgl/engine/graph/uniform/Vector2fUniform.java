@@ -0,0 +1,28 @@
+package org.lwjgl.engine.graph.uniform;
+
+import org.joml.Vector2f;
+
+import static org.lwjgl.opengl.GL20.glUniform2f;
+
+public class Vector2fUniform extends Uniform {
+
+    private final Vector2f value;
+
+    public Vector2fUniform(int location) {
+        super(location);
+        value = new Vector2f();
+    }
+
+    public void set(Vector2f value) {
+        set(value.x, value.y);
+    }
+
+    public void set(float x, float y) {
+        if (uploaded && value.x == x && value.y == y) {
+            return;
+        }
+        value.set(x, y);
+        uploaded = true;
+        glUniform2f(location, x, y);
+    }
+}
@@ -0,0 +1,28 @@
+package org.lwjgl.engine.graph.uniform;
+
+import org.joml.Vector3f;
+
+import static org.lwjgl.opengl.GL20.glUniform3f;
+
+public class Vector3fUniform extends Uniform {
+
+    private final Vector3f value;
+
+    public Vector3fUniform(int location) {
+        super(location);
+        value = new Vector3f();
+    }
+
+    public void set(Vector3f value) {
+        set(value.x, value.y, value.z);
+    }
+
+    public void set(float x, float y, float z) {
+        if (uploaded && value.x == x && value.y == y && value.z == z) {
+            return;
+        }
+        value.set(x, y, z);
+        uploaded = true;
+        glUniform3f(location, x, y, z);
+    }
+}
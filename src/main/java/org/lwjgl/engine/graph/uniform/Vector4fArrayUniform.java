@@ -0,0 +1,50 @@
+package org.lwjgl.engine.graph.uniform;
+
+import org.joml.Vector4f;
+
+import java.util.Arrays;
+
+import static org.lwjgl.opengl.GL20.glUniform4fv;
+
+/**
+ * Handle to an array of vectors, uploaded with a single call.
+ */
+public class Vector4fArrayUniform extends Uniform {
+
+    private final float[] value;
+
+    private final float[] data;
+
+    /**
+     * @param location Location of the first element of the array
+     * @param size Number of elements of the array
+     */
+    public Vector4fArrayUniform(int location, int size) {
+        super(location);
+        value = new float[size * 4];
+        data = new float[size * 4];
+    }
+
+    public int getSize() {
+        return data.length / 4;
+    }
+
+    /**
+     * @param values Vectors of the elements, at least as many as the array has
+     */
+    public void set(Vector4f[] values) {
+        for (int i = 0; i < data.length / 4; i++) {
+            Vector4f element = values[i];
+            data[i * 4] = element.x;
+            data[i * 4 + 1] = element.y;
+            data[i * 4 + 2] = element.z;
+            data[i * 4 + 3] = element.w;
+        }
+        if (uploaded && Arrays.equals(value, data)) {
+            return;
+        }
+        System.arraycopy(data, 0, value, 0, data.length);
+        uploaded = true;
+        glUniform4fv(location, data);
+    }
+}
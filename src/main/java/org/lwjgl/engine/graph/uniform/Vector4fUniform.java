@@ -0,0 +1,28 @@
+package org.lwjgl.engine.graph.uniform;
+
+import org.joml.Vector4f;
+
+import static org.lwjgl.opengl.GL20.glUniform4f;
+
+public class Vector4fUniform extends Uniform {
+
+    private final Vector4f value;
+
+    public Vector4fUniform(int location) {
+        super(location);
+        value = new Vector4f();
+    }
+
+    public void set(Vector4f value) {
+        set(value.x, value.y, value.z, value.w);
+    }
+
+    public void set(float x, float y, float z, float w) {
+        if (uploaded && value.x == x && value.y == y && value.z == z && value.w == w) {
+            return;
+        }
+        value.set(x, y, z, w);
+        uploaded = true;
+        glUniform4f(location, x, y, z, w);
+    }
+}
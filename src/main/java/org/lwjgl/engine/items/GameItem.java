@@ -5,6 +5,16 @@ import org.lwjgl.engine.graph.Mesh;
 
 public class GameItem {
 
+    /**
+     * Incremented whenever any game item changes. It allows to skip looking for changes when nothing happened.
+     */
+    private static int modificationCount;
+
+    /**
+     * Incremented whenever the transformation of any game item changes.
+     */
+    private static int transformModificationCount;
+
     private boolean selected;
 
     private Mesh[] meshes;
@@ -21,6 +31,22 @@ public class GameItem {
 
     private boolean insideFrustum;
 
+    /**
+     * Static items never move after being added to the scene, so their geometry can be baked together.
+     */
+    private boolean staticItem;
+
+    /**
+     * Incremented whenever the transformation or the render state of this item changes.
+     */
+    private int version;
+
+    /**
+     * Incremented whenever the position, the rotation or the scale of this item changes. Unlike the version, it
+     * ignores the render state, like the selection or the texture position.
+     */
+    private int transformVersion;
+
     public GameItem() {
         selected = false;
         position = new Vector3f(0, 0, 0);
@@ -29,6 +55,7 @@ public class GameItem {
         textPos = 0;
         insideFrustum = true;
         disableFrustumCulling = false;
+        staticItem = false;
     }
 
     public GameItem(Mesh mesh) {
@@ -57,6 +84,7 @@ public class GameItem {
         this.position.x = x;
         this.position.y = y;
         this.position.z = z;
+        transformModified();
     }
 
     public float getScale() {
@@ -65,6 +93,7 @@ public class GameItem {
 
     public void setScale(float scale) {
         this.scale = scale;
+        transformModified();
     }
 
     public Vector3f getRotation() {
@@ -75,6 +104,7 @@ public class GameItem {
         this.rotation.x = x;
         this.rotation.y = y;
         this.rotation.z = z;
+        transformModified();
     }
 
     public Mesh getMesh() {
@@ -101,11 +131,15 @@ public class GameItem {
     }
 
     public void setSelected(boolean selected) {
-        this.selected = selected;
+        if (this.selected != selected) {
+            this.selected = selected;
+            modified();
+        }
     }
 
     public void setTextPos(int textPos) {
         this.textPos = textPos;
+        modified();
     }
 
     public boolean isInsideFrustum() {
@@ -123,4 +157,39 @@ public class GameItem {
     public void setDisableFrustumCulling(boolean disableFrustumCulling) {
         this.disableFrustumCulling = disableFrustumCulling;
     }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getTransformVersion() {
+        return transformVersion;
+    }
+
+    public static int getModificationCount() {
+        return modificationCount;
+    }
+
+    public static int getTransformModificationCount() {
+        return transformModificationCount;
+    }
+
+    private void modified() {
+        version++;
+        modificationCount++;
+    }
+
+    private void transformModified() {
+        modified();
+        transformVersion++;
+        transformModificationCount++;
+    }
+
+    public boolean isStatic() {
+        return staticItem;
+    }
+
+    public void setStatic(boolean staticItem) {
+        this.staticItem = staticItem;
+    }
 }
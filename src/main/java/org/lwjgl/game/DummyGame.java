@@ -7,13 +7,19 @@ import org.joml.Vector3f;
 import org.joml.Vector4f;
 import org.lwjgl.engine.*;
 import org.lwjgl.engine.graph.*;
+import org.lwjgl.engine.graph.capture.CaptureEncoder;
+import org.lwjgl.engine.graph.capture.FrameCapture;
 import org.lwjgl.engine.graph.lights.DirectionalLight;
+import org.lwjgl.engine.graph.lights.PointLight;
 import org.lwjgl.engine.graph.lights.SceneLight;
 import org.lwjgl.engine.items.GameItem;
 import org.lwjgl.engine.items.SkyBox;
 import org.lwjgl.engine.items.Terrain;
+import org.lwjgl.opengl.GL;
 
 import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -23,6 +29,11 @@ public class DummyGame implements IGameLogic {
 
     private static final float MOUSE_SENSITIVITY = 0.2f;
 
+    /**
+     * Blocks between two torches
+     */
+    private static final int TORCH_SPACING = 97;
+
     private final Vector3f cameraInc;
 
     private final Renderer renderer;
@@ -51,6 +62,17 @@ public class DummyGame implements IGameLogic {
 
     private boolean sceneChanged;
 
+    private boolean prePassKeyPressed;
+
+    /**
+     * Writes screenshots and frame sequences. It is null if fences are not supported.
+     */
+    private FrameCapture frameCapture;
+
+    private boolean screenshotKeyPressed;
+
+    private boolean sequenceKeyPressed;
+
     public DummyGame() {
         renderer = new Renderer();
         hud = new Hud();
@@ -65,6 +87,9 @@ public class DummyGame implements IGameLogic {
     public void init(Window window) throws Exception {
         hud.init(window);
         renderer.init(window);
+        if (FrameCapture.isSupported(GL.getCapabilities())) {
+            frameCapture = new FrameCapture(Paths.get(System.getProperty("user.home"), ".lwjgl-engine", "captures"));
+        }
 
         scene = new Scene();
 
@@ -96,7 +121,10 @@ public class DummyGame implements IGameLogic {
         buf.flip();
 
         int instances = height * width;
-        Mesh mesh = OBJLoader.loadMesh("/models/cube.obj", instances);
+        // Baked blocks are merged into static batches, which do not support instanced meshes
+        boolean bakedLighting = window.getOptions().bakedLighting;
+        Mesh mesh = bakedLighting ? OBJLoader.loadMesh("/models/cube.obj")
+                : OBJLoader.loadMesh("/models/cube.obj", instances);
         mesh.setBoundingRadius((float) 1.5);
         Texture texture = new Texture("/textures/terrain_textures.png", 2, 1);
         Material material = new Material(texture, reflectance);
@@ -111,6 +139,7 @@ public class DummyGame implements IGameLogic {
                 gameItem.setPosition(posx, starty + incy, posz);
                 int textPos = Math.random() > 0.5f ? 0 : 1;
                 gameItem.setTextPos(textPos);
+                gameItem.setStatic(bakedLighting);
                 gameItems[i * width + j] = gameItem;
 
                 posx += inc;
@@ -153,6 +182,20 @@ public class DummyGame implements IGameLogic {
         Vector3f lightDirection = new Vector3f(0, 1, 1);
         DirectionalLight directionalLight = new DirectionalLight(new Vector3f(1, 1, 1), lightDirection, lightIntensity);
         sceneLight.setDirectionalLight(directionalLight);
+
+        // Torches over the blocks, evaluated by the clustered lighting. The spacing is not a multiple of the rows,
+        // so the torches spread over the whole terrain
+        List<PointLight> pointLights = new ArrayList<>();
+        PointLight.Attenuation attenuation = new PointLight.Attenuation(0.0f, 0.0f, 1.0f);
+        for (int i = 0; i < gameItems.length; i += TORCH_SPACING) {
+            Vector3f position = new Vector3f(gameItems[i].getPosition()).add(0, 1.5f, 0);
+            Vector3f colour = new Vector3f(1.0f, 0.6f, 0.2f);
+            PointLight pointLight = new PointLight(colour, position, 0.5f, new PointLight.Attenuation(attenuation));
+            // Only the torches nearest to the camera get a shadow slot
+            pointLight.setShadowCaster(true);
+            pointLights.add(pointLight);
+        }
+        sceneLight.setPointLightList(pointLights.toArray(new PointLight[0]));
     }
 
     @Override
@@ -199,6 +242,29 @@ public class DummyGame implements IGameLogic {
             angleInc = 0;
         }
 
+        // Toggles the depth pre-pass, compare the time of the passes in the window title
+        boolean prePassKey = window.isKeyPressed(GLFW_KEY_P);
+        if (prePassKey && !prePassKeyPressed) {
+            scene.setDepthPrePass(!scene.isDepthPrePass());
+        }
+        prePassKeyPressed = prePassKey;
+        if (frameCapture != null) {
+            // F12 saves a screenshot, F11 starts and stops a sequence of raw frames
+            boolean screenshotKey = window.isKeyPressed(GLFW_KEY_F12);
+            if (screenshotKey && !screenshotKeyPressed) {
+                frameCapture.requestScreenshot();
+            }
+            screenshotKeyPressed = screenshotKey;
+            boolean sequenceKey = window.isKeyPressed(GLFW_KEY_F11);
+            if (sequenceKey && !sequenceKeyPressed) {
+                if (frameCapture.isRecording()) {
+                    frameCapture.stopSequence();
+                } else {
+                    frameCapture.startSequence(CaptureEncoder.Format.RAW);
+                }
+            }
+            sequenceKeyPressed = sequenceKey;
+        }
         if (window.isKeyPressed(GLFW_KEY_N)) {
             angleInc += 1.1f;
             sceneChanged = true;
@@ -290,12 +356,18 @@ public class DummyGame implements IGameLogic {
         }
         renderer.render(window, camera, scene, sceneChanged);
         hud.render(window);
+        if (frameCapture != null) {
+            frameCapture.capture(window);
+        }
     }
 
 
 
     @Override
     public void cleanup() {
+        if (frameCapture != null) {
+            frameCapture.cleanup();
+        }
         renderer.cleanup();
         scene.cleanup();
         if (hud != null) {
@@ -17,6 +17,22 @@ public class Main {
             opts.compatibleProfile = true;
             opts.antialiasing = true;
             opts.frustumCulling = true;
+            opts.multiDrawIndirect = true;
+            opts.gpuCulling = true;
+            opts.shaderCache = true;
+            opts.shadowCache = true;
+            opts.shadowCascadeIntervals = new int[]{1, 2, 4};
+            opts.shadowMapSize = 2048;
+            opts.shadowDepthBits = 24;
+            opts.shadowProxies = true;
+            opts.filteredShadows = true;
+            opts.clusteredLighting = true;
+            opts.pointShadowFaceBudget = 6;
+            // Baking turns the blocks into static batches instead of an instanced mesh
+            opts.bakedLighting = false;
+            opts.dynamicResolution = true;
+            opts.qualityGovernor = true;
+            opts.targetFrameTime = 1000.0f / 60.0f;
             GameEngine gameEng = new GameEngine("GAME", vSync, opts, gameLogic);
             gameEng.start();
         } catch (Exception excp) {
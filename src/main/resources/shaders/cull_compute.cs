@@ -0,0 +1,94 @@
+#version 430
+
+const int MAX_VIEWS = 4;
+const int INSTANCE_SIZE_FLOATS = 19;
+
+layout (local_size_x = 64) in;
+
+struct ItemData
+{
+    mat4 modelMatrix;
+    // xyz: center, w: radius. A negative radius disables culling
+    vec4 boundingSphere;
+    // xy: texture offsets, z: selected
+    vec4 instanceData;
+    // x: command index
+    uvec4 info;
+};
+
+struct DrawCommand
+{
+    uint count;
+    uint instanceCount;
+    uint firstIndex;
+    int baseVertex;
+    uint baseInstance;
+};
+
+layout (std430, binding=0) readonly buffer Items
+{
+    ItemData items[];
+};
+
+layout (std430, binding=1) buffer Commands
+{
+    DrawCommand commands[];
+};
+
+layout (std430, binding=2) writeonly buffer Instances
+{
+    float instances[];
+};
+
+uniform vec4 frustumPlanes[MAX_VIEWS * 6];
+uniform int numItems;
+uniform int numCommands;
+
+bool isVisible(vec4 sphere, int view)
+{
+    if ( sphere.w < 0 )
+    {
+        return true;
+    }
+    for (int i = 0; i < 6; i++)
+    {
+        vec4 plane = frustumPlanes[view * 6 + i];
+        if ( dot(plane.xyz, sphere.xyz) + plane.w < -sphere.w )
+        {
+            return false;
+        }
+    }
+    return true;
+}
+
+void main()
+{
+    int itemIdx = int(gl_GlobalInvocationID.x);
+    int view = int(gl_GlobalInvocationID.y);
+    if ( itemIdx >= numItems )
+    {
+        return;
+    }
+
+    ItemData item = items[itemIdx];
+    if ( !isVisible(item.boundingSphere, view) )
+    {
+        return;
+    }
+
+    uint cmd = uint(view * numCommands) + item.info.x;
+    uint slot = atomicAdd(commands[cmd].instanceCount, 1u);
+    uint dst = (commands[cmd].baseInstance + slot) * uint(INSTANCE_SIZE_FLOATS);
+    for (int col = 0; col < 4; col++)
+    {
+        vec4 column = item.modelMatrix[col];
+        instances[dst + uint(col * 4)] = column.x;
+        instances[dst + uint(col * 4 + 1)] = column.y;
+        instances[dst + uint(col * 4 + 2)] = column.z;
+        instances[dst + uint(col * 4 + 3)] = column.w;
+    }
+    instances[dst + 16u] = item.instanceData.x;
+    instances[dst + 17u] = item.instanceData.y;
+    // The cascade views store the cascade instead of the selected flag, for the layered depth shader
+    instances[dst + 18u] = view > 0 ? float(view - 1) : item.instanceData.z;
+}
@@ -1,6 +1,18 @@
 #version 330
 
+#ifdef POINT
+in vec3 worldPosition;
+
+uniform vec3 lightPosition;
+uniform float lightRange;
+#endif
+
 void main()
 {
-    gl_FragDepth = gl_FragCoord.z;
+#ifdef POINT
+    // Linear distance, so the scene shader compares distances without the face projection
+    gl_FragDepth = length(worldPosition - lightPosition) / lightRange;
+#else
+    // Depth is written by the fixed function, writing gl_FragDepth would disable the early depth test
+#endif
 }
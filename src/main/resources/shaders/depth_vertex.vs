@@ -1,27 +1,62 @@
 #version 330
+#ifdef LAYERED
+// Only compiled when the context exposes one of them
+#ifdef GL_ARB_shader_viewport_layer_array
+#extension GL_ARB_shader_viewport_layer_array : require
+#else
+#extension GL_AMD_vertex_shader_layer : require
+#endif
+#endif
 
 layout (location=0) in vec3 position;
 layout (location=1) in vec2 texCoord;
 layout (location=2) in vec3 vertexNormal;
 layout (location=5) in mat4 modelInstancedMatrix;
+// Cascade of the instance, recorded in the place of the selected flag
+layout (location=10) in float instanceLayer;
+
+#include "frame_data.glsl"
 
-uniform int isInstanced;
 uniform mat4 modelNonInstancedMatrix;
-uniform mat4 lightViewMatrix;
-uniform mat4 orthoProjectionMatrix;
+uniform int cascadeIndex;
+#ifdef POINT
+// View and projection of the cube face being rendered
+uniform mat4 faceMatrix;
+
+out vec3 worldPosition;
+#endif
+
+#ifdef CAMERA
+// The depth pre-pass must produce exactly the depth of the scene pass
+invariant gl_Position;
+#endif
 
 void main()
 {
-    vec4 initPos = vec4(0, 0, 0, 0);
-        mat4 modelMatrix;
-        if ( isInstanced > 0 )
-        {
-            modelMatrix = modelInstancedMatrix;
-            initPos = vec4(position, 1.0);
-        }
-    else
-        {
-            modelMatrix = modelNonInstancedMatrix;
-        }
-        gl_Position = orthoProjectionMatrix * lightViewMatrix * modelMatrix * initPos;
+    vec4 initPos = vec4(position, 1.0);
+#ifdef INSTANCED
+    mat4 modelMatrix = modelInstancedMatrix;
+#else
+    mat4 modelMatrix = modelNonInstancedMatrix;
+#endif
+#if defined(POINT)
+    vec4 worldPos = modelMatrix * initPos;
+    worldPosition = worldPos.xyz;
+    gl_Position = faceMatrix * worldPos;
+#elif defined(CAMERA)
+    // Same operations as the scene vertex shader
+    mat4 modelViewMatrix =  viewMatrix * modelMatrix;
+    vec4 mvPos = modelViewMatrix * initPos;
+    gl_Position = projectionMatrix * mvPos;
+#else
+#if defined(LAYERED) && defined(INSTANCED)
+    int cascade = int(instanceLayer);
+#else
+    int cascade = cascadeIndex;
+#endif
+    gl_Position = orthoProjectionMatrix[cascade] * lightViewMatrix[cascade] * modelMatrix * initPos;
+#ifdef LAYERED
+    gl_Layer = cascade;
+#endif
+#endif
 }
@@ -0,0 +1,11 @@
+// Exponential variance shadow maps. Higher exponents reduce the light bleeding, but the second moment exp(2c)
+// overflows a 32 bit float above c = 44, and near that limit the variance, the difference of two huge moments,
+// loses most of its precision. 40 keeps a margin under the overflow while hiding most of the bleeding.
+
+const float EVSM_EXPONENT = 40.0;
+
+// Warps a depth in the [0, 1] range
+float warpDepth(float depth)
+{
+    return exp(EVSM_EXPONENT * (depth * 2.0 - 1.0));
+}
@@ -0,0 +1,19 @@
+// Per frame data, written once per frame by FrameUniforms. NUM_CASCADES is defined by the engine
+
+struct DirectionalLight
+{
+    vec3 colour;
+    vec3 direction;
+    float intensity;
+};
+
+layout (std140) uniform FrameData
+{
+    mat4 viewMatrix;
+    mat4 projectionMatrix;
+    mat4 lightViewMatrix[NUM_CASCADES];
+    mat4 orthoProjectionMatrix[NUM_CASCADES];
+    float cascadeFarPlanes[NUM_CASCADES];
+    // Direction in view coordinates
+    DirectionalLight directionalLight;
+};
@@ -6,11 +6,14 @@ layout (location=2) in vec3 vertexNormal;
 
 out vec2 outTexCoord;
 
-uniform mat4 modelViewMatrix;
-uniform mat4 projectionMatrix;
+#include "frame_data.glsl"
+
+uniform mat4 modelMatrix;
 
 void main()
 {
-    gl_Position = projectionMatrix * modelViewMatrix * vec4(position, 1.0);
+    // The sky box follows the camera, drop the translation of the view matrix
+    mat4 rotationViewMatrix = mat4(mat3(viewMatrix));
+    gl_Position = projectionMatrix * rotationViewMatrix * modelMatrix * vec4(position, 1.0);
     outTexCoord = texCoord;
-}
\ No newline at end of file
+}
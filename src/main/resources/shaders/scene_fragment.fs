@@ -1,13 +1,16 @@
 #version 330
 
-const int NUM_CASCADES = 3;
-
 in vec2 outTexCoord;
 in vec3 mvVertexNormal;
 in vec3 mvVertexPos;
+#ifdef SHADOWS
 in vec4 mlightviewVertexPos[NUM_CASCADES];
+#endif
 in mat4 outModelViewMatrix;
 in float outSelected;
+#ifdef BAKED
+in vec2 outBakedLighting;
+#endif
 
 out vec4 fragColor;
 
@@ -27,19 +30,11 @@ struct PointLight
     Attenuation att;
 };
 
-struct DirectionalLight
-{
-    vec3 colour;
-    vec3 direction;
-    float intensity;
-};
-
 struct Material
 {
     vec4 ambient;
     vec4 diffuse;
     vec4 specular;
-    int hasTexture;
     int hasNormalMap;
     float reflectance;
 };
@@ -51,17 +46,37 @@ struct Fog
     float density;
 };
 
+#include "frame_data.glsl"
+
 uniform sampler2D texture_sampler;
 uniform sampler2D normalMap;
-uniform sampler2D shadowMap_0;
-uniform sampler2D shadowMap_1;
-uniform sampler2D shadowMap_2;
+#ifdef SHADOWS
+// One layer per cascade. With EVSM the layers hold the prefiltered moments instead of the depth
+uniform sampler2DArray shadowMap;
+// Radius in texels of the PCF kernel, 0 takes a single sample
+uniform int shadowFilterRadius;
+#ifdef EVSM
+#include "evsm.glsl"
+#endif
+#endif
+#ifdef CLUSTERED
+// Point and spot lights in view coordinates, four texels per light
+uniform samplerBuffer lightData;
+// Offset in the light index list and number of lights of each cluster
+uniform usamplerBuffer clusterData;
+uniform usamplerBuffer lightIndices;
+// Size in pixels of the screen tile of a cluster
+uniform vec2 clusterTileSize;
+// Scale and bias that give the depth slice of a cluster from the logarithm of the depth
+uniform vec2 clusterSliceParams;
+#endif
+#ifdef POINT_SHADOWS
+// Six layers per shadow casting light, one per cube face, with the distance to the light divided by its range
+uniform sampler2DArray pointShadowMap;
+#endif
 uniform vec3 ambientLight;
 uniform float specularPower;
 uniform Material material;
-uniform DirectionalLight directionalLight;
-uniform float cascadeFarPlanes[NUM_CASCADES];
-uniform int renderShadow;
 
 vec4 ambientC;
 vec4 diffuseC;
@@ -69,18 +84,15 @@ vec4 speculrC;
 
 void setupColours(Material material, vec2 textCoord)
 {
-    if (material.hasTexture == 1)
-    {
-        ambientC = texture(texture_sampler, textCoord);
-        diffuseC = ambientC;
-        speculrC = ambientC;
-    }
-    else
-    {
-        ambientC = material.ambient;
-        diffuseC = material.diffuse;
-        speculrC = material.specular;
-    }
+#ifdef TEXTURED
+    ambientC = texture(texture_sampler, textCoord);
+    diffuseC = ambientC;
+    speculrC = ambientC;
+#else
+    ambientC = material.ambient;
+    diffuseC = material.diffuse;
+    speculrC = material.specular;
+#endif
 }
 
 vec4 calcLightColour(vec3 light_colour, float light_intensity, vec3 position, vec3 to_light_dir, vec3 normal)
@@ -121,6 +133,79 @@ vec4 calcDirectionalLight(DirectionalLight light, vec3 position, vec3 normal)
     return calcLightColour(light.colour, light.intensity, position, normalize(light.direction), normal);
 }
 
+#ifdef POINT_SHADOWS
+float calcPointShadow(vec3 position, vec3 lightPosition, float range, int firstLayer)
+{
+    // Faces are aligned with the world axes
+    vec3 toFragment = transpose(mat3(viewMatrix)) * (position - lightPosition);
+    vec3 absDir = abs(toFragment);
+    int face;
+    float major;
+    vec2 faceCoords;
+    if (absDir.x >= absDir.y && absDir.x >= absDir.z)
+    {
+        face = toFragment.x > 0.0 ? 0 : 1;
+        major = absDir.x;
+        faceCoords = vec2(toFragment.x > 0.0 ? -toFragment.z : toFragment.z, -toFragment.y);
+    }
+    else if (absDir.y >= absDir.z)
+    {
+        face = toFragment.y > 0.0 ? 2 : 3;
+        major = absDir.y;
+        faceCoords = vec2(toFragment.x, toFragment.y > 0.0 ? toFragment.z : -toFragment.z);
+    }
+    else
+    {
+        face = toFragment.z > 0.0 ? 4 : 5;
+        major = absDir.z;
+        faceCoords = vec2(toFragment.z > 0.0 ? toFragment.x : -toFragment.x, -toFragment.y);
+    }
+    vec2 uv = faceCoords / major * 0.5 + 0.5;
+    float depth = texture(pointShadowMap, vec3(uv, firstLayer + face)).r;
+    float bias = 0.005;
+    return length(toFragment) / range - bias > depth ? 0.0 : 1.0;
+}
+#endif
+
+#ifdef CLUSTERED
+vec4 calcClusteredLights(vec3 position, vec3 normal)
+{
+    ivec3 cluster = ivec3(ivec2(gl_FragCoord.xy / clusterTileSize),
+        int(floor(log(-position.z) * clusterSliceParams.x + clusterSliceParams.y)));
+    cluster = clamp(cluster, ivec3(0), ivec3(CLUSTERS_X - 1, CLUSTERS_Y - 1, CLUSTERS_Z - 1));
+    uvec2 range = texelFetch(clusterData, (cluster.z * CLUSTERS_Y + cluster.y) * CLUSTERS_X + cluster.x).rg;
+
+    vec4 colour = vec4(0, 0, 0, 0);
+    for (uint i = 0u; i < range.y; i++)
+    {
+        int light = int(texelFetch(lightIndices, int(range.x + i)).r) * 4;
+        vec4 positionRange = texelFetch(lightData, light);
+        vec4 colourIntensity = texelFetch(lightData, light + 1);
+        vec4 attCutOff = texelFetch(lightData, light + 2);
+        PointLight pointLight = PointLight(colourIntensity.rgb, positionRange.xyz, colourIntensity.a,
+            Attenuation(attCutOff.x, attCutOff.y, attCutOff.z));
+        vec4 lightColour = calcPointLight(pointLight, position, normal);
+        vec4 coneLayer = texelFetch(lightData, light + 3);
+        // Point lights have a cut off below -1, spot lights only light the inside of their cone
+        if (attCutOff.w >= -1.0)
+        {
+            vec3 coneDirection = coneLayer.xyz;
+            float spotAlfa = dot(normalize(position - positionRange.xyz), coneDirection);
+            lightColour *= spotAlfa > attCutOff.w ? 1.0 - (1.0 - spotAlfa) / (1.0 - attCutOff.w) : 0.0;
+        }
+#ifdef POINT_SHADOWS
+        // The first shadow layer is negative for the lights without shadows
+        if (coneLayer.w >= 0.0)
+        {
+            lightColour *= calcPointShadow(position, positionRange.xyz, positionRange.w, int(coneLayer.w));
+        }
+#endif
+        colour += lightColour;
+    }
+    return colour;
+}
+#endif
+
 vec3 calcNormal(Material material, vec3 normal, vec2 text_coord, mat4 modelViewMatrix)
 {
     vec3 newNormal = normal;
@@ -133,53 +218,53 @@ vec3 calcNormal(Material material, vec3 normal, vec2 text_coord, mat4 modelViewM
     return newNormal;
 }
 
+#ifdef SHADOWS
+#ifdef EVSM
 float calcShadow(vec4 position, int idx)
 {
-    if ( renderShadow == 0 )
+    vec3 projCoords = position.xyz;
+    // Transform from screen coordinates to texture coordinates
+    projCoords = projCoords * 0.5 + 0.5;
+    if(projCoords.z > 1.0)
     {
         return 1.0;
     }
 
+    // The blur and the mipmaps already average the moments, so one fetch is enough
+    vec2 moments = texture(shadowMap, vec3(projCoords.xy, idx)).rg;
+    float warped = warpDepth(projCoords.z);
+    if (warped <= moments.x)
+    {
+        return 1.0;
+    }
+    // Chebyshev upper bound, with a minimum variance to avoid acne
+    float minVariance = 0.0001 * EVSM_EXPONENT * warped;
+    float variance = max(moments.y - moments.x * moments.x, minVariance * minVariance);
+    float d = warped - moments.x;
+    float pMax = variance / (variance + d * d);
+    // Cuts the tail of the bound, which shows as light bleeding between overlapping casters
+    return clamp((pMax - 0.2) / 0.8, 0.0, 1.0);
+}
+#else
+float calcShadow(vec4 position, int idx)
+{
     vec3 projCoords = position.xyz;
     // Transform from screen coordinates to texture coordinates
     projCoords = projCoords * 0.5 + 0.5;
     float bias = 0.005;
 
     float shadowFactor = 0.0;
-    vec2 inc;
-    if (idx == 0)
-    {
-        inc = 1.0 / textureSize(shadowMap_0, 0);
-    }
-    else if (idx == 1)
-    {
-        inc = 1.0 / textureSize(shadowMap_1, 0);
-    }
-    else
-    {
-        inc = 1.0 / textureSize(shadowMap_2, 0);
-    }
-    for(int row = -1; row <= 1; ++row)
+    vec2 inc = 1.0 / textureSize(shadowMap, 0).xy;
+    for(int row = -shadowFilterRadius; row <= shadowFilterRadius; ++row)
     {
-        for(int col = -1; col <= 1; ++col)
+        for(int col = -shadowFilterRadius; col <= shadowFilterRadius; ++col)
         {
-            float textDepth;
-            if (idx == 0)
-            {
-                textDepth = texture(shadowMap_0, projCoords.xy + vec2(row, col) * inc).r;
-            }
-            else if (idx == 1)
-            {
-                textDepth = texture(shadowMap_1, projCoords.xy + vec2(row, col) * inc).r;
-            }
-            else
-            {
-                textDepth = texture(shadowMap_2, projCoords.xy + vec2(row, col) * inc).r;
-            }
+            float textDepth = texture(shadowMap, vec3(projCoords.xy + vec2(row, col) * inc, idx)).r;
             shadowFactor += projCoords.z - bias > textDepth ? 1.0 : 0.0;
         }
     }
-    shadowFactor /= 9.0;
+    float kernelSize = float(2 * shadowFilterRadius + 1);
+    shadowFactor /= kernelSize * kernelSize;
 
     if(projCoords.z > 1.0)
     {
@@ -188,6 +273,8 @@ float calcShadow(vec4 position, int idx)
 
     return 1 - shadowFactor;
 }
+#endif
+#endif
 
 void main()
 {
@@ -197,7 +284,8 @@ void main()
 
     vec4 diffuseSpecularComp = calcDirectionalLight(directionalLight, mvVertexPos, currNomal);
 
-    int idx;
+#ifdef SHADOWS
+    int idx = NUM_CASCADES - 1;
     for (int i=0; i<NUM_CASCADES; i++)
     {
         if ( abs(mvVertexPos.z) < cascadeFarPlanes[i] )
@@ -207,7 +295,22 @@ void main()
         }
     }
     float shadow = calcShadow(mlightviewVertexPos[idx], idx);
-    fragColor = clamp(ambientC * vec4(ambientLight, 1) + diffuseSpecularComp * shadow, 0, 1);
+#else
+    float shadow = 1.0;
+#endif
+#ifdef BAKED
+    // Static geometry baked on the CPU, the sun visibility replaces the shadow cascades
+    shadow *= outBakedLighting.x;
+    float occlusion = outBakedLighting.y;
+#else
+    float occlusion = 1.0;
+#endif
+#ifdef CLUSTERED
+    vec4 clusteredComp = calcClusteredLights(mvVertexPos, currNomal);
+#else
+    vec4 clusteredComp = vec4(0, 0, 0, 0);
+#endif
+    fragColor = clamp(ambientC * vec4(ambientLight * occlusion, 1) + diffuseSpecularComp * shadow + clusteredComp, 0, 1);
 
     if ( outSelected > 0 ) {
         fragColor = vec4(fragColor.x, fragColor.y, 1, 1);
@@ -1,10 +1,12 @@
 #version 330
 
-const int NUM_CASCADES = 3;
-
 layout (location=0) in vec3 position;
 layout (location=1) in vec2 texCoord;
 layout (location=2) in vec3 vertexNormal;
+#ifdef BAKED
+// Sun visibility and ambient occlusion
+layout (location=3) in vec2 bakedLighting;
+#endif
 layout (location=5) in mat4 modelInstancedMatrix;
 layout (location=9) in vec2 texOffset;
 layout (location=10) in float selectedInstanced;
@@ -12,38 +14,36 @@ layout (location=10) in float selectedInstanced;
 out vec2 outTexCoord;
 out vec3 mvVertexNormal;
 out vec3 mvVertexPos;
+#ifdef SHADOWS
 out vec4 mlightviewVertexPos[NUM_CASCADES];
+#endif
 out mat4 outModelViewMatrix;
 out float outSelected;
+#ifdef BAKED
+out vec2 outBakedLighting;
+#endif
+
+#include "frame_data.glsl"
 
-uniform int isInstanced;
-uniform mat4 viewMatrix;
-uniform mat4 projectionMatrix;
 uniform mat4 modelNonInstancedMatrix;
-uniform mat4 lightViewMatrix[NUM_CASCADES];
-uniform mat4 orthoProjectionMatrix[NUM_CASCADES];
 uniform int numCols;
 uniform int numRows;
 uniform float selectedNonInstanced;
 
+// Must match the depth pre-pass, which is tested with GL_EQUAL
+invariant gl_Position;
+
 void main()
 {
-    vec4 initPos = vec4(0, 0, 0, 0);
-    vec4 initNormal = vec4(0, 0, 0, 0);
-    mat4 modelMatrix;
-    if ( isInstanced > 0 )
-    {
-        outSelected = selectedInstanced;
-        modelMatrix = modelInstancedMatrix;
-
-        initPos = vec4(position, 1.0);
-        initNormal = vec4(vertexNormal, 0.0);
-    }
-    else
-    {
-        outSelected = selectedNonInstanced;
-        modelMatrix = modelNonInstancedMatrix;
-    }
+    vec4 initPos = vec4(position, 1.0);
+    vec4 initNormal = vec4(vertexNormal, 0.0);
+#ifdef INSTANCED
+    outSelected = selectedInstanced;
+    mat4 modelMatrix = modelInstancedMatrix;
+#else
+    outSelected = selectedNonInstanced;
+    mat4 modelMatrix = modelNonInstancedMatrix;
+#endif
     mat4 modelViewMatrix =  viewMatrix * modelMatrix;
     vec4 mvPos = modelViewMatrix * initPos;
     gl_Position = projectionMatrix * mvPos;
@@ -55,8 +55,13 @@ void main()
 
     mvVertexNormal = normalize(modelViewMatrix * initNormal).xyz;
     mvVertexPos = mvPos.xyz;
+#ifdef SHADOWS
     for (int i = 0 ; i < NUM_CASCADES ; i++) {
         mlightviewVertexPos[i] = orthoProjectionMatrix[i] * lightViewMatrix[i] * modelMatrix * vec4(position, 1.0);
     }
+#endif
+#ifdef BAKED
+    outBakedLighting = bakedLighting;
+#endif
     outModelViewMatrix = modelViewMatrix;
-}
\ No newline at end of file
+}
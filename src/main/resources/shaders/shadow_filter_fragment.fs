@@ -0,0 +1,35 @@
+#version 330
+
+#include "evsm.glsl"
+
+out vec2 fragColor;
+
+// Depth maps of the cascades
+uniform sampler2DArray depthMap;
+// Moments blurred horizontally
+uniform sampler2D momentsMap;
+uniform int layer;
+// Radius in texels of the box kernel
+uniform int radius;
+
+void main()
+{
+    ivec2 texel = ivec2(gl_FragCoord.xy);
+    vec2 moments = vec2(0.0);
+#ifdef FROM_DEPTH
+    int maxX = textureSize(depthMap, 0).x - 1;
+    for (int i = -radius; i <= radius; i++)
+    {
+        float depth = texelFetch(depthMap, ivec3(clamp(texel.x + i, 0, maxX), texel.y, layer), 0).r;
+        float warped = warpDepth(depth);
+        moments += vec2(warped, warped * warped);
+    }
+#else
+    int maxY = textureSize(momentsMap, 0).y - 1;
+    for (int i = -radius; i <= radius; i++)
+    {
+        moments += texelFetch(momentsMap, ivec2(texel.x, clamp(texel.y + i, 0, maxY)), 0).rg;
+    }
+#endif
+    fragColor = moments / float(2 * radius + 1);
+}
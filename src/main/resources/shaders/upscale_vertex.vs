@@ -0,0 +1,14 @@
+#version 330
+
+out vec2 outTexCoord;
+
+// Part of the scene texture that holds the scaled scene
+uniform vec2 texScale;
+
+void main()
+{
+    // Full screen triangle, no vertex buffer needed
+    vec2 position = vec2((gl_VertexID << 1) & 2, gl_VertexID & 2);
+    outTexCoord = position * texScale;
+    gl_Position = vec4(position * 2.0 - 1.0, 0.0, 1.0);
+}